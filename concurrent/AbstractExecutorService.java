@@ -76,6 +76,28 @@ public abstract class AbstractExecutorService implements ExecutorService {
         return ftask;
     }
 
+    /**
+     * Creates the futures for all tasks, then executes them using
+     * {@link #executeAll}, so as to take advantage of any batching
+     * it performs.
+     *
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException       {@inheritDoc}
+     */
+    public <T> List<Future<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        ArrayList<Runnable> runnables = new ArrayList<Runnable>(tasks.size());
+        for (Callable<T> t : tasks) {
+            if (t == null)
+                throw new NullPointerException();
+            RunnableFuture<T> f = newTaskFor(t);
+            futures.add(f);
+            runnables.add(f);
+        }
+        executeAll(runnables);
+        return futures;
+    }
+
     /**
      * the main mechanics of invokeAny.
      */
@@ -0,0 +1,434 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import concurrent.atomic.AtomicBoolean;
+import concurrent.atomic.AtomicInteger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A thread factory, usable with both {@link ThreadPoolExecutor} and
+ * {@link ForkJoinPool}, that places the threads it creates on the
+ * processors of the host's NUMA nodes in rotation, pinning each
+ * thread to the processors of its node (or, optionally, to a single
+ * processor) when the thread starts.  A {@code ThreadPoolExecutor}
+ * using work stealing with this factory also assigns each worker a
+ * home task queue among those reserved for its node, and prefers to
+ * steal from queues of the same node.
+ *
+ * <p>The topology is read on Linux from {@code
+ * /sys/devices/system/node}, restricted to the processors this
+ * process is allowed to run on.  Pinning requires Linux and the
+ * {@code taskset} utility.  Because Java provides no direct means of
+ * setting a thread's affinity, each starting thread instead asks a
+ * shared background thread to pin it, which runs {@code taskset}
+ * (via {@code sh}) once for each batch of threads awaiting pinning.
+ * Each batch therefore costs the creation of external processes,
+ * typically taking milliseconds, and threads run unpinned from when
+ * they start until their batch completes.  Thread starts do not wait
+ * for this, but the cost makes this factory best suited to
+ * long-lived pools, rather than to those that frequently create and
+ * discard threads.  Where the topology is unavailable, all
+ * processors are treated as one node, and where pinning is
+ * unavailable or fails, threads run unpinned; in either case this
+ * factory otherwise behaves as the underlying thread factory.
+ */
+public class AffinityThreadFactory
+    implements ThreadFactory, ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+    /*
+     * Overview:
+     *
+     * Threads are numbered in order of creation, and thread i is
+     * placed on node (i mod nodes), and if pinning to processors, on
+     * processor ((i / nodes) mod cpus) of that node, so threads are
+     * spread evenly across nodes first.  Placements are recorded in
+     * a map from thread to node until the thread terminates, for use
+     * by nodeOf.  When a thread starts (in a wrapping Runnable, or
+     * in onStart for ForkJoinWorkerThreads), it finds its Linux
+     * thread id from /proc/thread-self and queues a request to pin
+     * it.  A single daemon thread, started upon the first request,
+     * takes all queued requests and runs one shell script issuing
+     * "taskset -p -c <cpus> <tid>" for each, so that the cost of
+     * process creation is shared by threads started together, and
+     * is not borne by the starting threads.  A failure to pin a
+     * thread that has since exited is ignored; any other failure
+     * (to run the script, or of taskset itself) disables further
+     * attempts.
+     */
+
+    /** Processor numbers of each node, or a single node if unknown */
+    static final int[][] NODE_CPUS = readTopology();
+
+    /** Set false when pinning is found not to work */
+    static volatile boolean pinningEnabled =
+        new File("/proc/thread-self").exists();
+
+    /** Pending requests to pin threads, as {tid, cpus} pairs */
+    static final LinkedBlockingQueue<String[]> pinRequests =
+        new LinkedBlockingQueue<String[]>();
+
+    /** Set true when the thread serving pinRequests is started */
+    static final AtomicBoolean pinnerStarted = new AtomicBoolean();
+
+    private final ThreadFactory delegate;
+    private final boolean pinToCpu;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ConcurrentHashMap<Thread,Integer> placements =
+        new ConcurrentHashMap<Thread,Integer>();
+
+    /**
+     * Creates a factory using {@link Executors#defaultThreadFactory}
+     * to create threads, pinning each to the processors of its node.
+     */
+    public AffinityThreadFactory() {
+        this(Executors.defaultThreadFactory(), false);
+    }
+
+    /**
+     * Creates a factory using the given factory to create threads for
+     * ThreadPoolExecutors (ForkJoinPool worker threads are created
+     * directly), pinning each to the processors of its node, or, if
+     * {@code pinToCpu} is true, to one processor of its node.
+     *
+     * @param delegate the factory to use when creating new threads
+     * @param pinToCpu true to pin each thread to a single processor
+     * @throws NullPointerException if delegate is null
+     */
+    public AffinityThreadFactory(ThreadFactory delegate, boolean pinToCpu) {
+        if (delegate == null)
+            throw new NullPointerException();
+        this.delegate = delegate;
+        this.pinToCpu = pinToCpu;
+    }
+
+    /**
+     * Returns the number of NUMA nodes threads are placed on, which
+     * is one if the topology is unavailable.
+     *
+     * @return the number of nodes
+     */
+    public static int getNodeCount() {
+        return NODE_CPUS.length;
+    }
+
+    /**
+     * Returns true if threads can be pinned on this platform, which
+     * may become false if an attempt fails.
+     *
+     * @return {@code true} if pinning is supported
+     */
+    public static boolean isPinningSupported() {
+        return pinningEnabled;
+    }
+
+    /**
+     * Returns the node on which the given thread, created by this
+     * factory, is placed, or -1 if it was not created by this
+     * factory, has not yet started, or has terminated.
+     *
+     * @param t the thread
+     * @return the node of the thread, or -1 if unknown
+     */
+    public int nodeOf(Thread t) {
+        Integer n = placements.get(t);
+        return (n == null) ? -1 : n;
+    }
+
+    /**
+     * Returns the processor list, in the syntax of taskset, for the
+     * thread with the given index, and stores its node in node[0].
+     */
+    private String place(int index, int[] node) {
+        int[][] nodes = NODE_CPUS;
+        int k = index & Integer.MAX_VALUE, n = k % nodes.length;
+        int[] cpus = nodes[n];
+        node[0] = n;
+        if (pinToCpu)
+            return Integer.toString(cpus[(k / nodes.length) % cpus.length]);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cpus.length; ++i) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(cpus[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs a task in a thread after recording its placement and
+     * requesting that it be pinned, and then removes its placement.
+     * Placements are recorded only once threads start, so that
+     * threads that are created but never started are not retained.
+     */
+    final class PinnedRunnable implements Runnable {
+        final Runnable task;
+        final String cpus;
+        final int node;
+        PinnedRunnable(Runnable task, String cpus, int node) {
+            this.task = task;
+            this.cpus = cpus;
+            this.node = node;
+        }
+        public void run() {
+            try {
+                placements.put(Thread.currentThread(), node);
+                pinCurrentThread(cpus);
+                task.run();
+            } finally {
+                placements.remove(Thread.currentThread());
+            }
+        }
+    }
+
+    public Thread newThread(Runnable r) {
+        if (r == null)
+            throw new NullPointerException();
+        int[] node = new int[1];
+        String cpus = place(threadCount.getAndIncrement(), node);
+        return delegate.newThread(new PinnedRunnable(r, cpus, node[0]));
+    }
+
+    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        int[] node = new int[1];
+        String cpus = place(threadCount.getAndIncrement(), node);
+        return new PinnedWorkerThread(pool, cpus, node[0]);
+    }
+
+    /**
+     * ForkJoinWorkerThread that records its placement and pins
+     * itself on start.
+     */
+    final class PinnedWorkerThread extends ForkJoinWorkerThread {
+        final String cpus;
+        final int node;
+        PinnedWorkerThread(ForkJoinPool pool, String cpus, int node) {
+            super(pool);
+            this.cpus = cpus;
+            this.node = node;
+        }
+        protected void onStart() {
+            super.onStart();
+            placements.put(this, node);
+            pinCurrentThread(cpus);
+        }
+        protected void onTermination(Throwable exception) {
+            placements.remove(this);
+            super.onTermination(exception);
+        }
+    }
+
+    /**
+     * Requests that the current thread be pinned to the given
+     * processors, which happens asynchronously.
+     *
+     * @return true if requested
+     */
+    static boolean pinCurrentThread(String cpus) {
+        if (!pinningEnabled)
+            return false;
+        String tid;
+        try {
+            String self = Files.readSymbolicLink
+                (Paths.get("/proc/thread-self")).toString();
+            tid = self.substring(self.lastIndexOf('/') + 1);
+        } catch (IOException | RuntimeException ex) {
+            pinningEnabled = false;
+            return false;
+        }
+        pinRequests.offer(new String[] { tid, cpus });
+        if (!pinnerStarted.get() && pinnerStarted.compareAndSet(false, true)) {
+            Thread t = new Thread(AffinityThreadFactory::servePinRequests,
+                                  "AffinityThreadFactory-pinner");
+            t.setDaemon(true);
+            t.start();
+        }
+        return true;
+    }
+
+    /**
+     * Runs forever in the pinning thread, pinning threads in batches
+     * of the requests queued at each point, until pinning fails.
+     */
+    static void servePinRequests() {
+        ArrayList<String[]> batch = new ArrayList<String[]>();
+        while (pinningEnabled) {
+            try {
+                batch.add(pinRequests.take());
+            } catch (InterruptedException ignore) {
+                continue;
+            }
+            pinRequests.drainTo(batch);
+            if (!pinThreads(batch))
+                pinningEnabled = false;
+            batch.clear();
+        }
+        pinRequests.clear();
+    }
+
+    /**
+     * Pins each thread in the given list of {tid, cpus} requests by
+     * running taskset for each in one shell.  A failure for a thread
+     * that no longer exists is not counted as a failure.
+     *
+     * @return true if successful
+     */
+    static boolean pinThreads(List<String[]> requests) {
+        StringBuilder sb = new StringBuilder("s=0\n");
+        for (String[] req : requests) {
+            String tid = req[0], cpus = req[1];
+            sb.append("taskset -p -c ").append(cpus).append(' ').append(tid)
+                .append(" || test ! -e /proc/").append(tid)
+                .append(" || s=1\n");
+        }
+        sb.append("exit $s\n");
+        try {
+            Process p = new ProcessBuilder("sh", "-c", sb.toString())
+                .redirectErrorStream(true)
+                .redirectOutput(new File("/dev/null"))
+                .start();
+            int status;
+            for (;;) {
+                try {
+                    status = p.waitFor();
+                    break;
+                } catch (InterruptedException ignore) {
+                }
+            }
+            return status == 0;
+        } catch (IOException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the processors of each node with at least one allowed
+     * processor, or all processors as one node if unknown.
+     */
+    static int[][] readTopology() {
+        BitSet allowed = null;
+        try (BufferedReader r = new BufferedReader
+             (new FileReader("/proc/self/status"))) {
+            for (String line; (line = r.readLine()) != null; ) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    allowed = parseCpuList(line.substring(18));
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException ignore) {
+        }
+        List<int[]> nodes = new ArrayList<int[]>();
+        BitSet ids = readNodeIds();
+        for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+            File f = new File("/sys/devices/system/node/node" + i + "/cpulist");
+            try (BufferedReader r = new BufferedReader(new FileReader(f))) {
+                BitSet cpus = parseCpuList(r.readLine());
+                if (allowed != null)
+                    cpus.and(allowed);
+                if (!cpus.isEmpty())
+                    nodes.add(cpus.stream().toArray());
+            } catch (IOException | RuntimeException ex) {
+                nodes.clear();
+                break;
+            }
+        }
+        if (nodes.isEmpty()) {
+            int[] cpus;
+            if (allowed != null && !allowed.isEmpty())
+                cpus = allowed.stream().toArray();
+            else {
+                cpus = new int[Runtime.getRuntime().availableProcessors()];
+                for (int i = 0; i < cpus.length; ++i)
+                    cpus[i] = i;
+            }
+            nodes.add(cpus);
+        }
+        return nodes.toArray(new int[0][]);
+    }
+
+    /**
+     * Returns the ids of the online nodes, which need not be
+     * contiguous, read from /sys/devices/system/node/online, or if
+     * that is unavailable, from the names of the node directories;
+     * or an empty set if unknown.
+     */
+    static BitSet readNodeIds() {
+        try (BufferedReader r = new BufferedReader
+             (new FileReader("/sys/devices/system/node/online"))) {
+            return parseCpuList(r.readLine());
+        } catch (IOException | RuntimeException ignore) {
+        }
+        BitSet ids = new BitSet();
+        String[] names = new File("/sys/devices/system/node").list();
+        if (names != null) {
+            Pattern nodeName = Pattern.compile("node(\\d+)");
+            for (String name : names) {
+                Matcher m = nodeName.matcher(name);
+                if (m.matches())
+                    ids.set(Integer.parseInt(m.group(1)));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Parses a list such as "0-3,8,10-11".
+     */
+    static BitSet parseCpuList(String s) {
+        BitSet cpus = new BitSet();
+        for (String part : s.trim().split(",")) {
+            if (part.isEmpty())
+                continue;
+            int dash = part.indexOf('-');
+            if (dash < 0)
+                cpus.set(Integer.parseInt(part.trim()));
+            else
+                cpus.set(Integer.parseInt(part.substring(0, dash).trim()),
+                         Integer.parseInt(part.substring(dash + 1).trim()) + 1);
+        }
+        return cpus;
+    }
+}
@@ -69,4 +69,103 @@ public interface BlockingQueue<E> extends Queue<E> {
 
 
     int drainTo(Collection<? super E> c, int maxElements);
+
+    /**
+     * Inserts as many elements of the given collection as fit without
+     * exceeding capacity, in iteration order, returning the number
+     * inserted.  Implementations may insert them all while acquiring
+     * locks and signalling waiting takers only once.  If any element
+     * is null, none are inserted.
+     *
+     * @param c the elements to insert
+     * @return the number of elements inserted
+     * @throws NullPointerException if the collection or any of its
+     *         elements is null
+     * @throws IllegalArgumentException if the collection is this queue
+     */
+    default int offerAll(Collection<? extends E> c) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        Object[] a = c.toArray();
+        for (Object x : a)
+            if (x == null)
+                throw new NullPointerException();
+        int n = 0;
+        for (Object x : a) {
+            @SuppressWarnings("unchecked") E e = (E) x;
+            if (!offer(e))
+                break;
+            ++n;
+        }
+        return n;
+    }
+
+    /**
+     * Inserts all elements of the given collection, in iteration
+     * order, waiting if necessary for space to become available.
+     * Implementations may insert them while acquiring locks only once
+     * per wait for space.  If any element is null, none are inserted.
+     * If interrupted while waiting, the elements inserted so far
+     * remain in this queue.
+     *
+     * @param c the elements to insert
+     * @throws InterruptedException if interrupted while waiting
+     * @throws NullPointerException if the collection or any of its
+     *         elements is null
+     * @throws IllegalArgumentException if the collection is this queue
+     */
+    default void putAll(Collection<? extends E> c)
+        throws InterruptedException {
+        if (c == this)
+            throw new IllegalArgumentException();
+        Object[] a = c.toArray();
+        for (Object x : a)
+            if (x == null)
+                throw new NullPointerException();
+        for (Object x : a) {
+            @SuppressWarnings("unchecked") E e = (E) x;
+            put(e);
+        }
+    }
+
+    /**
+     * Removes at least one and at most {@code maxElements} elements
+     * from this queue and adds them to the given collection, waiting
+     * up to the specified wait time if necessary for an element to
+     * become available.  Once one is, this method does not wait for
+     * further elements, but removes those immediately available, as
+     * does {@link #drainTo(Collection, int)}.  Implementations may
+     * remove them all while acquiring locks and signalling waiting
+     * producers only once.  The caveats of {@code drainTo} about
+     * failures of {@code c.add} apply.
+     *
+     * @param c the collection to transfer elements into
+     * @param maxElements the maximum number of elements to transfer
+     * @param timeout how long to wait before giving up, in units of
+     *        {@code unit}
+     * @param unit a {@code TimeUnit} determining how to interpret the
+     *        {@code timeout} parameter
+     * @return the number of elements transferred, zero if the
+     *         specified waiting time elapses before an element is
+     *         available or {@code maxElements} is not positive
+     * @throws InterruptedException if interrupted while waiting
+     * @throws NullPointerException if the specified collection is null
+     * @throws IllegalArgumentException if the specified collection is
+     *         this queue
+     */
+    default int poll(Collection<? super E> c, int maxElements,
+                     long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        E x = poll(timeout, unit);
+        if (x == null)
+            return 0;
+        c.add(x);
+        return 1 + drainTo(c, maxElements - 1);
+    }
 }
@@ -0,0 +1,1468 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import static concurrent.TimeUnit.NANOSECONDS;
+import concurrent.atomic.LongAdder;
+import concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A {@link ConcurrentMap} holding at most a given total weight of
+ * mappings, suitable for use as a cache.  When an insertion causes
+ * the total weight to exceed the maximum, mappings are evicted
+ * according to a <em>W-TinyLFU</em> policy: new mappings enter a
+ * small LRU "window", and on leaving it are admitted to the main
+ * LRU region only if they have been used more frequently (as
+ * estimated by a compact frequency sketch) than the main region's
+ * least recently used mapping, which is otherwise retained.  This
+ * policy has near optimal hit rates for most workloads, and, unlike
+ * pure LRU, resists flushing by scans of rarely used keys.
+ *
+ * <p>Mappings are held in a {@link ConcurrentHashMap}, and
+ * retrievals have the same (non-blocking) concurrency properties.
+ * Reads are recorded in lossy striped buffers that are drained
+ * in batches by whichever thread acquires the eviction lock, so
+ * readers never block, and a few reads may not be counted under
+ * heavy contention.  Updates are recorded in an unbounded queue and
+ * applied in the same way; eviction is performed by updating
+ * threads, not a background thread.  Because of this batching, the
+ * total weight may briefly exceed the maximum while updates are in
+ * progress, and mappings may not be evicted in exact policy order.
+ *
+ * <p>By default each mapping has weight one, so the maximum weight
+ * is the maximum number of mappings.  A {@link Weigher} may be
+ * supplied to instead bound, for example, the total size of values.
+ * Weights are computed on insertion and replacement, and are static
+ * thereafter.
+ *
+ * <p>Mappings may also expire: after a fixed duration since they
+ * were last written, after a fixed duration since they were last
+ * read or written, or (using {@link #put(Object, Object, long,
+ * TimeUnit)}) after a time to live given per mapping.  Expired
+ * mappings are never returned by retrievals, and are removed in
+ * batches by the same threads that perform eviction, using a
+ * hierarchical timing wheel, so no timer thread or per-mapping
+ * scheduled task is needed.  Removal occurs within about a second
+ * of expiration if the map is in use; until then expired mappings
+ * are included in {@link #size}.  A maximum weight of {@code
+ * Long.MAX_VALUE} may be used for maps that bound only the
+ * lifetime, not the number, of mappings.
+ *
+ * <p>The numbers of hits and misses of {@link #get} and {@link
+ * #computeIfAbsent}, and of evictions and expirations, are
+ * maintained and may be obtained using {@link #hitCount}, {@link
+ * #missCount}, {@link #evictionCount} and {@link #expirationCount}.
+ *
+ * <p>Like {@link ConcurrentHashMap}, this class does <em>not</em>
+ * allow {@code null} to be used as a key or value.  This class is
+ * not serializable.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class BoundedConcurrentHashMap<K,V> extends AbstractMap<K,V>
+    implements ConcurrentMap<K,V> {
+
+    /*
+     * Overview:
+     *
+     * The map holds Nodes containing keys, values and weights in a
+     * ConcurrentHashMap, relying on it for lookups, bin locking
+     * during insertion and removal, and (via its CounterCells) size
+     * counts.  Eviction order is maintained separately in doubly
+     * linked lists of Nodes guarded by evictionLock.  Rather than
+     * acquiring this lock on each access (which would make it the
+     * point of contention for all reads), accesses are recorded in
+     * buffers, and applied in batches ("maintenance") by any thread
+     * that can acquire the lock without blocking (as in Caffeine and
+     * ConcurrentLinkedHashMap).
+     *
+     * Reads are recorded in ReadBuffers, each a small ring buffer
+     * selected by the ThreadLocalRandom probe (as for CounterCells).
+     * Offers fail rather than retrying on CAS contention (advancing
+     * the probe to reduce future collisions) and are dropped when the
+     * buffer is full, in which case maintenance is attempted.  Losing
+     * reads only makes the policy slightly less accurate.
+     *
+     * Writes (insertions, replacements and removals) must not be
+     * lost, so are recorded in a ConcurrentLinkedQueue, after which
+     * maintenance is attempted.  To ensure that a write is not
+     * stranded in the queue when another thread held the lock but had
+     * already finished draining, the lock holder rechecks the queue
+     * after unlocking.  (This forms a Dekker-style pair with the
+     * writer's offer and tryLock.)  The records are just the Nodes
+     * themselves: maintenance reconciles the policy's view of each
+     * node with its current state, linking new nodes, adjusting
+     * weights of replaced ones, and unlinking removed ones, so the
+     * order in which records from different threads are applied does
+     * not matter.
+     *
+     * Each Node's value, weight and removal ("retired") status are
+     * updated only while holding its monitor, and a Node is removed
+     * from the ConcurrentHashMap only while holding it, then marked
+     * retired.  This ensures that a replacement cannot update a Node
+     * that has already been removed (in which case it retries), and
+     * that eviction does not remove a Node that has been replaced by
+     * another mapping for the same key.
+     *
+     * Eviction uses W-TinyLFU (Einziger, Friedman and Manes,
+     * "TinyLFU: A Highly Efficient Cache Admission Policy"), with an
+     * LRU window of about one percent of the maximum weight, and an
+     * LRU main region.  Nodes leaving the window become candidates
+     * placed at the tail of the main region, and while the total
+     * weight is too large, the oldest candidate is compared with the
+     * head (victim) of the main region, evicting whichever has lower
+     * estimated frequency.  Frequencies are estimated using a 4-bit
+     * count-min sketch (FrequencySketch), periodically halved to
+     * age out old history.
+     *
+     * Expiration uses a hierarchical timing wheel (Varghese and
+     * Lauck, "Hashed and Hierarchical Timing Wheels"), also accessed
+     * only under evictionLock.  Each linked Node with a time to live,
+     * or in a map expiring after access, is in the bucket of the
+     * wheel covering its deadline, at the finest level whose span
+     * covers its remaining delay.  On each maintenance, the wheel is
+     * advanced to the current time, and the Nodes of each bucket
+     * passed are removed if expired, or otherwise rescheduled
+     * (usually at a finer level).  This takes time proportional to
+     * the number of expiring Nodes rather than the number of Nodes.
+     * Because maintenance happens only on updates and occasional
+     * reads, retrievals independently check expiration times (the
+     * clock is read only if some expiration applies).  The times of
+     * last write and (if needed) last access are kept in Nodes, and
+     * written along with values under the Node's monitor, except for
+     * access times, which are just overwritten by readers.
+     */
+
+    /* ---------------- Constants -------------- */
+
+    /**
+     * The number of elements in each ReadBuffer.  Must be a power
+     * of two.
+     */
+    static final int READ_BUFFER_SIZE = 16;
+
+    /**
+     * The maximum number of ReadBuffers.  Must be a power of two.
+     */
+    static final int MAX_READ_BUFFERS = 64;
+
+    /**
+     * The percentage of the maximum weight used for the window.
+     */
+    static final int WINDOW_PERCENT = 1;
+
+    /*
+     * Results of ReadBuffer.offer.
+     */
+    static final int OFFERED = 0;
+    static final int CONTENDED = 1;
+    static final int FULL = 2;
+
+    /*
+     * Node queue positions.
+     */
+    static final int UNLINKED = 0;
+    static final int WINDOW = 1;
+    static final int MAIN = 2;
+
+    /**
+     * Maximum time to live, small enough to avoid overflow in
+     * computing deadlines.
+     */
+    static final long MAX_TTL = Long.MAX_VALUE >>> 1;
+
+    /** Number of CPUS, to place bounds on some sizings */
+    static final int NCPU = ConcurrentHashMap.NCPU;
+
+    /* ---------------- Nested classes -------------- */
+
+    /**
+     * Computes the weight of mappings.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    @FunctionalInterface
+    public interface Weigher<K,V> {
+        /**
+         * Returns the weight of a mapping.  The weight of a mapping
+         * is computed when it is inserted or replaced.
+         *
+         * @param key the key
+         * @param value the value
+         * @return the non-negative weight
+         */
+        int weigh(K key, V value);
+    }
+
+    /**
+     * A mapping.  Fields value, weight, ttl, writeTime and retired
+     * are written only while holding the Node's monitor; queue and
+     * link fields only under the eviction lock.
+     */
+    static final class Node<K,V> {
+        final K key;
+        volatile V value;
+        volatile int weight;
+        volatile long ttl;         // time to live after write, or 0
+        volatile long writeTime;   // nanoTime of last write, if needed
+        volatile long accessTime;  // nanoTime of last access, if needed
+        volatile boolean retired;  // true once removed from the map
+        int queue;                 // UNLINKED, WINDOW or MAIN
+        int policyWeight;          // weight accounted for in queue
+        Node<K,V> prev, next;      // links in queue
+        Node<K,V> tprev, tnext;    // links in timer wheel bucket
+
+        Node(K key, V value, int weight, long ttl, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.ttl = ttl;
+            this.writeTime = this.accessTime = now;
+        }
+    }
+
+    /**
+     * A doubly linked list of Nodes in access order, from least to
+     * most recent.  Accessed only under the eviction lock.
+     */
+    static final class AccessQueue<K,V> {
+        Node<K,V> head, tail;
+        long weight;
+
+        void linkLast(Node<K,V> n) {
+            Node<K,V> t = tail;
+            n.prev = t;
+            n.next = null;
+            if (t == null)
+                head = n;
+            else
+                t.next = n;
+            tail = n;
+        }
+
+        void unlink(Node<K,V> n) {
+            Node<K,V> p = n.prev, s = n.next;
+            if (p == null)
+                head = s;
+            else
+                p.next = s;
+            if (s == null)
+                tail = p;
+            else
+                s.prev = p;
+            n.prev = n.next = null;
+        }
+
+        void moveToLast(Node<K,V> n) {
+            if (n != tail) {
+                unlink(n);
+                linkLast(n);
+            }
+        }
+    }
+
+    /**
+     * A lossy ring buffer of Nodes read.  Offers claim a slot by
+     * CAS of writes; the draining thread consumes published slots
+     * and advances reads.
+     */
+    @sun.misc.Contended static final class ReadBuffer {
+        volatile long writes;
+        volatile long reads;
+        final Node<?,?>[] slots = new Node<?,?>[READ_BUFFER_SIZE];
+
+        int offer(Node<?,?> n) {
+            long w = writes;
+            if (w - reads >= READ_BUFFER_SIZE)
+                return FULL;
+            if (!U.compareAndSwapLong(this, WRITES, w, w + 1L))
+                return CONTENDED;
+            U.putOrderedObject(slots, ((w & (READ_BUFFER_SIZE - 1)) << ASHIFT) +
+                               ABASE, n);
+            return OFFERED;
+        }
+    }
+
+    /**
+     * A 4-bit count-min sketch estimating the frequency of keys.
+     * Each long of the table holds sixteen counters; a key's four
+     * counters are all in the same long, at depths chosen by the low
+     * bits of its hash.  When the number of increments reaches ten
+     * times the table capacity, all counters are halved.  Accessed
+     * only under the eviction lock.
+     */
+    static final class FrequencySketch {
+        static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        static final long RESET_MASK = 0x7777777777777777L;
+        static final long ONE_MASK = 0x1111111111111111L;
+
+        long[] table;
+        int sampleSize;
+        int size;
+
+        /**
+         * Resizes if necessary to accurately track the given number of
+         * keys, discarding history.
+         */
+        void ensureCapacity(long n) {
+            int c = (int)Math.min(Math.max(n, 8L), 1L << 26);
+            if (table == null || table.length < c) {
+                table = new long[Integer.highestOneBit(c - 1) << 1];
+                sampleSize = 10 * table.length;
+                size = 0;
+            }
+        }
+
+        static int spread(int h) {
+            h *= 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+        int indexOf(int h, int i) {
+            long x = (h + SEEDS[i]) * SEEDS[i];
+            x += x >>> 32;
+            return (int)x & (table.length - 1);
+        }
+
+        int frequency(Object key) {
+            int h = spread(key.hashCode()), start = (h & 3) << 2;
+            int f = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; ++i) {
+                long c = table[indexOf(h, i)] >>> ((start + i) << 2);
+                f = Math.min(f, (int)c & 0xf);
+            }
+            return f;
+        }
+
+        void increment(Object key) {
+            int h = spread(key.hashCode()), start = (h & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; ++i) {
+                int j = indexOf(h, i);
+                long mask = 0xfL << ((start + i) << 2);
+                if ((table[j] & mask) != mask) {
+                    table[j] += 1L << ((start + i) << 2);
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize)
+                reset();
+        }
+
+        void reset() {
+            long[] t = table;
+            int odd = 0;
+            for (int i = 0; i < t.length; ++i) {
+                odd += Long.bitCount(t[i] & ONE_MASK);
+                t[i] = (t[i] >>> 1) & RESET_MASK;
+            }
+            size = (size >>> 1) - (odd >>> 2);
+        }
+    }
+
+    /**
+     * A hierarchical timing wheel of expiring Nodes.  Level i has
+     * BUCKETS buckets, each covering 2^SHIFTS[i] nanoseconds, so the
+     * whole level spans one bucket of level i + 1.  Buckets are
+     * circular lists of Nodes headed by sentinels.  Accessed only
+     * under the eviction lock.
+     */
+    static final class TimerWheel<K,V> {
+        static final int[] SHIFTS = { 30, 36, 42, 48 }; // ~1s, 1m, 1h, 3d
+        static final int BUCKETS = 64;
+
+        final Node<K,V>[][] buckets;
+        long nanos;                // time of last advance
+
+        @SuppressWarnings("unchecked")
+        TimerWheel(long now) {
+            Node<K,V>[][] bs = (Node<K,V>[][])new Node<?,?>[SHIFTS.length][];
+            for (int i = 0; i < bs.length; ++i) {
+                Node<K,V>[] b = bs[i] = (Node<K,V>[])new Node<?,?>[BUCKETS];
+                for (int j = 0; j < BUCKETS; ++j) {
+                    Node<K,V> s = b[j] = new Node<K,V>(null, null, 0, 0L, 0L);
+                    s.tprev = s.tnext = s;
+                }
+            }
+            this.buckets = bs;
+            this.nanos = now;
+        }
+
+        /**
+         * Places n in the bucket for the given deadline.
+         */
+        void schedule(Node<K,V> n, long deadline) {
+            unlink(n);
+            long d = deadline - nanos;
+            int i = 0, last = SHIFTS.length - 1;
+            while (i < last && d >= (1L << SHIFTS[i + 1]))
+                ++i;
+            Node<K,V> s = buckets[i][(int)(deadline >>> SHIFTS[i]) &
+                                     (BUCKETS - 1)];
+            Node<K,V> p = s.tprev;
+            n.tprev = p;
+            n.tnext = s;
+            p.tnext = n;
+            s.tprev = n;
+        }
+
+        void unlink(Node<K,V> n) {
+            Node<K,V> p = n.tprev, s = n.tnext;
+            if (s != null) {
+                p.tnext = s;
+                s.tprev = p;
+                n.tprev = n.tnext = null;
+            }
+        }
+    }
+
+    /* ---------------- Fields -------------- */
+
+    /** The mappings */
+    final ConcurrentHashMap<K,Node<K,V>> data;
+
+    /** The maximum total weight */
+    final long maximumWeight;
+
+    /** The maximum weight of the window */
+    final long windowMaximum;
+
+    /** The weigher, or null if all weights are one */
+    final Weigher<? super K, ? super V> weigher;
+
+    /** Default time to live after write, or 0 */
+    final long expireAfterWriteNanos;
+
+    /** Time to live after last access, or 0 */
+    final long expireAfterAccessNanos;
+
+    /** Lock guarding the queues, sketch, and draining of buffers */
+    final ReentrantLock evictionLock = new ReentrantLock();
+
+    /** Read buffers; length a power of two */
+    final ReadBuffer[] readBuffers;
+
+    /** Nodes written since last maintenance */
+    final ConcurrentLinkedQueue<Node<K,V>> writeBuffer =
+        new ConcurrentLinkedQueue<Node<K,V>>();
+
+    /** Queues and sketch, guarded by evictionLock */
+    final AccessQueue<K,V> window = new AccessQueue<K,V>();
+    final AccessQueue<K,V> main = new AccessQueue<K,V>();
+    final FrequencySketch sketch = new FrequencySketch();
+    final TimerWheel<K,V> timerWheel = new TimerWheel<K,V>(System.nanoTime());
+
+    /** Total weight of linked nodes, written under evictionLock */
+    volatile long weightedSize;
+
+    /** Statistics */
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder expirations = new LongAdder();
+
+    // views
+    private transient EntrySetView<K,V> entrySet;
+
+    /* ---------------- Public operations -------------- */
+
+    /**
+     * Creates a new, empty map holding at most the given number of
+     * mappings.
+     *
+     * @param maximumSize the maximum number of mappings
+     * @throws IllegalArgumentException if maximumSize is negative
+     */
+    public BoundedConcurrentHashMap(long maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * Creates a new, empty map holding mappings of at most the given
+     * total weight, as computed by the given weigher.
+     *
+     * @param maximumWeight the maximum total weight
+     * @param weigher the weigher, or null if each mapping has weight one
+     * @throws IllegalArgumentException if maximumWeight is negative
+     */
+    public BoundedConcurrentHashMap(long maximumWeight,
+                                    Weigher<? super K, ? super V> weigher) {
+        this(maximumWeight, weigher, 0L, 0L, NANOSECONDS);
+    }
+
+    /**
+     * Creates a new, empty map holding mappings of at most the given
+     * total weight, as computed by the given weigher, that expire
+     * after the given durations.
+     *
+     * @param maximumWeight the maximum total weight, or {@code
+     *        Long.MAX_VALUE} if unbounded
+     * @param weigher the weigher, or null if each mapping has weight one
+     * @param expireAfterWrite the default time to live of mappings
+     *        after they are inserted or replaced, or zero if they do not
+     *        expire by default
+     * @param expireAfterAccess the time to live of mappings after they
+     *        are last read or written, or zero if they do not expire
+     *        on this basis
+     * @param unit the time unit of the durations
+     * @throws IllegalArgumentException if maximumWeight or either
+     *         duration is negative
+     * @throws NullPointerException if unit is null
+     */
+    public BoundedConcurrentHashMap(long maximumWeight,
+                                    Weigher<? super K, ? super V> weigher,
+                                    long expireAfterWrite,
+                                    long expireAfterAccess,
+                                    TimeUnit unit) {
+        if (maximumWeight < 0L || expireAfterWrite < 0L ||
+            expireAfterAccess < 0L)
+            throw new IllegalArgumentException();
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = maximumWeight / 100L * WINDOW_PERCENT;
+        this.weigher = weigher;
+        this.expireAfterWriteNanos =
+            Math.min(unit.toNanos(expireAfterWrite), MAX_TTL);
+        this.expireAfterAccessNanos =
+            Math.min(unit.toNanos(expireAfterAccess), MAX_TTL);
+        long cap = (weigher == null) ? maximumWeight : 16L;
+        this.data = new ConcurrentHashMap<K,Node<K,V>>
+            ((int)Math.min(cap, 1L << 16));
+        int n = 1;
+        while (n < NCPU && n < MAX_READ_BUFFERS)
+            n <<= 1;
+        ReadBuffer[] bs = new ReadBuffer[n];
+        for (int i = 0; i < n; ++i)
+            bs[i] = new ReadBuffer();
+        this.readBuffers = bs;
+        sketch.ensureCapacity(Math.min(cap, 1L << 16));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key,
+     * recording a hit or miss.
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public V get(Object key) {
+        Node<K,V> n;
+        if ((n = data.get(key)) == null || !isLive(n, true)) {
+            misses.increment();
+            if (n != null)
+                tryMaintenance();   // expire
+            return null;
+        }
+        hits.increment();
+        afterRead(n);
+        return n.value;
+    }
+
+    /**
+     * Tests if the specified object is a key in this table, without
+     * recording an access.
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean containsKey(Object key) {
+        Node<K,V> n;
+        return (n = data.get(key)) != null && isLive(n, false);
+    }
+
+    /**
+     * Returns {@code true} if this map maps one or more keys to the
+     * specified value. Note: This method requires a full traversal
+     * of the map.
+     *
+     * @throws NullPointerException if the specified value is null
+     */
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        for (Node<K,V> n : data.values()) {
+            if (value.equals(n.value) && isLive(n, false))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Maps the specified key to the specified value in this table,
+     * possibly evicting other mappings.
+     *
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key or value is null
+     * @throws IllegalArgumentException if the weigher returns a
+     *         negative weight
+     */
+    public V put(K key, V value) {
+        return putVal(key, value, false, expireAfterWriteNanos);
+    }
+
+    /**
+     * Maps the specified key to the specified value in this table,
+     * with the given time to live, possibly evicting other mappings.
+     * If the map expires mappings after access, the mapping may
+     * expire sooner.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @param timeToLive the time after which the mapping expires
+     * @param unit the time unit of the timeToLive argument
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key, value or unit
+     *         is null
+     * @throws IllegalArgumentException if timeToLive is not positive,
+     *         or the weigher returns a negative weight
+     */
+    public V put(K key, V value, long timeToLive, TimeUnit unit) {
+        return putVal(key, value, false, ttlFor(timeToLive, unit));
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value and time to live.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @param timeToLive the time after which the mapping expires
+     * @param unit the time unit of the timeToLive argument
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key, value or unit
+     *         is null
+     * @throws IllegalArgumentException if timeToLive is not positive,
+     *         or the weigher returns a negative weight
+     */
+    public V putIfAbsent(K key, V value, long timeToLive, TimeUnit unit) {
+        return putVal(key, value, true, ttlFor(timeToLive, unit));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     * @throws IllegalArgumentException if the weigher returns a
+     *         negative weight
+     */
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true, expireAfterWriteNanos);
+    }
+
+    /**
+     * Removes the key (and its corresponding value) from this map.
+     * This method does nothing if the key is not in the map.
+     *
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key is null
+     */
+    public V remove(Object key) {
+        Node<K,V> n;
+        while ((n = data.get(key)) != null) {
+            V v = null;
+            boolean removed = false;
+            synchronized (n) {
+                if (!n.retired) {
+                    if (isLive(n, false))
+                        v = n.value;
+                    data.remove(key, n);
+                    n.retired = removed = true;
+                }
+            }
+            if (removed) {
+                afterWrite(n);
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        Node<K,V> n;
+        while (value != null && (n = data.get(key)) != null) {
+            boolean removed = false;
+            synchronized (n) {
+                if (!n.retired) {
+                    if (!value.equals(n.value) || !isLive(n, false))
+                        return false;
+                    data.remove(key, n);
+                    n.retired = removed = true;
+                }
+            }
+            if (removed) {
+                afterWrite(n);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if any of the arguments are null
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+        int w = weigh(key, newValue);
+        Node<K,V> n;
+        while ((n = data.get(key)) != null) {
+            boolean replaced = false;
+            synchronized (n) {
+                if (!n.retired) {
+                    if (!oldValue.equals(n.value) || !isLive(n, false))
+                        return false;
+                    setValue(n, newValue, w, expireAfterWriteNanos);
+                    replaced = true;
+                }
+            }
+            if (replaced) {
+                afterWrite(n);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public V replace(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        int w = weigh(key, value);
+        Node<K,V> n;
+        while ((n = data.get(key)) != null) {
+            V v = null;
+            boolean done = false;
+            synchronized (n) {
+                if (!n.retired) {
+                    if (isLive(n, false)) {
+                        v = n.value;
+                        setValue(n, value, w, expireAfterWriteNanos);
+                    }
+                    done = true;
+                }
+            }
+            if (v != null)
+                afterWrite(n);
+            if (done)
+                return v;
+        }
+        return null;
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * attempts to compute its value using the given mapping function
+     * and enters it into this map unless {@code null}, recording a
+     * hit or miss.  The function is applied at most once per key,
+     * while holding the ConcurrentHashMap bin lock, so should be short
+     * and simple, and must not attempt to update any other mappings
+     * of this map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with
+     *         the specified key, or null if the computed value is null
+     * @throws NullPointerException if the specified key or mappingFunction
+     *         is null
+     * @throws RuntimeException or Error if the mappingFunction does so,
+     *         in which case the mapping is left unestablished
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        for (;;) {
+            Node<K,V> n;
+            if ((n = data.get(key)) == null) {
+                NodeFactory<K,V> f = new NodeFactory<K,V>(this, mappingFunction);
+                if ((n = data.computeIfAbsent(key, f)) == null ||
+                    n == f.created) {
+                    misses.increment();
+                    if (n != null)
+                        afterWrite(n);
+                    return (n == null) ? null : n.value;
+                }
+            }
+            else if (isLive(n, true)) {
+                hits.increment();
+                afterRead(n);
+                return n.value;
+            }
+            else
+                expireNode(n);
+        }
+    }
+
+    /**
+     * Removes all of the mappings from this map.
+     */
+    public void clear() {
+        for (K k : data.keySet())
+            remove(k);
+    }
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this
+     * map.  Iteration does not record accesses.  The set supports
+     * element removal, and the {@code setValue} method of its entries
+     * writes through to the map.
+     *
+     * @return the set view
+     */
+    public Set<Map.Entry<K,V>> entrySet() {
+        EntrySetView<K,V> es;
+        return (es = entrySet) != null ? es :
+            (entrySet = new EntrySetView<K,V>(this));
+    }
+
+    /**
+     * Returns the maximum total weight of mappings.
+     *
+     * @return the maximum weight
+     */
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Returns the total weight of mappings, as of the most recent
+     * maintenance.  This may transiently exceed the maximum weight.
+     *
+     * @return the weighted size
+     */
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    /**
+     * Returns the number of lookups that found a mapping.
+     *
+     * @return the hit count
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that did not find a mapping.
+     *
+     * @return the miss count
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of mappings evicted.
+     *
+     * @return the eviction count
+     */
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of mappings removed on expiration.
+     *
+     * @return the expiration count
+     */
+    public long expirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * Applies pending reads and writes, removing expired mappings
+     * and evicting mappings if necessary.  This is done
+     * automatically, but may be invoked to ensure that the total
+     * weight is within bounds, or to remove expired mappings from an
+     * otherwise idle map.
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /* ---------------- Implementation -------------- */
+
+    /**
+     * Function for computeIfAbsent, recording the Node created, if any.
+     */
+    static final class NodeFactory<K,V> implements Function<K,Node<K,V>> {
+        final BoundedConcurrentHashMap<K,V> map;
+        final Function<? super K, ? extends V> mappingFunction;
+        Node<K,V> created;
+        NodeFactory(BoundedConcurrentHashMap<K,V> map,
+                    Function<? super K, ? extends V> mappingFunction) {
+            this.map = map;
+            this.mappingFunction = mappingFunction;
+        }
+        public Node<K,V> apply(K k) {
+            V v;
+            if ((v = mappingFunction.apply(k)) == null)
+                return null;
+            long ttl = map.expireAfterWriteNanos;
+            return created = new Node<K,V>(k, v, map.weigh(k, v), ttl,
+                                           map.clock(ttl));
+        }
+    }
+
+    final int weigh(K key, V value) {
+        Weigher<? super K, ? super V> w; int r;
+        if ((w = weigher) == null)
+            return 1;
+        if ((r = w.weigh(key, value)) < 0)
+            throw new IllegalArgumentException("negative weight");
+        return r;
+    }
+
+    /**
+     * Returns the time to live in nanoseconds for a per-mapping
+     * duration.
+     */
+    static long ttlFor(long timeToLive, TimeUnit unit) {
+        if (timeToLive <= 0L)
+            throw new IllegalArgumentException();
+        return Math.min(unit.toNanos(timeToLive), MAX_TTL);
+    }
+
+    /**
+     * Returns the current time if needed by a Node with the given
+     * time to live, else zero.
+     */
+    final long clock(long ttl) {
+        return (ttl != 0L || expireAfterAccessNanos != 0L) ?
+            System.nanoTime() : 0L;
+    }
+
+    /**
+     * Returns true if n has expired at the given time.
+     */
+    final boolean hasExpired(Node<K,V> n, long now) {
+        long t = n.ttl, a = expireAfterAccessNanos;
+        return ((t != 0L && now - n.writeTime >= t) ||
+                (a != 0L && now - n.accessTime >= a));
+    }
+
+    /**
+     * Returns false if n has expired, reading the clock only if
+     * necessary; if not expired and access is true, records the
+     * access time.
+     */
+    final boolean isLive(Node<K,V> n, boolean access) {
+        long now, a = expireAfterAccessNanos;
+        if (n.ttl == 0L && a == 0L)
+            return true;
+        if (hasExpired(n, now = System.nanoTime()))
+            return false;
+        if (access && a != 0L)
+            n.accessTime = now;
+        return true;
+    }
+
+    /**
+     * Updates n; called only while holding its monitor.
+     */
+    final void setValue(Node<K,V> n, V value, int w, long ttl) {
+        n.value = value;
+        n.weight = w;
+        n.ttl = ttl;
+        long now;
+        if ((now = clock(ttl)) != 0L)
+            n.writeTime = n.accessTime = now;
+    }
+
+    /**
+     * Removes n from the map if still present and expired.
+     */
+    final void expireNode(Node<K,V> n) {
+        boolean expired = false;
+        synchronized (n) {
+            if (!n.retired && !isLive(n, false)) {
+                data.remove(n.key, n);
+                n.retired = expired = true;
+            }
+        }
+        if (expired) {
+            expirations.increment();
+            afterWrite(n);
+        }
+    }
+
+    /** Implementation for put and putIfAbsent */
+    final V putVal(K key, V value, boolean onlyIfAbsent, long ttl) {
+        if (key == null || value == null) throw new NullPointerException();
+        int w = weigh(key, value);
+        Node<K,V> node = null;
+        for (;;) {
+            Node<K,V> n;
+            if ((n = data.get(key)) == null) {
+                if (node == null)
+                    node = new Node<K,V>(key, value, w, ttl, clock(ttl));
+                if ((n = data.putIfAbsent(key, node)) == null) {
+                    afterWrite(node);
+                    return null;
+                }
+            }
+            V v = null;
+            boolean done = false, written = false;
+            synchronized (n) {
+                if (!n.retired) {
+                    done = true;
+                    boolean live = isLive(n, onlyIfAbsent);
+                    if (live)
+                        v = n.value;
+                    if (!onlyIfAbsent || !live) {
+                        setValue(n, value, w, ttl);
+                        written = true;
+                    }
+                }
+            }
+            if (written)
+                afterWrite(n);
+            else if (done)
+                afterRead(n);
+            if (done)
+                return v;
+        }
+    }
+
+    /**
+     * Records a read of node n, attempting maintenance if the buffer
+     * is full.
+     */
+    final void afterRead(Node<K,V> n) {
+        ReadBuffer[] bs = readBuffers;
+        int h, r;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+        }
+        if ((r = bs[h & (bs.length - 1)].offer(n)) == CONTENDED)
+            ThreadLocalRandom.advanceProbe(h);
+        else if (r == FULL)
+            tryMaintenance();
+    }
+
+    /**
+     * Records a write of node n, and attempts maintenance.
+     */
+    final void afterWrite(Node<K,V> n) {
+        writeBuffer.offer(n);
+        tryMaintenance();
+    }
+
+    /**
+     * Performs maintenance if the eviction lock is available,
+     * repeating if writes were recorded meanwhile.
+     */
+    final void tryMaintenance() {
+        final ReentrantLock lock = evictionLock;
+        do {
+            if (!lock.tryLock())
+                return;
+            try {
+                maintenance();
+            } finally {
+                lock.unlock();
+            }
+        } while (!writeBuffer.isEmpty());
+    }
+
+    /**
+     * Drains buffers and evicts if necessary.  Called only under
+     * evictionLock.
+     */
+    final void maintenance() {
+        long now = System.nanoTime();
+        drainReadBuffers(now);
+        Node<K,V> n;
+        while ((n = writeBuffer.poll()) != null)
+            reconcile(n, now);
+        expire(now);
+        evict();
+    }
+
+    @SuppressWarnings("unchecked")
+    final void drainReadBuffers(long now) {
+        for (ReadBuffer b : readBuffers) {
+            Node<?,?>[] slots = b.slots;
+            long r = b.reads, w = b.writes;
+            for (; r < w; ++r) {
+                long off = ((r & (READ_BUFFER_SIZE - 1)) << ASHIFT) + ABASE;
+                Node<K,V> n = (Node<K,V>)U.getObjectVolatile(slots, off);
+                if (n == null)
+                    break;                  // not yet published
+                U.putObject(slots, off, null);
+                if (!n.retired && n.queue != UNLINKED) {
+                    queueOf(n).moveToLast(n);
+                    sketch.increment(n.key);
+                    if (expireAfterAccessNanos != 0L)
+                        schedule(n, now);
+                }
+            }
+            b.reads = r;
+        }
+    }
+
+    final AccessQueue<K,V> queueOf(Node<K,V> n) {
+        return (n.queue == WINDOW) ? window : main;
+    }
+
+    /**
+     * Updates the policy to reflect the current state of node n.
+     */
+    final void reconcile(Node<K,V> n, long now) {
+        if (n.retired) {
+            if (n.queue != UNLINKED)
+                unlink(n);
+        }
+        else if (n.queue == UNLINKED) {
+            int w = n.weight;
+            n.policyWeight = w;
+            n.queue = WINDOW;
+            window.linkLast(n);
+            window.weight += w;
+            weightedSize += w;
+            sketch.increment(n.key);
+            schedule(n, now);
+        }
+        else {
+            AccessQueue<K,V> q = queueOf(n);
+            int w = n.weight, d = w - n.policyWeight;
+            n.policyWeight = w;
+            q.weight += d;
+            weightedSize += d;
+            q.moveToLast(n);
+            sketch.increment(n.key);
+            schedule(n, now);
+        }
+    }
+
+    final void unlink(Node<K,V> n) {
+        AccessQueue<K,V> q = queueOf(n);
+        q.unlink(n);
+        q.weight -= n.policyWeight;
+        weightedSize -= n.policyWeight;
+        n.queue = UNLINKED;
+        timerWheel.unlink(n);
+    }
+
+    /**
+     * Places n in the timer wheel at its deadline, if it has one.
+     */
+    final void schedule(Node<K,V> n, long now) {
+        long t = n.ttl, a = expireAfterAccessNanos, d = MAX_TTL;
+        if (t != 0L)
+            d = n.writeTime + t - now;
+        if (a != 0L)
+            d = Math.min(d, n.accessTime + a - now);
+        if (t != 0L || a != 0L)
+            timerWheel.schedule(n, now + d);
+        else
+            timerWheel.unlink(n);
+    }
+
+    /**
+     * Advances the timer wheel to now, removing expired nodes from
+     * buckets passed and rescheduling others.
+     */
+    final void expire(long now) {
+        TimerWheel<K,V> tw = timerWheel;
+        long prev = tw.nanos;
+        tw.nanos = now;
+        int[] shifts = TimerWheel.SHIFTS;
+        for (int i = 0; i < shifts.length; ++i) {
+            long pt = prev >>> shifts[i], ct = now >>> shifts[i];
+            if (ct - pt <= 0L)
+                break;
+            Node<K,V>[] b = tw.buckets[i];
+            int steps = (int)Math.min(ct - pt + 1L, (long)b.length);
+            for (int j = 0; j < steps; ++j) {
+                Node<K,V> s = b[(int)(pt + j) & (b.length - 1)];
+                Node<K,V> n = s.tnext;
+                s.tprev = s.tnext = s;          // detach all
+                while (n != s) {
+                    Node<K,V> next = n.tnext;
+                    n.tprev = n.tnext = null;
+                    if (n.queue != UNLINKED) {  // else already removed
+                        if (n.retired || hasExpired(n, now))
+                            expireLinkedNode(n, now);
+                        else
+                            schedule(n, now);
+                    }
+                    n = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes linked node n from the map if still present and
+     * expired, and unlinks it, or reschedules it if not expired.
+     */
+    final void expireLinkedNode(Node<K,V> n, long now) {
+        boolean expired = false;
+        synchronized (n) {
+            if (!n.retired && hasExpired(n, now)) {
+                data.remove(n.key, n);
+                n.retired = expired = true;
+            }
+        }
+        if (n.retired) {
+            unlink(n);
+            if (expired)
+                expirations.increment();
+        }
+        else
+            schedule(n, now);
+    }
+
+    /**
+     * Moves nodes overflowing the window to the main region, then
+     * evicts until within bounds, choosing between candidates and
+     * victims by frequency.
+     */
+    final void evict() {
+        sketch.ensureCapacity(data.mappingCount());
+        Node<K,V> candidate = null;
+        while (window.weight > windowMaximum && window.head != null) {
+            Node<K,V> n = window.head;
+            window.unlink(n);
+            window.weight -= n.policyWeight;
+            n.queue = MAIN;
+            main.linkLast(n);
+            main.weight += n.policyWeight;
+            if (candidate == null)
+                candidate = n;
+        }
+        while (weightedSize > maximumWeight) {
+            Node<K,V> victim = main.head;
+            if (victim == null) {
+                if ((victim = window.head) == null)
+                    break;
+            }
+            else if (candidate != null && candidate != victim) {
+                if (sketch.frequency(candidate.key) <=
+                    sketch.frequency(victim.key)) {
+                    Node<K,V> c = candidate;
+                    candidate = c.next;
+                    victim = c;
+                }
+            }
+            else if (candidate == victim)
+                candidate = victim.next;
+            evictNode(victim);
+        }
+    }
+
+    /**
+     * Removes node n from the map if still present, and unlinks it.
+     */
+    final void evictNode(Node<K,V> n) {
+        boolean evicted = false;
+        synchronized (n) {
+            if (!n.retired) {
+                data.remove(n.key, n);
+                n.retired = evicted = true;
+            }
+        }
+        unlink(n);
+        if (evicted)
+            evictions.increment();
+    }
+
+    /* ---------------- Views -------------- */
+
+    static final class WriteThroughEntry<K,V> extends AbstractMap.SimpleEntry<K,V> {
+        private static final long serialVersionUID = 1L;
+        final transient BoundedConcurrentHashMap<K,V> map;
+        WriteThroughEntry(K k, V v, BoundedConcurrentHashMap<K,V> map) {
+            super(k, v);
+            this.map = map;
+        }
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException();
+            map.put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    static final class EntryIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+        final BoundedConcurrentHashMap<K,V> map;
+        final Iterator<Node<K,V>> it;
+        Node<K,V> nextNode;
+        V nextValue;
+        K lastReturned;
+        EntryIterator(BoundedConcurrentHashMap<K,V> map) {
+            this.map = map;
+            this.it = map.data.values().iterator();
+            advance();
+        }
+
+        /**
+         * Sets nextNode and nextValue to the next unexpired mapping.
+         */
+        private void advance() {
+            while (it.hasNext()) {
+                Node<K,V> n = it.next();
+                V v = n.value;
+                if (map.isLive(n, false)) {
+                    nextNode = n;
+                    nextValue = v;
+                    return;
+                }
+            }
+            nextNode = null;
+            nextValue = null;
+        }
+
+        public boolean hasNext() { return nextNode != null; }
+        public Map.Entry<K,V> next() {
+            Node<K,V> n; V v;
+            if ((n = nextNode) == null)
+                throw new NoSuchElementException();
+            v = nextValue;
+            advance();
+            lastReturned = n.key;
+            return new WriteThroughEntry<K,V>(n.key, v, map);
+        }
+        public void remove() {
+            K k;
+            if ((k = lastReturned) == null)
+                throw new IllegalStateException();
+            lastReturned = null;
+            map.remove(k);
+        }
+    }
+
+    static final class EntrySetView<K,V> extends AbstractSet<Map.Entry<K,V>> {
+        final BoundedConcurrentHashMap<K,V> map;
+        EntrySetView(BoundedConcurrentHashMap<K,V> map) { this.map = map; }
+
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator<K,V>(map);
+        }
+        public int size() { return map.size(); }
+        public boolean isEmpty() { return map.isEmpty(); }
+        public void clear() { map.clear(); }
+
+        public boolean contains(Object o) {
+            Object k, v; Node<K,V> n; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (n = map.data.get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    v.equals(n.value) && map.isLive(n, false));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    map.remove(k, v));
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long WRITES;
+    private static final long ABASE;
+    private static final int ASHIFT;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            WRITES = U.objectFieldOffset
+                (ReadBuffer.class.getDeclaredField("writes"));
+            Class<?> ak = Node[].class;
+            ABASE = U.arrayBaseOffset(ak);
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
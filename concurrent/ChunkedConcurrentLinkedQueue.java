@@ -0,0 +1,456 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ * An unbounded thread-safe {@linkplain Queue queue} based on linked
+ * array chunks.  This queue orders elements FIFO
+ * (first-in-first-out), and behaves like {@link
+ * ConcurrentLinkedQueue}, but links fixed-size chunks of {@value
+ * #CHUNK_SIZE} elements rather than one node per element, so it
+ * allocates much less memory per element.  Insertions and removals
+ * claim slots with an atomic increment of a per-chunk index, which
+ * never fails, rather than with a compare-and-set that is retried
+ * under contention.
+ *
+ * <p>Iterators are <i>weakly consistent</i>, returning elements
+ * reflecting the state of the queue at some point at or since the
+ * creation of the iterator.  They do <em>not</em> throw {@link
+ * java.util.ConcurrentModificationException}, and may proceed
+ * concurrently with other operations.
+ *
+ * <p>Beware that, unlike in most collections, the {@code size} method
+ * is <em>NOT</em> a constant-time operation.  Because of the
+ * asynchronous nature of these queues, determining the current number
+ * of elements requires a traversal of the elements, and so may report
+ * inaccurate results if this collection is modified during traversal.
+ *
+ * <p>This class and its iterator implement all of the <em>optional</em>
+ * methods of the {@link Queue} and {@link Iterator} interfaces.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class ChunkedConcurrentLinkedQueue<E> extends AbstractQueue<E>
+        implements Queue<E> {
+
+    /*
+     * Overview:
+     *
+     * This is a variant of Ramalhete and Correia's FAAArrayQueue.
+     * Each chunk has an array of slots and two indices, putIndex and
+     * takeIndex, advanced by getAndAdd.  An inserter takes the next
+     * slot index of the tail chunk; if it is in range, it CASes its
+     * element into the slot, which fails only if a remover has
+     * already given up on that slot, in which case it retries with
+     * a new index.  If the chunk is full, the inserter links a new
+     * chunk holding its element as the first, and swings tail.
+     * A remover likewise takes the next slot index of the head
+     * chunk, and swaps TAKEN into the slot, which yields the element
+     * unless the inserter has not yet arrived, in which case it too
+     * retries.  When a remover runs off the end of a chunk, it
+     * swings head to the next one.  A queue is empty when head's
+     * takeIndex has caught up with its putIndex and there is no
+     * next chunk; checking this first keeps removers from consuming
+     * slots when the queue is empty.
+     *
+     * Interior removal CASes the element to TAKEN, as if by a
+     * remover.  Unlike in ChunkedLinkedBlockingQueue, drained chunks
+     * are not recycled: without locks, a slow thread may still be
+     * about to claim a slot of a chunk that has been passed, so
+     * reusing it safely would need hazard pointers or epochs.
+     * Chunks are instead left to the GC, and their links are kept,
+     * so that iterators holding one can continue to later chunks.
+     */
+
+    /** Number of elements per chunk */
+    static final int CHUNK_SIZE = 32;
+
+    /** Marker for slots whose element has been, or can no longer be, taken */
+    static final Object TAKEN = new Object();
+
+    static final class Chunk {
+        final Object[] items = new Object[CHUNK_SIZE];
+        volatile int putIndex;
+        volatile int takeIndex;
+        volatile Chunk next;
+
+        Chunk() {}
+
+        Chunk(Object first) {
+            U.putObject(items, ABASE, first);
+            U.putInt(this, PUTINDEX, 1);
+        }
+
+        boolean casNext(Chunk cmp, Chunk val) {
+            return U.compareAndSwapObject(this, NEXT, cmp, val);
+        }
+
+        Object itemAt(int i) {
+            return U.getObjectVolatile(items, ((long)i << ASHIFT) + ABASE);
+        }
+
+        boolean casItem(int i, Object cmp, Object val) {
+            return U.compareAndSwapObject(items, ((long)i << ASHIFT) + ABASE,
+                                          cmp, val);
+        }
+
+        Object takeItem(int i) {
+            return U.getAndSetObject(items, ((long)i << ASHIFT) + ABASE,
+                                     TAKEN);
+        }
+
+        /** Returns the number of slots that may hold elements. */
+        int limit() {
+            return Math.min(putIndex, CHUNK_SIZE);
+        }
+    }
+
+    /** Chunk holding the first element, if any */
+    private transient volatile Chunk head;
+
+    /** Chunk receiving insertions */
+    private transient volatile Chunk tail;
+
+    /**
+     * Creates a {@code ChunkedConcurrentLinkedQueue} that is initially
+     * empty.
+     */
+    public ChunkedConcurrentLinkedQueue() {
+        head = tail = new Chunk();
+    }
+
+    /**
+     * Creates a {@code ChunkedConcurrentLinkedQueue} initially
+     * containing the elements of the given collection, added in
+     * traversal order of the collection's iterator.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public ChunkedConcurrentLinkedQueue(Collection<? extends E> c) {
+        this();
+        for (E e : c)
+            offer(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never return
+     * {@code false}.
+     *
+     * @return {@code true} (as specified by {@link Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        for (;;) {
+            Chunk t = tail;
+            int i = U.getAndAddInt(t, PUTINDEX, 1);
+            if (i < CHUNK_SIZE) {
+                if (t.casItem(i, null, e))
+                    return true;
+            }
+            else if (t == tail) {
+                Chunk n = t.next;
+                if (n != null)
+                    U.compareAndSwapObject(this, TAIL, t, n);
+                else {
+                    Chunk c = new Chunk(e);
+                    if (t.casNext(null, c)) {
+                        U.compareAndSwapObject(this, TAIL, t, c);
+                        return true;
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        for (;;) {
+            Chunk h = head;
+            if (h.takeIndex >= h.putIndex && h.next == null)
+                return null;
+            int i = U.getAndAddInt(h, TAKEINDEX, 1);
+            if (i < CHUNK_SIZE) {
+                Object x = h.takeItem(i);
+                if (x != null && x != TAKEN)
+                    return (E)x;
+            }
+            else {
+                Chunk n = h.next;
+                if (n == null)
+                    return null;
+                U.compareAndSwapObject(this, HEAD, h, n);
+            }
+        }
+    }
+
+    public E peek() {
+        return new Itr().nextItem;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains no elements.
+     *
+     * @return {@code true} if this queue contains no elements
+     */
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  If this queue
+     * contains more than {@code Integer.MAX_VALUE} elements, returns
+     * {@code Integer.MAX_VALUE}.
+     *
+     * <p>Beware that, unlike in most collections, this method is
+     * <em>NOT</em> a constant-time operation.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        int count = 0;
+        for (Chunk c = head; c != null; c = c.next) {
+            for (int i = 0, n = c.limit(); i < n; ++i) {
+                Object x = c.itemAt(i);
+                if (x != null && x != TAKEN && ++count == Integer.MAX_VALUE)
+                    return count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     * More formally, returns {@code true} if and only if this queue contains
+     * at least one element {@code e} such that {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o != null) {
+            for (Chunk c = head; c != null; c = c.next) {
+                for (int i = 0, n = c.limit(); i < n; ++i) {
+                    Object x = c.itemAt(i);
+                    if (x != null && x != TAKEN && o.equals(x))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.  More formally, removes an element {@code e} such
+     * that {@code o.equals(e)}, if this queue contains one or more such
+     * elements.
+     * Returns {@code true} if this queue contained the specified element
+     * (or equivalently, if this queue changed as a result of the call).
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        if (o != null) {
+            for (Chunk c = head; c != null; c = c.next) {
+                for (int i = 0, n = c.limit(); i < n; ++i) {
+                    Object x = c.itemAt(i);
+                    if (x != null && x != TAKEN && o.equals(x) &&
+                        c.casItem(i, x, TAKEN))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * proper sequence.
+     *
+     * @return an array containing all of the elements in this queue
+     */
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * proper sequence; the runtime type of the returned array is that of
+     * the specified array.
+     *
+     * @param a the array into which the elements of the queue are to
+     *          be stored, if it is big enough; otherwise, a new array of the
+     *          same runtime type is allocated for this purpose
+     * @return an array containing all of the elements in this queue
+     * @throws ArrayStoreException if the runtime type of the specified array
+     *         is not a supertype of the runtime type of every element in
+     *         this queue
+     * @throws NullPointerException if the specified array is null
+     */
+    public <T> T[] toArray(T[] a) {
+        return snapshot().toArray(a);
+    }
+
+    private ArrayList<E> snapshot() {
+        ArrayList<E> list = new ArrayList<E>();
+        for (E e : this)
+            list.add(e);
+        return list;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper sequence.
+     * The elements will be returned in order from first (head) to last (tail).
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        /*
+         * Holds the next element to hand out, so that if hasNext()
+         * reports true it is still returned even if it is removed in
+         * the meantime.
+         */
+        private Chunk chunk;       // chunk holding nextItem
+        private int index;         // slot of nextItem
+        E nextItem;
+        private Chunk lastChunk;   // chunk holding lastItem
+        private int lastIndex;
+        private Object lastItem;
+
+        Itr() {
+            advance(head, 0);
+        }
+
+        /**
+         * Sets nextItem to the first live element at or after slot i
+         * of chunk c.
+         */
+        @SuppressWarnings("unchecked")
+        private void advance(Chunk c, int i) {
+            for (; c != null; c = c.next, i = 0) {
+                for (int n = c.limit(); i < n; ++i) {
+                    Object x = c.itemAt(i);
+                    if (x != null && x != TAKEN) {
+                        chunk = c;
+                        index = i;
+                        nextItem = (E)x;
+                        return;
+                    }
+                }
+            }
+            chunk = null;
+            nextItem = null;
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            E x = nextItem;
+            if (x == null)
+                throw new NoSuchElementException();
+            lastChunk = chunk;
+            lastIndex = index;
+            lastItem = x;
+            advance(chunk, index + 1);
+            return x;
+        }
+
+        public void remove() {
+            Object x = lastItem;
+            if (x == null)
+                throw new IllegalStateException();
+            lastChunk.casItem(lastIndex, x, TAKEN);
+            lastItem = null;
+            lastChunk = null;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long HEAD;
+    private static final long TAIL;
+    private static final long PUTINDEX;
+    private static final long TAKEINDEX;
+    private static final long NEXT;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ChunkedConcurrentLinkedQueue.class;
+            HEAD = U.objectFieldOffset
+                (k.getDeclaredField("head"));
+            TAIL = U.objectFieldOffset
+                (k.getDeclaredField("tail"));
+            Class<?> ck = Chunk.class;
+            PUTINDEX = U.objectFieldOffset
+                (ck.getDeclaredField("putIndex"));
+            TAKEINDEX = U.objectFieldOffset
+                (ck.getDeclaredField("takeIndex"));
+            NEXT = U.objectFieldOffset
+                (ck.getDeclaredField("next"));
+            ABASE = U.arrayBaseOffset(Object[].class);
+            int scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
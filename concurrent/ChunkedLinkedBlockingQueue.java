@@ -0,0 +1,824 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import concurrent.atomic.AtomicInteger;
+import concurrent.locks.Condition;
+import concurrent.locks.ReentrantLock;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An optionally-bounded {@linkplain BlockingQueue blocking queue}
+ * based on linked array chunks.  This queue behaves like {@link
+ * LinkedBlockingQueue}, and uses the same two-lock design, but links
+ * fixed-size chunks of {@value #CHUNK_SIZE} elements rather than one
+ * node per element, and reuses a drained chunk for the next one
+ * needed, so that a steady stream of insertions and removals
+ * allocates little or no memory.
+ *
+ * <p>Removing an interior element, via {@link #remove(Object)} or an
+ * iterator, leaves a marker in its slot that is skipped by takers;
+ * the slot is reclaimed when takers pass it.  Iterators are weakly
+ * consistent.
+ *
+ * <p>This class and its iterator implement all of the
+ * <em>optional</em> methods of the {@link Collection} and {@link
+ * Iterator} interfaces.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class ChunkedLinkedBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+     * Overview:
+     *
+     * Elements are numbered by their position in an unbounded
+     * sequence: putPos is the position of the next insertion, and
+     * takePos that of the next removal.  Chunk c holds positions
+     * c.base through c.base + CHUNK_SIZE - 1, and chunks are linked
+     * in order from head (holding takePos) to last (holding the
+     * last inserted element).  As in LinkedBlockingQueue, putPos and
+     * last are guarded by putLock, takePos and head by takeLock, and
+     * the atomic count both says which positions are filled and
+     * provides visibility of them (and of the links leading to them)
+     * from putters to takers.
+     *
+     * A taker that passes the end of a chunk moves head to the next
+     * chunk (which exists, since count > 0) and offers the old one
+     * to putters via the single spare field.  A putter needing a
+     * chunk claims the spare with a CAS, or allocates one if there
+     * is none.  No thread can still be using a chunk taken from the
+     * spare: putters have moved on to later chunks, and takers only
+     * use head.  Iterators may hold one, though, so they check,
+     * while fully locked, that the chunk they hold still covers
+     * their position, and otherwise search again from head.  Since
+     * positions only increase, a chunk that was recycled but does
+     * cover the position is the right one.
+     *
+     * Interior removal, done while fully locked, replaces the
+     * element with REMOVED and decrements count, so putPos -
+     * takePos may exceed count.  Takers skip REMOVED slots; since
+     * count > 0 there is a live element beyond them.
+     */
+
+    /** Number of elements per chunk */
+    static final int CHUNK_SIZE = 32;
+
+    /** Marker for elements removed from the interior */
+    static final Object REMOVED = new Object();
+
+    static final class Chunk {
+        final Object[] items = new Object[CHUNK_SIZE];
+
+        /** Position of items[0] */
+        long base;
+
+        Chunk next;
+
+        Chunk(long base) { this.base = base; }
+    }
+
+    /** The capacity bound, or Integer.MAX_VALUE if none */
+    private final int capacity;
+
+    /** Current number of elements */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** Chunk holding takePos */
+    transient Chunk head;
+
+    /** Position of next removal */
+    private transient long takePos;
+
+    /** Chunk holding the last element, or position 0 if none yet */
+    private transient Chunk last;
+
+    /** Position of next insertion */
+    private transient long putPos;
+
+    /** A drained chunk available for reuse, or null */
+    private transient volatile Chunk spare;
+
+    /** Lock held by take, poll, etc */
+    private final ReentrantLock takeLock = new ReentrantLock();
+
+    /** Wait queue for waiting takes */
+    private final Condition notEmpty = takeLock.newCondition();
+
+    /** Lock held by put, offer, etc */
+    private final ReentrantLock putLock = new ReentrantLock();
+
+    /** Wait queue for waiting puts */
+    private final Condition notFull = putLock.newCondition();
+
+    /**
+     * Creates a {@code ChunkedLinkedBlockingQueue} with a capacity of
+     * {@link Integer#MAX_VALUE}.
+     */
+    public ChunkedLinkedBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a {@code ChunkedLinkedBlockingQueue} with the given
+     * (fixed) capacity.
+     *
+     * @param capacity the capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity} is not greater
+     *         than zero
+     */
+    public ChunkedLinkedBlockingQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException();
+        this.capacity = capacity;
+        head = last = new Chunk(0L);
+    }
+
+    /**
+     * Creates a {@code ChunkedLinkedBlockingQueue} with a capacity of
+     * {@link Integer#MAX_VALUE}, initially containing the elements of
+     * the given collection, added in traversal order of the
+     * collection's iterator.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public ChunkedLinkedBlockingQueue(Collection<? extends E> c) {
+        this(Integer.MAX_VALUE);
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock(); // Never contended, but necessary for visibility
+        try {
+            int n = 0;
+            for (E e : c) {
+                if (e == null)
+                    throw new NullPointerException();
+                enqueue(e);
+                ++n;
+            }
+            count.set(n);
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Signals a waiting take. Called only from put/offer (which do not
+     * otherwise ordinarily lock takeLock.)
+     */
+    private void signalNotEmpty() {
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Signals a waiting put. Called only from take/poll.
+     */
+    private void signalNotFull() {
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Stores x at putPos, linking a new chunk if the last is full.
+     */
+    private void enqueue(Object x) {
+        // assert putLock.isHeldByCurrentThread();
+        Chunk l = last;
+        int i = (int)(putPos - l.base);
+        if (i == CHUNK_SIZE) {
+            Chunk c = spare;
+            if (c != null && U.compareAndSwapObject(this, SPARE, c, null))
+                c.base = putPos;
+            else
+                c = new Chunk(putPos);
+            last = l = l.next = c;
+            i = 0;
+        }
+        l.items[i] = x;
+        ++putPos;
+    }
+
+    /**
+     * Removes and returns the element at takePos, skipping removed
+     * slots.  Call only when count > 0.
+     */
+    @SuppressWarnings("unchecked")
+    private E dequeue() {
+        // assert takeLock.isHeldByCurrentThread();
+        for (Chunk h = head;;) {
+            int i = (int)(takePos - h.base);
+            if (i == CHUNK_SIZE) {
+                Chunk n = h.next;
+                h.next = null;
+                spare = h;
+                head = h = n;
+                i = 0;
+            }
+            Object x = h.items[i];
+            h.items[i] = null;
+            ++takePos;
+            if (x != REMOVED)
+                return (E)x;
+        }
+    }
+
+    /**
+     * Returns the chunk holding position p, searching from c if it is
+     * still linked and does not follow p, else from head.  Call only
+     * when fully locked, with takePos <= p < putPos.  (An unlinked
+     * chunk has a base less than head's until it is reused, when it
+     * is linked again.)
+     */
+    private Chunk chunkFor(Chunk c, long p) {
+        if (c == null || p < c.base || c.base < head.base)
+            c = head;
+        while (p - c.base >= CHUNK_SIZE)
+            c = c.next;
+        return c;
+    }
+
+    /**
+     * Locks to prevent both puts and takes.
+     */
+    void fullyLock() {
+        putLock.lock();
+        takeLock.lock();
+    }
+
+    /**
+     * Unlocks to allow both puts and takes.
+     */
+    void fullyUnlock() {
+        takeLock.unlock();
+        putLock.unlock();
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Returns the number of additional elements that this queue can ideally
+     * (in the absence of memory or resource constraints) accept without
+     * blocking. This is always equal to the initial capacity of this queue
+     * less the current {@code size} of this queue.
+     */
+    public int remainingCapacity() {
+        return capacity - count.get();
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting if
+     * necessary for space to become available.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        int c = -1;
+        final ReentrantLock putLock = this.putLock;
+        final AtomicInteger count = this.count;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                notFull.await();
+            }
+            enqueue(e);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity)
+                notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0)
+            signalNotEmpty();
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting if
+     * necessary up to the specified wait time for space to become available.
+     *
+     * @return {@code true} if successful, or {@code false} if
+     *         the specified waiting time elapses before space is available
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (e == null) throw new NullPointerException();
+        long nanos = unit.toNanos(timeout);
+        int c = -1;
+        final ReentrantLock putLock = this.putLock;
+        final AtomicInteger count = this.count;
+        putLock.lockInterruptibly();
+        try {
+            while (count.get() == capacity) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            c = count.getAndIncrement();
+            if (c + 1 < capacity)
+                notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0)
+            signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if it is
+     * possible to do so immediately without exceeding the queue's capacity,
+     * returning {@code true} upon success and {@code false} if this queue
+     * is full.
+     * When using a capacity-restricted queue, this method is generally
+     * preferable to method {@link BlockingQueue#add add}, which can fail to
+     * insert an element only by throwing an exception.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        final AtomicInteger count = this.count;
+        if (count.get() == capacity)
+            return false;
+        int c = -1;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            if (count.get() < capacity) {
+                enqueue(e);
+                c = count.getAndIncrement();
+                if (c + 1 < capacity)
+                    notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (c == 0)
+            signalNotEmpty();
+        return c >= 0;
+    }
+
+    public E take() throws InterruptedException {
+        E x;
+        int c = -1;
+        final AtomicInteger count = this.count;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                notEmpty.await();
+            }
+            x = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1)
+                notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity)
+            signalNotFull();
+        return x;
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x = null;
+        int c = -1;
+        long nanos = unit.toNanos(timeout);
+        final AtomicInteger count = this.count;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            x = dequeue();
+            c = count.getAndDecrement();
+            if (c > 1)
+                notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity)
+            signalNotFull();
+        return x;
+    }
+
+    public E poll() {
+        final AtomicInteger count = this.count;
+        if (count.get() == 0)
+            return null;
+        E x = null;
+        int c = -1;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            if (count.get() > 0) {
+                x = dequeue();
+                c = count.getAndDecrement();
+                if (c > 1)
+                    notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+        if (c == capacity)
+            signalNotFull();
+        return x;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        if (count.get() == 0)
+            return null;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            if (count.get() == 0)
+                return null;
+            Chunk h = head;
+            for (long p = takePos;; ++p) {
+                int i = (int)(p - h.base);
+                if (i == CHUNK_SIZE) {
+                    h = h.next;
+                    i = 0;
+                }
+                Object x = h.items[i];
+                if (x != REMOVED)
+                    return (E)x;
+            }
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a single instance of the specified element from this queue,
+     * if it is present.  More formally, removes an element {@code e} such
+     * that {@code o.equals(e)}, if this queue contains one or more such
+     * elements.
+     * Returns {@code true} if this queue contained the specified element
+     * (or equivalently, if this queue changed as a result of the call).
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        fullyLock();
+        try {
+            Chunk c = null;
+            for (long p = takePos; p < putPos; ++p) {
+                c = chunkFor(c, p);
+                int i = (int)(p - c.base);
+                if (o.equals(c.items[i])) {
+                    removeAt(c, i);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Replaces the element in slot i of chunk c with REMOVED.
+     */
+    private void removeAt(Chunk c, int i) {
+        // assert isFullyLocked();
+        c.items[i] = REMOVED;
+        if (count.getAndDecrement() == capacity)
+            notFull.signal();
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     * More formally, returns {@code true} if and only if this queue contains
+     * at least one element {@code e} such that {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o == null) return false;
+        fullyLock();
+        try {
+            Chunk c = null;
+            for (long p = takePos; p < putPos; ++p) {
+                c = chunkFor(c, p);
+                if (o.equals(c.items[(int)(p - c.base)]))
+                    return true;
+            }
+            return false;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * proper sequence.
+     *
+     * <p>The returned array will be "safe" in that no references to it are
+     * maintained by this queue.  (In other words, this method must allocate
+     * a new array).  The caller is thus free to modify the returned array.
+     *
+     * @return an array containing all of the elements in this queue
+     */
+    public Object[] toArray() {
+        fullyLock();
+        try {
+            Object[] a = new Object[count.get()];
+            int k = 0;
+            Chunk c = null;
+            for (long p = takePos; p < putPos; ++p) {
+                c = chunkFor(c, p);
+                Object x = c.items[(int)(p - c.base)];
+                if (x != REMOVED)
+                    a[k++] = x;
+            }
+            return a;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * proper sequence; the runtime type of the returned array is that of
+     * the specified array.  If the queue fits in the specified array, it
+     * is returned therein.  Otherwise, a new array is allocated with the
+     * runtime type of the specified array and the size of this queue.
+     *
+     * @param a the array into which the elements of the queue are to
+     *          be stored, if it is big enough; otherwise, a new array of the
+     *          same runtime type is allocated for this purpose
+     * @return an array containing all of the elements in this queue
+     * @throws ArrayStoreException if the runtime type of the specified array
+     *         is not a supertype of the runtime type of every element in
+     *         this queue
+     * @throws NullPointerException if the specified array is null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        fullyLock();
+        try {
+            int size = count.get();
+            if (a.length < size)
+                a = (T[])java.lang.reflect.Array.newInstance
+                    (a.getClass().getComponentType(), size);
+
+            int k = 0;
+            Chunk c = null;
+            for (long p = takePos; p < putPos; ++p) {
+                c = chunkFor(c, p);
+                Object x = c.items[(int)(p - c.base)];
+                if (x != REMOVED)
+                    a[k++] = (T)x;
+            }
+            if (a.length > k)
+                a[k] = null;
+            return a;
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * Atomically removes all of the elements from this queue.
+     * The queue will be empty after this call returns.
+     */
+    public void clear() {
+        fullyLock();
+        try {
+            Chunk c = null;
+            for (long p = takePos; p < putPos; ++p) {
+                c = chunkFor(c, p);
+                c.items[(int)(p - c.base)] = null;
+            }
+            head = last;
+            takePos = putPos;
+            if (count.getAndSet(0) == capacity)
+                notFull.signal();
+        } finally {
+            fullyUnlock();
+        }
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        boolean signalNotFull = false;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lock();
+        try {
+            int n = Math.min(maxElements, count.get());
+            int i = 0;
+            try {
+                while (i < n) {
+                    E x = dequeue();
+                    ++i;
+                    c.add(x);
+                }
+                return n;
+            } finally {
+                // Restore invariants even if c.add() threw
+                if (i > 0)
+                    signalNotFull = (count.getAndAdd(-i) == capacity);
+            }
+        } finally {
+            takeLock.unlock();
+            if (signalNotFull)
+                signalNotFull();
+        }
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper sequence.
+     * The elements will be returned in order from first (head) to last (tail).
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    private class Itr implements Iterator<E> {
+        /*
+         * Basic weakly-consistent iterator.  At all times hold the next
+         * item to hand out so that if hasNext() reports true, we will
+         * still have it to return even if lost race with a take etc.
+         */
+
+        private Chunk chunk;     // chunk holding cursor, possibly stale
+        private long cursor;     // position of nextItem
+        private E nextItem;
+        private long lastPos;    // position of lastItem
+        private Object lastItem;
+
+        Itr() {
+            fullyLock();
+            try {
+                advance(takePos);
+            } finally {
+                fullyUnlock();
+            }
+        }
+
+        /**
+         * Sets nextItem to the first live element at or after p.
+         */
+        @SuppressWarnings("unchecked")
+        private void advance(long p) {
+            // assert isFullyLocked();
+            if (p < takePos)
+                p = takePos;
+            for (Chunk c = chunk; p < putPos; ++p) {
+                c = chunkFor(c, p);
+                Object x = c.items[(int)(p - c.base)];
+                if (x != REMOVED) {
+                    chunk = c;
+                    cursor = p;
+                    nextItem = (E)x;
+                    return;
+                }
+            }
+            chunk = null;
+            nextItem = null;
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            fullyLock();
+            try {
+                E x = nextItem;
+                if (x == null)
+                    throw new NoSuchElementException();
+                lastPos = cursor;
+                lastItem = x;
+                advance(cursor + 1);
+                return x;
+            } finally {
+                fullyUnlock();
+            }
+        }
+
+        public void remove() {
+            if (lastItem == null)
+                throw new IllegalStateException();
+            fullyLock();
+            try {
+                long p = lastPos;
+                if (p >= takePos) {
+                    Chunk c = chunkFor(chunk, p);
+                    int i = (int)(p - c.base);
+                    if (c.items[i] == lastItem)
+                        removeAt(c, i);
+                }
+                lastItem = null;
+            } finally {
+                fullyUnlock();
+            }
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long SPARE;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ChunkedLinkedBlockingQueue.class;
+            SPARE = U.objectFieldOffset
+                (k.getDeclaredField("spare"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
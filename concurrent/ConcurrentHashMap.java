@@ -40,13 +40,16 @@ import java.io.Serializable;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -54,6 +57,8 @@ import java.util.Spliterator;
 import concurrent.ConcurrentMap;
 import concurrent.ForkJoinPool;
 import concurrent.atomic.AtomicReference;
+import concurrent.atomic.LongAccumulator;
+import concurrent.atomic.LongAdder;
 import concurrent.locks.LockSupport;
 import concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
@@ -423,6 +428,34 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
      * provides support for shutdown-style clearing, which is also not
      * currently implemented.
      *
+     * Tables never shrink on their own, but method trimToSize
+     * halves the table (repeatedly, if needed) using the same
+     * sizeCtl stamp and transferIndex protocol, so that other
+     * threads help via helpTransfer exactly as for expansion (method
+     * transfer dispatches to shrink when the next table is smaller).
+     * Each half-size bin i merges old bins i and i + n/2, so both
+     * must be locked, always in that order; empty bins are claimed
+     * with ReservationNodes so that no insertion can slip in
+     * between.  The merged bin is published in the next table
+     * before either old bin is replaced by a forwarding node.
+     * Traversals cannot just revisit the merged bin from both old
+     * indices, so upon being forwarded to a smaller table they
+     * filter its nodes to those that hashed to the old bin
+     * (retaining the filter of the largest such table when
+     * forwardings nest).  Shrinking is abandoned if the count has
+     * grown enough that the smaller table would immediately need to
+     * expand again.
+     *
+     * Optional statistics (see setStatsEnabled) cost a single
+     * volatile read of field stats per locked update when disabled.
+     * When enabled, a pseudo-random 1/LOCK_SAMPLE_RATE of bin lock
+     * acquisitions are timed, and those that waited long enough to
+     * have been contended are charged to their key in a small table
+     * of hot-key cells that keeps, per cell, the key that most
+     * recently outweighed the others (a Misra-Gries style summary).
+     * Treeifications, resizes and counter cell expansions are
+     * rare, so are always recorded.
+     *
      * Lazy table initialization minimizes footprint until first use,
      * and also avoids resizings when the first operation is from a
      * putAll, constructor with map argument, or deserialization.
@@ -809,6 +842,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
      */
     private transient volatile CounterCell[] counterCells;
 
+    /**
+     * Statistics recorder; non-null only while statistics are enabled.
+     */
+    private transient volatile StatsRecorder stats;
+
     // views
     private transient KeySetView<K,V> keySet;
     private transient ValuesView<K,V> values;
@@ -1008,6 +1046,15 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
 
     /** Implementation for put and putIfAbsent */
     final V putVal(K key, V value, boolean onlyIfAbsent) {
+        return putVal(key, value, onlyIfAbsent, true);
+    }
+
+    /**
+     * Implementation for putVal and bulk loads.  If counted is
+     * false, an added mapping is not recorded in the count (nor may
+     * trigger a resize); the caller must add it later.
+     */
+    final V putVal(K key, V value, boolean onlyIfAbsent, boolean counted) {
         if (key == null || value == null) throw new NullPointerException();
         int hash = spread(key.hashCode());
         int binCount = 0;
@@ -1024,7 +1071,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 tab = helpTransfer(tab, f);
             else {
                 V oldVal = null;
+                StatsRecorder sr = stats;
+                long st = (sr == null) ? 0L : sr.lockStart();
                 synchronized (f) {
+                    if (st != 0L)
+                        sr.lockAcquired(st, key);
                     if (tabAt(tab, i) == f) {
                         if (fh >= 0) {
                             binCount = 1;
@@ -1067,7 +1118,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 }
             }
         }
-        addCount(1L, binCount);
+        if (counted)
+            addCount(1L, binCount);
         return null;
     }
 
@@ -1114,7 +1166,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else {
                 V oldVal = null;
                 boolean validated = false;
+                StatsRecorder sr = stats;
+                long st = (sr == null) ? 0L : sr.lockStart();
                 synchronized (f) {
+                    if (st != 0L)
+                        sr.lockAcquired(st, key);
                     if (tabAt(tab, i) == f) {
                         if (fh >= 0) {
                             validated = true;
@@ -1671,7 +1727,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 tab = helpTransfer(tab, f);
             else {
                 boolean added = false;
+                StatsRecorder sr = stats;
+                long st = (sr == null) ? 0L : sr.lockStart();
                 synchronized (f) {
+                    if (st != 0L)
+                        sr.lockAcquired(st, key);
                     if (tabAt(tab, i) == f) {
                         if (fh >= 0) {
                             binCount = 1;
@@ -1757,7 +1817,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                StatsRecorder sr = stats;
+                long st = (sr == null) ? 0L : sr.lockStart();
                 synchronized (f) {
+                    if (st != 0L)
+                        sr.lockAcquired(st, key);
                     if (tabAt(tab, i) == f) {
                         if (fh >= 0) {
                             binCount = 1;
@@ -1865,7 +1929,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                StatsRecorder sr = stats;
+                long st = (sr == null) ? 0L : sr.lockStart();
                 synchronized (f) {
+                    if (st != 0L)
+                        sr.lockAcquired(st, key);
                     if (tabAt(tab, i) == f) {
                         if (fh >= 0) {
                             binCount = 1;
@@ -1978,7 +2046,11 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             else if ((fh = f.hash) == MOVED)
                 tab = helpTransfer(tab, f);
             else {
+                StatsRecorder sr = stats;
+                long st = (sr == null) ? 0L : sr.lockStart();
                 synchronized (f) {
+                    if (st != 0L)
+                        sr.lockAcquired(st, key);
                     if (tabAt(tab, i) == f) {
                         if (fh >= 0) {
                             binCount = 1;
@@ -2108,6 +2180,94 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         return (n < 0L) ? 0L : n; // ignore transient negative values
     }
 
+    /**
+     * Shrinks the internal table, if it is larger than needed, to the
+     * size that would be chosen for a map constructed with an initial
+     * capacity of the current {@link #mappingCount}.  Tables otherwise
+     * only ever grow, so this method may be used to release memory
+     * after most mappings have been removed.  Other operations may
+     * proceed (and may help) while the table is being shrunk.
+     * Shrinking stops early if concurrent insertions make the smaller
+     * table too small.
+     */
+    public void trimToSize() {
+        long s = sumCount();
+        int c;
+        if (s >= (long)(MAXIMUM_CAPACITY >>> 1))
+            c = MAXIMUM_CAPACITY;
+        else {
+            int size = (s < 0L) ? 0 : (int)s;
+            if ((c = tableSizeFor(size + (size >>> 1) + 1)) < DEFAULT_CAPACITY)
+                c = DEFAULT_CAPACITY;
+        }
+        resizeTo(c, true);
+    }
+
+    /**
+     * Ensures that the internal table is large enough to hold the
+     * given number of elements at the given load factor (table
+     * density) without resizing.  As with the {@linkplain
+     * #ConcurrentHashMap(int, float) constructor}, the load factor is
+     * used only for this sizing; later expansions use the default
+     * density.  This method never shrinks the table.
+     *
+     * @param expectedSize the expected number of elements
+     * @param loadFactor the load factor (table density) for
+     * establishing the table size
+     * @throws IllegalArgumentException if the expected size is
+     * negative or the load factor is nonpositive
+     */
+    public void ensureCapacity(int expectedSize, float loadFactor) {
+        if (!(loadFactor > 0.0f) || expectedSize < 0)
+            throw new IllegalArgumentException();
+        long size = (long)(1.0 + (long)expectedSize / loadFactor);
+        int c = (size >= (long)MAXIMUM_CAPACITY) ?
+            MAXIMUM_CAPACITY : tableSizeFor((int)size);
+        for (int sc;;) {
+            if (table != null) {
+                resizeTo(c, false);
+                break;
+            }
+            else if ((sc = sizeCtl) < 0)
+                Thread.yield(); // lost initialization race; just spin
+            else if (sc >= c)
+                break;
+            else if (U.compareAndSwapInt(this, SIZECTL, sc, c) &&
+                     table == null)
+                break;          // initTable will use the larger size
+        }
+    }
+
+    /**
+     * Enables or disables collection of the statistics returned by
+     * {@link #stats}.  Enabling statistics that are already enabled
+     * has no effect; disabling them discards those collected so far.
+     * While disabled, statistics add only negligible overhead.  While
+     * enabled, they add a small overhead to a sampled subset of
+     * updates.
+     *
+     * @param enabled true to enable statistics, false to disable them
+     */
+    public void setStatsEnabled(boolean enabled) {
+        if (!enabled)
+            stats = null;
+        else if (stats == null)
+            U.compareAndSwapObject(this, STATS, null, new StatsRecorder());
+    }
+
+    /**
+     * Returns a snapshot of the statistics collected since they were
+     * last enabled, or {@code null} if they are disabled.  The
+     * values are not necessarily consistent with each other if
+     * updates are in progress.
+     *
+     * @return the statistics, or {@code null} if disabled
+     */
+    public Stats<K> stats() {
+        StatsRecorder sr;
+        return ((sr = stats) == null) ? null : new Stats<K>(this, sr);
+    }
+
     /**
      * Creates a new {@link Set} backed by a ConcurrentHashMap
      * from the given type to {@code Boolean.TRUE}.
@@ -2360,11 +2520,72 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
     }
 
+    /**
+     * Doubles or halves the table until its length reaches the given
+     * power of two, helping (or waiting for) any resize already in
+     * progress.  Shrinking gives up if the count exceeds the
+     * threshold of the halved table.
+     *
+     * @param c the target table length
+     * @param shrink true if halving, else doubling
+     */
+    private final void resizeTo(int c, boolean shrink) {
+        Node<K,V>[] tab; int n, sc;
+        while ((tab = table) != null &&
+               (shrink ? (n = tab.length) > c : (n = tab.length) < c)) {
+            int rs = resizeStamp(n);
+            if ((sc = sizeCtl) < 0) {
+                Node<K,V>[] nt;
+                if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
+                    sc == rs + MAX_RESIZERS || (nt = nextTable) == null ||
+                    transferIndex <= 0)
+                    Thread.yield(); // wait for other resizers to finish
+                else if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
+                    transfer(tab, nt);
+            }
+            else if (!shrink) {
+                if (n >= MAXIMUM_CAPACITY)
+                    break;
+                if (tab == table &&
+                    U.compareAndSwapInt(this, SIZECTL, sc,
+                                        (rs << RESIZE_STAMP_SHIFT) + 2))
+                    transfer(tab, null);
+            }
+            else if (sumCount() >= (long)((n >>> 1) - (n >>> 3)))
+                break;          // would immediately expand again
+            else if (tab == table &&
+                     U.compareAndSwapInt(this, SIZECTL, sc,
+                                         (rs << RESIZE_STAMP_SHIFT) + 2)) {
+                if (tab == table)
+                    shrink(tab, null);
+                else            // see transfer
+                    sizeCtl = sc;
+            }
+        }
+    }
+
     /**
      * Moves and/or copies the nodes in each bin to new table. See
      * above for explanation.
      */
     private final void transfer(Node<K,V>[] tab, Node<K,V>[] nextTab) {
+        if (tab != table) {
+            // Once tables can shrink, an equal-length table may have
+            // replaced tab between the caller's reads and CAS
+            if (nextTab == null) {        // undo; nothing else joined
+                sizeCtl = tab.length - (tab.length >>> 2);
+                return;
+            }
+            if ((nextTab = nextTable) == null) {
+                U.getAndAddInt(this, SIZECTL, -1); // not last
+                return;
+            }
+            tab = table;                  // help the resize we joined
+        }
+        if (nextTab != null && nextTab.length < tab.length) {
+            shrink(tab, nextTab);         // helping trimToSize
+            return;
+        }
         int n = tab.length, stride;
         if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
             stride = MIN_TRANSFER_STRIDE; // subdivide range
@@ -2379,6 +2600,9 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             }
             nextTable = nextTab;
             transferIndex = n;
+            StatsRecorder sr;
+            if ((sr = stats) != null)
+                sr.resizeStarted();
         }
         int nextn = nextTab.length;
         ForwardingNode<K,V> fwd = new ForwardingNode<K,V>(nextTab);
@@ -2406,9 +2630,12 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             if (i < 0 || i >= n || i + n >= nextn) {
                 int sc;
                 if (finishing) {
+                    StatsRecorder sr;
                     nextTable = null;
                     table = nextTab;
                     sizeCtl = (n << 1) - (n >>> 1);
+                    if ((sr = stats) != null)
+                        sr.resizeFinished();
                     return;
                 }
                 if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
@@ -2497,6 +2724,129 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
     }
 
+    /**
+     * Merges each pair of bins i and i + n/2 into bin i of a table
+     * of half the size.  Otherwise the same as transfer, including
+     * the claiming of index ranges and the commit protocol.
+     */
+    private final void shrink(Node<K,V>[] tab, Node<K,V>[] nextTab) {
+        int n = tab.length, half = n >>> 1, stride;
+        if ((stride = (NCPU > 1) ? (half >>> 3) / NCPU : half) <
+            MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            try {
+                @SuppressWarnings("unchecked")
+                Node<K,V>[] nt = (Node<K,V>[])new Node<?,?>[half];
+                nextTab = nt;
+            } catch (Throwable ex) {      // abandon; keep current table
+                sizeCtl = n - (n >>> 2);
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = half;
+            StatsRecorder sr;
+            if ((sr = stats) != null)
+                sr.resizeStarted();
+        }
+        ForwardingNode<K,V> fwd = new ForwardingNode<K,V>(nextTab);
+        boolean advance = true;
+        boolean finishing = false; // to ensure sweep before committing nextTab
+        for (int i = 0, bound = 0;;) {
+            Node<K,V> f;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                }
+                else if (U.compareAndSwapInt
+                         (this, TRANSFERINDEX, nextIndex,
+                          nextBound = (nextIndex > stride ?
+                                       nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= half) {
+                int sc;
+                if (finishing) {
+                    StatsRecorder sr;
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = half - (half >>> 2);
+                    if ((sr = stats) != null)
+                        sr.resizeFinished();
+                    return;
+                }
+                if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = half; // recheck before commit
+                }
+            }
+            else if ((f = tabAt(tab, i)) != null && f.hash == MOVED)
+                advance = true; // already processed
+            else {
+                Node<K,V> r = null, s = null, g;
+                if (f == null)
+                    f = r = new ReservationNode<K,V>();
+                synchronized (f) {
+                    if (r != null ? casTabAt(tab, i, null, r) :
+                        tabAt(tab, i) == f) {
+                        if ((g = tabAt(tab, i + half)) == null)
+                            g = s = new ReservationNode<K,V>();
+                        synchronized (g) {
+                            if (s != null ? casTabAt(tab, i + half, null, s) :
+                                tabAt(tab, i + half) == g) {
+                                setTabAt(nextTab, i, mergeBins(f, g, half));
+                                setTabAt(tab, i + half, fwd);
+                                setTabAt(tab, i, fwd);
+                                advance = true;
+                            }
+                        }
+                        if (!advance && r != null)
+                            setTabAt(tab, i, null); // release reservation
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a bin holding copies of the nodes of both given bins,
+     * as a TreeBin if there are enough of them and the table of
+     * length n is large enough.  Called only while holding both bin
+     * locks.
+     */
+    static <K,V> Node<K,V> mergeBins(Node<K,V> f, Node<K,V> g, int n) {
+        Node<K,V> hd = null;
+        int c = 0;
+        for (Node<K,V> b = f; b != null; b = (b == f) ? g : null) {
+            Node<K,V> e = (b instanceof TreeBin) ? ((TreeBin<K,V>)b).first :
+                (b.hash >= 0) ? b : null;
+            for (; e != null; e = e.next, ++c)
+                hd = new Node<K,V>(e.hash, e.key, e.val, hd);
+        }
+        if (c < TREEIFY_THRESHOLD || n < MIN_TREEIFY_CAPACITY)
+            return hd;
+        TreeNode<K,V> thd = null, ttl = null;
+        for (Node<K,V> e = hd; e != null; e = e.next) {
+            TreeNode<K,V> p = new TreeNode<K,V>(e.hash, e.key, e.val,
+                                                null, null);
+            if ((p.prev = ttl) == null)
+                thd = p;
+            else
+                ttl.next = p;
+            ttl = p;
+        }
+        return new TreeBin<K,V>(thd);
+    }
+
     /* ---------------- Counter support -------------- */
 
     /**
@@ -2572,6 +2922,9 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                             for (int i = 0; i < n; ++i)
                                 rs[i] = as[i];
                             counterCells = rs;
+                            StatsRecorder sr;
+                            if ((sr = stats) != null)
+                                sr.counterCellExpansions.increment();
                         }
                     } finally {
                         cellsBusy = 0;
@@ -2590,6 +2943,9 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                         rs[h & 1] = new CounterCell(x);
                         counterCells = rs;
                         init = true;
+                        StatsRecorder sr;
+                        if ((sr = stats) != null)
+                            sr.counterCellExpansions.increment();
                     }
                 } finally {
                     cellsBusy = 0;
@@ -2602,6 +2958,295 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
     }
 
+    /* ---------------- Statistics -------------- */
+
+    /**
+     * The reciprocal of the fraction of bin lock acquisitions timed
+     * while statistics are enabled.  Must be a power of two.
+     */
+    static final int LOCK_SAMPLE_RATE = 64;
+
+    /**
+     * The time, in nanoseconds, to acquire a bin lock above which the
+     * acquisition is considered contended.  Uncontended monitor
+     * entry takes well under this, but waiting for another thread
+     * takes at least as long as the other thread's update.
+     */
+    static final long CONTENDED_LOCK_NANOS = 1000L;
+
+    /**
+     * The number of hot-key cells.  Must be a power of two.
+     */
+    static final int HOT_KEY_CELLS = 64;
+
+    /**
+     * A cell of the hot-key summary, holding the key currently
+     * charged with the most contended acquisitions of those hashing
+     * to the cell, and its excess over the others.
+     */
+    static final class HotKeyCell {
+        Object key;
+        long count;
+    }
+
+    /**
+     * Accumulates statistics while they are enabled.
+     */
+    static final class StatsRecorder {
+        final LongAdder lockSamples = new LongAdder();
+        final LongAdder contendedLocks = new LongAdder();
+        final LongAdder lockWaitNanos = new LongAdder();
+        final LongAccumulator maxLockWaitNanos =
+            new LongAccumulator(Math::max, 0L);
+        final LongAdder treeifications = new LongAdder();
+        final LongAdder resizes = new LongAdder();
+        final LongAdder resizeNanos = new LongAdder();
+        final LongAccumulator maxResizeNanos =
+            new LongAccumulator(Math::max, 0L);
+        final LongAdder counterCellExpansions = new LongAdder();
+        final HotKeyCell[] hotKeys = new HotKeyCell[HOT_KEY_CELLS];
+        volatile long resizeStart;      // 0 if none or unknown
+
+        StatsRecorder() {
+            for (int i = 0; i < HOT_KEY_CELLS; ++i)
+                hotKeys[i] = new HotKeyCell();
+        }
+
+        /**
+         * Returns a nonzero start time if this lock acquisition is
+         * sampled, else zero.
+         */
+        final long lockStart() {
+            return ((ThreadLocalRandom.nextSecondarySeed() &
+                     (LOCK_SAMPLE_RATE - 1)) != 0) ? 0L :
+                System.nanoTime() | 1L;
+        }
+
+        /**
+         * Records a sampled acquisition of the bin lock for key.
+         */
+        final void lockAcquired(long start, Object key) {
+            long w = System.nanoTime() - start;
+            lockSamples.increment();
+            if (w >= CONTENDED_LOCK_NANOS) {
+                contendedLocks.increment();
+                lockWaitNanos.add(w);
+                maxLockWaitNanos.accumulate(w);
+                HotKeyCell c =
+                    hotKeys[spread(key.hashCode()) & (HOT_KEY_CELLS - 1)];
+                synchronized (c) {
+                    Object k;
+                    if ((k = c.key) == key || (k != null && key.equals(k)))
+                        ++c.count;
+                    else if (k == null || --c.count <= 0L) {
+                        c.key = key;
+                        c.count = 1L;
+                    }
+                }
+            }
+        }
+
+        final void resizeStarted() {
+            resizeStart = System.nanoTime() | 1L;
+        }
+
+        final void resizeFinished() {
+            long t = resizeStart;
+            resizes.increment();
+            if (t != 0L) {
+                long d = System.nanoTime() - t;
+                resizeStart = 0L;
+                resizeNanos.add(d);
+                maxResizeNanos.accumulate(d);
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the statistics of a ConcurrentHashMap, returned
+     * by method {@link ConcurrentHashMap#stats}.
+     *
+     * <p>Bin lock statistics are sampled: only a pseudo-random subset
+     * of the acquisitions of bin locks by updates are timed, and of
+     * those, the ones that took long enough to indicate that they
+     * waited for another thread are counted as contended, and
+     * charged to the key being updated.  Keys sharing a bin with hot
+     * keys may themselves appear hot.  The hot-key summary has a
+     * small fixed size, so its counts are approximate and rarely
+     * contended keys may be missing from it.
+     *
+     * @param <K> the type of keys
+     */
+    public static final class Stats<K> {
+        private final long lockSamples;
+        private final long contendedLocks;
+        private final long lockWaitNanos;
+        private final long maxLockWaitNanos;
+        private final long treeifications;
+        private final long resizes;
+        private final long resizeNanos;
+        private final long maxResizeNanos;
+        private final long counterCellExpansions;
+        private final int counterCells;
+        private final int tableLength;
+        private final long mappingCount;
+        private final List<Map.Entry<K,Long>> hotKeys;
+
+        @SuppressWarnings("unchecked")
+        Stats(ConcurrentHashMap<K,?> map, StatsRecorder sr) {
+            Node<K,?>[] t; CounterCell[] as;
+            lockSamples = sr.lockSamples.sum();
+            contendedLocks = sr.contendedLocks.sum();
+            lockWaitNanos = sr.lockWaitNanos.sum();
+            maxLockWaitNanos = sr.maxLockWaitNanos.get();
+            treeifications = sr.treeifications.sum();
+            resizes = sr.resizes.sum();
+            resizeNanos = sr.resizeNanos.sum();
+            maxResizeNanos = sr.maxResizeNanos.get();
+            counterCellExpansions = sr.counterCellExpansions.sum();
+            counterCells = ((as = map.counterCells) == null) ? 0 : as.length;
+            tableLength = ((t = map.table) == null) ? 0 : t.length;
+            mappingCount = map.mappingCount();
+            ArrayList<Map.Entry<K,Long>> hot =
+                new ArrayList<Map.Entry<K,Long>>();
+            for (HotKeyCell c : sr.hotKeys) {
+                synchronized (c) {
+                    if (c.key != null)
+                        hot.add(new AbstractMap.SimpleImmutableEntry<K,Long>
+                                ((K)c.key, c.count));
+                }
+            }
+            hot.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            hotKeys = Collections.unmodifiableList(hot);
+        }
+
+        /**
+         * Returns the number of bin lock acquisitions that were timed.
+         *
+         * @return the number of sampled bin lock acquisitions
+         */
+        public long getLockSamples() { return lockSamples; }
+
+        /**
+         * Returns the number of sampled bin lock acquisitions that
+         * were contended.
+         *
+         * @return the number of contended sampled acquisitions
+         */
+        public long getContendedLocks() { return contendedLocks; }
+
+        /**
+         * Returns the total time spent acquiring contended bin locks,
+         * over sampled acquisitions.
+         *
+         * @return the total sampled wait time, in nanoseconds
+         */
+        public long getLockWaitNanos() { return lockWaitNanos; }
+
+        /**
+         * Returns the longest time spent acquiring a bin lock, over
+         * sampled acquisitions.
+         *
+         * @return the maximum sampled wait time, in nanoseconds
+         */
+        public long getMaxLockWaitNanos() { return maxLockWaitNanos; }
+
+        /**
+         * Returns the number of bins converted from lists to trees.
+         *
+         * @return the number of treeifications
+         */
+        public long getTreeifications() { return treeifications; }
+
+        /**
+         * Returns the number of completed table resizes, whether
+         * expansions or shrinks.
+         *
+         * @return the number of resizes
+         */
+        public long getResizes() { return resizes; }
+
+        /**
+         * Returns the total time taken by completed resizes, from
+         * their initiation until the new table was installed.
+         *
+         * @return the total resize time, in nanoseconds
+         */
+        public long getResizeNanos() { return resizeNanos; }
+
+        /**
+         * Returns the longest time taken by a completed resize.
+         *
+         * @return the maximum resize time, in nanoseconds
+         */
+        public long getMaxResizeNanos() { return maxResizeNanos; }
+
+        /**
+         * Returns the number of times the table of counter cells used
+         * to track the size under contention was created or expanded.
+         *
+         * @return the number of counter cell expansions
+         */
+        public long getCounterCellExpansions() {
+            return counterCellExpansions;
+        }
+
+        /**
+         * Returns the current number of counter cells.
+         *
+         * @return the number of counter cells
+         */
+        public int getCounterCells() { return counterCells; }
+
+        /**
+         * Returns the current length of the table.
+         *
+         * @return the table length
+         */
+        public int getTableLength() { return tableLength; }
+
+        /**
+         * Returns the number of mappings.
+         *
+         * @return the number of mappings
+         * @see ConcurrentHashMap#mappingCount
+         */
+        public long getMappingCount() { return mappingCount; }
+
+        /**
+         * Returns the keys most often charged with contended bin lock
+         * acquisitions, paired with their approximate counts, most
+         * contended first.
+         *
+         * @return an unmodifiable list of hot keys and their counts
+         */
+        public List<Map.Entry<K,Long>> getHotKeys() { return hotKeys; }
+
+        /**
+         * Returns a string summarizing these statistics.
+         *
+         * @return a string summarizing these statistics
+         */
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("[mappings = ").append(mappingCount)
+                .append(", table = ").append(tableLength)
+                .append(", lock samples = ").append(lockSamples)
+                .append(", contended = ").append(contendedLocks)
+                .append(", wait ns = ").append(lockWaitNanos)
+                .append(", max wait ns = ").append(maxLockWaitNanos)
+                .append(", treeifications = ").append(treeifications)
+                .append(", resizes = ").append(resizes)
+                .append(", resize ns = ").append(resizeNanos)
+                .append(", max resize ns = ").append(maxResizeNanos)
+                .append(", counter cells = ").append(counterCells)
+                .append(", expansions = ").append(counterCellExpansions)
+                .append(", hot keys = ").append(hotKeys)
+                .append(']');
+            return sb.toString();
+        }
+    }
+
     /* ---------------- Conversion from/to TreeBins -------------- */
 
     /**
@@ -2628,6 +3273,9 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                             tl = p;
                         }
                         setTabAt(tab, index, new TreeBin<K,V>(hd));
+                        StatsRecorder sr;
+                        if ((sr = stats) != null)
+                            sr.treeifications.increment();
                     }
                 }
             }
@@ -3257,13 +3905,15 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
     /* ----------------Table Traversal -------------- */
 
     /**
-     * Records the table, its length, and current traversal index for a
-     * traverser that must process a region of a forwarded table before
-     * proceeding with current table.
+     * Records the table, its length, current traversal index, and
+     * node filter for a traverser that must process a region of a
+     * forwarded table before proceeding with current table.
      */
     static final class TableStack<K,V> {
         int length;
         int index;
+        int mask;
+        int bin;
         Node<K,V>[] tab;
         TableStack<K,V> next;
     }
@@ -3297,6 +3947,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         int baseIndex;          // current index of initial table
         int baseLimit;          // index bound for initial table
         final int baseSize;     // initial table size
+        int mask;               // if nonzero, skip nodes of current
+        int bin;                //   bin unless (hash & mask) == bin
 
         Traverser(Node<K,V>[] tab, int size, int index, int limit) {
             this.tab = tab;
@@ -3315,16 +3967,32 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 e = e.next;
             for (;;) {
                 Node<K,V>[] t; int i, n;  // must use locals in checks
-                if (e != null)
-                    return next = e;
+                TableStack<K,V> s;
+                if (e != null) {
+                    if (mask == 0 || (e.hash & mask) == bin)
+                        return next = e;
+                    e = e.next;
+                    continue;
+                }
                 if (baseIndex >= baseLimit || (t = tab) == null ||
                     (n = t.length) <= (i = index) || i < 0)
                     return next = null;
-                if ((e = tabAt(t, i)) != null && e.hash < 0) {
+                if ((s = stack) != null &&
+                    ((i ^ s.bin) & s.mask & (n - 1)) != 0)
+                    e = null; // holds none of the nodes of a merged bin
+                else if ((e = tabAt(t, i)) != null && e.hash < 0) {
                     if (e instanceof ForwardingNode) {
-                        tab = ((ForwardingNode<K,V>)e).nextTable;
+                        Node<K,V>[] nt = ((ForwardingNode<K,V>)e).nextTable;
+                        tab = nt;
                         e = null;
                         pushState(t, i, n);
+                        if (nt.length < n) { // merged bin; take our share
+                            if (n - 1 > (s = stack).mask) {
+                                s.mask = n - 1;
+                                s.bin = i;
+                            }
+                            index = i & (nt.length - 1);
+                        }
                         continue;
                     }
                     else if (e instanceof TreeBin)
@@ -3332,10 +4000,17 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                     else
                         e = null;
                 }
-                if (stack != null)
+                if (s != null) {
+                    if ((mask = s.mask) < n) // implied by index
+                        mask = 0;
+                    bin = s.bin;
                     recoverState(n);
-                else if ((index = i + baseSize) >= n)
-                    index = ++baseIndex; // visit upper slots if present
+                }
+                else {
+                    mask = 0;
+                    if ((index = i + baseSize) >= n)
+                        index = ++baseIndex; // visit upper slots if present
+                }
             }
         }
 
@@ -3348,10 +4023,13 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 spare = s.next;
             else
                 s = new TableStack<K,V>();
+            TableStack<K,V> p = stack;
             s.tab = t;
             s.length = n;
             s.index = i;
-            s.next = stack;
+            s.mask = (p == null) ? 0 : p.mask;
+            s.bin = (p == null) ? 0 : p.bin;
+            s.next = p;
             stack = s;
         }
 
@@ -3641,6 +4319,112 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         return (b <= 0L || (n /= b) >= sp) ? sp : (int)n;
     }
 
+    /**
+     * Copies all of the mappings from the specified map to this one,
+     * as with {@link #putAll(Map)}, but in parallel if the specified
+     * map holds at least the given threshold number of mappings.
+     * The table is first presized to hold all of them, and they are
+     * then partitioned by the range of bins they hash to, so that
+     * each subtask updates a disjoint set of bins.  Each subtask
+     * publishes the count of mappings it added when it finishes,
+     * even if abruptly, so until then concurrent calls to {@code
+     * size} and related methods may not reflect them, although all
+     * are visible to {@code get} as soon as inserted.
+     *
+     * @param parallelismThreshold the (estimated) number of elements
+     * needed for this operation to be executed in parallel
+     * @param m mappings to be stored in this map
+     * @throws NullPointerException if the specified map or any of its
+     *         keys or values are null
+     */
+    @SuppressWarnings("unchecked")
+    public void putAll(long parallelismThreshold,
+                       Map<? extends K, ? extends V> m) {
+        int size = m.size(), sp = ForkJoinPool.getCommonPoolParallelism();
+        if (parallelismThreshold == Long.MAX_VALUE || sp <= 1 ||
+            size <= 1 || size < parallelismThreshold) {
+            putAll(m);
+            return;
+        }
+        tryPresize(size);
+        Node<K,V>[] tab; int n;
+        if ((tab = table) == null || (n = tab.length) == 0)
+            tab = initTable();
+        n = tab.length;
+        // partition into power-of-two bin ranges; slack of 4
+        int parts = tableSizeFor(sp << 2);
+        if (parts > n)
+            parts = n;
+        int shift = Integer.numberOfTrailingZeros(n / parts);
+        Object[] ks = new Object[size], vs = new Object[size];
+        int[] ps = new int[size];
+        int[] bounds = new int[parts + 1];
+        int count = 0;
+        if (m instanceof ConcurrentHashMap) { // reuse its hashes
+            Node<K,V>[] t; int p;
+            int f = (t = ((ConcurrentHashMap<K,V>)m).table) == null ?
+                0 : t.length;
+            Traverser<K,V> it = new Traverser<K,V>(t, f, 0, f);
+            for (Node<K,V> e; (e = it.advance()) != null; ) {
+                if (count == ks.length) { // source grew while traversed
+                    int c = count + (count >>> 1) + 1;
+                    ks = Arrays.copyOf(ks, c);
+                    vs = Arrays.copyOf(vs, c);
+                    ps = Arrays.copyOf(ps, c);
+                }
+                ks[count] = e.key;
+                vs[count] = e.val;
+                ps[count++] = p = (e.hash & (n - 1)) >>> shift;
+                ++bounds[p + 1];
+            }
+        }
+        else {
+            for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) {
+                K k = e.getKey(); V v = e.getValue(); int p;
+                if (k == null || v == null)
+                    throw new NullPointerException();
+                if (count == ks.length) {
+                    int c = count + (count >>> 1) + 1;
+                    ks = Arrays.copyOf(ks, c);
+                    vs = Arrays.copyOf(vs, c);
+                    ps = Arrays.copyOf(ps, c);
+                }
+                ks[count] = k;
+                vs[count] = v;
+                ps[count++] = p = (spread(k.hashCode()) & (n - 1)) >>> shift;
+                ++bounds[p + 1];
+            }
+        }
+        for (int i = 0; i < parts; ++i)
+            bounds[i + 1] += bounds[i];
+        // permute in place, swapping each entry into the next free
+        // slot of its part until the current slot holds its own
+        int[] next = Arrays.copyOf(bounds, parts);
+        for (int b = 0; b < parts; ++b) {
+            for (int i, e = bounds[b + 1]; (i = next[b]) < e; ) {
+                int p = ps[i];
+                if (p == b)
+                    next[b] = i + 1;
+                else {
+                    int j = next[p]++;
+                    Object k = ks[i], v = vs[i];
+                    ks[i] = ks[j]; vs[i] = vs[j]; ps[i] = ps[j];
+                    ks[j] = k; vs[j] = v; ps[j] = p;
+                }
+            }
+        }
+        ps = next = null; // help GC
+        PutAllTask<K,V> root =
+            new PutAllTask<K,V>(null, this, ks, vs, bounds, 0, parts);
+        root.invoke();
+        Throwable ex;
+        if ((ex = root.failure) != null) {
+            if (ex instanceof RuntimeException)
+                throw (RuntimeException)ex;
+            throw (Error)ex;
+        }
+    }
+
     /**
      * Performs the given action for each (key, value).
      *
@@ -4813,6 +5597,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         int baseIndex;
         int baseLimit;
         final int baseSize;
+        int mask;
+        int bin;
         int batch;              // split control
 
         BulkTask(BulkTask<K,V,?> par, int b, int i, int f, Node<K,V>[] t) {
@@ -4837,17 +5623,32 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
             if ((e = next) != null)
                 e = e.next;
             for (;;) {
-                Node<K,V>[] t; int i, n;
-                if (e != null)
-                    return next = e;
+                Node<K,V>[] t; TableStack<K,V> s; int i, n;
+                if (e != null) {
+                    if (mask == 0 || (e.hash & mask) == bin)
+                        return next = e;
+                    e = e.next;
+                    continue;
+                }
                 if (baseIndex >= baseLimit || (t = tab) == null ||
                     (n = t.length) <= (i = index) || i < 0)
                     return next = null;
-                if ((e = tabAt(t, i)) != null && e.hash < 0) {
+                if ((s = stack) != null &&
+                    ((i ^ s.bin) & s.mask & (n - 1)) != 0)
+                    e = null; // holds none of the nodes of a merged bin
+                else if ((e = tabAt(t, i)) != null && e.hash < 0) {
                     if (e instanceof ForwardingNode) {
-                        tab = ((ForwardingNode<K,V>)e).nextTable;
+                        Node<K,V>[] nt = ((ForwardingNode<K,V>)e).nextTable;
+                        tab = nt;
                         e = null;
                         pushState(t, i, n);
+                        if (nt.length < n) { // merged bin; take our share
+                            if (n - 1 > (s = stack).mask) {
+                                s.mask = n - 1;
+                                s.bin = i;
+                            }
+                            index = i & (nt.length - 1);
+                        }
                         continue;
                     }
                     else if (e instanceof TreeBin)
@@ -4855,10 +5656,17 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                     else
                         e = null;
                 }
-                if (stack != null)
+                if (s != null) {
+                    if ((mask = s.mask) < n) // implied by index
+                        mask = 0;
+                    bin = s.bin;
                     recoverState(n);
-                else if ((index = i + baseSize) >= n)
-                    index = ++baseIndex;
+                }
+                else {
+                    mask = 0;
+                    if ((index = i + baseSize) >= n)
+                        index = ++baseIndex;
+                }
             }
         }
 
@@ -4868,10 +5676,13 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 spare = s.next;
             else
                 s = new TableStack<K,V>();
+            TableStack<K,V> p = stack;
             s.tab = t;
             s.length = n;
             s.index = i;
-            s.next = stack;
+            s.mask = (p == null) ? 0 : p.mask;
+            s.bin = (p == null) ? 0 : p.bin;
+            s.next = p;
             stack = s;
         }
 
@@ -6274,6 +7085,64 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
         }
     }
 
+    /**
+     * Task for bulk loads.  Unlike other tasks, it traverses an array
+     * of mappings rather than the table: those to be put by parts
+     * [lo, hi) lie between indices bounds[lo] and bounds[hi].  Each
+     * leaf adds the number of mappings it inserted to the map's
+     * count, so that those inserted before any exception are counted.
+     * A leaf that fails records its exception in the root and then
+     * completes normally, so that the root is not completed until
+     * all other leaves have finished.
+     */
+    @SuppressWarnings("serial")
+    static final class PutAllTask<K,V> extends CountedCompleter<Void> {
+        final ConcurrentHashMap<K,V> map;
+        final Object[] keys;
+        final Object[] vals;
+        final int[] bounds;
+        final int lo;
+        int hi;
+        volatile Throwable failure; // first exception; used only in root
+        PutAllTask
+            (CountedCompleter<?> p, ConcurrentHashMap<K,V> map,
+             Object[] keys, Object[] vals, int[] bounds, int lo, int hi) {
+            super(p);
+            this.map = map; this.keys = keys; this.vals = vals;
+            this.bounds = bounds; this.lo = lo; this.hi = hi;
+        }
+        @SuppressWarnings("unchecked")
+        public final void compute() {
+            final ConcurrentHashMap<K,V> map; final Object[] ks, vs;
+            final int[] bs;
+            if ((map = this.map) != null && (ks = this.keys) != null &&
+                (vs = this.vals) != null && (bs = this.bounds) != null) {
+                for (int l = lo, f, h; (h = ((f = hi) + l) >>> 1) > l;) {
+                    addToPendingCount(1);
+                    new PutAllTask<K,V>
+                        (this, map, ks, vs, bs, h, f).fork();
+                    hi = h;
+                }
+                long r = 0L;
+                try {
+                    for (int i = bs[lo], e = bs[hi]; i < e; ++i) {
+                        if (map.putVal((K)ks[i], (V)vs[i], false, false)
+                            == null)
+                            ++r;
+                    }
+                } catch (Throwable ex) {
+                    PutAllTask<K,V> root = (PutAllTask<K,V>)getRoot();
+                    if (root.failure == null)
+                        root.failure = ex;
+                } finally {
+                    if (r != 0L)
+                        map.addCount(r, 0);
+                }
+                propagateCompletion();
+            }
+        }
+    }
+
     // Unsafe mechanics
     private static final sun.misc.Unsafe U;
     private static final long SIZECTL;
@@ -6281,6 +7150,7 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
     private static final long BASECOUNT;
     private static final long CELLSBUSY;
     private static final long CELLVALUE;
+    private static final long STATS;
     private static final long ABASE;
     private static final int ASHIFT;
 
@@ -6296,6 +7166,8 @@ public class ConcurrentHashMap<K,V> extends AbstractMap<K,V>
                 (k.getDeclaredField("baseCount"));
             CELLSBUSY = U.objectFieldOffset
                 (k.getDeclaredField("cellsBusy"));
+            STATS = U.objectFieldOffset
+                (k.getDeclaredField("stats"));
             Class<?> ck = CounterCell.class;
             CELLVALUE = U.objectFieldOffset
                 (ck.getDeclaredField("value"));
@@ -0,0 +1,1476 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A concurrent hash trie supporting constant-time, consistent
+ * snapshots.  This class obeys the same functional specification as
+ * {@link ConcurrentHashMap}, and all of its operations are
+ * lock-free.  In addition, method {@link #snapshot} returns, in
+ * constant time, an independent map holding the mappings present at
+ * the point of the call, that may then be updated without affecting
+ * this map (and vice versa); and {@link #readOnlySnapshot} returns
+ * an unmodifiable such view even more cheaply.  Copying of the
+ * underlying structure is performed lazily, only along the paths
+ * later updated in either map.
+ *
+ * <p>Unlike those of {@code ConcurrentHashMap}, the iterators of
+ * this map and of its views are <em>consistent</em>: each traverses
+ * a read-only snapshot taken when it is created, so reflects exactly
+ * the mappings present at that point, regardless of concurrent
+ * updates.  Bulk methods {@code forEach}, {@code containsValue},
+ * {@code equals}, {@code hashCode} and {@code toString}, as well as
+ * {@code size}, are performed on such snapshots too.  Because taking
+ * a snapshot causes later updates to copy the nodes along their
+ * paths, these methods slow down subsequent updates somewhat, and
+ * should not be called much more often than the map is updated.
+ * Iterators return snapshot entries that do not support {@code
+ * setValue}.
+ *
+ * <p>Like {@link ConcurrentSkipListMap}, the {@code compute}, {@code
+ * computeIfAbsent}, {@code computeIfPresent} and {@code merge}
+ * methods are performed using atomic conditional updates, so the
+ * supplied functions may be invoked more than once (with the results
+ * of all but one discarded) under contention.
+ *
+ * <p>Like {@link ConcurrentHashMap}, this class does <em>not</em>
+ * allow {@code null} to be used as a key or value.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class ConcurrentHashTrieMap<K,V> extends AbstractMap<K,V>
+    implements ConcurrentMap<K,V>, Serializable {
+    private static final long serialVersionUID = 2957365927281470537L;
+
+    /*
+     * Overview:
+     *
+     * This is a Ctrie (Prokopec, Bronson, Bagwell and Odersky,
+     * "Concurrent Tries with Efficient Non-Blocking Snapshots",
+     * PPoPP 2012), a concurrent version of a hash array mapped trie.
+     * Each level of the trie consumes W (5) bits of the (spread)
+     * hash code.  Its nodes are:
+     *
+     * INode: an indirection node, the only mutable kind.  It holds
+     *   a generation and a main node, which updates replace by CAS.
+     * CNode: a main node holding a bitmap of the occupied 32-way
+     *   branches and a compact array of them, each an INode or an
+     *   SNode.
+     * SNode: an immutable key-value pair (a leaf).
+     * TNode: a "tombed" SNode, the main node of an INode whose
+     *   CNode was left with a single leaf by a removal.  TNodes are
+     *   never visible to updates for long: any operation
+     *   encountering one helps compress it back into its parent.
+     * LNode: an immutable list of pairs with equal hash codes, used
+     *   below the levels that can be distinguished by hash bits.
+     *
+     * An update copies the CNode (or LNode) of the INode above the
+     * affected leaf, modifies the copy, and CASes it in.  Removals
+     * that leave a CNode with a single leaf replace it with a TNode,
+     * and then "clean" the parent by resurrecting its tombed
+     * children, so the trie stays compact.
+     *
+     * Snapshots rely on generations: each INode belongs to the
+     * generation of the root it was created under, and updates
+     * descending from a root copy ("renew") any CNode whose child
+     * INodes belong to an older generation before passing through
+     * it.  Taking a snapshot just replaces the root by a copy in a
+     * new generation, freezing all nodes of the old one, which is
+     * then shared by the snapshot.  For this to be atomic with
+     * respect to concurrent updates, updates replace main nodes
+     * using GCAS (generation-compare-and-swap): a new main node is
+     * first CASed in with a link to its predecessor (field prev),
+     * and committed (by clearing prev) only if the root's generation
+     * is still that of the INode; otherwise the CAS is rolled back
+     * (via a FailedNode).  Any reader seeing a pending prev link
+     * helps complete the GCAS.  Dually, the root is replaced by a
+     * restricted double-compare single-swap (RDCSS) that succeeds
+     * only if the main node of the old root is unchanged.  A
+     * read-only snapshot never commits any GCAS, so always sees the
+     * nodes of its generation as they were when it was taken.
+     *
+     * Operations that must restart from the root (after losing a
+     * race or helping) return the RESTART sentinel.  Conditional
+     * insertions are encoded by a "cond" argument: null for
+     * unconditional, KEY_ABSENT, KEY_PRESENT, or an expected value.
+     *
+     * Sizes are computed on read-only snapshots, in which nodes
+     * never change, so each CNode caches the size of its subtrie.
+     * Subtries not updated between calls need not be recounted.
+     */
+
+    /* ---------------- Constants -------------- */
+
+    /**
+     * The number of hash bits consumed per level.
+     */
+    private static final int W = 5;
+
+    /**
+     * The level at which no hash bits remain, so that colliding
+     * pairs are placed in LNodes.
+     */
+    private static final int LIST_LEVEL = 35;
+
+    /** Sentinel returned by node operations that must be retried. */
+    static final Object RESTART = new Object();
+
+    /** Conditions for insert */
+    static final Object KEY_ABSENT = new Object();
+    static final Object KEY_PRESENT = new Object();
+
+    /* ---------------- Nodes -------------- */
+
+    /**
+     * A generation.  Only identity matters.
+     */
+    static final class Gen {
+    }
+
+    /**
+     * Base class of nodes that can be the main node of an INode.
+     */
+    abstract static class MainNode<K,V> {
+        volatile MainNode<K,V> prev;  // non-null while GCAS is pending
+
+        /**
+         * Returns the number of mappings below this node.  Must be
+         * called only on nodes of read-only snapshots.
+         */
+        abstract long cachedSize(ConcurrentHashTrieMap<K,V> ct);
+
+        final boolean casPrev(MainNode<K,V> cmp, MainNode<K,V> val) {
+            return U.compareAndSwapObject(this, PREV, cmp, val);
+        }
+    }
+
+    /**
+     * Indirection node.
+     */
+    static final class INode<K,V> {
+        volatile MainNode<K,V> main;
+        final Gen gen;
+
+        INode(MainNode<K,V> main, Gen gen) {
+            this.main = main;
+            this.gen = gen;
+        }
+
+        /**
+         * Returns main node, first completing any pending GCAS.
+         */
+        final MainNode<K,V> gcasRead(ConcurrentHashTrieMap<K,V> ct) {
+            MainNode<K,V> m = main;
+            return (m.prev == null) ? m : gcasComplete(m, ct);
+        }
+
+        /**
+         * Replaces main node old with n if the generation of the
+         * root still matches ours.
+         *
+         * @return true if successful
+         */
+        final boolean gcas(MainNode<K,V> old, MainNode<K,V> n,
+                           ConcurrentHashTrieMap<K,V> ct) {
+            n.prev = old;
+            if (U.compareAndSwapObject(this, MAIN, old, n)) {
+                gcasComplete(n, ct);
+                return n.prev == null;
+            }
+            return false;
+        }
+
+        /**
+         * Commits or rolls back the GCAS that installed m, returning
+         * the resulting main node.
+         */
+        private MainNode<K,V> gcasComplete(MainNode<K,V> m,
+                                           ConcurrentHashTrieMap<K,V> ct) {
+            while (m != null) {
+                MainNode<K,V> p = m.prev;
+                INode<K,V> r = ct.readRoot(true);
+                if (p == null)
+                    return m;
+                if (p instanceof FailedNode) {
+                    MainNode<K,V> q = p.prev; // restore predecessor
+                    if (U.compareAndSwapObject(this, MAIN, m, q))
+                        return q;
+                    m = main;
+                }
+                else if (r.gen == gen && !ct.readOnly) {
+                    if (m.casPrev(p, null))
+                        return m;
+                }
+                else {
+                    m.casPrev(p, new FailedNode<K,V>(p));
+                    m = main;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns a copy in generation ngen.
+         */
+        final INode<K,V> copyToGen(Gen ngen, ConcurrentHashTrieMap<K,V> ct) {
+            return new INode<K,V>(gcasRead(ct), ngen);
+        }
+
+        /**
+         * Returns the value for key k with spread hash hc, null if
+         * absent, or RESTART.
+         */
+        @SuppressWarnings("unchecked")
+        final Object lookup(Object k, int hc, int lev, INode<K,V> parent,
+                            Gen startgen, ConcurrentHashTrieMap<K,V> ct) {
+            for (;;) {
+                MainNode<K,V> m = gcasRead(ct);
+                if (m instanceof CNode) {
+                    CNode<K,V> cn = (CNode<K,V>)m;
+                    int flag = 1 << ((hc >>> lev) & 0x1f), bmp = cn.bitmap;
+                    if ((bmp & flag) == 0)
+                        return null;
+                    Object sub = cn.array[Integer.bitCount(bmp & (flag - 1))];
+                    if (sub instanceof INode) {
+                        INode<K,V> in = (INode<K,V>)sub;
+                        if (ct.readOnly || startgen == in.gen)
+                            return in.lookup(k, hc, lev + W, this, startgen, ct);
+                        if (!gcas(cn, cn.renewed(startgen, ct), ct))
+                            return RESTART;
+                    }
+                    else {
+                        SNode<K,V> sn = (SNode<K,V>)sub; Object sk;
+                        return (sn.hash == hc &&
+                                ((sk = sn.key) == k || k.equals(sk))) ?
+                            sn.val : null;
+                    }
+                }
+                else if (m instanceof TNode) {
+                    TNode<K,V> tn = (TNode<K,V>)m; Object tk;
+                    if (ct.readOnly)
+                        return (tn.hash == hc &&
+                                ((tk = tn.key) == k || k.equals(tk))) ?
+                            tn.val : null;
+                    clean(parent, ct, lev - W);
+                    return RESTART;
+                }
+                else
+                    return ((LNode<K,V>)m).get(k);
+            }
+        }
+
+        /**
+         * Inserts or replaces the mapping for k subject to cond.
+         * Returns the previous value (for KEY_ABSENT, the existing
+         * value if not inserted), null if there was none or the
+         * condition failed, or RESTART.
+         */
+        @SuppressWarnings("unchecked")
+        final Object insert(K k, V v, int hc, Object cond, int lev,
+                            INode<K,V> parent, Gen startgen,
+                            ConcurrentHashTrieMap<K,V> ct) {
+            for (;;) {
+                MainNode<K,V> m = gcasRead(ct);
+                if (m instanceof CNode) {
+                    CNode<K,V> cn = (CNode<K,V>)m;
+                    int flag = 1 << ((hc >>> lev) & 0x1f), bmp = cn.bitmap;
+                    int pos = Integer.bitCount(bmp & (flag - 1));
+                    if ((bmp & flag) == 0) {
+                        if (cond != null && cond != KEY_ABSENT)
+                            return null;
+                        CNode<K,V> rn = (cn.gen == gen) ? cn :
+                            cn.renewed(gen, ct);
+                        return gcas(cn, rn.insertedAt(pos, flag,
+                                                      new SNode<K,V>(k, v, hc),
+                                                      gen), ct) ?
+                            null : RESTART;
+                    }
+                    Object sub = cn.array[pos];
+                    if (sub instanceof INode) {
+                        INode<K,V> in = (INode<K,V>)sub;
+                        if (startgen == in.gen)
+                            return in.insert(k, v, hc, cond, lev + W, this,
+                                             startgen, ct);
+                        if (!gcas(cn, cn.renewed(startgen, ct), ct))
+                            return RESTART;
+                        continue;
+                    }
+                    SNode<K,V> sn = (SNode<K,V>)sub; K sk;
+                    if (sn.hash == hc && ((sk = sn.key) == k || k.equals(sk))) {
+                        V sv = sn.val;
+                        if (cond == KEY_ABSENT)
+                            return sv;
+                        if (cond != null && cond != KEY_PRESENT &&
+                            !cond.equals(sv))
+                            return null;
+                        return gcas(cn, cn.updatedAt(pos, new SNode<K,V>(k, v, hc),
+                                                     gen), ct) ?
+                            sv : RESTART;
+                    }
+                    if (cond != null && cond != KEY_ABSENT)
+                        return null;
+                    CNode<K,V> rn = (cn.gen == gen) ? cn : cn.renewed(gen, ct);
+                    INode<K,V> nin = new INode<K,V>
+                        (CNode.dual(sn, new SNode<K,V>(k, v, hc), lev + W, gen),
+                         gen);
+                    return gcas(cn, rn.updatedAt(pos, nin, gen), ct) ?
+                        null : RESTART;
+                }
+                else if (m instanceof TNode) {
+                    clean(parent, ct, lev - W);
+                    return RESTART;
+                }
+                else {
+                    LNode<K,V> ln = (LNode<K,V>)m;
+                    V ov = ln.get(k);
+                    if (cond == KEY_ABSENT) {
+                        if (ov != null)
+                            return ov;
+                    }
+                    else if (cond == KEY_PRESENT) {
+                        if (ov == null)
+                            return null;
+                    }
+                    else if (cond != null && (ov == null || !cond.equals(ov)))
+                        return null;
+                    return gcas(ln, ln.inserted(k, v), ct) ? ov : RESTART;
+                }
+            }
+        }
+
+        /**
+         * Removes the mapping for k if its value equals cv, or for any
+         * value if cv is null.  Returns the removed value, null if
+         * none, or RESTART.
+         */
+        @SuppressWarnings("unchecked")
+        final Object remove(Object k, Object cv, int hc, int lev,
+                            INode<K,V> parent, Gen startgen,
+                            ConcurrentHashTrieMap<K,V> ct) {
+            for (;;) {
+                MainNode<K,V> m = gcasRead(ct);
+                if (m instanceof CNode) {
+                    CNode<K,V> cn = (CNode<K,V>)m;
+                    int flag = 1 << ((hc >>> lev) & 0x1f), bmp = cn.bitmap;
+                    if ((bmp & flag) == 0)
+                        return null;
+                    int pos = Integer.bitCount(bmp & (flag - 1));
+                    Object sub = cn.array[pos], res;
+                    if (sub instanceof INode) {
+                        INode<K,V> in = (INode<K,V>)sub;
+                        if (startgen != in.gen) {
+                            if (!gcas(cn, cn.renewed(startgen, ct), ct))
+                                return RESTART;
+                            continue;
+                        }
+                        res = in.remove(k, cv, hc, lev + W, this, startgen, ct);
+                    }
+                    else {
+                        SNode<K,V> sn = (SNode<K,V>)sub; Object sk;
+                        if (sn.hash != hc ||
+                            ((sk = sn.key) != k && !k.equals(sk)) ||
+                            (cv != null && !cv.equals(sn.val)))
+                            return null;
+                        if (!gcas(cn, cn.removedAt(pos, flag, gen).toContracted(lev),
+                                  ct))
+                            return RESTART;
+                        res = sn.val;
+                    }
+                    if (res != null && res != RESTART && parent != null) {
+                        MainNode<K,V> n = gcasRead(ct);
+                        if (n instanceof TNode)
+                            cleanParent((TNode<K,V>)n, hc, lev, parent,
+                                        startgen, ct);
+                    }
+                    return res;
+                }
+                else if (m instanceof TNode) {
+                    clean(parent, ct, lev - W);
+                    return RESTART;
+                }
+                else {
+                    LNode<K,V> ln = (LNode<K,V>)m;
+                    V ov = ln.get(k);
+                    if (ov == null || (cv != null && !cv.equals(ov)))
+                        return null;
+                    return gcas(ln, ln.removed(k), ct) ? ov : RESTART;
+                }
+            }
+        }
+
+        /**
+         * Replaces this (entombed) INode in its parent's CNode by the
+         * leaf it holds.
+         */
+        private void cleanParent(TNode<K,V> tn, int hc, int lev,
+                                 INode<K,V> parent, Gen startgen,
+                                 ConcurrentHashTrieMap<K,V> ct) {
+            for (;;) {
+                MainNode<K,V> pm = parent.gcasRead(ct);
+                if (!(pm instanceof CNode))
+                    break;
+                CNode<K,V> cn = (CNode<K,V>)pm;
+                int flag = 1 << ((hc >>> (lev - W)) & 0x1f), bmp = cn.bitmap;
+                int pos;
+                if ((bmp & flag) == 0 ||
+                    cn.array[pos = Integer.bitCount(bmp & (flag - 1))] != this)
+                    break;      // already removed
+                CNode<K,V> ncn = cn.updatedAt(pos, tn.copyUntombed(), gen);
+                if (parent.gcas(cn, ncn.toContracted(lev - W), ct) ||
+                    ct.readRoot(false).gen != startgen)
+                    break;
+            }
+        }
+
+        /**
+         * Compresses the CNode of nd (at level lev), if present.
+         */
+        private void clean(INode<K,V> nd, ConcurrentHashTrieMap<K,V> ct,
+                           int lev) {
+            MainNode<K,V> m = nd.gcasRead(ct);
+            if (m instanceof CNode)
+                nd.gcas(m, ((CNode<K,V>)m).toCompressed(ct, lev, gen), ct);
+        }
+    }
+
+    /**
+     * Leaf node.
+     */
+    static final class SNode<K,V> {
+        final K key;
+        final V val;
+        final int hash;
+        SNode(K key, V val, int hash) {
+            this.key = key;
+            this.val = val;
+            this.hash = hash;
+        }
+        TNode<K,V> copyTombed() { return new TNode<K,V>(key, val, hash); }
+    }
+
+    /**
+     * Tombed leaf, the main node of an INode pending compression.
+     */
+    static final class TNode<K,V> extends MainNode<K,V> {
+        final K key;
+        final V val;
+        final int hash;
+        TNode(K key, V val, int hash) {
+            this.key = key;
+            this.val = val;
+            this.hash = hash;
+        }
+        SNode<K,V> copyUntombed() { return new SNode<K,V>(key, val, hash); }
+        long cachedSize(ConcurrentHashTrieMap<K,V> ct) { return 1L; }
+    }
+
+    /**
+     * List of pairs with equal hashes.  Each LNode is the head of an
+     * immutable list.
+     */
+    static final class LNode<K,V> extends MainNode<K,V> {
+        final K key;
+        final V val;
+        final int hash;
+        final LNode<K,V> next;
+        LNode(K key, V val, int hash, LNode<K,V> next) {
+            this.key = key;
+            this.val = val;
+            this.hash = hash;
+            this.next = next;
+        }
+
+        final V get(Object k) {
+            for (LNode<K,V> p = this; p != null; p = p.next) {
+                K pk;
+                if ((pk = p.key) == k || k.equals(pk))
+                    return p.val;
+            }
+            return null;
+        }
+
+        /**
+         * Returns a list without k, or if that would leave only one
+         * pair, a TNode holding it.
+         */
+        final MainNode<K,V> removed(Object k) {
+            LNode<K,V> r = null;
+            for (LNode<K,V> p = this; p != null; p = p.next) {
+                K pk;
+                if ((pk = p.key) != k && !k.equals(pk))
+                    r = new LNode<K,V>(pk, p.val, hash, r);
+            }
+            return (r != null && r.next == null) ?
+                new TNode<K,V>(r.key, r.val, hash) : r;
+        }
+
+        /**
+         * Returns a list with k mapped to v.
+         */
+        final LNode<K,V> inserted(K k, V v) {
+            LNode<K,V> r = new LNode<K,V>(k, v, hash, null);
+            for (LNode<K,V> p = this; p != null; p = p.next) {
+                K pk;
+                if ((pk = p.key) != k && !k.equals(pk))
+                    r = new LNode<K,V>(pk, p.val, hash, r);
+            }
+            return r;
+        }
+
+        long cachedSize(ConcurrentHashTrieMap<K,V> ct) {
+            long n = 0L;
+            for (LNode<K,V> p = this; p != null; p = p.next)
+                ++n;
+            return n;
+        }
+    }
+
+    /**
+     * Branching node.
+     */
+    static final class CNode<K,V> extends MainNode<K,V> {
+        final int bitmap;
+        final Object[] array;   // INodes and SNodes
+        final Gen gen;
+        volatile long size = -1L; // cached; benignly racy
+
+        CNode(int bitmap, Object[] array, Gen gen) {
+            this.bitmap = bitmap;
+            this.array = array;
+            this.gen = gen;
+        }
+
+        @SuppressWarnings("unchecked")
+        long cachedSize(ConcurrentHashTrieMap<K,V> ct) {
+            long s;
+            if ((s = size) < 0L) {
+                s = 0L;
+                for (Object sub : array)
+                    s += (sub instanceof SNode) ? 1L :
+                        ((INode<K,V>)sub).gcasRead(ct).cachedSize(ct);
+                size = s;
+            }
+            return s;
+        }
+
+        CNode<K,V> updatedAt(int pos, Object nn, Gen ngen) {
+            Object[] a = array.clone();
+            a[pos] = nn;
+            return new CNode<K,V>(bitmap, a, ngen);
+        }
+
+        CNode<K,V> removedAt(int pos, int flag, Gen ngen) {
+            Object[] a = array;
+            Object[] b = new Object[a.length - 1];
+            System.arraycopy(a, 0, b, 0, pos);
+            System.arraycopy(a, pos + 1, b, pos, a.length - pos - 1);
+            return new CNode<K,V>(bitmap ^ flag, b, ngen);
+        }
+
+        CNode<K,V> insertedAt(int pos, int flag, Object nn, Gen ngen) {
+            Object[] a = array;
+            Object[] b = new Object[a.length + 1];
+            System.arraycopy(a, 0, b, 0, pos);
+            b[pos] = nn;
+            System.arraycopy(a, pos, b, pos + 1, a.length - pos);
+            return new CNode<K,V>(bitmap | flag, b, ngen);
+        }
+
+        /**
+         * Returns a copy in which all INodes are copied to ngen.
+         */
+        @SuppressWarnings("unchecked")
+        CNode<K,V> renewed(Gen ngen, ConcurrentHashTrieMap<K,V> ct) {
+            Object[] a = array.clone();
+            for (int i = 0; i < a.length; ++i) {
+                Object sub = a[i];
+                if (sub instanceof INode)
+                    a[i] = ((INode<K,V>)sub).copyToGen(ngen, ct);
+            }
+            return new CNode<K,V>(bitmap, a, ngen);
+        }
+
+        /**
+         * Returns a TNode if this (non-root) node holds a single leaf.
+         */
+        @SuppressWarnings("unchecked")
+        MainNode<K,V> toContracted(int lev) {
+            Object sub;
+            if (array.length == 1 && lev > 0 &&
+                (sub = array[0]) instanceof SNode)
+                return ((SNode<K,V>)sub).copyTombed();
+            return this;
+        }
+
+        /**
+         * Returns a copy in which entombed INodes are replaced by
+         * their leaves, contracted if possible.
+         */
+        @SuppressWarnings("unchecked")
+        MainNode<K,V> toCompressed(ConcurrentHashTrieMap<K,V> ct, int lev,
+                                   Gen ngen) {
+            Object[] a = array.clone();
+            for (int i = 0; i < a.length; ++i) {
+                Object sub = a[i];
+                if (sub instanceof INode) {
+                    MainNode<K,V> m = ((INode<K,V>)sub).gcasRead(ct);
+                    if (m instanceof TNode)
+                        a[i] = ((TNode<K,V>)m).copyUntombed();
+                }
+            }
+            return new CNode<K,V>(bitmap, a, ngen).toContracted(lev);
+        }
+
+        /**
+         * Returns a node at level lev holding both x and y, which
+         * must have different keys.
+         */
+        static <K,V> MainNode<K,V> dual(SNode<K,V> x, SNode<K,V> y,
+                                        int lev, Gen gen) {
+            if (lev >= LIST_LEVEL)
+                return new LNode<K,V>(x.key, x.val, x.hash,
+                                      new LNode<K,V>(y.key, y.val,
+                                                     y.hash, null));
+            int xi = (x.hash >>> lev) & 0x1f, yi = (y.hash >>> lev) & 0x1f;
+            int bmp = (1 << xi) | (1 << yi);
+            Object[] a;
+            if (xi == yi)
+                a = new Object[] { new INode<K,V>(dual(x, y, lev + W, gen),
+                                                  gen) };
+            else
+                a = (xi < yi) ? new Object[] { x, y } : new Object[] { y, x };
+            return new CNode<K,V>(bmp, a, gen);
+        }
+    }
+
+    /**
+     * Placeholder installed as the prev of a main node whose GCAS
+     * failed; its own prev is the node to restore.
+     */
+    static final class FailedNode<K,V> extends MainNode<K,V> {
+        FailedNode(MainNode<K,V> p) { prev = p; }
+        long cachedSize(ConcurrentHashTrieMap<K,V> ct) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Descriptor for an RDCSS of the root.
+     */
+    static final class RootDescriptor<K,V> {
+        final INode<K,V> ov;
+        final MainNode<K,V> expected;
+        final INode<K,V> nv;
+        volatile boolean committed;
+        RootDescriptor(INode<K,V> ov, MainNode<K,V> expected, INode<K,V> nv) {
+            this.ov = ov;
+            this.expected = expected;
+            this.nv = nv;
+        }
+    }
+
+    /* ---------------- Static utilities -------------- */
+
+    /**
+     * Spreads higher bits of hash into the low bits consumed by the
+     * top levels of the trie.
+     */
+    static final int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns a new root in a new generation.
+     */
+    static <K,V> INode<K,V> newRoot() {
+        Gen g = new Gen();
+        return new INode<K,V>(new CNode<K,V>(0, new Object[0], g), g);
+    }
+
+    /* ---------------- Fields -------------- */
+
+    /**
+     * The root INode, or an RootDescriptor while a snapshot or clear
+     * is replacing it.
+     */
+    private transient volatile Object root;
+
+    /**
+     * True for read-only snapshots.
+     */
+    final boolean readOnly;
+
+    // views
+    private transient EntrySetView<K,V> entrySet;
+
+    /* ---------------- Root access -------------- */
+
+    /**
+     * Returns the root, first completing (or, if abort is true,
+     * rolling back) any RDCSS in progress.
+     */
+    @SuppressWarnings("unchecked")
+    final INode<K,V> readRoot(boolean abort) {
+        Object r = root;
+        return (r instanceof INode) ? (INode<K,V>)r : completeRoot(abort);
+    }
+
+    @SuppressWarnings("unchecked")
+    private INode<K,V> completeRoot(boolean abort) {
+        for (;;) {
+            Object r = root;
+            if (r instanceof INode)
+                return (INode<K,V>)r;
+            RootDescriptor<K,V> d = (RootDescriptor<K,V>)r;
+            if (!abort && d.ov.gcasRead(this) == d.expected) {
+                if (U.compareAndSwapObject(this, ROOT, d, d.nv)) {
+                    d.committed = true;
+                    return d.nv;
+                }
+            }
+            else if (U.compareAndSwapObject(this, ROOT, d, d.ov))
+                return d.ov;
+        }
+    }
+
+    /**
+     * Replaces root ov by nv if the main node of ov is still
+     * expected.
+     */
+    private boolean rdcssRoot(INode<K,V> ov, MainNode<K,V> expected,
+                              INode<K,V> nv) {
+        RootDescriptor<K,V> d = new RootDescriptor<K,V>(ov, expected, nv);
+        if (U.compareAndSwapObject(this, ROOT, ov, d)) {
+            completeRoot(false);
+            return d.committed;
+        }
+        return false;
+    }
+
+    /* ---------------- Public operations -------------- */
+
+    /**
+     * Creates a new, empty map.
+     */
+    public ConcurrentHashTrieMap() {
+        this.readOnly = false;
+        this.root = newRoot();
+    }
+
+    /**
+     * Creates a new map with the same mappings as the given map.
+     *
+     * @param m the map
+     * @throws NullPointerException if the specified map or any of its
+     *         keys or values are null
+     */
+    public ConcurrentHashTrieMap(Map<? extends K, ? extends V> m) {
+        this();
+        putAll(m);
+    }
+
+    /**
+     * Creates a snapshot with the given root.
+     */
+    private ConcurrentHashTrieMap(INode<K,V> root, boolean readOnly) {
+        this.readOnly = readOnly;
+        this.root = root;
+    }
+
+    /**
+     * Returns a new map initially holding the same mappings as this
+     * map at the point of the call.  Later updates of either map do
+     * not affect the other.  This method takes constant time;
+     * afterwards, the first updates of each part of either map copy
+     * the nodes they traverse.
+     *
+     * @return the snapshot
+     */
+    public ConcurrentHashTrieMap<K,V> snapshot() {
+        if (readOnly)
+            return new ConcurrentHashTrieMap<K,V>
+                (readRoot(false).copyToGen(new Gen(), this), false);
+        for (;;) {
+            INode<K,V> r = readRoot(false);
+            MainNode<K,V> m = r.gcasRead(this);
+            if (rdcssRoot(r, m, r.copyToGen(new Gen(), this)))
+                return new ConcurrentHashTrieMap<K,V>
+                    (r.copyToGen(new Gen(), this), false);
+        }
+    }
+
+    /**
+     * Returns an unmodifiable map holding the same mappings as this
+     * map at the point of the call.  This method takes constant
+     * time, and is cheaper than {@link #snapshot} because only this
+     * map copies nodes on later updates.  Methods of the returned map
+     * that would modify it throw {@link UnsupportedOperationException}.
+     *
+     * @return the snapshot
+     */
+    public Map<K,V> readOnlySnapshot() {
+        if (readOnly)
+            return this;
+        for (;;) {
+            INode<K,V> r = readRoot(false);
+            MainNode<K,V> m = r.gcasRead(this);
+            if (rdcssRoot(r, m, r.copyToGen(new Gen(), this)))
+                return new ConcurrentHashTrieMap<K,V>(r, true);
+        }
+    }
+
+    /**
+     * Returns this map if read-only, else a read-only snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    final ConcurrentHashTrieMap<K,V> frozen() {
+        return readOnly ? this : (ConcurrentHashTrieMap<K,V>)readOnlySnapshot();
+    }
+
+    // Original (since JDK1.2) Map methods
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The size is computed on a read-only snapshot, so is exact
+     * as of some point during the call.
+     */
+    public int size() {
+        long n = mappingCount();
+        return (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int)n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty() {
+        return !new EntryIterator<K,V>(this, this).hasNext();
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key.
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int h = spread(key.hashCode());
+        for (;;) {
+            INode<K,V> r = readRoot(false);
+            Object v = r.lookup(key, h, 0, null, r.gen, this);
+            if (v != RESTART)
+                return (V)v;
+        }
+    }
+
+    /**
+     * Tests if the specified object is a key in this table.
+     *
+     * @param  key possible key
+     * @return {@code true} if and only if the specified object
+     *         is a key in this table, as determined by the
+     *         {@code equals} method; {@code false} otherwise
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns {@code true} if this map maps one or more keys to the
+     * specified value. Note: This method requires a full traversal
+     * of a snapshot of the map, and is much slower than method {@code
+     * containsKey}.
+     *
+     * @param value value whose presence in this map is to be tested
+     * @return {@code true} if this map maps one or more keys to the
+     *         specified value
+     * @throws NullPointerException if the specified value is null
+     */
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        ConcurrentHashTrieMap<K,V> s = frozen();
+        for (EntryIterator<K,V> it = new EntryIterator<K,V>(s, s);
+             it.hasNext(); ) {
+            if (value.equals(it.next().getValue()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Maps the specified key to the specified value in this table.
+     * Neither the key nor the value can be null.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key or value is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V put(K key, V value) {
+        return putVal(key, value, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, KEY_ABSENT);
+    }
+
+    /**
+     * Removes the key (and its corresponding value) from this map.
+     * This method does nothing if the key is not in the map.
+     *
+     * @param  key the key that needs to be removed
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V remove(Object key) {
+        return removeVal(key, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if the specified key is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        return value != null && removeVal(key, value) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if any of the arguments are null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (oldValue == null)
+            throw new NullPointerException();
+        return putVal(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V replace(K key, V value) {
+        return putVal(key, value, KEY_PRESENT);
+    }
+
+    /**
+     * Removes all of the mappings from this map, atomically.
+     *
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public void clear() {
+        if (readOnly)
+            throw new UnsupportedOperationException();
+        for (;;) {
+            INode<K,V> r = readRoot(false);
+            if (rdcssRoot(r, r.gcasRead(this), ConcurrentHashTrieMap.<K,V>newRoot()))
+                break;
+        }
+    }
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this map.
+     * The set is backed by the map, so changes to the map are
+     * reflected in the set, and vice-versa.  The set supports element
+     * removal, which removes the corresponding mapping from the map,
+     * via the {@code Iterator.remove}, {@code Set.remove}, {@code
+     * removeAll}, {@code retainAll}, and {@code clear} operations.
+     *
+     * <p>Each iterator of the view traverses a read-only snapshot of
+     * the map taken when the iterator is created, and returns
+     * snapshot entries that do not support {@code setValue}.
+     *
+     * @return the set view
+     */
+    public Set<Map.Entry<K,V>> entrySet() {
+        EntrySetView<K,V> es;
+        return (es = entrySet) != null ? es :
+            (entrySet = new EntrySetView<K,V>(this));
+    }
+
+    // Overrides of JDK8+ Map extension method defaults
+
+    /**
+     * Returns the value to which the specified key is mapped, or the
+     * given default value if this map contains no mapping for the
+     * key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @param defaultValue the value to return if this map contains
+     * no mapping for the given key
+     * @return the mapping for the key, if present; else the default value
+     * @throws NullPointerException if the specified key is null
+     */
+    public V getOrDefault(Object key, V defaultValue) {
+        V v;
+        return (v = get(key)) == null ? defaultValue : v;
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        ConcurrentHashTrieMap<K,V> s = frozen();
+        for (EntryIterator<K,V> it = new EntryIterator<K,V>(s, s);
+             it.hasNext(); ) {
+            Map.Entry<K,V> e = it.next();
+            action.accept(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * attempts to compute its value using the given mapping function
+     * and enters it into this map unless {@code null}.  The function
+     * is <em>NOT</em> guaranteed to be applied once atomically.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with
+     *         the specified key, or null if the computed value is null
+     * @throws NullPointerException if the specified key
+     *         or mappingFunction is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V computeIfAbsent(K key,
+                             Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        V v, p, r;
+        if ((v = get(key)) == null &&
+            (r = mappingFunction.apply(key)) != null)
+            v = (p = putVal(key, r, KEY_ABSENT)) == null ? r : p;
+        return v;
+    }
+
+    /**
+     * If the value for the specified key is present, attempts to
+     * compute a new mapping given the key and its current mapped
+     * value. The function is <em>NOT</em> guaranteed to be applied
+     * once atomically.
+     *
+     * @param key key with which a value may be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key
+     *         or remappingFunction is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V computeIfPresent(K key,
+                              BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        V v;
+        while ((v = get(key)) != null) {
+            V r = remappingFunction.apply(key, v);
+            if (r != null) {
+                if (putVal(key, r, v) != null)
+                    return r;
+            }
+            else if (removeVal(key, v) != null)
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Attempts to compute a mapping for the specified key and its
+     * current mapped value (or {@code null} if there is no current
+     * mapping). The function is <em>NOT</em> guaranteed to be applied
+     * once atomically.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key
+     *         or remappingFunction is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V compute(K key,
+                     BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        for (;;) {
+            V v = get(key), r = remappingFunction.apply(key, v);
+            if (v == null) {
+                if (r == null || putVal(key, r, KEY_ABSENT) == null)
+                    return r;
+            }
+            else if (r != null) {
+                if (putVal(key, r, v) != null)
+                    return r;
+            }
+            else if (removeVal(key, v) != null)
+                return null;
+        }
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value.  Otherwise, replaces the
+     * value with the results of the given remapping function, or
+     * removes if {@code null}. The function is <em>NOT</em>
+     * guaranteed to be applied once atomically.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value the value to use if absent
+     * @param remappingFunction the function to recompute a value if present
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or value
+     *         or remappingFunction is null
+     * @throws UnsupportedOperationException if this map is a
+     *         read-only snapshot
+     */
+    public V merge(K key, V value,
+                   BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null)
+            throw new NullPointerException();
+        for (;;) {
+            V v = get(key);
+            if (v == null) {
+                if (putVal(key, value, KEY_ABSENT) == null)
+                    return value;
+            }
+            else {
+                V r = remappingFunction.apply(v, value);
+                if (r != null) {
+                    if (putVal(key, r, v) != null)
+                        return r;
+                }
+                else if (removeVal(key, v) != null)
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of mappings. This method should be used
+     * instead of {@link #size} because a map may contain more
+     * mappings than can be represented as an int.  As with {@code
+     * size}, the count is exact as of some point during the call.
+     *
+     * @return the number of mappings
+     */
+    public long mappingCount() {
+        ConcurrentHashTrieMap<K,V> s = frozen();
+        return s.readRoot(false).gcasRead(s).cachedSize(s);
+    }
+
+    /* ---------------- Implementation of updates -------------- */
+
+    /**
+     * Implements put, putIfAbsent and both forms of replace.
+     */
+    @SuppressWarnings("unchecked")
+    final V putVal(K key, V value, Object cond) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        if (readOnly)
+            throw new UnsupportedOperationException();
+        int h = spread(key.hashCode());
+        for (;;) {
+            INode<K,V> r = readRoot(false);
+            Object p = r.insert(key, value, h, cond, 0, null, r.gen, this);
+            if (p != RESTART)
+                return (V)p;
+        }
+    }
+
+    /**
+     * Implements both forms of remove.
+     */
+    @SuppressWarnings("unchecked")
+    final V removeVal(Object key, Object cv) {
+        if (readOnly)
+            throw new UnsupportedOperationException();
+        int h = spread(key.hashCode());
+        for (;;) {
+            INode<K,V> r = readRoot(false);
+            Object p = r.remove(key, cv, h, 0, null, r.gen, this);
+            if (p != RESTART)
+                return (V)p;
+        }
+    }
+
+    /* ---------------- Views -------------- */
+
+    /**
+     * Iterator over the trie of ct, removing through map.
+     */
+    static final class EntryIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+        final ConcurrentHashTrieMap<K,V> map;
+        final ConcurrentHashTrieMap<K,V> ct;
+        final Object[][] stack = new Object[LIST_LEVEL / W][];
+        final int[] stackPos = new int[LIST_LEVEL / W];
+        int depth;              // index of top of stack, or -1 if done
+        LNode<K,V> list;        // remaining pairs of current LNode
+        K nextKey;              // null if none
+        V nextValue;
+        K lastReturned;
+
+        EntryIterator(ConcurrentHashTrieMap<K,V> map,
+                      ConcurrentHashTrieMap<K,V> ct) {
+            this.map = map;
+            this.ct = ct;
+            this.depth = -1;
+            INode<K,V> r = ct.readRoot(false);
+            descend(r);
+            if (nextKey == null)
+                advance();
+        }
+
+        /**
+         * Pushes the branches of the CNode of in, or sets next to the
+         * first pair of its TNode or LNode.
+         */
+        private void descend(INode<K,V> in) {
+            MainNode<K,V> m = in.gcasRead(ct);
+            if (m instanceof CNode) {
+                stack[++depth] = ((CNode<K,V>)m).array;
+                stackPos[depth] = -1;
+            }
+            else if (m instanceof TNode) {
+                TNode<K,V> tn = (TNode<K,V>)m;
+                nextKey = tn.key;
+                nextValue = tn.val;
+            }
+            else if (m instanceof LNode) {
+                LNode<K,V> ln = (LNode<K,V>)m;
+                nextKey = ln.key;
+                nextValue = ln.val;
+                list = ln.next;
+            }
+        }
+
+        /**
+         * Sets nextKey and nextValue to the next pair, if any.
+         */
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            LNode<K,V> ln;
+            nextKey = null;
+            if ((ln = list) != null) {
+                list = ln.next;
+                nextKey = ln.key;
+                nextValue = ln.val;
+                return;
+            }
+            while (depth >= 0) {
+                Object[] a = stack[depth];
+                int i = ++stackPos[depth];
+                if (i >= a.length)
+                    --depth;
+                else if (a[i] instanceof SNode) {
+                    SNode<K,V> sn = (SNode<K,V>)a[i];
+                    nextKey = sn.key;
+                    nextValue = sn.val;
+                    return;
+                }
+                else {
+                    descend((INode<K,V>)a[i]);
+                    if (nextKey != null)
+                        return;
+                }
+            }
+        }
+
+        public boolean hasNext() { return nextKey != null; }
+
+        public Map.Entry<K,V> next() {
+            K k;
+            if ((k = nextKey) == null)
+                throw new NoSuchElementException();
+            V v = nextValue;
+            lastReturned = k;
+            advance();
+            return new AbstractMap.SimpleImmutableEntry<K,V>(k, v);
+        }
+
+        public void remove() {
+            K k;
+            if ((k = lastReturned) == null)
+                throw new IllegalStateException();
+            lastReturned = null;
+            map.remove(k);
+        }
+    }
+
+    static final class EntrySetView<K,V> extends AbstractSet<Map.Entry<K,V>> {
+        final ConcurrentHashTrieMap<K,V> map;
+        EntrySetView(ConcurrentHashTrieMap<K,V> map) { this.map = map; }
+
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator<K,V>(map, map.frozen());
+        }
+        public int size() { return map.size(); }
+        public boolean isEmpty() { return map.isEmpty(); }
+        public void clear() { map.clear(); }
+
+        public boolean contains(Object o) {
+            Object k, v, r; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (r = map.get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    map.remove(k, v));
+        }
+    }
+
+    /* ---------------- Serialization -------------- */
+
+    /**
+     * Saves a snapshot of this map to a stream (that is, serializes
+     * it).
+     *
+     * @param s the stream
+     * @throws java.io.IOException if an I/O error occurs
+     * @serialData the key (Object) and value (Object)
+     * for each key-value mapping, followed by a null pair.
+     * The key-value mappings are emitted in no particular order.
+     */
+    private void writeObject(java.io.ObjectOutputStream s)
+        throws java.io.IOException {
+        s.defaultWriteObject();
+        ConcurrentHashTrieMap<K,V> f = frozen();
+        for (EntryIterator<K,V> it = new EntryIterator<K,V>(f, f);
+             it.hasNext(); ) {
+            Map.Entry<K,V> e = it.next();
+            s.writeObject(e.getKey());
+            s.writeObject(e.getValue());
+        }
+        s.writeObject(null);
+        s.writeObject(null);
+    }
+
+    /**
+     * Reconstitutes this map from a stream (that is, deserializes it).
+     * @param s the stream
+     * @throws ClassNotFoundException if the class of a serialized object
+     *         could not be found
+     * @throws java.io.IOException if an I/O error occurs
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s)
+        throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        // Build in a writable map, so read-only snapshots work too
+        ConcurrentHashTrieMap<K,V> m = new ConcurrentHashTrieMap<K,V>();
+        for (;;) {
+            K k = (K) s.readObject();
+            V v = (V) s.readObject();
+            if (k != null && v != null)
+                m.putVal(k, v, null);
+            else
+                break;
+        }
+        root = m.readRoot(false);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long ROOT;
+    private static final long MAIN;
+    private static final long PREV;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ConcurrentHashTrieMap.class;
+            ROOT = U.objectFieldOffset
+                (k.getDeclaredField("root"));
+            Class<?> ik = INode.class;
+            MAIN = U.objectFieldOffset
+                (ik.getDeclaredField("main"));
+            Class<?> mk = MainNode.class;
+            PREV = U.objectFieldOffset
+                (mk.getDeclaredField("prev"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,1536 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import concurrent.ConcurrentHashMap.CounterCell;
+import java.util.function.BiFunction;
+import java.util.function.LongFunction;
+
+/**
+ * A hash table mapping primitive {@code long} keys to values,
+ * supporting full concurrency of retrievals and high expected
+ * concurrency for updates.  This class provides the same concurrency
+ * properties and, apart from the use of primitive keys, the same
+ * methods as {@link ConcurrentHashMap}, but neither boxes keys nor
+ * allocates an object per mapping: keys are held in primitive arrays,
+ * and values in reference arrays alongside them.
+ *
+ * <p>Retrieval operations (including {@code get}) do not block, so
+ * may overlap with update operations (including {@code put} and
+ * {@code remove}). Retrievals reflect the results of the most
+ * recently <em>completed</em> update operations holding upon their
+ * onset. (More formally, an update operation for a given key bears a
+ * <em>happens-before</em> relation with any (non-null) retrieval for
+ * that key reporting the updated value.)  Bulk traversals via {@link
+ * #forEach} reflect the state of the table at some point at or since
+ * the start of the traversal.  As with {@code ConcurrentHashMap},
+ * the results of aggregate status methods including {@code size}
+ * and {@code isEmpty} are typically useful only when the map is not
+ * undergoing concurrent updates in other threads.
+ *
+ * <p>Like {@code ConcurrentHashMap}, this class does <em>not</em>
+ * allow {@code null} to be used as a value, and methods return
+ * {@code null} to indicate the absence of a mapping.
+ *
+ * <p>The table is dynamically expanded as elements are added.  When
+ * possible, it is a good idea to provide a size estimate as an
+ * optional {@code initialCapacity} constructor argument.
+ *
+ * @param <V> the type of mapped values
+ */
+public class ConcurrentLongObjectHashMap<V> implements Serializable {
+    private static final long serialVersionUID = 5063245361258451206L;
+
+    /*
+     * Overview:
+     *
+     * This class is identical in design to ConcurrentLongLongHashMap
+     * (see its internal documentation), except that values are held
+     * in an Object array, and null takes the place of the no-entry
+     * value.  Additionally, removal clears the value of the REMOVED
+     * slot so as not to retain it, so a reader that observes a FULL
+     * state may then read a null value, which it treats as absence.
+     */
+
+    /* ---------------- Constants -------------- */
+
+    /**
+     * The largest possible table capacity (number of bins).  Must be
+     * a power of two, and at most 1<<30 to stay within Java array
+     * allocation and indexing bounds.
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The default initial table capacity.  Must be a power of 2
+     * (i.e., at least 1) and at most MAXIMUM_CAPACITY.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The average number of mappings per bin at which the table is
+     * doubled.  See ConcurrentLongLongHashMap.
+     */
+    private static final int BIN_LOAD = 24;
+
+    /**
+     * The smallest capacity (number of slots) of a Bin. Must be a
+     * power of two, and at least 4 so that a Bin below its
+     * three-quarters threshold always has a free slot.
+     */
+    private static final int MIN_BIN_CAPACITY = 8;
+
+    /**
+     * The largest capacity of a Bin.  Reached only when very many
+     * keys share the same low hash bits.
+     */
+    private static final int MAXIMUM_BIN_CAPACITY = 1 << 30;
+
+    /**
+     * Minimum number of rebinnings per transfer step.  See
+     * ConcurrentHashMap.
+     */
+    private static final int MIN_TRANSFER_STRIDE = 16;
+
+    /**
+     * The number of bits used for generation stamp in sizeCtl.
+     * Must be at least 6 for 32bit arrays.
+     */
+    private static final int RESIZE_STAMP_BITS = 16;
+
+    /**
+     * The maximum number of threads that can help resize.
+     * Must fit in 32 - RESIZE_STAMP_BITS bits.
+     */
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+
+    /**
+     * The bit shift for recording size stamp in sizeCtl.
+     */
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+
+    static final int HASH_BITS = 0x7fffffff; // usable bits of bin hash
+
+    /*
+     * Slot states.  FREE must be zero, the default array value.
+     */
+    static final byte FREE    = 0;
+    static final byte FULL    = 1;
+    static final byte REMOVED = 2;
+
+    /*
+     * Modes for computeVal.
+     */
+    static final int COMPUTE_IF_ABSENT  = 0;
+    static final int COMPUTE_IF_PRESENT = 1;
+    static final int COMPUTE            = 2;
+    static final int MERGE              = 3;
+
+    /* ---------------- Bins -------------- */
+
+    /**
+     * An open-addressed table of mappings, serving as one bin of the
+     * main table.  Bins are mutated only while locked, or before
+     * being published in a table.
+     */
+    static class Bin {
+        final long[] keys;
+        final Object[] vals;
+        final byte[] states;
+        int used;   // number of FULL or REMOVED slots
+        int count;  // number of FULL slots
+
+        Bin(int capacity) {
+            this.keys = new long[capacity];
+            this.vals = new Object[capacity];
+            this.states = new byte[capacity];
+        }
+
+        Bin() { // for ForwardingBins
+            this.keys = null;
+            this.vals = null;
+            this.states = null;
+        }
+
+        /**
+         * Returns the index of the FULL slot holding k, or -1 if
+         * none.  Does not require locking.
+         *
+         * @param k the key
+         * @param p the probe hash of k
+         */
+        final int find(long k, int p) {
+            long[] ks = keys; byte[] st = states;
+            int m = st.length - 1;
+            for (int j = p & m;; j = (j + 1) & m) {
+                byte s;
+                if ((s = stateAt(st, j)) == FREE)
+                    return -1;
+                if (ks[j] == k)
+                    return (s == FULL) ? j : -1;
+            }
+        }
+
+        /**
+         * Returns the index of the slot holding k (FULL or REMOVED),
+         * else the complement of the index of the free slot ending
+         * its probe sequence.  Called only while locked.
+         */
+        final int slotFor(long k, int p) {
+            long[] ks = keys; byte[] st = states;
+            int m = st.length - 1;
+            for (int j = p & m;; j = (j + 1) & m) {
+                if (st[j] == FREE)
+                    return ~j;
+                if (ks[j] == k)
+                    return j;
+            }
+        }
+
+        /**
+         * Adds a mapping for a key known to be absent from this
+         * unpublished Bin.
+         */
+        final void add(long k, Object v, int p) {
+            long[] ks = keys; byte[] st = states;
+            int m = st.length - 1, j = p & m;
+            while (st[j] != FREE)
+                j = (j + 1) & m;
+            ks[j] = k;
+            vals[j] = v;
+            st[j] = FULL;
+            ++used;
+            ++count;
+        }
+
+        /**
+         * Returns an unpublished copy of this Bin without REMOVED
+         * slots, with room for at least extra more mappings.
+         */
+        final Bin copy(int extra) {
+            Bin r = new Bin(binCapacityFor(count + extra));
+            long[] ks = keys; Object[] vs = vals; byte[] st = states;
+            for (int j = 0; j < st.length; ++j) {
+                long k;
+                if (st[j] == FULL)
+                    r.add(k = ks[j], vs[j], (int)(mix(k) >>> 32));
+            }
+            return r;
+        }
+    }
+
+    /**
+     * A bin placed in the old table during transfer operations.
+     */
+    static final class ForwardingBin extends Bin {
+        final Bin[] nextTable;
+        ForwardingBin(Bin[] tab) {
+            super();
+            this.nextTable = tab;
+        }
+    }
+
+    /* ---------------- Static utilities -------------- */
+
+    /**
+     * Returns a 64-bit mix of the given key (the finalizer of
+     * MurmurHash3).  The low bits of the result (masked by
+     * HASH_BITS) select the bin, and the high 32 bits serve as the
+     * probe hash within the bin.
+     */
+    static final long mix(long k) {
+        k = (k ^ (k >>> 33)) * 0xff51afd7ed558ccdL;
+        k = (k ^ (k >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return k ^ (k >>> 33);
+    }
+
+    /**
+     * Returns a power of two table size for the given desired capacity.
+     * See Hackers Delight, sec 3.2
+     */
+    private static final int tableSizeFor(int c) {
+        int n = c - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    /**
+     * Returns the Bin capacity to use for holding n mappings, leaving
+     * room for about n/2 more before reaching the threshold.
+     *
+     * @throws IllegalStateException if n mappings cannot be held
+     */
+    static final int binCapacityFor(int n) {
+        if (n >= (MAXIMUM_BIN_CAPACITY >>> 1) + (MAXIMUM_BIN_CAPACITY >>> 2))
+            throw new IllegalStateException("Bin capacity exceeded");
+        int c = tableSizeFor(n + (n >>> 1) + 1);
+        return (c < MIN_BIN_CAPACITY) ? MIN_BIN_CAPACITY : c;
+    }
+
+    /**
+     * Returns the element count at which to resize a table of n bins.
+     */
+    static final int loadThreshold(int n) {
+        long t = (long)n * BIN_LOAD;
+        return (t >= Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int)t;
+    }
+
+    /* ---------------- Table element access -------------- */
+
+    /*
+     * Volatile access methods for table elements and Bin slots.  As
+     * in ConcurrentHashMap, all uses of the array arguments must be
+     * null checked and bounded by callers.  Values are written only
+     * within locked regions, before or while their slots are FULL
+     * (or, when clearing, after they become REMOVED), so need only
+     * release ordering.
+     */
+
+    static final Bin tabAt(Bin[] tab, int i) {
+        return (Bin)U.getObjectVolatile(tab, ((long)i << ASHIFT) + ABASE);
+    }
+
+    static final boolean casTabAt(Bin[] tab, int i, Bin c, Bin v) {
+        return U.compareAndSwapObject(tab, ((long)i << ASHIFT) + ABASE, c, v);
+    }
+
+    static final void setTabAt(Bin[] tab, int i, Bin v) {
+        U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
+    }
+
+    static final Object valAt(Object[] vals, int j) {
+        return U.getObjectVolatile(vals, ((long)j << OSHIFT) + OBASE);
+    }
+
+    static final void setValAt(Object[] vals, int j, Object v) {
+        U.putOrderedObject(vals, ((long)j << OSHIFT) + OBASE, v);
+    }
+
+    static final byte stateAt(byte[] states, int j) {
+        return U.getByteVolatile(states, (long)j + BBASE);
+    }
+
+    static final void setStateAt(byte[] states, int j, byte s) {
+        U.putByteVolatile(states, (long)j + BBASE, s);
+    }
+
+    /* ---------------- Fields -------------- */
+
+    /**
+     * The array of bins. Lazily initialized upon first insertion.
+     * Size is always a power of two.
+     */
+    transient volatile Bin[] table;
+
+    /**
+     * The next table to use; non-null only while resizing.
+     */
+    private transient volatile Bin[] nextTable;
+
+    /**
+     * Base counter value, used mainly when there is no contention,
+     * but also as a fallback during table initialization
+     * races. Updated via CAS.
+     */
+    private transient volatile long baseCount;
+
+    /**
+     * Table initialization and resizing control.  When negative, the
+     * table is being initialized or resized: -1 for initialization,
+     * else -(1 + the number of active resizing threads).  Otherwise,
+     * when table is null, holds the initial table size to use upon
+     * creation, or 0 for default. After initialization, holds the
+     * next element count value upon which to resize the table.
+     */
+    private transient volatile int sizeCtl;
+
+    /**
+     * The next table index (plus one) to split while resizing.
+     */
+    private transient volatile int transferIndex;
+
+    /**
+     * Spinlock (locked via CAS) used when resizing and/or creating CounterCells.
+     */
+    private transient volatile int cellsBusy;
+
+    /**
+     * Table of counter cells. When non-null, size is a power of 2.
+     */
+    private transient volatile CounterCell[] counterCells;
+
+    /* ---------------- Public operations -------------- */
+
+    /**
+     * Creates a new, empty map with the default initial table size.
+     */
+    public ConcurrentLongObjectHashMap() {
+    }
+
+    /**
+     * Creates a new, empty map with an initial table size
+     * accommodating the specified number of elements without the need
+     * to dynamically resize.
+     *
+     * @param initialCapacity The implementation performs internal
+     * sizing to accommodate this many elements.
+     * @throws IllegalArgumentException if the initial capacity of
+     * elements is negative
+     */
+    public ConcurrentLongObjectHashMap(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        this.sizeCtl = tableSizeFor(initialCapacity / BIN_LOAD + 1);
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map.  If the
+     * map contains more than {@code Integer.MAX_VALUE} elements,
+     * returns {@code Integer.MAX_VALUE}.
+     *
+     * @return the number of key-value mappings in this map
+     */
+    public int size() {
+        long n = sumCount();
+        return ((n < 0L) ? 0 :
+                (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                (int)n);
+    }
+
+    /**
+     * Returns {@code true} if this map contains no key-value mappings.
+     *
+     * @return {@code true} if this map contains no key-value mappings
+     */
+    public boolean isEmpty() {
+        return sumCount() <= 0L; // ignore transient negative values
+    }
+
+    /**
+     * Returns the number of mappings. This method should be used
+     * instead of {@link #size} because a map may contain more
+     * mappings than can be represented as an int. The value returned
+     * is an estimate; the actual count may differ if there are
+     * concurrent insertions or removals.
+     *
+     * @return the number of mappings
+     */
+    public long mappingCount() {
+        long n = sumCount();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key.
+     *
+     * @param key the key
+     * @return the value, or {@code null} if none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long z = mix(key);
+        int h = (int)z & HASH_BITS, p = (int)(z >>> 32);
+        Bin[] tab = table; Bin e; int n, j;
+        while (tab != null && (n = tab.length) > 0 &&
+               (e = tabAt(tab, (n - 1) & h)) != null) {
+            if (e instanceof ForwardingBin)
+                tab = ((ForwardingBin)e).nextTable;
+            else
+                return ((j = e.find(key, p)) >= 0) ?
+                    (V)valAt(e.vals, j) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or the
+     * given default value if this map contains no mapping for the
+     * key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @param defaultValue the value to return if this map contains
+     * no mapping for the given key
+     * @return the mapping for the key, if present; else the default value
+     */
+    public V getOrDefault(long key, V defaultValue) {
+        V v;
+        return (v = get(key)) == null ? defaultValue : v;
+    }
+
+    /**
+     * Tests if the specified key is a key in this table.
+     *
+     * @param key possible key
+     * @return {@code true} if and only if the specified key has a
+     * mapping in this table
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the specified key to the specified value in this table.
+     * The value can not be null.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified value is null
+     */
+    public V put(long key, V value) {
+        return putVal(key, value, false);
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified value is null
+     */
+    public V putIfAbsent(long key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /** Implementation for put and putIfAbsent */
+    @SuppressWarnings("unchecked")
+    final V putVal(long key, V value, boolean onlyIfAbsent) {
+        if (value == null) throw new NullPointerException();
+        long z = mix(key);
+        int h = (int)z & HASH_BITS, p = (int)(z >>> 32);
+        V oldVal = null;
+        int binCount = 0;
+        for (Bin[] tab = table;;) {
+            Bin f; int n, i;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                Bin b = new Bin(MIN_BIN_CAPACITY);
+                b.add(key, value, p);
+                if (casTabAt(tab, i, null, b)) {
+                    binCount = 1;
+                    break;                   // no lock when adding to empty bin
+                }
+            }
+            else if (f instanceof ForwardingBin)
+                tab = helpTransfer(tab, f);
+            else {
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        int j = f.slotFor(key, p);
+                        if (j >= 0 && f.states[j] == FULL) {
+                            oldVal = (V)f.vals[j];
+                            if (!onlyIfAbsent)
+                                setValAt(f.vals, j, value);
+                        }
+                        else
+                            binCount = addToBin(tab, i, f, j, key, value, p);
+                    }
+                }
+                if (validated)
+                    break;
+            }
+        }
+        if (binCount != 0)
+            addCount(1L, binCount);
+        return oldVal;
+    }
+
+    /**
+     * Removes the key (and its corresponding value) from this map.
+     * This method does nothing if the key is not in the map.
+     *
+     * @param  key the key that needs to be removed
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     */
+    public V remove(long key) {
+        return replaceVal(key, null, null);
+    }
+
+    /**
+     * Removes the entry for a key only if currently mapped to a given value.
+     *
+     * @param key key with which the specified value is associated
+     * @param value value expected to be associated with the specified key
+     * @return {@code true} if the value was removed
+     */
+    public boolean remove(long key, Object value) {
+        return value != null && replaceVal(key, null, value) != null;
+    }
+
+    /**
+     * Replaces the entry for a key only if currently mapped to some value.
+     *
+     * @param key key with which the specified value is associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified value is null
+     */
+    public V replace(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        return replaceVal(key, value, null);
+    }
+
+    /**
+     * Replaces the entry for a key only if currently mapped to a given value.
+     *
+     * @param key key with which the specified value is associated
+     * @param oldValue value expected to be associated with the specified key
+     * @param newValue value to be associated with the specified key
+     * @return {@code true} if the value was replaced
+     * @throws NullPointerException if any of the values are null
+     */
+    public boolean replace(long key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null)
+            throw new NullPointerException();
+        return replaceVal(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * Implementation for the four public remove/replace methods:
+     * Replaces value with v, conditional upon match of cv if
+     * non-null.  If resulting value is null, delete.  Returns the
+     * previous value if the update occurred, else null.
+     */
+    @SuppressWarnings("unchecked")
+    final V replaceVal(long key, V value, Object cv) {
+        long z = mix(key);
+        int h = (int)z & HASH_BITS, p = (int)(z >>> 32);
+        V oldVal = null;
+        for (Bin[] tab = table;;) {
+            Bin f; int n, i;
+            if (tab == null || (n = tab.length) == 0 ||
+                (f = tabAt(tab, i = (n - 1) & h)) == null)
+                break;
+            else if (f instanceof ForwardingBin)
+                tab = helpTransfer(tab, f);
+            else {
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        int j = f.slotFor(key, p);
+                        Object ev;
+                        if (j >= 0 && f.states[j] == FULL &&
+                            (cv == null || cv == (ev = f.vals[j]) ||
+                             cv.equals(ev))) {
+                            oldVal = (V)f.vals[j];
+                            if (value != null)
+                                setValAt(f.vals, j, value);
+                            else
+                                removeFromBin(tab, i, f, j);
+                        }
+                    }
+                }
+                if (validated) {
+                    if (oldVal != null && value == null)
+                        addCount(-1L, -1);
+                    break;
+                }
+            }
+        }
+        return oldVal;
+    }
+
+    /**
+     * Represents a function that accepts a {@code long} key and a
+     * value, and produces a result.
+     *
+     * @param <V> the type of the value argument
+     * @param <R> the type of the result
+     */
+    @FunctionalInterface
+    public interface LongObjFunction<V,R> {
+        /**
+         * Applies this function to the given arguments.
+         *
+         * @param key the key
+         * @param value the value
+         * @return the function result
+         */
+        R apply(long key, V value);
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * attempts to compute its value using the given mapping function
+     * and enters it into this map unless {@code null}.  The entire
+     * method invocation is performed atomically, so the function is
+     * applied at most once per key.  Some attempted update operations
+     * on this map by other threads may be blocked while computation
+     * is in progress, so the computation should be short and simple,
+     * and must not attempt to update any other mappings of this map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with
+     *         the specified key, or null if the computed value is null
+     * @throws NullPointerException if the mappingFunction is null
+     * @throws RuntimeException or Error if the mappingFunction does so,
+     *         in which case the mapping is left unestablished
+     */
+    public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+        if (mappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, null, mappingFunction, null, null,
+                          COMPUTE_IF_ABSENT);
+    }
+
+    /**
+     * If the value for the specified key is present, attempts to
+     * compute a new mapping given the key and its current mapped
+     * value.  The entire method invocation is performed atomically.
+     * Some attempted update operations on this map by other threads
+     * may be blocked while computation is in progress, so the
+     * computation should be short and simple, and must not attempt to
+     * update any other mappings of this map.
+     *
+     * @param key key with which a value may be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the remappingFunction is null
+     * @throws RuntimeException or Error if the remappingFunction does so,
+     *         in which case the mapping is unchanged
+     */
+    public V computeIfPresent(long key, LongObjFunction<? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, null, null, remappingFunction, null,
+                          COMPUTE_IF_PRESENT);
+    }
+
+    /**
+     * Attempts to compute a mapping for the specified key and its
+     * current mapped value (or {@code null} if there is no current
+     * mapping). The entire method invocation is performed atomically.
+     * Some attempted update operations on this map by other threads
+     * may be blocked while computation is in progress, so the
+     * computation should be short and simple, and must not attempt to
+     * update any other mappings of this map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the remappingFunction is null
+     * @throws RuntimeException or Error if the remappingFunction does so,
+     *         in which case the mapping is unchanged
+     */
+    public V compute(long key, LongObjFunction<? super V, ? extends V> remappingFunction) {
+        if (remappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, null, null, remappingFunction, null,
+                          COMPUTE);
+    }
+
+    /**
+     * If the specified key is not already associated with a
+     * (non-null) value, associates it with the given value.
+     * Otherwise, replaces the value with the results of the given
+     * remapping function, or removes if {@code null}. The entire
+     * method invocation is performed atomically.  Some attempted
+     * update operations on this map by other threads may be blocked
+     * while computation is in progress, so the computation should be
+     * short and simple, and must not attempt to update any other
+     * mappings of this map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value the value to use if absent
+     * @param remappingFunction the function to recompute a value if present
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the value or remappingFunction is null
+     * @throws RuntimeException or Error if the remappingFunction does so,
+     *         in which case the mapping is unchanged
+     */
+    public V merge(long key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null || remappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, value, null, null, remappingFunction, MERGE);
+    }
+
+    /**
+     * Implementation for the four compute and merge methods.
+     * Computes the new value for key according to mode, then
+     * inserts, replaces or removes the mapping accordingly.
+     */
+    @SuppressWarnings("unchecked")
+    final V computeVal(long key, V value, LongFunction<? extends V> mf,
+                       LongObjFunction<? super V, ? extends V> rf,
+                       BiFunction<? super V, ? super V, ? extends V> bf,
+                       int mode) {
+        long z = mix(key);
+        int h = (int)z & HASH_BITS, p = (int)(z >>> 32);
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        for (Bin[] tab = table;;) {
+            Bin f; int n, i;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                if (mode == COMPUTE_IF_PRESENT)
+                    break;
+                casTabAt(tab, i, null, new Bin(MIN_BIN_CAPACITY));
+            }
+            else if (f instanceof ForwardingBin)
+                tab = helpTransfer(tab, f);
+            else {
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        int j = f.slotFor(key, p);
+                        boolean present = (j >= 0 && f.states[j] == FULL);
+                        V old = present ? (V)f.vals[j] : null;
+                        switch (mode) {
+                        case COMPUTE_IF_ABSENT:
+                            val = present ? old : mf.apply(key);
+                            break;
+                        case COMPUTE_IF_PRESENT:
+                            val = present ? rf.apply(key, old) : null;
+                            break;
+                        case COMPUTE:
+                            val = rf.apply(key, old);
+                            break;
+                        default: // MERGE
+                            val = present ? bf.apply(old, value) : value;
+                            break;
+                        }
+                        if (val != null) {
+                            if (present)
+                                setValAt(f.vals, j, val);
+                            else {
+                                delta = 1;
+                                binCount = addToBin(tab, i, f, j, key, val, p);
+                            }
+                        }
+                        else if (present) {
+                            delta = -1;
+                            removeFromBin(tab, i, f, j);
+                        }
+                        else if (f.count == 0)
+                            setTabAt(tab, i, null); // discard empty bin
+                    }
+                }
+                if (validated)
+                    break;
+            }
+        }
+        if (delta != 0)
+            addCount((long)delta, binCount);
+        return val;
+    }
+
+    /**
+     * Adds a mapping to locked bin f at index i of tab, given the
+     * result j of f.slotFor(key, p): revives the key's REMOVED slot
+     * if present, else fills the free slot if below threshold, else
+     * replaces f with a copy holding the new mapping.
+     *
+     * @return the resulting number of mappings in the bin
+     */
+    static final int addToBin(Bin[] tab, int i, Bin f, int j,
+                              long key, Object value, int p) {
+        if (j >= 0) {
+            setValAt(f.vals, j, value);
+            setStateAt(f.states, j, FULL);
+            return ++f.count;
+        }
+        int cap = f.states.length;
+        if (f.used < cap - (cap >>> 2)) {
+            j = ~j;
+            f.keys[j] = key;
+            setValAt(f.vals, j, value);
+            setStateAt(f.states, j, FULL);
+            ++f.used;
+            return ++f.count;
+        }
+        Bin r = f.copy(1);
+        r.add(key, value, p);
+        setTabAt(tab, i, r);
+        return r.count;
+    }
+
+    /**
+     * Removes the mapping in FULL slot j of locked bin f at index i
+     * of tab, also removing f from the table if it becomes empty.
+     */
+    static final void removeFromBin(Bin[] tab, int i, Bin f, int j) {
+        setStateAt(f.states, j, REMOVED);
+        setValAt(f.vals, j, null);
+        if (--f.count == 0)
+            setTabAt(tab, i, null);
+    }
+
+    /**
+     * Removes all of the mappings from this map.
+     */
+    public void clear() {
+        long delta = 0L; // negative number of deletions
+        int i = 0;
+        Bin[] tab = table;
+        while (tab != null && i < tab.length) {
+            Bin f = tabAt(tab, i);
+            if (f == null)
+                ++i;
+            else if (f instanceof ForwardingBin) {
+                tab = helpTransfer(tab, f);
+                i = 0; // restart
+            }
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        delta -= f.count;
+                        setTabAt(tab, i++, null);
+                    }
+                }
+            }
+        }
+        if (delta != 0L)
+            addCount(delta, -1);
+    }
+
+    /**
+     * Represents an operation that accepts a {@code long} key and a
+     * value, and returns no result.
+     *
+     * @param <V> the type of the value argument
+     */
+    @FunctionalInterface
+    public interface LongObjConsumer<V> {
+        /**
+         * Performs this operation on the given arguments.
+         *
+         * @param key the key
+         * @param value the value
+         */
+        void accept(long key, V value);
+    }
+
+    /**
+     * Performs the given action for each (key, value).
+     *
+     * @param action the action
+     * @throws NullPointerException if the action is null
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(LongObjConsumer<? super V> action) {
+        if (action == null) throw new NullPointerException();
+        Traverser it = new Traverser(table);
+        for (Bin b; (b = it.advance()) != null; ) {
+            long[] ks = b.keys; Object[] vs = b.vals; byte[] st = b.states;
+            for (int j = 0; j < st.length; ++j) {
+                Object v;
+                if (stateAt(st, j) == FULL && (v = valAt(vs, j)) != null)
+                    action.accept(ks[j], (V)v);
+            }
+        }
+    }
+
+    /**
+     * Returns the hash code value for this map, i.e.,
+     * the sum of, for each key-value pair in the map,
+     * {@code Long.hashCode(key) ^ value.hashCode()}.
+     *
+     * @return the hash code value for this map
+     */
+    public int hashCode() {
+        int h = 0;
+        Traverser it = new Traverser(table);
+        for (Bin b; (b = it.advance()) != null; ) {
+            long[] ks = b.keys; Object[] vs = b.vals; byte[] st = b.states;
+            for (int j = 0; j < st.length; ++j) {
+                Object v;
+                if (stateAt(st, j) == FULL && (v = valAt(vs, j)) != null)
+                    h += Long.hashCode(ks[j]) ^ v.hashCode();
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Returns a string representation of this map.  The string
+     * representation consists of a list of key-value mappings (in no
+     * particular order) enclosed in braces ("{@code {}}").  Adjacent
+     * mappings are separated by the characters {@code ", "} (comma
+     * and space).  Each key-value mapping is rendered as the key
+     * followed by an equals sign ("{@code =}") followed by the
+     * associated value.
+     *
+     * @return a string representation of this map
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        Traverser it = new Traverser(table);
+        for (Bin b; (b = it.advance()) != null; ) {
+            long[] ks = b.keys; Object[] vs = b.vals; byte[] st = b.states;
+            for (int j = 0; j < st.length; ++j) {
+                Object v;
+                if (stateAt(st, j) == FULL && (v = valAt(vs, j)) != null) {
+                    if (sb.length() > 1)
+                        sb.append(',').append(' ');
+                    sb.append(ks[j]).append('=');
+                    sb.append(v == this ? "(this Map)" : v);
+                }
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Compares the specified object with this map for equality.
+     * Returns {@code true} if the given object is a
+     * ConcurrentLongObjectHashMap with the same mappings as this map.
+     * This operation may return misleading results if either map is
+     * concurrently modified during execution of this method.
+     *
+     * @param o object to be compared for equality with this map
+     * @return {@code true} if the specified object is equal to this map
+     */
+    public boolean equals(Object o) {
+        if (o != this) {
+            if (!(o instanceof ConcurrentLongObjectHashMap))
+                return false;
+            ConcurrentLongObjectHashMap<?> m = (ConcurrentLongObjectHashMap<?>)o;
+            return containsAll(this, m) && containsAll(m, this);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if b holds all mappings of a.
+     */
+    private static boolean containsAll(ConcurrentLongObjectHashMap<?> a,
+                                       ConcurrentLongObjectHashMap<?> b) {
+        Traverser it = new Traverser(a.table);
+        for (Bin e; (e = it.advance()) != null; ) {
+            long[] ks = e.keys; Object[] vs = e.vals; byte[] st = e.states;
+            for (int j = 0; j < st.length; ++j) {
+                Object v, bv;
+                if (stateAt(st, j) == FULL && (v = valAt(vs, j)) != null &&
+                    ((bv = b.get(ks[j])) == null ||
+                     (bv != v && !bv.equals(v))))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves the state of the {@code ConcurrentLongObjectHashMap}
+     * instance to a stream (i.e., serializes it).
+     * @param s the stream
+     * @throws java.io.IOException if an I/O error occurs
+     * @serialData
+     * for each key-value mapping the boolean {@code true}, the key
+     * (long) and the value (Object), followed by the boolean
+     * {@code false}.
+     * The key-value mappings are emitted in no particular order.
+     */
+    private void writeObject(java.io.ObjectOutputStream s)
+        throws java.io.IOException {
+        s.defaultWriteObject();
+        Traverser it = new Traverser(table);
+        for (Bin b; (b = it.advance()) != null; ) {
+            long[] ks = b.keys; Object[] vs = b.vals; byte[] st = b.states;
+            for (int j = 0; j < st.length; ++j) {
+                Object v;
+                if (stateAt(st, j) == FULL && (v = valAt(vs, j)) != null) {
+                    s.writeBoolean(true);
+                    s.writeLong(ks[j]);
+                    s.writeObject(v);
+                }
+            }
+        }
+        s.writeBoolean(false);
+    }
+
+    /**
+     * Reconstitutes the instance from a stream (that is, deserializes it).
+     * @param s the stream
+     * @throws ClassNotFoundException if the class of a serialized object
+     *         could not be found
+     * @throws java.io.IOException if an I/O error occurs
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s)
+        throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        while (s.readBoolean()) {
+            long k = s.readLong();
+            V v = (V) s.readObject();
+            if (v == null)
+                throw new java.io.InvalidObjectException("null value");
+            putVal(k, v, false);
+        }
+    }
+
+    /* ---------------- Table Initialization and Resizing -------------- */
+
+    /**
+     * Returns the stamp bits for resizing a table of size n.
+     * Must be negative when shifted left by RESIZE_STAMP_SHIFT.
+     */
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    /**
+     * Initializes table, using the size recorded in sizeCtl.
+     */
+    private final Bin[] initTable() {
+        Bin[] tab; int sc;
+        while ((tab = table) == null || tab.length == 0) {
+            if ((sc = sizeCtl) < 0)
+                Thread.yield(); // lost initialization race; just spin
+            else if (U.compareAndSwapInt(this, SIZECTL, sc, -1)) {
+                try {
+                    if ((tab = table) == null || tab.length == 0) {
+                        int n = (sc > 0) ? sc : DEFAULT_CAPACITY;
+                        table = tab = new Bin[n];
+                        sc = loadThreshold(n);
+                    }
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+            }
+        }
+        return tab;
+    }
+
+    /**
+     * Adds to count, and if table is too small and not already
+     * resizing, initiates transfer. If already resizing, helps
+     * perform transfer if work is available.  Rechecks occupancy
+     * after a transfer to see if another resize is already needed
+     * because resizings are lagging additions.
+     *
+     * @param x the count to add
+     * @param check if <0, don't check resize, otherwise the number
+     * of mappings in the updated bin; if at most BIN_LOAD only check
+     * if uncontended
+     */
+    private final void addCount(long x, int check) {
+        CounterCell[] as; long b, s;
+        if ((as = counterCells) != null ||
+            !U.compareAndSwapLong(this, BASECOUNT, b = baseCount, s = b + x)) {
+            CounterCell a; long v; int m;
+            boolean uncontended = true;
+            if (as == null || (m = as.length - 1) < 0 ||
+                (a = as[ThreadLocalRandom.getProbe() & m]) == null ||
+                !(uncontended =
+                  U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))) {
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= BIN_LOAD)
+                return;
+            s = sumCount();
+        }
+        if (check >= 0) {
+            Bin[] tab, nt; int n, sc;
+            while (s >= (long)(sc = sizeCtl) && (tab = table) != null &&
+                   (n = tab.length) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n);
+                if (sc < 0) {
+                    if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
+                        sc == rs + MAX_RESIZERS || (nt = nextTable) == null ||
+                        transferIndex <= 0)
+                        break;
+                    if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
+                        transfer(tab, nt);
+                }
+                else if (U.compareAndSwapInt(this, SIZECTL, sc,
+                                             (rs << RESIZE_STAMP_SHIFT) + 2))
+                    transfer(tab, null);
+                s = sumCount();
+            }
+        }
+    }
+
+    /**
+     * Helps transfer if a resize is in progress.
+     */
+    final Bin[] helpTransfer(Bin[] tab, Bin f) {
+        Bin[] nextTab; int sc;
+        if (tab != null && (f instanceof ForwardingBin) &&
+            (nextTab = ((ForwardingBin)f).nextTable) != null) {
+            int rs = resizeStamp(tab.length);
+            while (nextTab == nextTable && table == tab &&
+                   (sc = sizeCtl) < 0) {
+                if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
+                    sc == rs + MAX_RESIZERS || transferIndex <= 0)
+                    break;
+                if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    /**
+     * Moves and/or copies the mappings in each bin to new table. See
+     * ConcurrentHashMap for explanation.
+     */
+    private final void transfer(Bin[] tab, Bin[] nextTab) {
+        int n = tab.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            try {
+                nextTab = new Bin[n << 1];
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.length;
+        ForwardingBin fwd = new ForwardingBin(nextTab);
+        boolean advance = true;
+        boolean finishing = false; // to ensure sweep before committing nextTab
+        for (int i = 0, bound = 0;;) {
+            Bin f;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                }
+                else if (U.compareAndSwapInt
+                         (this, TRANSFERINDEX, nextIndex,
+                          nextBound = (nextIndex > stride ?
+                                       nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= n || i + n >= nextn) {
+                int sc;
+                if (finishing) {
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = loadThreshold(n << 1);
+                    return;
+                }
+                if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = n; // recheck before commit
+                }
+            }
+            else if ((f = tabAt(tab, i)) == null)
+                advance = casTabAt(tab, i, null, fwd);
+            else if (f instanceof ForwardingBin)
+                advance = true; // already processed
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        long[] ks = f.keys; Object[] vs = f.vals; byte[] st = f.states;
+                        int lc = 0, hc = 0;
+                        for (int j = 0; j < st.length; ++j) {
+                            if (st[j] == FULL) {
+                                if (((int)mix(ks[j]) & n) == 0)
+                                    ++lc;
+                                else
+                                    ++hc;
+                            }
+                        }
+                        Bin ln, hn;
+                        if (lc == 0 && hc == 0)
+                            ln = hn = null;
+                        else if (hc == 0 && f.used == lc) {
+                            ln = f;     // reuse unless split or compacted
+                            hn = null;
+                        }
+                        else if (lc == 0 && f.used == hc) {
+                            ln = null;
+                            hn = f;
+                        }
+                        else {
+                            ln = (lc == 0) ? null : new Bin(binCapacityFor(lc));
+                            hn = (hc == 0) ? null : new Bin(binCapacityFor(hc));
+                            for (int j = 0; j < st.length; ++j) {
+                                if (st[j] == FULL) {
+                                    long k = ks[j], e = mix(k);
+                                    Bin b = (((int)e & n) == 0) ? ln : hn;
+                                    b.add(k, vs[j], (int)(e >>> 32));
+                                }
+                            }
+                        }
+                        setTabAt(nextTab, i, ln);
+                        setTabAt(nextTab, i + n, hn);
+                        setTabAt(tab, i, fwd);
+                        advance = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /* ---------------- Counter support -------------- */
+
+    final long sumCount() {
+        CounterCell[] as = counterCells; CounterCell a;
+        long sum = baseCount;
+        if (as != null) {
+            for (int i = 0; i < as.length; ++i) {
+                if ((a = as[i]) != null)
+                    sum += a.value;
+            }
+        }
+        return sum;
+    }
+
+    // See LongAdder version for explanation
+    private final void fullAddCount(long x, boolean wasUncontended) {
+        int h;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;                // True if last slot nonempty
+        for (;;) {
+            CounterCell[] as; CounterCell a; int n; long v;
+            if ((as = counterCells) != null && (n = as.length) > 0) {
+                if ((a = as[(n - 1) & h]) == null) {
+                    if (cellsBusy == 0) {            // Try to attach new Cell
+                        CounterCell r = new CounterCell(x); // Optimistic create
+                        if (cellsBusy == 0 &&
+                            U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                            boolean created = false;
+                            try {               // Recheck under lock
+                                CounterCell[] rs; int m, j;
+                                if ((rs = counterCells) != null &&
+                                    (m = rs.length) > 0 &&
+                                    rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created)
+                                break;
+                            continue;           // Slot is now non-empty
+                        }
+                    }
+                    collide = false;
+                }
+                else if (!wasUncontended)       // CAS already known to fail
+                    wasUncontended = true;      // Continue after rehash
+                else if (U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))
+                    break;
+                else if (counterCells != as || n >= NCPU)
+                    collide = false;            // At max size or stale
+                else if (!collide)
+                    collide = true;
+                else if (cellsBusy == 0 &&
+                         U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                    try {
+                        if (counterCells == as) {// Expand table unless stale
+                            CounterCell[] rs = new CounterCell[n << 1];
+                            for (int i = 0; i < n; ++i)
+                                rs[i] = as[i];
+                            counterCells = rs;
+                        }
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;                   // Retry with expanded table
+                }
+                h = ThreadLocalRandom.advanceProbe(h);
+            }
+            else if (cellsBusy == 0 && counterCells == as &&
+                     U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                boolean init = false;
+                try {                           // Initialize table
+                    if (counterCells == as) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init)
+                    break;
+            }
+            else if (U.compareAndSwapLong(this, BASECOUNT, v = baseCount, v + x))
+                break;                          // Fall back on using base
+        }
+    }
+
+    /* ---------------- Table Traversal -------------- */
+
+    /**
+     * Visits once each non-forwarding bin reachable from a table.
+     * Upon encountering a ForwardingBin at index i of a table of
+     * length n, the traversal must instead visit indices i and i + n
+     * of the next table (which may in turn be forwarded); pending
+     * (table, index) pairs are kept on a small stack.  Each Bin is
+     * read as of the time it is visited, so a traversal reflects
+     * every mapping that was present throughout, and never reports a
+     * mapping twice.
+     */
+    static final class Traverser {
+        final Bin[] base;
+        int baseIndex;
+        Bin[][] tabs;
+        int[] indices;
+        int sp;
+
+        Traverser(Bin[] base) {
+            this.base = base;
+        }
+
+        /**
+         * Returns the next bin to visit, or null if none.
+         */
+        final Bin advance() {
+            for (;;) {
+                Bin[] t; int i; Bin b;
+                if (sp > 0) {
+                    t = tabs[--sp];
+                    i = indices[sp];
+                    tabs[sp] = null;
+                }
+                else if ((t = base) == null || (i = baseIndex) >= t.length)
+                    return null;
+                else
+                    ++baseIndex;
+                if ((b = tabAt(t, i)) instanceof ForwardingBin) {
+                    Bin[] nt = ((ForwardingBin)b).nextTable;
+                    push(nt, i + t.length);
+                    push(nt, i);
+                }
+                else if (b != null)
+                    return b;
+            }
+        }
+
+        private void push(Bin[] t, int i) {
+            if (tabs == null) {
+                tabs = new Bin[8][];
+                indices = new int[8];
+            }
+            else if (sp == tabs.length) {
+                tabs = Arrays.copyOf(tabs, sp << 1);
+                indices = Arrays.copyOf(indices, sp << 1);
+            }
+            tabs[sp] = t;
+            indices[sp++] = i;
+        }
+    }
+
+    /** Number of CPUS, to place bounds on some sizings */
+    static final int NCPU = ConcurrentHashMap.NCPU;
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long SIZECTL;
+    private static final long TRANSFERINDEX;
+    private static final long BASECOUNT;
+    private static final long CELLSBUSY;
+    private static final long CELLVALUE;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    private static final long OBASE;
+    private static final int OSHIFT;
+    private static final long BBASE;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ConcurrentLongObjectHashMap.class;
+            SIZECTL = U.objectFieldOffset
+                (k.getDeclaredField("sizeCtl"));
+            TRANSFERINDEX = U.objectFieldOffset
+                (k.getDeclaredField("transferIndex"));
+            BASECOUNT = U.objectFieldOffset
+                (k.getDeclaredField("baseCount"));
+            CELLSBUSY = U.objectFieldOffset
+                (k.getDeclaredField("cellsBusy"));
+            Class<?> ck = CounterCell.class;
+            CELLVALUE = U.objectFieldOffset
+                (ck.getDeclaredField("value"));
+            Class<?> ak = Bin[].class;
+            ABASE = U.arrayBaseOffset(ak);
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            OBASE = U.arrayBaseOffset(Object[].class);
+            scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            OSHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            BBASE = U.arrayBaseOffset(byte[].class);
+            if (U.arrayIndexScale(byte[].class) != 1)
+                throw new Error("byte array scale not one");
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
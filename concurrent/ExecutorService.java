@@ -34,6 +34,7 @@
  */
 
 package concurrent;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Collection;
 
@@ -74,6 +75,31 @@ public interface ExecutorService extends Executor {
      */
     Future<?> submit(Runnable task);
 
+    /**
+     * execute all tasks, in iteration order; if one is rejected by
+     * throwing, those before it were executed and the rest are not
+     */
+    default void executeAll(Collection<? extends Runnable> tasks) {
+        for (Runnable t : tasks)
+            if (t == null)
+                throw new NullPointerException();
+        for (Runnable t : tasks)
+            execute(t);
+    }
+
+    /**
+     * submit all tasks, in iteration order, and return their futures
+     */
+    default <T> List<Future<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+        for (Callable<T> t : tasks)
+            if (t == null)
+                throw new NullPointerException();
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+        for (Callable<T> t : tasks)
+            futures.add(submit(t));
+        return futures;
+    }
+
     /**
      * run tasks and return results
      */
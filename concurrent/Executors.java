@@ -182,6 +182,73 @@ public class Executors {
                                       threadFactory);
     }
 
+    /**
+     * Creates an executor that runs each task in a new thread
+     * created by the given factory.  No threads are reused, and
+     * there is no queue: {@code shutdownNow} interrupts the threads
+     * running tasks, and the executor terminates when they have all
+     * finished after shutdown.
+     *
+     * @param threadFactory the factory to use when creating new threads
+     * @return the new executor
+     * @throws NullPointerException if threadFactory is null
+     */
+    public static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        return new ThreadPerTaskExecutor(threadFactory, 0);
+    }
+
+    /**
+     * Creates an executor that runs each task in a new thread
+     * created by the given factory, with at most {@code
+     * maxConcurrency} tasks running at once.  While that many are
+     * running, {@code execute} blocks until one finishes (throwing
+     * {@link RejectedExecutionException} if interrupted while
+     * waiting), so the bound also limits the number of threads.
+     *
+     * @param threadFactory the factory to use when creating new threads
+     * @param maxConcurrency the maximum number of tasks to run at once
+     * @return the new executor
+     * @throws NullPointerException if threadFactory is null
+     * @throws IllegalArgumentException if {@code maxConcurrency <= 0}
+     */
+    public static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory,
+                                                           int maxConcurrency) {
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException();
+        return new ThreadPerTaskExecutor(threadFactory, maxConcurrency);
+    }
+
+    /**
+     * Creates an executor that runs each task in a new virtual
+     * thread, if supported by the runtime, else in a new platform
+     * thread, as created by {@link #virtualThreadFactory}.  Because
+     * virtual threads are cheap to create and block, this is
+     * preferable to {@link #newCachedThreadPool} for tasks that
+     * spend most of their time in blocking I/O.
+     *
+     * @return the new executor
+     * @see #newThreadPerTaskExecutor(ThreadFactory)
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        return new ThreadPerTaskExecutor(virtualThreadFactory(), 0);
+    }
+
+    /**
+     * Creates an executor that runs each task in a new virtual
+     * thread if supported by the runtime, else in a new platform
+     * thread, with at most {@code maxConcurrency} tasks running at
+     * once, as in {@link #newThreadPerTaskExecutor(ThreadFactory,
+     * int)}.  A bound is especially advisable when falling back to
+     * platform threads.
+     *
+     * @param maxConcurrency the maximum number of tasks to run at once
+     * @return the new executor
+     * @throws IllegalArgumentException if {@code maxConcurrency <= 0}
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(int maxConcurrency) {
+        return newThreadPerTaskExecutor(virtualThreadFactory(), maxConcurrency);
+    }
+
     /**
      * Creates a single-threaded executor that can schedule commands
      * to run after a given delay, or to execute periodically.
@@ -338,6 +405,31 @@ public class Executors {
         return new PrivilegedThreadFactory();
     }
 
+    /**
+     * Returns a thread factory that creates virtual threads, if
+     * supported by the runtime, else a {@linkplain
+     * #defaultThreadFactory default thread factory}.  Virtual threads
+     * are available in Java 21 and later releases, found
+     * reflectively so that this class does not depend on them.
+     *
+     * @return a thread factory
+     * @see #isVirtualThreadSupported
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        ThreadFactory f = VirtualThreads.FACTORY;
+        return (f != null) ? f : new DefaultThreadFactory();
+    }
+
+    /**
+     * Returns true if {@link #virtualThreadFactory} creates virtual
+     * threads.
+     *
+     * @return {@code true} if virtual threads are supported
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.FACTORY != null;
+    }
+
     /**
      * Returns a {@link Callable} object that, when
      * called, runs the given task and returns the given result.  This
@@ -568,6 +660,30 @@ public class Executors {
         }
     }
 
+    /**
+     * Holder for the virtual thread factory, found on first use as
+     * {@code Thread.ofVirtual().factory()} (adapted from the
+     * java.util.concurrent interface), or null if unavailable
+     * (including when the API is a preview that is not enabled).
+     */
+    static final class VirtualThreads {
+        static final ThreadFactory FACTORY;
+        static {
+            ThreadFactory f = null;
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual")
+                    .invoke(null);
+                java.util.concurrent.ThreadFactory vf =
+                    (java.util.concurrent.ThreadFactory)
+                    Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+                f = vf::newThread;
+            } catch (Throwable unavailable) {
+            }
+            FACTORY = f;
+        }
+    }
+
     /**
      * Thread factory capturing access control context and class loader
      */
@@ -631,6 +747,12 @@ public class Executors {
         public <T> Future<T> submit(Runnable task, T result) {
             return e.submit(task, result);
         }
+        public void executeAll(Collection<? extends Runnable> tasks) {
+            e.executeAll(tasks);
+        }
+        public <T> List<Future<T>> submitAll(Collection<? extends Callable<T>> tasks) {
+            return e.submitAll(tasks);
+        }
         public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
             throws InterruptedException {
             return e.invokeAll(tasks);
@@ -658,6 +658,71 @@ public class LinkedBlockingDeque<E>
         return offerLast(e, timeout, unit);
     }
 
+    /**
+     * Inserts as many elements of the given collection as fit without
+     * exceeding capacity at the end of this deque, in iteration order,
+     * acquiring the lock only once.
+     *
+     * @throws NullPointerException {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    public int offerAll(Collection<? extends E> c) {
+        Node<E>[] nodes = newNodes(c);
+        int n = 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            while (n < nodes.length && linkLast(nodes[n]))
+                ++n;
+        } finally {
+            lock.unlock();
+        }
+        return n;
+    }
+
+    /**
+     * Inserts all elements of the given collection at the end of this
+     * deque, in iteration order, waiting if necessary for space to
+     * become available.  The lock is acquired only once, and released
+     * only while waiting.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    public void putAll(Collection<? extends E> c) throws InterruptedException {
+        Node<E>[] nodes = newNodes(c);
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (Node<E> node : nodes) {
+                while (!linkLast(node))
+                    notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns new nodes for the elements of c, for batch insertion.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<E>[] newNodes(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        Object[] a = c.toArray();
+        Node<E>[] nodes = (Node<E>[]) new Node<?>[a.length];
+        for (int i = 0; i < a.length; ++i) {
+            if (a[i] == null)
+                throw new NullPointerException();
+            nodes[i] = new Node<E>((E) a[i]);
+        }
+        return nodes;
+    }
+
     /**
      * Retrieves and removes the head of the queue represented by this deque.
      * This method differs from {@link #poll poll} only in that it throws an
@@ -684,6 +749,40 @@ public class LinkedBlockingDeque<E>
         return pollFirst(timeout, unit);
     }
 
+    /**
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    public int poll(Collection<? super E> c, int maxElements,
+                    long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0)
+                    return 0;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int n = Math.min(maxElements, count);
+            for (int i = 0; i < n; i++) {
+                c.add(first.item);   // In this order, in case add() throws.
+                unlinkFirst();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Retrieves, but does not remove, the head of the queue represented by
      * this deque.  This method differs from {@link #peek peek} only in that
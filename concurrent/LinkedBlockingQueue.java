@@ -358,6 +358,117 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         return c >= 0;
     }
 
+    /**
+     * Inserts as many elements of the given collection as fit without
+     * exceeding capacity at the tail of this queue, in iteration
+     * order.  The nodes are linked before, and appended while, holding
+     * the put lock, which is acquired only once, as is the take lock
+     * if waiting takers must be signalled.
+     *
+     * @throws NullPointerException {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    public int offerAll(Collection<? extends E> c) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        final AtomicInteger count = this.count;
+        int room = capacity - count.get(), n = 0;
+        Node<E> h = null, t = null;
+        for (E e : c) {
+            if (e == null)
+                throw new NullPointerException();
+            if (n < room) {
+                Node<E> node = new Node<E>(e);
+                t = (h == null) ? (h = node) : (t.next = node);
+                ++n;
+            }
+        }
+        if (n == 0)
+            return 0;
+        int k = -1;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lock();
+        try {
+            int avail = capacity - count.get();
+            if (avail < n) { // trim to fit
+                n = avail;
+                t = null;
+                for (Node<E> p = h; avail-- > 0; p = p.next)
+                    t = p;
+            }
+            if (t != null) {
+                t.next = null;
+                last.next = h;
+                last = t;
+                k = count.getAndAdd(n);
+                if (k + n < capacity)
+                    notFull.signal();
+            }
+        } finally {
+            putLock.unlock();
+        }
+        if (k == 0)
+            signalNotEmpty(); // takers cascade further signals
+        return (k < 0) ? 0 : n;
+    }
+
+    /**
+     * Inserts all elements of the given collection at the tail of
+     * this queue, in iteration order, waiting if necessary for space
+     * to become available.  The nodes are linked before acquiring the
+     * put lock, and each run that fits is appended at once, taking
+     * the take lock only if the queue was empty.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    public void putAll(Collection<? extends E> c) throws InterruptedException {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        Node<E> h = null, t = null;
+        for (E e : c) {
+            if (e == null)
+                throw new NullPointerException();
+            Node<E> node = new Node<E>(e);
+            t = (h == null) ? (h = node) : (t.next = node);
+            ++n;
+        }
+        if (n == 0)
+            return;
+        final AtomicInteger count = this.count;
+        final ReentrantLock putLock = this.putLock;
+        putLock.lockInterruptibly();
+        try {
+            while (h != null) {
+                int avail;
+                while ((avail = capacity - count.get()) == 0)
+                    notFull.await();
+                int k = Math.min(avail, n);
+                Node<E> p = h;
+                for (int i = 1; i < k; ++i)
+                    p = p.next;
+                Node<E> rest = p.next;
+                p.next = null;
+                last.next = h;
+                last = p;
+                h = rest;
+                n -= k;
+                if (count.getAndAdd(k) == 0)
+                    signalNotEmpty(); // lock order as in fullyLock
+            }
+            if (count.get() < capacity)
+                notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+
     public E take() throws InterruptedException {
         E x;
         int c = -1;
@@ -405,6 +516,59 @@ public class LinkedBlockingQueue<E> extends AbstractQueue<E>
         return x;
     }
 
+    /**
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     * @throws IllegalArgumentException {@inheritDoc}
+     */
+    public int poll(Collection<? super E> c, int maxElements,
+                    long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        long nanos = unit.toNanos(timeout);
+        int k = -1, i = 0;
+        final AtomicInteger count = this.count;
+        final ReentrantLock takeLock = this.takeLock;
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0) {
+                if (nanos <= 0)
+                    return 0;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int n = Math.min(maxElements, count.get());
+            Node<E> h = head;
+            try {
+                while (i < n) {
+                    Node<E> p = h.next;
+                    c.add(p.item);
+                    p.item = null;
+                    h.next = h;
+                    h = p;
+                    ++i;
+                }
+                return n;
+            } finally {
+                // Restore invariants even if c.add() threw
+                if (i > 0) {
+                    head = h;
+                    k = count.getAndAdd(-i);
+                    if (k > i)
+                        notEmpty.signal();
+                }
+            }
+        } finally {
+            takeLock.unlock();
+            if (k == capacity)
+                signalNotFull();
+        }
+    }
+
     public E poll() {
         final AtomicInteger count = this.count;
         if (count.get() == 0)
@@ -0,0 +1,717 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import concurrent.locks.Condition;
+import concurrent.locks.ReentrantLock;
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A bounded {@linkplain BlockingQueue blocking queue} backed by an
+ * array, in which insertions and removals at the ends of the queue
+ * are lock-free.  This queue orders elements FIFO (first-in-first-out),
+ * and, like {@link ArrayBlockingQueue}, has a fixed capacity set on
+ * construction.  Threads block only when inserting into a full queue
+ * or taking from an empty one; otherwise producers and consumers
+ * never contend for a lock, so this class typically scales better
+ * than {@code ArrayBlockingQueue} when many threads insert and
+ * remove concurrently.
+ *
+ * <p>Removal of interior elements, via {@link #remove(Object)} or an
+ * iterator, is supported, but the space occupied by a removed
+ * element is not reclaimed until it reaches the head of the queue,
+ * so until then it counts against {@link #remainingCapacity},
+ * although not toward {@link #size}.  Bulk operations and iterators are weakly
+ * consistent, as in {@link ConcurrentLinkedQueue}.
+ *
+ * <p>This class and its iterator implement all of the
+ * <em>optional</em> methods of the {@link Collection} and {@link
+ * Iterator} interfaces.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class LockFreeArrayBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+     * Overview:
+     *
+     * This is a variant of Dmitry Vyukov's bounded MPMC queue.  Each
+     * slot i of the items array has a sequence number, initially i.
+     * Insertion and removal positions are unbounded counters, tail
+     * and head, mapped to slots modulo the capacity.  A producer
+     * reads tail t; if slot(t)'s sequence is t the slot is free for
+     * this lap, and it claims it by CASing tail to t + 1, stores the
+     * element, and publishes it by setting the sequence to t + 1.  If
+     * the sequence is less than t, the slot still holds an element
+     * from the previous lap, so the queue is full.  Symmetrically, a
+     * consumer reads head h; if slot(h)'s sequence is h + 1 the slot
+     * holds a published element, which it claims by CASing head,
+     * takes, and releases for the next lap by setting the sequence
+     * to h + n, where n is the number of slots; if less, the queue
+     * is empty.  Otherwise the reader lost a race and retries.  Head
+     * and tail are padded to avoid false sharing.
+     *
+     * The scheme needs at least two slots, since with one the states
+     * "published at lap t - 1" and "free at lap t" would coincide.
+     * So a queue of capacity 1 uses two slots, and producers also
+     * check that tail is not ahead of head before inserting.
+     *
+     * Interior removal replaces a published element with the
+     * REMOVED marker by CAS, and consumers take elements by
+     * getAndSet to null, so exactly one of them gets each element.
+     * Consumers that take a REMOVED marker release the slot and
+     * continue with the next one.  The number of REMOVED markers not
+     * yet taken is maintained in removedCount, incremented after
+     * each successful CAS and decremented after each take, so that
+     * size can exclude them.
+     *
+     * Blocking uses a single lock with notEmpty and notFull
+     * conditions, along with counts of waiting takers and putters
+     * (updated only under the lock), so that the non-blocking paths
+     * need not touch the lock unless a thread is waiting.  A waiting
+     * thread increments its count before rechecking the queue, and
+     * a thread making a change checks the count after making it;
+     * both are volatile accesses, so either the waiter sees the
+     * change or the changer sees the waiter and signals it under
+     * the lock.
+     */
+
+    /** Marker for elements removed from the interior */
+    static final Object REMOVED = new Object();
+
+    /** The queued items */
+    final Object[] items;
+
+    /** Sequence numbers of slots, accessed via Unsafe */
+    final long[] sequences;
+
+    /** Maximum number of elements; less than items.length only if 1 */
+    final int capacity;
+
+    /** Mask for slot indexing if capacity is a power of two, else -1 */
+    final int mask;
+
+    /** Position of next removal */
+    @sun.misc.Contended("head")
+    volatile long head;
+
+    /** Position of next insertion */
+    @sun.misc.Contended("tail")
+    volatile long tail;
+
+    /** Number of REMOVED markers in slots not yet taken */
+    volatile long removedCount;
+
+    /** Lock held by blocking operations while waiting */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** Condition for waiting takes */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Condition for waiting puts */
+    private final Condition notFull = lock.newCondition();
+
+    /** Number of threads waiting on notEmpty */
+    private volatile int takeWaiters;
+
+    /** Number of threads waiting on notFull */
+    private volatile int putWaiters;
+
+    /**
+     * Creates a {@code LockFreeArrayBlockingQueue} with the given
+     * (fixed) capacity.
+     *
+     * @param capacity the capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity < 1}
+     */
+    public LockFreeArrayBlockingQueue(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException();
+        int n = Math.max(capacity, 2);
+        this.capacity = capacity;
+        this.mask = ((n & (n - 1)) == 0) ? n - 1 : -1;
+        this.items = new Object[n];
+        long[] seqs = new long[n];
+        for (int i = 0; i < n; ++i)
+            seqs[i] = i;
+        this.sequences = seqs;
+    }
+
+    /**
+     * Creates a {@code LockFreeArrayBlockingQueue} with the given
+     * (fixed) capacity, initially containing the elements of the
+     * given collection, added in traversal order of the collection's
+     * iterator.
+     *
+     * @param capacity the capacity of this queue
+     * @param c the collection of elements to initially contain
+     * @throws IllegalArgumentException if {@code capacity} is less than
+     *         {@code c.size()}, or less than 1.
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public LockFreeArrayBlockingQueue(int capacity, Collection<? extends E> c) {
+        this(capacity);
+        for (E e : c) {
+            if (!offer(e))
+                throw new IllegalArgumentException();
+        }
+    }
+
+    /* ---------------- Slot access -------------- */
+
+    private int slot(long pos) {
+        int m;
+        return ((m = mask) >= 0) ? (int)pos & m : (int)(pos % items.length);
+    }
+
+    private long sequenceAt(int i) {
+        return U.getLongVolatile(sequences, ((long)i << LSHIFT) + LBASE);
+    }
+
+    private static long itemOffset(int i) {
+        return ((long)i << ASHIFT) + ABASE;
+    }
+
+    /**
+     * Publishes e at a slot claimed for position t.
+     */
+    private void publish(int i, long t, Object e) {
+        U.putOrderedObject(items, itemOffset(i), e);
+        U.putLongVolatile(sequences, ((long)i << LSHIFT) + LBASE, t + 1);
+        if (takeWaiters != 0)
+            signal(notEmpty);
+    }
+
+    /**
+     * Releases the slot for position h after its element is taken.
+     */
+    private void release(int i, long h) {
+        U.putLongVolatile(sequences, ((long)i << LSHIFT) + LBASE,
+                          h + items.length);
+        if (putWaiters != 0)
+            signal(notFull);
+    }
+
+    private void signal(Condition c) {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            c.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tries to insert e without blocking.
+     */
+    private boolean tryInsert(Object e) {
+        for (;;) {
+            long t = tail;
+            int i = slot(t);
+            long d = sequenceAt(i) - t;
+            if (d == 0L) {
+                if (capacity < items.length && t - head >= capacity) {
+                    if (t == tail)
+                        return false; // full, with capacity 1
+                }
+                else if (U.compareAndSwapLong(this, TAIL, t, t + 1)) {
+                    publish(i, t, e);
+                    return true;
+                }
+            }
+            else if (d < 0L && t == tail)
+                return false; // full
+        }
+    }
+
+    /**
+     * Tries to remove and return the first element without blocking.
+     */
+    @SuppressWarnings("unchecked")
+    private E tryRemove() {
+        for (;;) {
+            long h = head;
+            int i = slot(h);
+            long d = sequenceAt(i) - (h + 1);
+            if (d == 0L) {
+                if (U.compareAndSwapLong(this, HEAD, h, h + 1)) {
+                    Object x = U.getAndSetObject(items, itemOffset(i), null);
+                    release(i, h);
+                    if (x != REMOVED)
+                        return (E)x;
+                    U.getAndAddLong(this, REMOVEDCOUNT, -1L);
+                }
+            }
+            else if (d < 0L && h == head)
+                return null; // empty
+        }
+    }
+
+    /* ---------------- Queue operations -------------- */
+
+    /**
+     * Inserts the specified element at the tail of this queue if it is
+     * possible to do so immediately without exceeding the queue's
+     * capacity, returning {@code true} upon success and {@code false}
+     * if this queue is full.  This method is generally preferable to
+     * method {@link #add}, which can fail to insert an element only
+     * by throwing an exception.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        return tryInsert(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting
+     * for space to become available if the queue is full.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        if (tryInsert(e))
+            return;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            ++putWaiters;
+            try {
+                while (!tryInsert(e))
+                    notFull.await();
+            } finally {
+                --putWaiters;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting
+     * up to the specified wait time for space to become available if
+     * the queue is full.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        if (tryInsert(e))
+            return true;
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            ++putWaiters;
+            try {
+                while (!tryInsert(e)) {
+                    if (nanos <= 0)
+                        return false;
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                --putWaiters;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E poll() {
+        return tryRemove();
+    }
+
+    public E take() throws InterruptedException {
+        E x;
+        if ((x = tryRemove()) != null)
+            return x;
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            ++takeWaiters;
+            try {
+                while ((x = tryRemove()) == null)
+                    notEmpty.await();
+                return x;
+            } finally {
+                --takeWaiters;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E x;
+        if ((x = tryRemove()) != null)
+            return x;
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            ++takeWaiters;
+            try {
+                while ((x = tryRemove()) == null) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return x;
+            } finally {
+                --takeWaiters;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Calls f for each position p in [head, tail) whose slot holds a
+     * published element e (not REMOVED) until f returns true.
+     */
+    private interface SlotVisitor {
+        boolean visit(int slot, Object e);
+    }
+
+    private boolean forEachSlot(SlotVisitor f) {
+        for (long p = head, t = tail; p < t; ++p) {
+            long h;
+            if (p < (h = head))
+                p = h;
+            if (p >= t)
+                break;
+            int i = slot(p);
+            if (sequenceAt(i) == p + 1) {
+                Object x = U.getObjectVolatile(items, itemOffset(i));
+                if (x != null && x != REMOVED && f.visit(i, x))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final Object[] found = new Object[1];
+        forEachSlot(new SlotVisitor() {
+                public boolean visit(int slot, Object e) {
+                    found[0] = e;
+                    return true;
+                }});
+        return (E)found[0];
+    }
+
+    /**
+     * Returns the number of occupied slots, including those of
+     * removed interior elements that have not yet been reclaimed.
+     */
+    private long occupiedSlots() {
+        for (;;) {
+            long h = head, t = tail;
+            if (h == head)
+                return t - h;
+        }
+    }
+
+    /**
+     * Returns the number of elements in this queue.  Removed
+     * interior elements are not counted, although their slots may
+     * not yet have been reclaimed.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        long n = occupiedSlots() - removedCount;
+        return (n <= 0L) ? 0 : (n >= capacity) ? capacity : (int)n;
+    }
+
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of additional elements that this queue can
+     * ideally (in the absence of memory or resource constraints)
+     * accept without blocking.  This excludes the slots of removed
+     * interior elements that have not yet been reclaimed, so may be
+     * less than the capacity minus the current {@code size}.
+     *
+     * @return the remaining capacity
+     */
+    public int remainingCapacity() {
+        long n = occupiedSlots();
+        return (n <= 0L) ? capacity : (n >= capacity) ? 0 :
+            capacity - (int)n;
+    }
+
+    /**
+     * Replaces element e in the given slot with REMOVED.
+     *
+     * @return true if successful
+     */
+    private boolean tombstone(int slot, Object e) {
+        if (!U.compareAndSwapObject(items, itemOffset(slot), e, REMOVED))
+            return false;
+        U.getAndAddLong(this, REMOVEDCOUNT, 1L);
+        return true;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this
+     * queue, if it is present.  More formally, removes an element
+     * {@code e} such that {@code o.equals(e)}, if this queue contains
+     * one or more such elements.  Returns {@code true} if this queue
+     * contained the specified element.
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(final Object o) {
+        if (o == null)
+            return false;
+        return forEachSlot(new SlotVisitor() {
+                public boolean visit(int slot, Object e) {
+                    return o.equals(e) && tombstone(slot, e);
+                }});
+    }
+
+    /**
+     * Removes the given element, compared by identity.
+     */
+    boolean removeExact(final Object o) {
+        return forEachSlot(new SlotVisitor() {
+                public boolean visit(int slot, Object e) {
+                    return o == e && tombstone(slot, e);
+                }});
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     * More formally, returns {@code true} if and only if this queue
+     * contains at least one element {@code e} such that
+     * {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(final Object o) {
+        if (o == null)
+            return false;
+        return forEachSlot(new SlotVisitor() {
+                public boolean visit(int slot, Object e) {
+                    return o.equals(e);
+                }});
+    }
+
+    /**
+     * Atomically removes all of the elements from this queue.
+     * The queue will be empty after this call returns, unless
+     * elements are concurrently inserted.
+     */
+    public void clear() {
+        while (tryRemove() != null)
+            ;
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        int n = 0;
+        for (E x; n < maxElements && (x = tryRemove()) != null; ++n)
+            c.add(x);
+        return n;
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue,
+     * in proper sequence.
+     *
+     * <p>The returned array will be "safe" in that no references to it
+     * are maintained by this queue.
+     *
+     * @return an array containing all of the elements in this queue
+     */
+    public Object[] toArray() {
+        final Object[] a = new Object[capacity];
+        final int[] n = new int[1];
+        forEachSlot(new SlotVisitor() {
+                public boolean visit(int slot, Object e) {
+                    a[n[0]++] = e;
+                    return n[0] == a.length;
+                }});
+        return Arrays.copyOf(a, n[0]);
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * proper sequence; the runtime type of the returned array is that of
+     * the specified array.  If the queue fits in the specified array, it
+     * is returned therein.  Otherwise, a new array is allocated with the
+     * runtime type of the specified array and the size of this queue.
+     *
+     * @param a the array into which the elements of the queue are to
+     *          be stored, if it is big enough; otherwise, a new array of the
+     *          same runtime type is allocated for this purpose
+     * @return an array containing all of the elements in this queue
+     * @throws ArrayStoreException if the runtime type of the specified array
+     *         is not a supertype of the runtime type of every element in
+     *         this queue
+     * @throws NullPointerException if the specified array is null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        Object[] es = toArray();
+        int n = es.length;
+        if (a.length < n)
+            return (T[])Arrays.copyOf(es, n, a.getClass());
+        System.arraycopy(es, 0, a, 0, n);
+        if (a.length > n)
+            a[n] = null;
+        return a;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper
+     * sequence.  The iterator traverses a snapshot of the elements
+     * present when it was created, and its {@code remove} method
+     * removes the last returned element if it is still present.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr(toArray());
+    }
+
+    /**
+     * Snapshot iterator.
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array;
+        int cursor;         // index of next element to return
+        int lastRet = -1;   // index of last element, or -1 if no such
+
+        Itr(Object[] array) {
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return (E)array[cursor++];
+        }
+
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            removeExact(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long HEAD;
+    private static final long TAIL;
+    private static final long REMOVEDCOUNT;
+    private static final int ABASE;
+    private static final int ASHIFT;
+    private static final int LBASE;
+    private static final int LSHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = LockFreeArrayBlockingQueue.class;
+            HEAD = U.objectFieldOffset
+                (k.getDeclaredField("head"));
+            TAIL = U.objectFieldOffset
+                (k.getDeclaredField("tail"));
+            REMOVEDCOUNT = U.objectFieldOffset
+                (k.getDeclaredField("removedCount"));
+            ABASE = U.arrayBaseOffset(Object[].class);
+            int scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            LBASE = U.arrayBaseOffset(long[].class);
+            int lscale = U.arrayIndexScale(long[].class);
+            if ((lscale & (lscale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            LSHIFT = 31 - Integer.numberOfLeadingZeros(lscale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
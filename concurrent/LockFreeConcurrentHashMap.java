@@ -0,0 +1,1069 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A hash table supporting full concurrency of retrievals and updates
+ * in which all operations, including growth of the table, are
+ * lock-free.  This class obeys the same functional specification as
+ * {@link ConcurrentHashMap}, but never blocks: where {@code
+ * ConcurrentHashMap} locks bins during updates and while moving them
+ * to a larger table, this class performs every update with a single
+ * successful compare-and-set, and grows its table incrementally
+ * without moving any mappings.  This avoids latency spikes when
+ * many threads update the map while it grows, at the price of
+ * somewhat slower retrievals (which must traverse linked nodes that
+ * are less compactly laid out than {@code ConcurrentHashMap}
+ * bins).  The table never shrinks.
+ *
+ * <p>Iterators are <i>weakly consistent</i>, returning elements
+ * reflecting the state of the map at some point at or since the
+ * creation of the iterator, and do not throw {@link
+ * java.util.ConcurrentModificationException}.  They return
+ * snapshot entries that do not support {@code setValue}.  Like
+ * {@link ConcurrentSkipListMap}, the {@code compute}, {@code
+ * computeIfAbsent}, {@code computeIfPresent} and {@code merge}
+ * methods are performed using atomic updates of values, so the
+ * supplied functions may be invoked more than once (with the results
+ * of all but one discarded) under contention.
+ *
+ * <p>Like {@link ConcurrentHashMap}, this class does <em>not</em>
+ * allow {@code null} to be used as a key or value.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class LockFreeConcurrentHashMap<K,V> extends AbstractMap<K,V>
+    implements ConcurrentMap<K,V>, Serializable {
+    private static final long serialVersionUID = -3457105939475294133L;
+
+    /*
+     * Overview:
+     *
+     * This is a split-ordered list (Shalev and Shavit, "Split-Ordered
+     * Lists: Lock-Free Extensible Hash Tables", JACM 2006).  All
+     * mappings are kept in a single lock-free linked list, sorted by
+     * the bit-reversal of their (spread) hash codes.  With this
+     * order, the nodes of bin i of a table of size 2^k are
+     * contiguous, and are split when the table doubles into two
+     * contiguous runs for bins i and i + 2^k.  So the table holds
+     * only shortcut pointers into the list, and to double the table,
+     * it suffices to CAS the bin count; bins of the larger table are
+     * lazily initialized on first use by inserting a "bucket" node at
+     * the position of the bin's first possible element, found by
+     * searching from its parent bin (the bin of the smaller table it
+     * splits from).  Bucket nodes are never removed.
+     *
+     * To distinguish bucket nodes, and to place them before all
+     * elements of their bins, list order uses a 32-bit "order" key:
+     * the bit-reversed bin index for buckets, and the bit-reversed
+     * hash with low bit set for elements (hashes use only 31 bits,
+     * so reversal leaves the low bit free).  Orders are stored with
+     * the sign bit flipped so that signed comparison gives the
+     * unsigned order.  Elements with equal orders (hash collisions)
+     * are unordered among themselves, and compared by equals.
+     *
+     * The list is maintained exactly as the base level of
+     * ConcurrentSkipListMap: nodes are deleted by CASing the value
+     * field to null, then appending a marker node, then CASing the
+     * predecessor's next field past both, and traversals help out
+     * with any of these steps that they encounter.  See the Overview
+     * in ConcurrentSkipListMap for explanation.  Updates of values
+     * of existing nodes are also done by CASing value fields.
+     *
+     * The table of bucket pointers is itself never copied: it is a
+     * fixed directory of lazily (CAS-) allocated segments, where
+     * segment k holds pointers for bins [2^(k-1), 2^k), (and segment
+     * 0 holds bin 0) so allocating the bins for a doubled table
+     * requires creating just one segment.
+     *
+     * Element counts are maintained in a LongAdder.  After each
+     * insertion that traversed more than twice LOAD_FACTOR nodes of
+     * its bin (as in ConcurrentHashMap, which checks only when bins
+     * are non-trivial), the count is summed and the bin count is
+     * doubled if the average bin holds more than LOAD_FACTOR
+     * elements.
+     */
+
+    /* ---------------- Constants -------------- */
+
+    /**
+     * The largest possible number of bins.  Must be a power of two
+     * at most 1<<30, so that bucket orders are even.
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The default initial number of bins.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The average number of elements per bin at which the number of
+     * bins is doubled.
+     */
+    private static final int LOAD_FACTOR = 2;
+
+    /**
+     * The number of segments in the bucket directory.
+     */
+    private static final int SEGMENTS = 31;
+
+    static final int HASH_BITS = 0x7fffffff; // usable bits of normal node hash
+
+    /**
+     * Special value used to identify bucket nodes.
+     */
+    private static final Object BUCKET = new Object();
+
+    /* ---------------- Nodes -------------- */
+
+    /**
+     * List nodes, as in ConcurrentSkipListMap, where the value field
+     * is null for deleted nodes, and refers to the node itself for
+     * markers, and to BUCKET for bucket nodes.
+     */
+    static final class Node<K,V> {
+        final int order;
+        final K key;
+        volatile Object value;
+        volatile Node<K,V> next;
+
+        /**
+         * Creates a new regular or bucket node.
+         */
+        Node(int order, K key, Object value, Node<K,V> next) {
+            this.order = order;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        /**
+         * Creates a new marker node.
+         */
+        Node(Node<K,V> next) {
+            this.order = 0;
+            this.key = null;
+            this.value = this;
+            this.next = next;
+        }
+
+        boolean casValue(Object cmp, Object val) {
+            return U.compareAndSwapObject(this, VALUE, cmp, val);
+        }
+
+        boolean casNext(Node<K,V> cmp, Node<K,V> val) {
+            return U.compareAndSwapObject(this, NEXT, cmp, val);
+        }
+
+        /**
+         * Tries to append a deletion marker to this node.
+         */
+        boolean appendMarker(Node<K,V> f) {
+            return casNext(f, new Node<K,V>(f));
+        }
+
+        /**
+         * Helps out a deletion by appending marker or unlinking from
+         * predecessor.  See ConcurrentSkipListMap.Node.helpDelete.
+         */
+        void helpDelete(Node<K,V> b, Node<K,V> f) {
+            if (f == next && this == b.next) {
+                if (f == null || f.value != f) // not already marked
+                    casNext(f, new Node<K,V>(f));
+                else
+                    b.casNext(this, f.next);
+            }
+        }
+
+        /**
+         * Returns value if this node contains a valid key-value pair,
+         * else null.
+         */
+        V getValidValue() {
+            Object v = value;
+            if (v == this || v == BUCKET)
+                return null;
+            @SuppressWarnings("unchecked") V vv = (V)v;
+            return vv;
+        }
+    }
+
+    /* ---------------- Static utilities -------------- */
+
+    /**
+     * Spreads higher bits of hash to lower, as in ConcurrentHashMap.
+     */
+    static final int spread(int h) {
+        return (h ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    /**
+     * Returns the order key of elements with spread hash h.
+     */
+    static final int elementOrder(int h) {
+        return (Integer.reverse(h) | 1) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the order key of the bucket node of bin i.
+     */
+    static final int bucketOrder(int i) {
+        return Integer.reverse(i) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns a power of two number of bins for the given desired
+     * capacity.
+     */
+    private static final int binsFor(int c) {
+        int n = Math.max(c / LOAD_FACTOR, 1) - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    /* ---------------- Fields -------------- */
+
+    /**
+     * The bucket node of bin 0, heading the list.
+     */
+    private transient Node<K,V> head;
+
+    /**
+     * The bucket directory.  Segment k, allocated on first use,
+     * holds the bucket nodes of bins [2^(k-1), 2^k), or bin 0 for k
+     * == 0.
+     */
+    private transient Node<K,V>[][] segments;
+
+    /**
+     * The number of bins; a power of two.  Increased via CAS.
+     */
+    private transient volatile int binCount;
+
+    /**
+     * The number of elements.
+     */
+    private transient LongAdder count;
+
+    /**
+     * The initial number of bins.
+     */
+    private final int initialBins;
+
+    // views
+    private transient EntrySetView<K,V> entrySet;
+
+    /**
+     * Initializes or resets state. Needed by constructors and
+     * readObject.
+     */
+    @SuppressWarnings("unchecked")
+    private void initialize() {
+        Node<K,V>[][] ss = (Node<K,V>[][])new Node<?,?>[SEGMENTS][];
+        Node<K,V> h = new Node<K,V>(bucketOrder(0), null, BUCKET, null);
+        (ss[0] = (Node<K,V>[])new Node<?,?>[1])[0] = h;
+        head = h;
+        segments = ss;
+        count = new LongAdder();
+        binCount = initialBins;
+    }
+
+    /* ---------------- Public operations -------------- */
+
+    /**
+     * Creates a new, empty map with the default initial table size.
+     */
+    public LockFreeConcurrentHashMap() {
+        this.initialBins = DEFAULT_CAPACITY;
+        initialize();
+    }
+
+    /**
+     * Creates a new, empty map with an initial table size
+     * accommodating the specified number of elements without the need
+     * to grow.
+     *
+     * @param initialCapacity the initial capacity
+     * @throws IllegalArgumentException if the initial capacity is negative
+     */
+    public LockFreeConcurrentHashMap(int initialCapacity) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException();
+        this.initialBins = binsFor(initialCapacity);
+        initialize();
+    }
+
+    /**
+     * Creates a new map with the same mappings as the given map.
+     *
+     * @param m the map
+     * @throws NullPointerException if the specified map or any of its
+     *         keys or values are null
+     */
+    public LockFreeConcurrentHashMap(Map<? extends K, ? extends V> m) {
+        this(m.size());
+        putAll(m);
+    }
+
+    // Original (since JDK1.2) Map methods
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        long n = count.sum();
+        return ((n < 0L) ? 0 :
+                (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                (int)n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty() {
+        return count.sum() <= 0L; // ignore transient negative values
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key.
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public V get(Object key) {
+        Node<K,V> n = findNode(key);
+        return (n == null) ? null : n.getValidValue();
+    }
+
+    /**
+     * Tests if the specified object is a key in this table.
+     *
+     * @param  key possible key
+     * @return {@code true} if and only if the specified object
+     *         is a key in this table, as determined by the
+     *         {@code equals} method; {@code false} otherwise
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns {@code true} if this map maps one or more keys to the
+     * specified value. Note: This method may require a full traversal
+     * of the map, and is much slower than method {@code containsKey}.
+     *
+     * @param value value whose presence in this map is to be tested
+     * @return {@code true} if this map maps one or more keys to the
+     *         specified value
+     * @throws NullPointerException if the specified value is null
+     */
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        for (Node<K,V> n = head.next; n != null; n = n.next) {
+            V v = n.getValidValue();
+            if (v != null && value.equals(v))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Maps the specified key to the specified value in this table.
+     * Neither the key nor the value can be null.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * Removes the key (and its corresponding value) from this map.
+     * This method does nothing if the key is not in the map.
+     *
+     * @param  key the key that needs to be removed
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key is null
+     */
+    public V remove(Object key) {
+        return replaceVal(key, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        return value != null && replaceVal(key, null, value) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if any of the arguments are null
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+        return replaceVal(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public V replace(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        return replaceVal(key, value, null);
+    }
+
+    /**
+     * Removes all of the mappings from this map.
+     */
+    public void clear() {
+        for (Node<K,V> n = head.next; n != null; n = n.next) {
+            if (n.key != null && n.getValidValue() != null)
+                replaceVal(n.key, null, null);
+        }
+    }
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this map.
+     * The set is backed by the map, so changes to the map are
+     * reflected in the set, and vice-versa.  The set supports element
+     * removal, which removes the corresponding mapping from the map,
+     * via the {@code Iterator.remove}, {@code Set.remove}, {@code
+     * removeAll}, {@code retainAll}, and {@code clear} operations.
+     *
+     * <p>The view's iterators are <i>weakly consistent</i>, and
+     * return snapshot entries that do not support {@code setValue}.
+     *
+     * @return the set view
+     */
+    public Set<Map.Entry<K,V>> entrySet() {
+        EntrySetView<K,V> es;
+        return (es = entrySet) != null ? es :
+            (entrySet = new EntrySetView<K,V>(this));
+    }
+
+    // Overrides of JDK8+ Map extension method defaults
+
+    /**
+     * Returns the value to which the specified key is mapped, or the
+     * given default value if this map contains no mapping for the
+     * key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @param defaultValue the value to return if this map contains
+     * no mapping for the given key
+     * @return the mapping for the key, if present; else the default value
+     * @throws NullPointerException if the specified key is null
+     */
+    public V getOrDefault(Object key, V defaultValue) {
+        V v;
+        return (v = get(key)) == null ? defaultValue : v;
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        for (Node<K,V> n = head.next; n != null; n = n.next) {
+            V v;
+            if (n.key != null && (v = n.getValidValue()) != null)
+                action.accept(n.key, v);
+        }
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * attempts to compute its value using the given mapping function
+     * and enters it into this map unless {@code null}.  The function
+     * is <em>NOT</em> guaranteed to be applied once atomically.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with
+     *         the specified key, or null if the computed value is null
+     * @throws NullPointerException if the specified key
+     *         or mappingFunction is null
+     */
+    public V computeIfAbsent(K key,
+                             Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        V v, p, r;
+        if ((v = get(key)) == null &&
+            (r = mappingFunction.apply(key)) != null)
+            v = (p = putVal(key, r, true)) == null ? r : p;
+        return v;
+    }
+
+    /**
+     * If the value for the specified key is present, attempts to
+     * compute a new mapping given the key and its current mapped
+     * value. The function is <em>NOT</em> guaranteed to be applied
+     * once atomically.
+     *
+     * @param key key with which a value may be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key
+     *         or remappingFunction is null
+     */
+    public V computeIfPresent(K key,
+                              BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        Node<K,V> n; V v;
+        while ((n = findNode(key)) != null) {
+            if ((v = n.getValidValue()) != null) {
+                V r = remappingFunction.apply(key, v);
+                if (r != null) {
+                    if (n.casValue(v, r))
+                        return r;
+                }
+                else if (replaceVal(key, null, v) != null)
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attempts to compute a mapping for the specified key and its
+     * current mapped value (or {@code null} if there is no current
+     * mapping). The function is <em>NOT</em> guaranteed to be applied
+     * once atomically.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key
+     *         or remappingFunction is null
+     */
+    public V compute(K key,
+                     BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        for (;;) {
+            Node<K,V> n; V v; V r;
+            if ((n = findNode(key)) == null) {
+                if ((r = remappingFunction.apply(key, null)) == null)
+                    break;
+                if (putVal(key, r, true) == null)
+                    return r;
+            }
+            else if ((v = n.getValidValue()) != null) {
+                if ((r = remappingFunction.apply(key, v)) != null) {
+                    if (n.casValue(v, r))
+                        return r;
+                }
+                else if (replaceVal(key, null, v) != null)
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * associates it with the given value.  Otherwise, replaces the
+     * value with the results of the given remapping function, or
+     * removes if {@code null}. The function is <em>NOT</em>
+     * guaranteed to be applied once atomically.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value the value to use if absent
+     * @param remappingFunction the function to recompute a value if present
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or value
+     *         or remappingFunction is null
+     */
+    public V merge(K key, V value,
+                   BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null)
+            throw new NullPointerException();
+        for (;;) {
+            Node<K,V> n; V v; V r;
+            if ((n = findNode(key)) == null) {
+                if (putVal(key, value, true) == null)
+                    return value;
+            }
+            else if ((v = n.getValidValue()) != null) {
+                if ((r = remappingFunction.apply(v, value)) != null) {
+                    if (n.casValue(v, r))
+                        return r;
+                }
+                else if (replaceVal(key, null, v) != null)
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of mappings. This method should be used
+     * instead of {@link #size} because a map may contain more
+     * mappings than can be represented as an int. The value returned
+     * is an estimate; the actual count may differ if there are
+     * concurrent insertions or removals.
+     *
+     * @return the number of mappings
+     */
+    public long mappingCount() {
+        long n = count.sum();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    /* ---------------- Bins -------------- */
+
+    /**
+     * Returns the bucket node of bin i, or null if not yet initialized.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K,V> bucketAt(int i) {
+        int k = 32 - Integer.numberOfLeadingZeros(i);
+        Node<K,V>[] s = (Node<K,V>[])U.getObjectVolatile
+            (segments, ((long)k << ASHIFT) + ABASE);
+        if (s == null)
+            return null;
+        int j = (k == 0) ? 0 : i - (1 << (k - 1));
+        return (Node<K,V>)U.getObjectVolatile(s, ((long)j << ASHIFT) + ABASE);
+    }
+
+    /**
+     * Records the bucket node of bin i, allocating its segment if
+     * necessary, and returns the recorded node (which may differ if
+     * another thread recorded one first).
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K,V> setBucketAt(int i, Node<K,V> b) {
+        int k = 32 - Integer.numberOfLeadingZeros(i);
+        long so = ((long)k << ASHIFT) + ABASE;
+        Node<K,V>[] s;
+        while ((s = (Node<K,V>[])U.getObjectVolatile(segments, so)) == null) {
+            Node<K,V>[] ns = (Node<K,V>[])new Node<?,?>[1 << (k - 1)];
+            U.compareAndSwapObject(segments, so, null, ns);
+        }
+        long j = ((long)(i - (1 << (k - 1))) << ASHIFT) + ABASE;
+        Node<K,V> p;
+        if (U.compareAndSwapObject(s, j, null, b))
+            return b;
+        return ((p = (Node<K,V>)U.getObjectVolatile(s, j)) != null) ? p : b;
+    }
+
+    /**
+     * Returns the bucket node for the bin of spread hash h in the
+     * current table.
+     */
+    private Node<K,V> bucketFor(int h) {
+        int i = h & (binCount - 1);
+        Node<K,V> b;
+        return ((b = bucketAt(i)) != null) ? b : initBucket(i);
+    }
+
+    /**
+     * Inserts the bucket node of bin i (i > 0), after initializing
+     * its parent if necessary.
+     */
+    private Node<K,V> initBucket(int i) {
+        int pi = i & ~Integer.highestOneBit(i);
+        Node<K,V> p, z = null;
+        if ((p = bucketAt(pi)) == null)
+            p = initBucket(pi);
+        int o = bucketOrder(i);
+        outer: for (;;) {
+            for (Node<K,V> b = p, n = b.next;;) {
+                if (n != null) {
+                    Object v; int c;
+                    Node<K,V> f = n.next;
+                    if (n != b.next)               // inconsistent read
+                        break;
+                    if ((v = n.value) == null) {   // n is deleted
+                        n.helpDelete(b, f);
+                        break;
+                    }
+                    if (b.value == null || v == n) // b is deleted
+                        break;
+                    if ((c = n.order) < o) {
+                        b = n;
+                        n = f;
+                        continue;
+                    }
+                    if (c == o) {                  // already inserted
+                        z = n;
+                        break outer;
+                    }
+                }
+                z = new Node<K,V>(o, null, BUCKET, n);
+                if (b.casNext(n, z))
+                    break outer;
+                break;                             // restart if lost race
+            }
+        }
+        return setBucketAt(i, z);
+    }
+
+    /**
+     * Adds to count, and if the insertion traversed a long bin,
+     * checks whether to double the number of bins.
+     *
+     * @param steps the number of nodes traversed in the bin
+     */
+    private void addCount(int steps) {
+        LongAdder c = count;
+        c.increment();
+        int n;
+        if (steps > LOAD_FACTOR << 1 && (n = binCount) < MAXIMUM_CAPACITY &&
+            c.sum() > (long)n * LOAD_FACTOR)
+            U.compareAndSwapInt(this, BINCOUNT, n, n << 1);
+    }
+
+    /* ---------------- Implementation of updates -------------- */
+
+    /**
+     * Returns the node holding key, or null if none.  Unlinks any
+     * deleted nodes encountered.
+     */
+    private Node<K,V> findNode(Object key) {
+        if (key == null)
+            throw new NullPointerException();
+        int h = spread(key.hashCode()), o = elementOrder(h);
+        for (;;) {
+            for (Node<K,V> b = bucketFor(h), n = b.next;;) {
+                Object v; int c;
+                if (n == null)
+                    return null;
+                Node<K,V> f = n.next;
+                if (n != b.next)                   // inconsistent read
+                    break;
+                if ((v = n.value) == null) {       // n is deleted
+                    n.helpDelete(b, f);
+                    break;
+                }
+                if (b.value == null || v == n)     // b is deleted
+                    break;
+                if ((c = n.order) > o)
+                    return null;
+                if (c == o && key.equals(n.key))
+                    return n;
+                b = n;
+                n = f;
+            }
+        }
+    }
+
+    /** Implementation for put and putIfAbsent */
+    @SuppressWarnings("unchecked")
+    final V putVal(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null) throw new NullPointerException();
+        int h = spread(key.hashCode()), o = elementOrder(h);
+        for (;;) {
+            int steps = 0;
+            for (Node<K,V> b = bucketFor(h), n = b.next;; ++steps) {
+                if (n != null) {
+                    Object v; int c;
+                    Node<K,V> f = n.next;
+                    if (n != b.next)               // inconsistent read
+                        break;
+                    if ((v = n.value) == null) {   // n is deleted
+                        n.helpDelete(b, f);
+                        break;
+                    }
+                    if (b.value == null || v == n) // b is deleted
+                        break;
+                    if ((c = n.order) < o || (c == o && !key.equals(n.key))) {
+                        b = n;
+                        n = f;
+                        continue;
+                    }
+                    if (c == o) {
+                        if (onlyIfAbsent || n.casValue(v, value))
+                            return (V)v;
+                        break;                     // restart if lost race
+                    }
+                }
+                Node<K,V> z = new Node<K,V>(o, key, value, n);
+                if (!b.casNext(n, z))
+                    break;                         // restart if lost race
+                addCount(steps);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Implementation for the four public remove/replace methods:
+     * Replaces node value with v, conditional upon match of cv if
+     * non-null.  If resulting value is null, delete.
+     */
+    @SuppressWarnings("unchecked")
+    final V replaceVal(Object key, V value, Object cv) {
+        if (key == null)
+            throw new NullPointerException();
+        int h = spread(key.hashCode()), o = elementOrder(h);
+        outer: for (;;) {
+            for (Node<K,V> b = bucketFor(h), n = b.next;;) {
+                Object v; int c;
+                if (n == null)
+                    break outer;
+                Node<K,V> f = n.next;
+                if (n != b.next)                   // inconsistent read
+                    break;
+                if ((v = n.value) == null) {       // n is deleted
+                    n.helpDelete(b, f);
+                    break;
+                }
+                if (b.value == null || v == n)     // b is deleted
+                    break;
+                if ((c = n.order) > o)
+                    break outer;
+                if (c < o || !key.equals(n.key)) {
+                    b = n;
+                    n = f;
+                    continue;
+                }
+                if (cv != null && !cv.equals(v))
+                    break outer;
+                if (!n.casValue(v, value))
+                    break;
+                if (value == null) {
+                    if (!n.appendMarker(f) || !b.casNext(n, f))
+                        findNode(key);             // retry via findNode
+                    count.decrement();
+                }
+                return (V)v;
+            }
+        }
+        return null;
+    }
+
+    /* ---------------- Views -------------- */
+
+    static final class EntryIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+        final LockFreeConcurrentHashMap<K,V> map;
+        Node<K,V> next;         // next node to return
+        V nextValue;            // cached value field of next
+        K lastReturned;
+        EntryIterator(LockFreeConcurrentHashMap<K,V> map) {
+            this.map = map;
+            this.next = map.head;
+            advance();
+        }
+
+        /**
+         * Advances next to the next valid element node.
+         */
+        private void advance() {
+            Node<K,V> n = next;
+            while ((n = n.next) != null) {
+                V v;
+                if (n.key != null && (v = n.getValidValue()) != null) {
+                    nextValue = v;
+                    break;
+                }
+            }
+            next = n;
+        }
+
+        public boolean hasNext() { return next != null; }
+
+        public Map.Entry<K,V> next() {
+            Node<K,V> n;
+            if ((n = next) == null)
+                throw new NoSuchElementException();
+            V v = nextValue;
+            lastReturned = n.key;
+            advance();
+            return new AbstractMap.SimpleImmutableEntry<K,V>(n.key, v);
+        }
+
+        public void remove() {
+            K k;
+            if ((k = lastReturned) == null)
+                throw new IllegalStateException();
+            lastReturned = null;
+            map.remove(k);
+        }
+    }
+
+    static final class EntrySetView<K,V> extends AbstractSet<Map.Entry<K,V>> {
+        final LockFreeConcurrentHashMap<K,V> map;
+        EntrySetView(LockFreeConcurrentHashMap<K,V> map) { this.map = map; }
+
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator<K,V>(map);
+        }
+        public int size() { return map.size(); }
+        public boolean isEmpty() { return map.isEmpty(); }
+        public void clear() { map.clear(); }
+
+        public boolean contains(Object o) {
+            Object k, v, r; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (r = map.get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    map.remove(k, v));
+        }
+    }
+
+    /* ---------------- Serialization -------------- */
+
+    /**
+     * Saves this map to a stream (that is, serializes it).
+     *
+     * @param s the stream
+     * @throws java.io.IOException if an I/O error occurs
+     * @serialData the key (Object) and value (Object)
+     * for each key-value mapping, followed by a null pair.
+     * The key-value mappings are emitted in no particular order.
+     */
+    private void writeObject(java.io.ObjectOutputStream s)
+        throws java.io.IOException {
+        s.defaultWriteObject();
+        for (Node<K,V> n = head.next; n != null; n = n.next) {
+            V v;
+            if (n.key != null && (v = n.getValidValue()) != null) {
+                s.writeObject(n.key);
+                s.writeObject(v);
+            }
+        }
+        s.writeObject(null);
+        s.writeObject(null);
+    }
+
+    /**
+     * Reconstitutes this map from a stream (that is, deserializes it).
+     * @param s the stream
+     * @throws ClassNotFoundException if the class of a serialized object
+     *         could not be found
+     * @throws java.io.IOException if an I/O error occurs
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream s)
+        throws java.io.IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        initialize();
+        for (;;) {
+            K k = (K) s.readObject();
+            V v = (V) s.readObject();
+            if (k != null && v != null)
+                putVal(k, v, false);
+            else
+                break;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long BINCOUNT;
+    private static final long VALUE;
+    private static final long NEXT;
+    private static final long ABASE;
+    private static final int ASHIFT;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = LockFreeConcurrentHashMap.class;
+            BINCOUNT = U.objectFieldOffset
+                (k.getDeclaredField("binCount"));
+            Class<?> nk = Node.class;
+            VALUE = U.objectFieldOffset
+                (nk.getDeclaredField("value"));
+            NEXT = U.objectFieldOffset
+                (nk.getDeclaredField("next"));
+            Class<?> ak = Object[].class;
+            ABASE = U.arrayBaseOffset(ak);
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
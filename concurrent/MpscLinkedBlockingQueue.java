@@ -0,0 +1,465 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import concurrent.locks.LockSupport;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * An unbounded {@linkplain BlockingQueue blocking queue} based on
+ * linked nodes, for use by any number of producer threads and exactly
+ * one consumer thread.  This queue orders elements FIFO
+ * (first-in-first-out).
+ *
+ * <p>Any thread may invoke the insertion methods, but at most one
+ * thread at a time may invoke the removal methods ({@code poll},
+ * {@code take}, {@code remove()}, {@code peek}, {@code element},
+ * {@code clear}, {@code drainTo} and {@link #drain}); the consumer
+ * may change over time only if the hand-over is otherwise
+ * synchronized.  Under this restriction an insertion is a single
+ * atomic exchange that never fails or retries, and removal uses no
+ * atomic instructions at all, so hand-offs are considerably cheaper
+ * than with {@link LinkedBlockingQueue} or {@link
+ * ConcurrentLinkedQueue}.  The effects of violating it are
+ * undefined.  Other methods may be invoked by any thread.
+ *
+ * <p>Removal of interior elements is not supported: {@link
+ * #remove(Object)} and the {@code remove} method of iterators throw
+ * {@link UnsupportedOperationException}.  Iterators are weakly
+ * consistent.  As with {@code ConcurrentLinkedQueue}, the {@code size}
+ * method is <em>NOT</em> a constant-time operation.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class MpscLinkedBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+     * Overview:
+     *
+     * This is Dmitry Vyukov's intrusive MPSC node queue.  The list
+     * always starts with a dummy node, head, owned by the consumer.
+     * A producer swaps its new node into tail with getAndSet, and
+     * then links the previous tail to it with an ordered write.
+     * Between the two steps the list is momentarily disconnected:
+     * tail has moved on but the old tail's next is still null.  A
+     * consumer finding head.next null while head != tail knows an
+     * insertion is in progress and waits for the link, so elements
+     * are never missed.  The consumer removes an element by making
+     * its node the new dummy head, clearing its item, and linking
+     * the old head to itself, which both helps GC and tells
+     * iterators holding it to restart from head, as in
+     * LinkedBlockingQueue.
+     *
+     * A blocked consumer records itself in takeWaiter and then
+     * rechecks tail before parking.  Since producers read takeWaiter
+     * after their getAndSet of tail, either the producer sees the
+     * waiter and unparks it or the consumer sees the new tail.
+     */
+
+    static final class Node<E> {
+        volatile E item;
+        volatile Node<E> next;
+
+        Node(E item) {
+            U.putObject(this, ITEM, item);
+        }
+    }
+
+    /** Dummy node preceding the first element; owned by the consumer */
+    @sun.misc.Contended("consumer")
+    volatile Node<E> head;
+
+    /** Last node; swapped in by producers */
+    @sun.misc.Contended("producer")
+    volatile Node<E> tail;
+
+    /** Consumer blocked waiting for an element, or null */
+    volatile Thread takeWaiter;
+
+    /**
+     * Creates an initially empty {@code MpscLinkedBlockingQueue}.
+     */
+    public MpscLinkedBlockingQueue() {
+        head = tail = new Node<E>(null);
+    }
+
+    /**
+     * Creates a {@code MpscLinkedBlockingQueue} initially containing
+     * the elements of the given collection, added in traversal order
+     * of the collection's iterator.
+     *
+     * @param c the collection of elements to initially contain
+     * @throws NullPointerException if the specified collection or any
+     *         of its elements are null
+     */
+    public MpscLinkedBlockingQueue(Collection<? extends E> c) {
+        this();
+        for (E e : c)
+            offer(e);
+    }
+
+    /**
+     * Returns the successor of the consumer's head h, waiting for a
+     * producer to link it if one is in progress, or null if empty.
+     */
+    private Node<E> firstNode(Node<E> h) {
+        Node<E> n;
+        if ((n = h.next) == null && h != tail) {
+            while ((n = h.next) == null)
+                Thread.yield();
+        }
+        return n;
+    }
+
+    /**
+     * Makes n, the successor of h, the new head, and returns its item.
+     */
+    private E advanceHead(Node<E> h, Node<E> n) {
+        E x = n.item;
+        U.putOrderedObject(n, ITEM, null);
+        U.putOrderedObject(this, HEAD, n);
+        U.putOrderedObject(h, NEXT, h);
+        return x;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never return
+     * {@code false}.
+     *
+     * @return {@code true} (as specified by {@link java.util.Queue#offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    @SuppressWarnings("unchecked")
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Node<E> node = new Node<E>(e);
+        Node<E> p = (Node<E>)U.getAndSetObject(this, TAIL, node);
+        U.putOrderedObject(p, NEXT, node);
+        Thread w;
+        if ((w = takeWaiter) != null)
+            LockSupport.unpark(w);
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never block.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue.
+     * As the queue is unbounded, this method will never block or
+     * return {@code false}.
+     *
+     * @return {@code true} (as specified by
+     *  {@link BlockingQueue#offer(Object,long,TimeUnit) BlockingQueue.offer})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns {@code
+     * null} if this queue is empty.  Must be invoked only by the
+     * consumer.
+     *
+     * @return the head of this queue, or {@code null} if this queue is empty
+     */
+    public E poll() {
+        Node<E> h = head, n;
+        return ((n = firstNode(h)) == null) ? null : advanceHead(h, n);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if
+     * necessary until an element becomes available.  Must be invoked
+     * only by the consumer.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        E x;
+        while ((x = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null)
+            ;
+        return x;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting up to the
+     * specified wait time if necessary for an element to become
+     * available.  Must be invoked only by the consumer.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Node<E> h = head, n;
+        if ((n = firstNode(h)) == null) {
+            long nanos = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+            Thread me = Thread.currentThread();
+            try {
+                for (;;) {
+                    takeWaiter = me;
+                    if ((n = firstNode(h)) != null)
+                        break;
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                    if (nanos <= 0L)
+                        return null;
+                    LockSupport.parkNanos(this, nanos);
+                    nanos = deadline - System.nanoTime();
+                }
+            } finally {
+                takeWaiter = null;
+            }
+        }
+        return advanceHead(h, n);
+    }
+
+    /**
+     * Removes up to {@code limit} available elements from this queue,
+     * in order, passing each to the given action.  If the action
+     * throws an exception, the element it was given has been removed.
+     * Must be invoked only by the consumer.
+     *
+     * @param action the action to apply to each element
+     * @param limit the maximum number of elements to remove
+     * @return the number of elements removed
+     * @throws NullPointerException if the action is null
+     */
+    public int drain(Consumer<? super E> action, int limit) {
+        if (action == null)
+            throw new NullPointerException();
+        int i = 0;
+        for (Node<E> h = head, n; i < limit && (n = firstNode(h)) != null;
+             h = n) {
+            ++i;
+            action.accept(advanceHead(h, n));
+        }
+        return i;
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(final Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        return drain(new Consumer<E>() {
+                public void accept(E e) { c.add(e); }
+            }, maxElements);
+    }
+
+    /**
+     * Returns the first live node at or after the successor of p,
+     * restarting from head if p has been removed, or null if none.
+     */
+    private Node<E> nextLive(Node<E> p) {
+        for (;;) {
+            Node<E> s = p.next;
+            if (s == p)
+                s = head.next;
+            if (s == null || s.item != null)
+                return s;
+            p = s;
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or
+     * returns {@code null} if this queue is empty.
+     *
+     * @return the head of this queue, or {@code null} if this queue is empty
+     */
+    public E peek() {
+        for (;;) {
+            Node<E> p = nextLive(head);
+            E x;
+            if (p == null)
+                return null;
+            if ((x = p.item) != null)
+                return x;
+        }
+    }
+
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.  If this queue
+     * contains more than {@code Integer.MAX_VALUE} elements, returns
+     * {@code Integer.MAX_VALUE}.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        int count = 0;
+        for (Node<E> p = nextLive(head); p != null; p = nextLive(p)) {
+            if (++count == Integer.MAX_VALUE)
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because a
+     * {@code MpscLinkedBlockingQueue} is not capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE} (as specified by
+     *         {@link BlockingQueue#remainingCapacity()})
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     * More formally, returns {@code true} if and only if this queue
+     * contains at least one element {@code e} such that
+     * {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o != null) {
+            for (Node<E> p = nextLive(head); p != null; p = nextLive(p)) {
+                E x = p.item;
+                if (x != null && o.equals(x))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper
+     * sequence.  The iterator does not support the {@code remove}
+     * method.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * Weakly consistent iterator.  It holds the next element to hand
+     * out so that if hasNext() reports true, it is still returned
+     * even if the consumer removes it in the meantime.
+     */
+    private class Itr implements Iterator<E> {
+        private Node<E> current;
+        private E nextItem;
+
+        Itr() {
+            advance(head);
+        }
+
+        private void advance(Node<E> p) {
+            E x = null;
+            while ((p = nextLive(p)) != null && (x = p.item) == null)
+                ;
+            current = p;
+            nextItem = x;
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            E x = nextItem;
+            if (x == null)
+                throw new NoSuchElementException();
+            advance(current);
+            return x;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long HEAD;
+    private static final long TAIL;
+    private static final long ITEM;
+    private static final long NEXT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = MpscLinkedBlockingQueue.class;
+            HEAD = U.objectFieldOffset
+                (k.getDeclaredField("head"));
+            TAIL = U.objectFieldOffset
+                (k.getDeclaredField("tail"));
+            Class<?> nk = Node.class;
+            ITEM = U.objectFieldOffset
+                (nk.getDeclaredField("item"));
+            NEXT = U.objectFieldOffset
+                (nk.getDeclaredField("next"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
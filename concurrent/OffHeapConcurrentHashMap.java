@@ -0,0 +1,2293 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import concurrent.ConcurrentHashMap.CounterCell;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A {@link ConcurrentMap} that stores its keys and values outside the
+ * Java heap, in direct buffers or in a memory-mapped file.  Keys and
+ * values are converted to bytes by {@link Serializer}s supplied on
+ * construction; the heap holds only a compact index of hash codes
+ * and record addresses (about twelve bytes per mapping), so that
+ * very large maps add little to garbage collection work.
+ *
+ * <p>This class provides the same concurrency properties and most of
+ * the methods of {@link ConcurrentHashMap}, including the {@code
+ * compute} and {@code merge} methods and parallel bulk {@code
+ * forEach} and {@code reduce} operations.  Retrievals do not
+ * ordinarily block; update operations lock only the bin of the
+ * index holding the key.  However, every retrieval deserializes a
+ * new copy of the value, and every update serializes its arguments,
+ * so (unlike {@code ConcurrentHashMap}) modifications of a value
+ * object after it has been stored are not reflected in the map.
+ *
+ * <p>Keys, and values, are compared by their serialized forms: two
+ * keys are the same if and only if their serializations are equal
+ * byte sequences.  The key serializer must therefore map equal keys
+ * to identical bytes.  Like {@code ConcurrentHashMap}, this class
+ * does <em>not</em> allow {@code null} to be used as a key or value.
+ * Serializers must be thread-safe.
+ *
+ * <p>Off-heap storage is allocated in chunks as needed, up to an
+ * optional maximum; an update that would exceed it throws {@code
+ * IllegalStateException}.  Storage freed by removals and
+ * replacements is reused by later insertions, but is not returned to
+ * the operating system until the map itself becomes unreachable.  A
+ * memory-mapped file serves only as backing storage for the records;
+ * the index is not persisted, and an existing file is truncated.
+ * Maps backed by files should be {@linkplain #close closed} when no
+ * longer needed, to release the file.  This class is not
+ * serializable.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class OffHeapConcurrentHashMap<K,V> extends AbstractMap<K,V>
+    implements ConcurrentMap<K,V>, Closeable {
+
+    /*
+     * Overview:
+     *
+     * The on-heap index is a table of bins managed just as in
+     * ConcurrentHashMap, with the same initialization, sizeCtl and
+     * transferIndex resizing protocol, bin locking and CounterCell
+     * counts (compare ConcurrentLongLongHashMap, which uses the same
+     * scheme with primitive bins).  Each Bin holds parallel arrays of
+     * the (spread) hash codes of keys and the addresses of their
+     * records in an Arena of off-heap memory.  Records hold the key
+     * and value lengths followed by the serialized key and value
+     * bytes, and are immutable: an update writes a new record and
+     * frees the old one.  Bins average up to BIN_LOAD mappings, and
+     * are searched linearly by hash code, comparing key bytes on
+     * hash matches.
+     *
+     * Unlike Nodes in ConcurrentHashMap, records do not remain valid
+     * after removal: their memory may be reused at any time for other
+     * records.  So retrievals use a sequence-lock protocol on each
+     * Bin (similar to StampedLock optimistic reads).  Each Bin has a
+     * version that is odd while the Bin is being updated (under its
+     * lock), and any update that frees records does so while the
+     * version is odd.  A reader records the version, searches the
+     * Bin and copies out the value bytes, and then rechecks the
+     * version; if unchanged, no record it read can have been freed
+     * meanwhile.  Otherwise (or if the version is odd) it falls back
+     * to searching under the Bin lock.  Because the optimistic pass
+     * may encounter inconsistent data, all off-heap accesses are
+     * bounds-checked against the Arena, and exceptions during this
+     * pass are treated as validation failures.  When a Bin is removed
+     * from the table (on becoming empty, or when transferred during
+     * resizing), it is left with an odd version, so readers holding
+     * it always revalidate.
+     *
+     * Traversals copy out the bytes of each Bin's records under its
+     * lock, and deserialize them after releasing it.
+     *
+     * The Arena allocates records in power-of-two size classes, each
+     * with a free list guarded by its own lock, falling back to
+     * bump-pointer allocation from chunks of direct or mapped
+     * buffers.  Record addresses are offsets in a virtual space
+     * formed by concatenating chunks; blocks never span chunks.
+     */
+
+    /* ---------------- Serializers -------------- */
+
+    /**
+     * A strategy for converting objects to and from byte sequences.
+     * Implementations must be thread-safe, and {@code deserialize}
+     * must reconstitute an object equivalent to one serialized.
+     *
+     * @param <T> the type of objects serialized
+     */
+    public interface Serializer<T> {
+        /**
+         * Returns the serialized form of the given object.
+         *
+         * @param t a non-null object
+         * @return its serialized form
+         */
+        byte[] serialize(T t);
+
+        /**
+         * Reconstitutes an object from its serialized form.
+         *
+         * @param bytes the serialized form, which may be retained
+         * @return the object
+         */
+        T deserialize(byte[] bytes);
+    }
+
+    /**
+     * Returns a serializer for {@code Long} values, using eight
+     * bytes in big-endian order.
+     *
+     * @return the serializer
+     */
+    public static Serializer<Long> longSerializer() {
+        return LongSerializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer for {@code Integer} values, using four
+     * bytes in big-endian order.
+     *
+     * @return the serializer
+     */
+    public static Serializer<Integer> integerSerializer() {
+        return IntegerSerializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer for {@code String} values, using their
+     * UTF-8 encoding.
+     *
+     * @return the serializer
+     */
+    public static Serializer<String> stringSerializer() {
+        return StringSerializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer for byte arrays, using their contents.
+     * Note that byte array keys are thus compared by contents, not
+     * identity.
+     *
+     * @return the serializer
+     */
+    public static Serializer<byte[]> byteArraySerializer() {
+        return ByteArraySerializer.INSTANCE;
+    }
+
+    /**
+     * Returns a serializer using Java Object Serialization.  It is
+     * suitable for values of any {@link java.io.Serializable} type,
+     * but for keys only of types whose serialized forms are
+     * identical for equal instances.
+     *
+     * @param <T> the type of objects serialized
+     * @return the serializer
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Serializer<T> javaSerializer() {
+        return (Serializer<T>)JavaSerializer.INSTANCE;
+    }
+
+    static final class LongSerializer implements Serializer<Long> {
+        static final LongSerializer INSTANCE = new LongSerializer();
+        public byte[] serialize(Long t) {
+            return ByteBuffer.allocate(8).putLong(t).array();
+        }
+        public Long deserialize(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getLong();
+        }
+    }
+
+    static final class IntegerSerializer implements Serializer<Integer> {
+        static final IntegerSerializer INSTANCE = new IntegerSerializer();
+        public byte[] serialize(Integer t) {
+            return ByteBuffer.allocate(4).putInt(t).array();
+        }
+        public Integer deserialize(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+    }
+
+    static final class StringSerializer implements Serializer<String> {
+        static final StringSerializer INSTANCE = new StringSerializer();
+        public byte[] serialize(String t) {
+            return t.getBytes(StandardCharsets.UTF_8);
+        }
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    static final class ByteArraySerializer implements Serializer<byte[]> {
+        static final ByteArraySerializer INSTANCE = new ByteArraySerializer();
+        public byte[] serialize(byte[] t) {
+            return t.clone();
+        }
+        public byte[] deserialize(byte[] bytes) {
+            return bytes;
+        }
+    }
+
+    static final class JavaSerializer implements Serializer<Object> {
+        static final JavaSerializer INSTANCE = new JavaSerializer();
+        public byte[] serialize(Object t) {
+            try {
+                ByteArrayOutputStream bo = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bo);
+                out.writeObject(t);
+                out.close();
+                return bo.toByteArray();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        public Object deserialize(byte[] bytes) {
+            try {
+                return new ObjectInputStream
+                    (new ByteArrayInputStream(bytes)).readObject();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (ClassNotFoundException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    /* ---------------- Constants -------------- */
+
+    /**
+     * The largest possible table capacity.  See ConcurrentHashMap.
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The default initial table capacity.  Must be a power of 2
+     * (i.e., at least 1) and at most MAXIMUM_CAPACITY.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The average number of mappings per bin at which the table is
+     * doubled.  Bins are searched linearly, so this is smaller than
+     * in ConcurrentLongLongHashMap, but still large enough that the
+     * per-Bin overhead is small relative to that of the mappings.
+     */
+    private static final int BIN_LOAD = 8;
+
+    /**
+     * The initial array capacity of a Bin.
+     */
+    private static final int MIN_BIN_CAPACITY = 4;
+
+    /**
+     * Minimum number of rebinnings per transfer step.  See
+     * ConcurrentHashMap.
+     */
+    private static final int MIN_TRANSFER_STRIDE = 16;
+
+    /**
+     * The number of bits used for generation stamp in sizeCtl.
+     * Must be at least 6 for 32bit arrays.
+     */
+    private static final int RESIZE_STAMP_BITS = 16;
+
+    /**
+     * The maximum number of threads that can help resize.
+     * Must fit in 32 - RESIZE_STAMP_BITS bits.
+     */
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+
+    /**
+     * The bit shift for recording size stamp in sizeCtl.
+     */
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+
+    static final int HASH_BITS = 0x7fffffff; // usable bits of normal node hash
+
+    /**
+     * The log2 of the default size of off-heap chunks.
+     */
+    private static final int DEFAULT_CHUNK_SHIFT = 26;
+
+    /**
+     * The size of record headers, holding key and value lengths.
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * The log2 of the smallest block size, large enough to hold a
+     * header or free-list link.
+     */
+    static final int MIN_SIZE_CLASS = 4;
+
+    /** Null record address */
+    static final long NIL = -1L;
+
+    /*
+     * Modes for computeVal.
+     */
+    static final int COMPUTE_IF_ABSENT  = 0;
+    static final int COMPUTE_IF_PRESENT = 1;
+    static final int COMPUTE            = 2;
+    static final int MERGE              = 3;
+
+    /* ---------------- Off-heap storage -------------- */
+
+    /**
+     * Allocator and accessor for records in off-heap chunks.  All
+     * accessors check addresses and lengths against chunk bounds, so
+     * may be used (by optimistic readers) with possibly invalid
+     * addresses, throwing IllegalStateException rather than accessing
+     * memory outside chunks.
+     */
+    static final class Arena {
+        final FileChannel channel;     // null if using direct buffers
+        final int chunkShift;
+        final long chunkSize;
+        final long limit;              // maximum total size of chunks
+        volatile long top;             // next unallocated address
+        volatile long[] bases;         // native addresses of chunks
+        ByteBuffer[] buffers;          // chunks; guarded by this
+        final long[] freeHeads;        // guarded by freeLocks
+        final Object[] freeLocks;
+
+        Arena(FileChannel channel, int chunkShift, long limit) {
+            this.channel = channel;
+            this.chunkShift = chunkShift;
+            this.chunkSize = 1L << chunkShift;
+            this.limit = limit;
+            this.bases = new long[0];
+            this.buffers = new ByteBuffer[0];
+            int nc = chunkShift + 1;
+            long[] hs = new long[nc];
+            Arrays.fill(hs, NIL);
+            this.freeHeads = hs;
+            Object[] ls = new Object[nc];
+            for (int c = 0; c < nc; ++c)
+                ls[c] = new Object();
+            this.freeLocks = ls;
+        }
+
+        /**
+         * Returns the size class of blocks holding size bytes.
+         */
+        static int sizeClass(long size) {
+            int c = 64 - Long.numberOfLeadingZeros(size - 1L);
+            return (c < MIN_SIZE_CLASS) ? MIN_SIZE_CLASS : c;
+        }
+
+        /**
+         * Returns the native address of the given length range at
+         * address g.
+         *
+         * @throws IllegalStateException if out of bounds
+         */
+        final long address(long g, long len) {
+            long[] bs = bases; long off; int c;
+            if (g < 0L || (c = (int)(g >>> chunkShift)) >= bs.length ||
+                len < 0L || (off = g & (chunkSize - 1L)) + len > chunkSize)
+                throw new IllegalStateException("Invalid record address");
+            return bs[c] + off;
+        }
+
+        /**
+         * Allocates and writes a record, returning its address.
+         */
+        final long write(byte[] kb, byte[] vb) {
+            long size = (long)HEADER_SIZE + kb.length + vb.length;
+            if (size > chunkSize)
+                throw new IllegalArgumentException("Record too large");
+            long g = allocate(sizeClass(size));
+            long a = address(g, size);
+            U.putInt(a, kb.length);
+            U.putInt(a + 4L, vb.length);
+            U.copyMemory(kb, BYTE_BASE, null, a + HEADER_SIZE, kb.length);
+            U.copyMemory(vb, BYTE_BASE, null, a + HEADER_SIZE + kb.length,
+                         vb.length);
+            return g;
+        }
+
+        /**
+         * Returns the total length of the record at g.
+         */
+        final long recordSize(long g) {
+            long a = address(g, HEADER_SIZE);
+            int kl = U.getInt(a), vl = U.getInt(a + 4L);
+            if (kl < 0 || vl < 0)
+                throw new IllegalStateException("Invalid record header");
+            return (long)HEADER_SIZE + kl + vl;
+        }
+
+        /**
+         * Returns true if the key of the record at g has the given bytes.
+         */
+        final boolean keyEquals(long g, byte[] kb) {
+            long a = address(g, HEADER_SIZE);
+            int kl = U.getInt(a);
+            if (kl != kb.length)
+                return false;
+            a = address(g, (long)HEADER_SIZE + kl) + HEADER_SIZE;
+            for (int k = 0; k < kl; ++k) {
+                if (U.getByte(a + k) != kb[k])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the value of the record at g has the given bytes.
+         */
+        final boolean valueEquals(long g, byte[] vb) {
+            long a = address(g, HEADER_SIZE);
+            int kl = U.getInt(a), vl = U.getInt(a + 4L);
+            if (vl != vb.length)
+                return false;
+            a = address(g, recordSize(g)) + HEADER_SIZE + kl;
+            for (int k = 0; k < vl; ++k) {
+                if (U.getByte(a + k) != vb[k])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the length of the value of the record at g.
+         */
+        final int valueLength(long g) {
+            recordSize(g); // check
+            return U.getInt(address(g, HEADER_SIZE) + 4L);
+        }
+
+        /**
+         * Returns a copy of the key bytes of the record at g.
+         */
+        final byte[] key(long g) {
+            long a = address(g, recordSize(g));
+            byte[] r = new byte[U.getInt(a)];
+            U.copyMemory(null, a + HEADER_SIZE, r, BYTE_BASE, r.length);
+            return r;
+        }
+
+        /**
+         * Copies into r the value bytes of the record at g.
+         */
+        final byte[] value(long g, byte[] r) {
+            long a = address(g, recordSize(g));
+            int kl = U.getInt(a);
+            if (U.getInt(a + 4L) != r.length)
+                throw new IllegalStateException("Invalid record header");
+            U.copyMemory(null, a + HEADER_SIZE + kl, r, BYTE_BASE, r.length);
+            return r;
+        }
+
+        /**
+         * Returns a copy of the value bytes of the record at g.
+         */
+        final byte[] value(long g) {
+            return value(g, new byte[valueLength(g)]);
+        }
+
+        /**
+         * Returns the address of a free block of size class c.
+         */
+        final long allocate(int c) {
+            synchronized (freeLocks[c]) {
+                long g;
+                if ((g = freeHeads[c]) != NIL) {
+                    freeHeads[c] = U.getLong(address(g, 8L));
+                    return g;
+                }
+            }
+            long s = 1L << c, mask = chunkSize - 1L;
+            for (;;) {
+                long t = top, g = t, nt;
+                if ((t & mask) + s > chunkSize)
+                    g = (t | mask) + 1L;    // skip to next chunk
+                if ((nt = g + s) > limit)
+                    throw new IllegalStateException("Off-heap capacity exceeded");
+                if (U.compareAndSwapLong(this, TOP, t, nt)) {
+                    ensureChunk((int)(g >>> chunkShift));
+                    return g;
+                }
+            }
+        }
+
+        /**
+         * Frees the record at g.
+         */
+        final void free(long g) {
+            int c = sizeClass(recordSize(g));
+            synchronized (freeLocks[c]) {
+                U.putLong(address(g, 8L), freeHeads[c]);
+                freeHeads[c] = g;
+            }
+        }
+
+        /**
+         * Ensures that chunk c exists.
+         */
+        final void ensureChunk(int c) {
+            if (c < bases.length)
+                return;
+            synchronized (this) {
+                long[] bs; ByteBuffer[] bufs;
+                while ((bs = bases).length <= c) {
+                    int n = bs.length;
+                    ByteBuffer b;
+                    if (channel == null)
+                        b = ByteBuffer.allocateDirect((int)chunkSize);
+                    else {
+                        if (!channel.isOpen())
+                            throw new IllegalStateException("Map closed");
+                        try {
+                            b = channel.map(FileChannel.MapMode.READ_WRITE,
+                                            (long)n << chunkShift, chunkSize);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                    (bufs = Arrays.copyOf(buffers, n + 1))[n] = b;
+                    buffers = bufs;
+                    (bs = Arrays.copyOf(bs, n + 1))[n] =
+                        U.getLong(b, BUFFER_ADDRESS);
+                    bases = bs;
+                }
+            }
+        }
+    }
+
+    /* ---------------- Bins -------------- */
+
+    /**
+     * A bin of the index, holding hash codes and record addresses
+     * of its mappings in the first size elements of its arrays.
+     * Mutated only while locked, between beginWrite and endWrite.
+     */
+    static class Bin {
+        int[] hashes;
+        long[] addrs;
+        int size;
+        volatile int version;   // odd while updating, or if removed
+
+        Bin(int capacity) {
+            this.hashes = new int[capacity];
+            this.addrs = new long[capacity];
+        }
+
+        Bin() { // for ForwardingBins
+        }
+
+        final void beginWrite() {
+            version = version + 1;
+            U.storeFence();
+        }
+
+        final void endWrite() {
+            version = version + 1;
+        }
+
+        /**
+         * Returns the index of the mapping for the given key, or -1 if
+         * none.  When called without locking, may throw exceptions or
+         * return incorrect results that must be discarded unless
+         * validated.
+         */
+        final int indexOf(Arena a, int h, byte[] kb) {
+            int[] hs = hashes; long[] as = addrs;
+            int n = Math.min(size, Math.min(hs.length, as.length));
+            for (int j = 0; j < n; ++j) {
+                if (hs[j] == h && a.keyEquals(as[j], kb))
+                    return j;
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a mapping; called only when writing.
+         */
+        final void add(int h, long r) {
+            int n = size;
+            if (n == hashes.length) {
+                hashes = Arrays.copyOf(hashes, n << 1);
+                addrs = Arrays.copyOf(addrs, n << 1);
+            }
+            hashes[n] = h;
+            addrs[n] = r;
+            size = n + 1;
+        }
+
+        /**
+         * Removes the mapping at index j; called only when writing.
+         */
+        final void removeAt(int j) {
+            int n = size - 1;
+            hashes[j] = hashes[n];
+            addrs[j] = addrs[n];
+            size = n;
+        }
+    }
+
+    /**
+     * A bin placed in the old table during transfer operations.
+     */
+    static final class ForwardingBin extends Bin {
+        final Bin[] nextTable;
+        ForwardingBin(Bin[] tab) {
+            super();
+            this.nextTable = tab;
+        }
+    }
+
+    /* ---------------- Static utilities -------------- */
+
+    /**
+     * Returns the hash code for a serialized key.
+     */
+    static final int hash(byte[] kb) {
+        int h = 0;
+        for (byte b : kb)
+            h = 31 * h + b;
+        h *= 0x9e3779b9;
+        return (h ^ (h >>> 16)) & HASH_BITS;
+    }
+
+    /**
+     * Returns true if the arrays hold the same bytes.
+     */
+    static final boolean sameBytes(byte[] a, byte[] b) {
+        return Arrays.equals(a, b);
+    }
+
+    /**
+     * Returns a power of two table size for the given desired capacity.
+     * See Hackers Delight, sec 3.2
+     */
+    private static final int tableSizeFor(int c) {
+        int n = c - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return (n < 0) ? 1 : (n >= MAXIMUM_CAPACITY) ? MAXIMUM_CAPACITY : n + 1;
+    }
+
+    /**
+     * Returns the element count at which to resize a table of n bins.
+     */
+    static final int loadThreshold(int n) {
+        long t = (long)n * BIN_LOAD;
+        return (t >= Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int)t;
+    }
+
+    /* ---------------- Table element access -------------- */
+
+    static final Bin tabAt(Bin[] tab, int i) {
+        return (Bin)U.getObjectVolatile(tab, ((long)i << ASHIFT) + ABASE);
+    }
+
+    static final boolean casTabAt(Bin[] tab, int i, Bin c, Bin v) {
+        return U.compareAndSwapObject(tab, ((long)i << ASHIFT) + ABASE, c, v);
+    }
+
+    static final void setTabAt(Bin[] tab, int i, Bin v) {
+        U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
+    }
+
+    /* ---------------- Fields -------------- */
+
+    /**
+     * The array of bins. Lazily initialized upon first insertion.
+     * Size is always a power of two.
+     */
+    transient volatile Bin[] table;
+
+    /**
+     * The next table to use; non-null only while resizing.
+     */
+    private transient volatile Bin[] nextTable;
+
+    /**
+     * Base counter value, used mainly when there is no contention,
+     * but also as a fallback during table initialization
+     * races. Updated via CAS.
+     */
+    private transient volatile long baseCount;
+
+    /**
+     * Table initialization and resizing control.  See
+     * ConcurrentHashMap.
+     */
+    private transient volatile int sizeCtl;
+
+    /**
+     * The next table index (plus one) to split while resizing.
+     */
+    private transient volatile int transferIndex;
+
+    /**
+     * Spinlock (locked via CAS) used when resizing and/or creating CounterCells.
+     */
+    private transient volatile int cellsBusy;
+
+    /**
+     * Table of counter cells. When non-null, size is a power of 2.
+     */
+    private transient volatile CounterCell[] counterCells;
+
+    /** The off-heap record storage */
+    final Arena arena;
+
+    /** The serializer for keys */
+    final Serializer<K> keySerializer;
+
+    /** The serializer for values */
+    final Serializer<V> valueSerializer;
+
+    // views
+    private transient EntrySetView<K,V> entrySet;
+
+    /* ---------------- Public operations -------------- */
+
+    /**
+     * Creates a new, empty map using direct buffers, with the
+     * default initial table size and no limit on the size of
+     * off-heap storage (other than that imposed by the JVM on
+     * direct buffer memory).
+     *
+     * @param keySerializer the serializer for keys
+     * @param valueSerializer the serializer for values
+     * @throws NullPointerException if either serializer is null
+     */
+    public OffHeapConcurrentHashMap(Serializer<K> keySerializer,
+                                    Serializer<V> valueSerializer) {
+        this(keySerializer, valueSerializer, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a new, empty map using direct buffers, with an initial
+     * index size accommodating the specified number of elements
+     * without the need to dynamically resize, and using at most the
+     * given number of bytes of off-heap storage.
+     *
+     * @param keySerializer the serializer for keys
+     * @param valueSerializer the serializer for values
+     * @param initialCapacity the initial capacity
+     * @param maxBytes the maximum size of off-heap storage
+     * @throws NullPointerException if either serializer is null
+     * @throws IllegalArgumentException if the initial capacity is
+     * negative or maxBytes is not positive
+     */
+    public OffHeapConcurrentHashMap(Serializer<K> keySerializer,
+                                    Serializer<V> valueSerializer,
+                                    int initialCapacity, long maxBytes) {
+        this(keySerializer, valueSerializer, initialCapacity,
+             (FileChannel)null, maxBytes);
+    }
+
+    /**
+     * Creates a new, empty map storing records in a memory-mapped
+     * file, with an initial index size accommodating the specified
+     * number of elements without the need to dynamically resize, and
+     * using at most the given number of bytes of the file.  The file
+     * is created if it does not exist, and otherwise truncated.
+     *
+     * @param keySerializer the serializer for keys
+     * @param valueSerializer the serializer for values
+     * @param initialCapacity the initial capacity
+     * @param file the backing file
+     * @param maxBytes the maximum size of the file
+     * @throws NullPointerException if either serializer or the file is null
+     * @throws IllegalArgumentException if the initial capacity is
+     * negative or maxBytes is not positive
+     * @throws IOException if the file cannot be opened
+     */
+    public OffHeapConcurrentHashMap(Serializer<K> keySerializer,
+                                    Serializer<V> valueSerializer,
+                                    int initialCapacity, Path file,
+                                    long maxBytes) throws IOException {
+        this(keySerializer, valueSerializer, initialCapacity,
+             openChannel(keySerializer, valueSerializer, initialCapacity,
+                         file, maxBytes),
+             maxBytes);
+    }
+
+    /**
+     * Checks constructor arguments, so that the file is neither
+     * truncated nor left open if they are invalid, and then opens
+     * the file.
+     */
+    private static FileChannel openChannel(Serializer<?> keySerializer,
+                                           Serializer<?> valueSerializer,
+                                           int initialCapacity, Path file,
+                                           long maxBytes) throws IOException {
+        if (keySerializer == null || valueSerializer == null || file == null)
+            throw new NullPointerException();
+        if (initialCapacity < 0 || maxBytes <= 0L)
+            throw new IllegalArgumentException();
+        return FileChannel.open(file, StandardOpenOption.CREATE,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private OffHeapConcurrentHashMap(Serializer<K> keySerializer,
+                                     Serializer<V> valueSerializer,
+                                     int initialCapacity,
+                                     FileChannel channel, long maxBytes) {
+        try {
+            if (keySerializer == null || valueSerializer == null)
+                throw new NullPointerException();
+            if (initialCapacity < 0 || maxBytes <= 0L)
+                throw new IllegalArgumentException();
+            int shift = Arena.sizeClass(maxBytes);
+            if (shift > DEFAULT_CHUNK_SHIFT)
+                shift = DEFAULT_CHUNK_SHIFT;
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+            this.arena = new Arena(channel, shift, maxBytes);
+            this.sizeCtl = tableSizeFor(initialCapacity / BIN_LOAD + 1);
+        } catch (Throwable ex) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException suppressed) {
+                    ex.addSuppressed(suppressed);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Releases the file backing this map, if any.  Mappings already
+     * stored remain readable, and their storage is released when
+     * the map becomes unreachable, but updates requiring additional
+     * storage then throw {@code IllegalStateException}.  For maps
+     * using direct buffers, this method has no effect.  Invocation
+     * when already closed has no additional effect.
+     *
+     * @throws IOException if an I/O error occurs closing the file
+     */
+    public void close() throws IOException {
+        FileChannel ch;
+        if ((ch = arena.channel) != null) {
+            synchronized (arena) { // exclude concurrent ensureChunk
+                ch.close();
+            }
+        }
+    }
+
+    // Original (since JDK1.2) Map methods
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        long n = sumCount();
+        return ((n < 0L) ? 0 :
+                (n > (long)Integer.MAX_VALUE) ? Integer.MAX_VALUE :
+                (int)n);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isEmpty() {
+        return sumCount() <= 0L; // ignore transient negative values
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key.
+     *
+     * @throws NullPointerException if the specified key is null
+     * @throws ClassCastException if the key is not of a type
+     *         accepted by the key serializer
+     */
+    public V get(Object key) {
+        byte[] vb = getBytes(serializeKey(key));
+        return (vb == null) ? null : valueSerializer.deserialize(vb);
+    }
+
+    /**
+     * Tests if the specified object is a key in this table.
+     *
+     * @param  key possible key
+     * @return {@code true} if and only if the specified object
+     *         is a key in this table, as determined by its serialized form
+     * @throws NullPointerException if the specified key is null
+     * @throws ClassCastException if the key is not of a type
+     *         accepted by the key serializer
+     */
+    public boolean containsKey(Object key) {
+        return getBytes(serializeKey(key)) != null;
+    }
+
+    /**
+     * Returns {@code true} if this map maps one or more keys to the
+     * specified value. Note: This method may require a full traversal
+     * of the map, and is much slower than method {@code containsKey}.
+     *
+     * @param value value whose presence in this map is to be tested
+     * @return {@code true} if this map maps one or more keys to the
+     *         specified value
+     * @throws NullPointerException if the specified value is null
+     * @throws ClassCastException if the value is not of a type
+     *         accepted by the value serializer
+     */
+    @SuppressWarnings("unchecked")
+    public boolean containsValue(Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        byte[] vb = valueSerializer.serialize((V)value);
+        Bin[] t;
+        if ((t = table) != null) {
+            Traverser it = new Traverser(arena, t, t.length, 0, t.length);
+            while (it.advance()) {
+                if (sameBytes(it.nextVal, vb))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Maps the specified key to the specified value in this table.
+     * Neither the key nor the value can be null.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key or value is null
+     * @throws IllegalStateException if off-heap storage is exhausted
+     */
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     * @throws IllegalStateException if off-heap storage is exhausted
+     */
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    /**
+     * Removes the key (and its corresponding value) from this map.
+     * This method does nothing if the key is not in the map.
+     *
+     * @param  key the key that needs to be removed
+     * @return the previous value associated with {@code key}, or
+     *         {@code null} if there was no mapping for {@code key}
+     * @throws NullPointerException if the specified key is null
+     * @throws ClassCastException if the key is not of a type
+     *         accepted by the key serializer
+     */
+    public V remove(Object key) {
+        return replaceVal(key, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if the specified key is null
+     */
+    public boolean remove(Object key, Object value) {
+        if (key == null)
+            throw new NullPointerException();
+        return value != null && replaceVal(key, null, value) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws NullPointerException if any of the arguments are null
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null || oldValue == null || newValue == null)
+            throw new NullPointerException();
+        return replaceVal(key, newValue, oldValue) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return the previous value associated with the specified key,
+     *         or {@code null} if there was no mapping for the key
+     * @throws NullPointerException if the specified key or value is null
+     */
+    public V replace(K key, V value) {
+        if (key == null || value == null)
+            throw new NullPointerException();
+        return replaceVal(key, value, null);
+    }
+
+    /**
+     * Removes all of the mappings from this map.
+     */
+    public void clear() {
+        Arena a = arena;
+        long delta = 0L; // negative number of deletions
+        int i = 0;
+        Bin[] tab = table;
+        while (tab != null && i < tab.length) {
+            Bin f = tabAt(tab, i);
+            if (f == null)
+                ++i;
+            else if (f instanceof ForwardingBin) {
+                tab = helpTransfer(tab, f);
+                i = 0; // restart
+            }
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        f.beginWrite(); // leave odd when removed
+                        for (int j = 0; j < f.size; ++j)
+                            a.free(f.addrs[j]);
+                        delta -= f.size;
+                        setTabAt(tab, i++, null);
+                    }
+                }
+            }
+        }
+        if (delta != 0L)
+            addCount(delta, -1);
+    }
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this map.
+     * The set is backed by the map, so changes to the map are
+     * reflected in the set, and vice-versa.  The set supports element
+     * removal, which removes the corresponding mapping from the map,
+     * via the {@code Iterator.remove}, {@code Set.remove}, {@code
+     * removeAll}, {@code retainAll}, and {@code clear} operations.
+     *
+     * <p>The view's iterators are <i>weakly consistent</i>.  Each
+     * entry holds deserialized copies of its key and value, and its
+     * {@code setValue} method writes through to the map.
+     *
+     * @return the set view
+     */
+    public Set<Map.Entry<K,V>> entrySet() {
+        EntrySetView<K,V> es;
+        return (es = entrySet) != null ? es :
+            (entrySet = new EntrySetView<K,V>(this));
+    }
+
+    // Overrides of JDK8+ Map extension method defaults
+
+    /**
+     * Returns the value to which the specified key is mapped, or the
+     * given default value if this map contains no mapping for the
+     * key.
+     *
+     * @param key the key whose associated value is to be returned
+     * @param defaultValue the value to return if this map contains
+     * no mapping for the given key
+     * @return the mapping for the key, if present; else the default value
+     * @throws NullPointerException if the specified key is null
+     */
+    public V getOrDefault(Object key, V defaultValue) {
+        V v;
+        return (v = get(key)) == null ? defaultValue : v;
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (action == null) throw new NullPointerException();
+        Bin[] t;
+        if ((t = table) != null) {
+            Traverser it = new Traverser(arena, t, t.length, 0, t.length);
+            while (it.advance())
+                action.accept(keySerializer.deserialize(it.nextKey),
+                              valueSerializer.deserialize(it.nextVal));
+        }
+    }
+
+    /**
+     * If the specified key is not already associated with a value,
+     * attempts to compute its value using the given mapping function
+     * and enters it into this map unless {@code null}.  The entire
+     * method invocation is performed atomically, so the function is
+     * applied at most once per key.  Some attempted update operations
+     * on this map by other threads may be blocked while computation
+     * is in progress, so the computation should be short and simple,
+     * and must not attempt to update any other mappings of this map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param mappingFunction the function to compute a value
+     * @return the current (existing or computed) value associated with
+     *         the specified key, or null if the computed value is null
+     * @throws NullPointerException if the specified key or mappingFunction
+     *         is null
+     * @throws IllegalStateException if off-heap storage is exhausted
+     * @throws RuntimeException or Error if the mappingFunction does so,
+     *         in which case the mapping is left unestablished
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null || mappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, null, mappingFunction, null, COMPUTE_IF_ABSENT);
+    }
+
+    /**
+     * If the value for the specified key is present, attempts to
+     * compute a new mapping given the key and its current mapped
+     * value.  The entire method invocation is performed atomically.
+     * Some attempted update operations on this map by other threads
+     * may be blocked while computation is in progress, so the
+     * computation should be short and simple, and must not attempt to
+     * update any other mappings of this map.
+     *
+     * @param key key with which a value may be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or remappingFunction
+     *         is null
+     * @throws IllegalStateException if off-heap storage is exhausted
+     * @throws RuntimeException or Error if the remappingFunction does so,
+     *         in which case the mapping is unchanged
+     */
+    @SuppressWarnings("unchecked")
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, null, null,
+                          (BiFunction<Object, ? super V, ? extends V>)
+                          remappingFunction, COMPUTE_IF_PRESENT);
+    }
+
+    /**
+     * Attempts to compute a mapping for the specified key and its
+     * current mapped value (or {@code null} if there is no current
+     * mapping). The entire method invocation is performed atomically.
+     * Some attempted update operations on this map by other threads
+     * may be blocked while computation is in progress, so the
+     * computation should be short and simple, and must not attempt to
+     * update any other mappings of this Map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param remappingFunction the function to compute a value
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or remappingFunction
+     *         is null
+     * @throws IllegalStateException if off-heap storage is exhausted
+     * @throws RuntimeException or Error if the remappingFunction does so,
+     *         in which case the mapping is unchanged
+     */
+    @SuppressWarnings("unchecked")
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null || remappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, null, null,
+                          (BiFunction<Object, ? super V, ? extends V>)
+                          remappingFunction, COMPUTE);
+    }
+
+    /**
+     * If the specified key is not already associated with a
+     * (non-null) value, associates it with the given value.
+     * Otherwise, replaces the value with the results of the given
+     * remapping function, or removes if {@code null}. The entire
+     * method invocation is performed atomically.  Some attempted
+     * update operations on this map by other threads may be blocked
+     * while computation is in progress, so the computation should be
+     * short and simple, and must not attempt to update any other
+     * mappings of this Map.
+     *
+     * @param key key with which the specified value is to be associated
+     * @param value the value to use if absent
+     * @param remappingFunction the function to recompute a value if present
+     * @return the new value associated with the specified key, or null if none
+     * @throws NullPointerException if the specified key or the
+     *         remappingFunction is null
+     * @throws IllegalStateException if off-heap storage is exhausted
+     * @throws RuntimeException or Error if the remappingFunction does so,
+     *         in which case the mapping is unchanged
+     */
+    @SuppressWarnings("unchecked")
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null || remappingFunction == null)
+            throw new NullPointerException();
+        return computeVal(key, value, null,
+                          (BiFunction<Object, ? super V, ? extends V>)
+                          remappingFunction, MERGE);
+    }
+
+    // ConcurrentHashMap-only methods
+
+    /**
+     * Returns the number of mappings. This method should be used
+     * instead of {@link #size} because a map may contain more
+     * mappings than can be represented as an int. The value returned
+     * is an estimate; the actual count may differ if there are
+     * concurrent insertions or removals.
+     *
+     * @return the number of mappings
+     */
+    public long mappingCount() {
+        long n = sumCount();
+        return (n < 0L) ? 0L : n; // ignore transient negative values
+    }
+
+    /**
+     * Performs the given action for each (key, value).
+     *
+     * @param parallelismThreshold the (estimated) number of elements
+     * needed for this operation to be executed in parallel
+     * @param action the action
+     */
+    public void forEach(long parallelismThreshold,
+                        BiConsumer<? super K,? super V> action) {
+        if (action == null) throw new NullPointerException();
+        new ForEachMappingTask<K,V>
+            (this, null, batchFor(parallelismThreshold), 0, 0, table,
+             action).invoke();
+    }
+
+    /**
+     * Returns the result of accumulating the given transformation
+     * of all (key, value) pairs using the given reducer to
+     * combine values, or null if none.
+     *
+     * @param parallelismThreshold the (estimated) number of elements
+     * needed for this operation to be executed in parallel
+     * @param transformer a function returning the transformation
+     * for an element, or null if there is no transformation (in
+     * which case it is not combined)
+     * @param reducer a commutative associative combining function
+     * @param <U> the return type of the transformer
+     * @return the result of accumulating the given transformation
+     * of all (key, value) pairs
+     */
+    public <U> U reduce(long parallelismThreshold,
+                        BiFunction<? super K, ? super V, ? extends U> transformer,
+                        BiFunction<? super U, ? super U, ? extends U> reducer) {
+        if (transformer == null || reducer == null)
+            throw new NullPointerException();
+        return new MapReduceMappingsTask<K,V,U>
+            (this, null, batchFor(parallelismThreshold), 0, 0, table,
+             null, transformer, reducer).invoke();
+    }
+
+    /* ---------------- Implementation of updates -------------- */
+
+    @SuppressWarnings("unchecked")
+    private byte[] serializeKey(Object key) {
+        if (key == null)
+            throw new NullPointerException();
+        return keySerializer.serialize((K)key);
+    }
+
+    /**
+     * Returns a copy of the value bytes for the given key bytes, or
+     * null if absent.
+     */
+    final byte[] getBytes(byte[] kb) {
+        Arena a = arena;
+        int h = hash(kb);
+        Bin[] tab = table; Bin e; int n, i;
+        while (tab != null && (n = tab.length) > 0 &&
+               (e = tabAt(tab, i = (n - 1) & h)) != null) {
+            if (e instanceof ForwardingBin) {
+                tab = ((ForwardingBin)e).nextTable;
+                continue;
+            }
+            int v = e.version;
+            if ((v & 1) == 0) {          // try optimistic read
+                try {
+                    int j = e.indexOf(a, h, kb);
+                    if (j < 0) {
+                        U.loadFence();
+                        if (e.version == v)
+                            return null;
+                    }
+                    else {
+                        long r = e.addrs[j];
+                        int vl = a.valueLength(r);
+                        U.loadFence();   // validate before allocating
+                        if (e.version == v) {
+                            byte[] vb = a.value(r, new byte[vl]);
+                            U.loadFence();
+                            if (e.version == v)
+                                return vb;
+                        }
+                    }
+                } catch (RuntimeException ignore) {
+                    // inconsistent read; fall through
+                }
+            }
+            synchronized (e) {
+                if (tabAt(tab, i) == e) {
+                    int j = e.indexOf(a, h, kb);
+                    return (j < 0) ? null : a.value(e.addrs[j]);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Implementation for put and putIfAbsent */
+    final V putVal(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null) throw new NullPointerException();
+        byte[] kb = keySerializer.serialize(key);
+        int h = hash(kb);
+        Arena a = arena;
+        long r = a.write(kb, valueSerializer.serialize(value));
+        byte[] oldVal = null;
+        int binCount = 0;
+        for (Bin[] tab = table;;) {
+            Bin f; int n, i;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                Bin b = new Bin(MIN_BIN_CAPACITY);
+                b.add(h, r);
+                if (casTabAt(tab, i, null, b)) {
+                    r = NIL;
+                    binCount = 1;
+                    break;                   // no lock when adding to empty bin
+                }
+            }
+            else if (f instanceof ForwardingBin)
+                tab = helpTransfer(tab, f);
+            else {
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        int j = f.indexOf(a, h, kb);
+                        if (j >= 0) {
+                            oldVal = a.value(f.addrs[j]);
+                            if (!onlyIfAbsent) {
+                                f.beginWrite();
+                                a.free(f.addrs[j]);
+                                f.addrs[j] = r;
+                                f.endWrite();
+                                r = NIL;
+                            }
+                        }
+                        else {
+                            f.beginWrite();
+                            f.add(h, r);
+                            f.endWrite();
+                            r = NIL;
+                            binCount = f.size;
+                        }
+                    }
+                }
+                if (validated)
+                    break;
+            }
+        }
+        if (r != NIL)
+            a.free(r);                       // unused
+        if (binCount != 0)
+            addCount(1L, binCount);
+        return (oldVal == null) ? null : valueSerializer.deserialize(oldVal);
+    }
+
+    /**
+     * Implementation for the four public remove/replace methods:
+     * Replaces value with v, conditional upon match of cv if
+     * non-null.  If resulting value is null, delete.
+     */
+    @SuppressWarnings("unchecked")
+    final V replaceVal(Object key, V value, Object cv) {
+        byte[] kb = serializeKey(key);
+        byte[] vb = (value == null) ? null : valueSerializer.serialize(value);
+        byte[] cb = (cv == null) ? null : valueSerializer.serialize((V)cv);
+        int h = hash(kb);
+        Arena a = arena;
+        byte[] oldVal = null;
+        for (Bin[] tab = table;;) {
+            Bin f; int n, i;
+            if (tab == null || (n = tab.length) == 0 ||
+                (f = tabAt(tab, i = (n - 1) & h)) == null)
+                break;
+            else if (f instanceof ForwardingBin)
+                tab = helpTransfer(tab, f);
+            else {
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        int j = f.indexOf(a, h, kb);
+                        if (j >= 0 && (cb == null || a.valueEquals(f.addrs[j], cb))) {
+                            oldVal = a.value(f.addrs[j]);
+                            if (vb != null) {
+                                long r = a.write(kb, vb);
+                                f.beginWrite();
+                                a.free(f.addrs[j]);
+                                f.addrs[j] = r;
+                                f.endWrite();
+                            }
+                            else
+                                removeFromBin(tab, i, f, j);
+                        }
+                    }
+                }
+                if (validated) {
+                    if (oldVal != null && vb == null)
+                        addCount(-1L, -1);
+                    break;
+                }
+            }
+        }
+        return (oldVal == null) ? null : valueSerializer.deserialize(oldVal);
+    }
+
+    /**
+     * Removes the mapping at index j of locked bin f at index i of
+     * tab, also removing f from the table if it becomes empty.
+     */
+    final void removeFromBin(Bin[] tab, int i, Bin f, int j) {
+        f.beginWrite();
+        arena.free(f.addrs[j]);
+        f.removeAt(j);
+        if (f.size == 0)
+            setTabAt(tab, i, null);      // leave odd when removed
+        else
+            f.endWrite();
+    }
+
+    /**
+     * Implementation for the four compute and merge methods.
+     * Computes the new value for key according to mode, then
+     * inserts, replaces or removes the mapping accordingly.
+     */
+    final V computeVal(K key, V value, Function<? super K, ? extends V> mf,
+                       BiFunction<Object, ? super V, ? extends V> rf,
+                       int mode) {
+        byte[] kb = keySerializer.serialize(key);
+        int h = hash(kb);
+        Arena a = arena;
+        V val = null;
+        int delta = 0;
+        int binCount = 0;
+        for (Bin[] tab = table;;) {
+            Bin f; int n, i;
+            if (tab == null || (n = tab.length) == 0)
+                tab = initTable();
+            else if ((f = tabAt(tab, i = (n - 1) & h)) == null) {
+                if (mode == COMPUTE_IF_PRESENT)
+                    break;
+                casTabAt(tab, i, null, new Bin(MIN_BIN_CAPACITY));
+            }
+            else if (f instanceof ForwardingBin)
+                tab = helpTransfer(tab, f);
+            else {
+                boolean validated = false;
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        validated = true;
+                        int j = f.indexOf(a, h, kb);
+                        V old = (j < 0) ? null :
+                            valueSerializer.deserialize(a.value(f.addrs[j]));
+                        switch (mode) {
+                        case COMPUTE_IF_ABSENT:
+                            val = (old != null) ? old : mf.apply(key);
+                            break;
+                        case COMPUTE_IF_PRESENT:
+                            val = (old != null) ? rf.apply(key, old) : null;
+                            break;
+                        case COMPUTE:
+                            val = rf.apply(key, old);
+                            break;
+                        default: // MERGE
+                            val = (old != null) ? rf.apply(old, value) : value;
+                            break;
+                        }
+                        if (val != null) {
+                            if (j < 0 || val != old) {
+                                long r = a.write(kb, valueSerializer.serialize(val));
+                                f.beginWrite();
+                                if (j >= 0) {
+                                    a.free(f.addrs[j]);
+                                    f.addrs[j] = r;
+                                }
+                                else {
+                                    f.add(h, r);
+                                    delta = 1;
+                                    binCount = f.size;
+                                }
+                                f.endWrite();
+                            }
+                        }
+                        else if (j >= 0) {
+                            delta = -1;
+                            removeFromBin(tab, i, f, j);
+                        }
+                        else if (f.size == 0) {
+                            f.beginWrite();
+                            setTabAt(tab, i, null); // discard empty bin
+                        }
+                    }
+                }
+                if (validated)
+                    break;
+            }
+        }
+        if (delta != 0)
+            addCount((long)delta, binCount);
+        return val;
+    }
+
+    /* ---------------- Table Initialization and Resizing -------------- */
+
+    /**
+     * Returns the stamp bits for resizing a table of size n.
+     * Must be negative when shifted left by RESIZE_STAMP_SHIFT.
+     */
+    static final int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    /**
+     * Initializes table, using the size recorded in sizeCtl.
+     */
+    private final Bin[] initTable() {
+        Bin[] tab; int sc;
+        while ((tab = table) == null || tab.length == 0) {
+            if ((sc = sizeCtl) < 0)
+                Thread.yield(); // lost initialization race; just spin
+            else if (U.compareAndSwapInt(this, SIZECTL, sc, -1)) {
+                try {
+                    if ((tab = table) == null || tab.length == 0) {
+                        int n = (sc > 0) ? sc : DEFAULT_CAPACITY;
+                        table = tab = new Bin[n];
+                        sc = loadThreshold(n);
+                    }
+                } finally {
+                    sizeCtl = sc;
+                }
+                break;
+            }
+        }
+        return tab;
+    }
+
+    /**
+     * Adds to count, and if table is too small and not already
+     * resizing, initiates transfer. If already resizing, helps
+     * perform transfer if work is available.  Rechecks occupancy
+     * after a transfer to see if another resize is already needed
+     * because resizings are lagging additions.
+     *
+     * @param x the count to add
+     * @param check if <0, don't check resize, otherwise the number
+     * of mappings in the updated bin; if at most BIN_LOAD only check
+     * if uncontended
+     */
+    private final void addCount(long x, int check) {
+        CounterCell[] as; long b, s;
+        if ((as = counterCells) != null ||
+            !U.compareAndSwapLong(this, BASECOUNT, b = baseCount, s = b + x)) {
+            CounterCell a; long v; int m;
+            boolean uncontended = true;
+            if (as == null || (m = as.length - 1) < 0 ||
+                (a = as[ThreadLocalRandom.getProbe() & m]) == null ||
+                !(uncontended =
+                  U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))) {
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= BIN_LOAD)
+                return;
+            s = sumCount();
+        }
+        if (check >= 0) {
+            Bin[] tab, nt; int n, sc;
+            while (s >= (long)(sc = sizeCtl) && (tab = table) != null &&
+                   (n = tab.length) < MAXIMUM_CAPACITY) {
+                int rs = resizeStamp(n);
+                if (sc < 0) {
+                    if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
+                        sc == rs + MAX_RESIZERS || (nt = nextTable) == null ||
+                        transferIndex <= 0)
+                        break;
+                    if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1))
+                        transfer(tab, nt);
+                }
+                else if (U.compareAndSwapInt(this, SIZECTL, sc,
+                                             (rs << RESIZE_STAMP_SHIFT) + 2))
+                    transfer(tab, null);
+                s = sumCount();
+            }
+        }
+    }
+
+    /**
+     * Helps transfer if a resize is in progress.
+     */
+    final Bin[] helpTransfer(Bin[] tab, Bin f) {
+        Bin[] nextTab; int sc;
+        if (tab != null && (f instanceof ForwardingBin) &&
+            (nextTab = ((ForwardingBin)f).nextTable) != null) {
+            int rs = resizeStamp(tab.length);
+            while (nextTab == nextTable && table == tab &&
+                   (sc = sizeCtl) < 0) {
+                if ((sc >>> RESIZE_STAMP_SHIFT) != rs || sc == rs + 1 ||
+                    sc == rs + MAX_RESIZERS || transferIndex <= 0)
+                    break;
+                if (U.compareAndSwapInt(this, SIZECTL, sc, sc + 1)) {
+                    transfer(tab, nextTab);
+                    break;
+                }
+            }
+            return nextTab;
+        }
+        return table;
+    }
+
+    /**
+     * Moves the index entries in each bin to new table.  Records are
+     * not moved or freed.  See ConcurrentHashMap for explanation.
+     */
+    private final void transfer(Bin[] tab, Bin[] nextTab) {
+        int n = tab.length, stride;
+        if ((stride = (NCPU > 1) ? (n >>> 3) / NCPU : n) < MIN_TRANSFER_STRIDE)
+            stride = MIN_TRANSFER_STRIDE; // subdivide range
+        if (nextTab == null) {            // initiating
+            try {
+                nextTab = new Bin[n << 1];
+            } catch (Throwable ex) {      // try to cope with OOME
+                sizeCtl = Integer.MAX_VALUE;
+                return;
+            }
+            nextTable = nextTab;
+            transferIndex = n;
+        }
+        int nextn = nextTab.length;
+        ForwardingBin fwd = new ForwardingBin(nextTab);
+        boolean advance = true;
+        boolean finishing = false; // to ensure sweep before committing nextTab
+        for (int i = 0, bound = 0;;) {
+            Bin f;
+            while (advance) {
+                int nextIndex, nextBound;
+                if (--i >= bound || finishing)
+                    advance = false;
+                else if ((nextIndex = transferIndex) <= 0) {
+                    i = -1;
+                    advance = false;
+                }
+                else if (U.compareAndSwapInt
+                         (this, TRANSFERINDEX, nextIndex,
+                          nextBound = (nextIndex > stride ?
+                                       nextIndex - stride : 0))) {
+                    bound = nextBound;
+                    i = nextIndex - 1;
+                    advance = false;
+                }
+            }
+            if (i < 0 || i >= n || i + n >= nextn) {
+                int sc;
+                if (finishing) {
+                    nextTable = null;
+                    table = nextTab;
+                    sizeCtl = loadThreshold(n << 1);
+                    return;
+                }
+                if (U.compareAndSwapInt(this, SIZECTL, sc = sizeCtl, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT)
+                        return;
+                    finishing = advance = true;
+                    i = n; // recheck before commit
+                }
+            }
+            else if ((f = tabAt(tab, i)) == null)
+                advance = casTabAt(tab, i, null, fwd);
+            else if (f instanceof ForwardingBin)
+                advance = true; // already processed
+            else {
+                synchronized (f) {
+                    if (tabAt(tab, i) == f) {
+                        int[] hs = f.hashes; long[] as = f.addrs;
+                        int s = f.size, lc = 0;
+                        for (int j = 0; j < s; ++j) {
+                            if ((hs[j] & n) == 0)
+                                ++lc;
+                        }
+                        int hc = s - lc;
+                        Bin ln = (lc == 0) ? null :
+                            new Bin(Math.max(lc, MIN_BIN_CAPACITY));
+                        Bin hn = (hc == 0) ? null :
+                            new Bin(Math.max(hc, MIN_BIN_CAPACITY));
+                        for (int j = 0; j < s; ++j) {
+                            int h = hs[j];
+                            (((h & n) == 0) ? ln : hn).add(h, as[j]);
+                        }
+                        f.beginWrite(); // leave odd when removed
+                        setTabAt(nextTab, i, ln);
+                        setTabAt(nextTab, i + n, hn);
+                        setTabAt(tab, i, fwd);
+                        advance = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /* ---------------- Counter support -------------- */
+
+    final long sumCount() {
+        CounterCell[] as = counterCells; CounterCell a;
+        long sum = baseCount;
+        if (as != null) {
+            for (int i = 0; i < as.length; ++i) {
+                if ((a = as[i]) != null)
+                    sum += a.value;
+            }
+        }
+        return sum;
+    }
+
+    // See LongAdder version for explanation
+    private final void fullAddCount(long x, boolean wasUncontended) {
+        int h;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();      // force initialization
+            h = ThreadLocalRandom.getProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;                // True if last slot nonempty
+        for (;;) {
+            CounterCell[] as; CounterCell a; int n; long v;
+            if ((as = counterCells) != null && (n = as.length) > 0) {
+                if ((a = as[(n - 1) & h]) == null) {
+                    if (cellsBusy == 0) {            // Try to attach new Cell
+                        CounterCell r = new CounterCell(x); // Optimistic create
+                        if (cellsBusy == 0 &&
+                            U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                            boolean created = false;
+                            try {               // Recheck under lock
+                                CounterCell[] rs; int m, j;
+                                if ((rs = counterCells) != null &&
+                                    (m = rs.length) > 0 &&
+                                    rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            if (created)
+                                break;
+                            continue;           // Slot is now non-empty
+                        }
+                    }
+                    collide = false;
+                }
+                else if (!wasUncontended)       // CAS already known to fail
+                    wasUncontended = true;      // Continue after rehash
+                else if (U.compareAndSwapLong(a, CELLVALUE, v = a.value, v + x))
+                    break;
+                else if (counterCells != as || n >= NCPU)
+                    collide = false;            // At max size or stale
+                else if (!collide)
+                    collide = true;
+                else if (cellsBusy == 0 &&
+                         U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                    try {
+                        if (counterCells == as) {// Expand table unless stale
+                            CounterCell[] rs = new CounterCell[n << 1];
+                            for (int i = 0; i < n; ++i)
+                                rs[i] = as[i];
+                            counterCells = rs;
+                        }
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;                   // Retry with expanded table
+                }
+                h = ThreadLocalRandom.advanceProbe(h);
+            }
+            else if (cellsBusy == 0 && counterCells == as &&
+                     U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                boolean init = false;
+                try {                           // Initialize table
+                    if (counterCells == as) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        init = true;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+                if (init)
+                    break;
+            }
+            else if (U.compareAndSwapLong(this, BASECOUNT, v = baseCount, v + x))
+                break;                          // Fall back on using base
+        }
+    }
+
+    /* ----------------Table Traversal -------------- */
+
+    /**
+     * Records the table, its length, and current traversal index for a
+     * traverser that must process a region of a forwarded table before
+     * proceeding with current table.
+     */
+    static final class TableStack {
+        int length;
+        int index;
+        Bin[] tab;
+        TableStack next;
+    }
+
+    /**
+     * Encapsulates traversal for bulk operations and iterators,
+     * in the same way as ConcurrentHashMap.Traverser, except that
+     * the records of each bin are copied under its lock, and then
+     * returned one by one in nextKey and nextVal.
+     */
+    static final class Traverser {
+        final Arena arena;
+        Bin[] tab;              // current table; updated if resized
+        TableStack stack, spare; // to save/restore on ForwardingBins
+        int index;              // index of bin to use next
+        int baseIndex;          // current index of initial table
+        int baseLimit;          // index bound for initial table
+        final int baseSize;     // initial table size
+        byte[][] keys, vals;    // copies of current bin's records
+        int pos, count;         // position in and size of copies
+        byte[] nextKey, nextVal;
+
+        Traverser(Arena arena, Bin[] tab, int size, int index, int limit) {
+            this.arena = arena;
+            this.tab = tab;
+            this.baseSize = size;
+            this.baseIndex = this.index = index;
+            this.baseLimit = limit;
+        }
+
+        /**
+         * Advances if possible, setting nextKey and nextVal, and
+         * returning true, or false if none.
+         */
+        final boolean advance() {
+            for (;;) {
+                Bin[] t; Bin e; int i, n;  // must use locals in checks
+                if (pos < count) {
+                    nextKey = keys[pos];
+                    nextVal = vals[pos];
+                    keys[pos] = vals[pos] = null;
+                    ++pos;
+                    return true;
+                }
+                if (baseIndex >= baseLimit || (t = tab) == null ||
+                    (n = t.length) <= (i = index) || i < 0) {
+                    nextKey = nextVal = null;
+                    return false;
+                }
+                if ((e = tabAt(t, i)) instanceof ForwardingBin) {
+                    tab = ((ForwardingBin)e).nextTable;
+                    pushState(t, i, n);
+                    continue;
+                }
+                if (e != null && !copyBin(t, i, e))
+                    continue;           // bin replaced; reread
+                if (stack != null)
+                    recoverState(n);
+                else if ((index = i + baseSize) >= n)
+                    index = ++baseIndex; // visit upper slots if present
+            }
+        }
+
+        /**
+         * Copies the records of bin e if still at index i of t.
+         */
+        private boolean copyBin(Bin[] t, int i, Bin e) {
+            Arena a = arena;
+            synchronized (e) {
+                if (tabAt(t, i) != e)
+                    return false;
+                int s = e.size;
+                if (keys == null || keys.length < s) {
+                    keys = new byte[Math.max(s, MIN_BIN_CAPACITY)][];
+                    vals = new byte[keys.length][];
+                }
+                long[] as = e.addrs;
+                for (int j = 0; j < s; ++j) {
+                    keys[j] = a.key(as[j]);
+                    vals[j] = a.value(as[j]);
+                }
+                pos = 0;
+                count = s;
+                return true;
+            }
+        }
+
+        /**
+         * Saves traversal state upon encountering a forwarding bin.
+         */
+        private void pushState(Bin[] t, int i, int n) {
+            TableStack s = spare;  // reuse if possible
+            if (s != null)
+                spare = s.next;
+            else
+                s = new TableStack();
+            s.tab = t;
+            s.length = n;
+            s.index = i;
+            s.next = stack;
+            stack = s;
+        }
+
+        /**
+         * Possibly pops traversal state.
+         *
+         * @param n length of current table
+         */
+        private void recoverState(int n) {
+            TableStack s; int len;
+            while ((s = stack) != null && (index += (len = s.length)) >= n) {
+                n = len;
+                index = s.index;
+                tab = s.tab;
+                s.tab = null;
+                TableStack next = s.next;
+                s.next = spare; // save for reuse
+                stack = next;
+                spare = s;
+            }
+            if (s == null && (index += baseSize) >= n)
+                index = ++baseIndex;
+        }
+    }
+
+    /**
+     * Exported Entry for EntryIterator
+     */
+    static final class MapEntry<K,V> implements Map.Entry<K,V> {
+        final K key; // non-null
+        V val;       // non-null
+        final OffHeapConcurrentHashMap<K,V> map;
+        MapEntry(K key, V val, OffHeapConcurrentHashMap<K,V> map) {
+            this.key = key;
+            this.val = val;
+            this.map = map;
+        }
+        public K getKey()        { return key; }
+        public V getValue()      { return val; }
+        public int hashCode()    { return key.hashCode() ^ val.hashCode(); }
+        public String toString() { return key + "=" + val; }
+
+        public boolean equals(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    (k == key || k.equals(key)) &&
+                    (v == val || v.equals(val)));
+        }
+
+        /**
+         * Sets our entry's value and writes through to the map.  See
+         * ConcurrentHashMap.MapEntry.
+         */
+        public V setValue(V value) {
+            if (value == null) throw new NullPointerException();
+            V v = val;
+            val = value;
+            map.put(key, value);
+            return v;
+        }
+    }
+
+    static final class EntryIterator<K,V> implements Iterator<Map.Entry<K,V>> {
+        final OffHeapConcurrentHashMap<K,V> map;
+        final Traverser it;
+        boolean hasNext;
+        K lastReturned;
+        EntryIterator(OffHeapConcurrentHashMap<K,V> map) {
+            Bin[] t = map.table;
+            int n = (t == null) ? 0 : t.length;
+            this.map = map;
+            this.it = new Traverser(map.arena, t, n, 0, n);
+            this.hasNext = it.advance();
+        }
+
+        public final boolean hasNext() { return hasNext; }
+
+        public final Map.Entry<K,V> next() {
+            if (!hasNext)
+                throw new NoSuchElementException();
+            K k = map.keySerializer.deserialize(it.nextKey);
+            V v = map.valueSerializer.deserialize(it.nextVal);
+            lastReturned = k;
+            hasNext = it.advance();
+            return new MapEntry<K,V>(k, v, map);
+        }
+
+        public final void remove() {
+            K k;
+            if ((k = lastReturned) == null)
+                throw new IllegalStateException();
+            lastReturned = null;
+            map.replaceVal(k, null, null);
+        }
+    }
+
+    static final class EntrySetView<K,V> extends AbstractSet<Map.Entry<K,V>> {
+        final OffHeapConcurrentHashMap<K,V> map;
+        EntrySetView(OffHeapConcurrentHashMap<K,V> map) { this.map = map; }
+
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator<K,V>(map);
+        }
+        public int size() { return map.size(); }
+        public boolean isEmpty() { return map.isEmpty(); }
+        public void clear() { map.clear(); }
+
+        public boolean contains(Object o) {
+            Object k, v, r; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (r = map.get(k)) != null &&
+                    (v = e.getValue()) != null &&
+                    (v == r || v.equals(r)));
+        }
+
+        public boolean remove(Object o) {
+            Object k, v; Map.Entry<?,?> e;
+            return ((o instanceof Map.Entry) &&
+                    (k = (e = (Map.Entry<?,?>)o).getKey()) != null &&
+                    (v = e.getValue()) != null &&
+                    map.remove(k, v));
+        }
+    }
+
+    /* ---------------- Bulk tasks -------------- */
+
+    /**
+     * Computes initial batch value for bulk tasks. See
+     * ConcurrentHashMap.batchFor.
+     */
+    final int batchFor(long b) {
+        long n;
+        if (b == Long.MAX_VALUE || (n = sumCount()) <= 1L || n < b)
+            return 0;
+        int sp = ForkJoinPool.getCommonPoolParallelism() << 2; // slack of 4
+        return (b <= 0L || (n /= b) >= sp) ? sp : (int)n;
+    }
+
+    /**
+     * Base class for bulk tasks, splitting the index range of the
+     * initial table as in ConcurrentHashMap.BulkTask.
+     */
+    @SuppressWarnings("serial")
+    abstract static class BulkTask<K,V,R> extends CountedCompleter<R> {
+        final OffHeapConcurrentHashMap<K,V> map;
+        final Bin[] tab;
+        int baseIndex;
+        int baseLimit;
+        final int baseSize;
+        int batch;              // split control
+
+        BulkTask(OffHeapConcurrentHashMap<K,V> map, BulkTask<K,V,?> par,
+                 int b, int i, int f, Bin[] t) {
+            super(par);
+            this.map = map;
+            this.batch = b;
+            this.baseIndex = i;
+            if ((this.tab = t) == null)
+                this.baseSize = this.baseLimit = 0;
+            else if (par == null)
+                this.baseSize = this.baseLimit = t.length;
+            else {
+                this.baseLimit = f;
+                this.baseSize = par.baseSize;
+            }
+        }
+
+        final Traverser traverser() {
+            return new Traverser(map.arena, tab, baseSize, baseIndex, baseLimit);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class ForEachMappingTask<K,V>
+        extends BulkTask<K,V,Void> {
+        final BiConsumer<? super K, ? super V> action;
+        ForEachMappingTask
+            (OffHeapConcurrentHashMap<K,V> m, BulkTask<K,V,?> p, int b,
+             int i, int f, Bin[] t,
+             BiConsumer<? super K,? super V> action) {
+            super(m, p, b, i, f, t);
+            this.action = action;
+        }
+        public final void compute() {
+            final BiConsumer<? super K, ? super V> action;
+            if ((action = this.action) != null) {
+                for (int i = baseIndex, f, h; batch > 0 &&
+                         (h = ((f = baseLimit) + i) >>> 1) > i;) {
+                    addToPendingCount(1);
+                    new ForEachMappingTask<K,V>
+                        (map, this, batch >>>= 1, baseLimit = h, f, tab,
+                         action).fork();
+                }
+                Serializer<K> ks = map.keySerializer;
+                Serializer<V> vs = map.valueSerializer;
+                for (Traverser it = traverser(); it.advance(); )
+                    action.accept(ks.deserialize(it.nextKey),
+                                  vs.deserialize(it.nextVal));
+                propagateCompletion();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class MapReduceMappingsTask<K,V,U>
+        extends BulkTask<K,V,U> {
+        final BiFunction<? super K, ? super V, ? extends U> transformer;
+        final BiFunction<? super U, ? super U, ? extends U> reducer;
+        U result;
+        MapReduceMappingsTask<K,V,U> rights, nextRight;
+        MapReduceMappingsTask
+            (OffHeapConcurrentHashMap<K,V> m, BulkTask<K,V,?> p, int b,
+             int i, int f, Bin[] t,
+             MapReduceMappingsTask<K,V,U> nextRight,
+             BiFunction<? super K, ? super V, ? extends U> transformer,
+             BiFunction<? super U, ? super U, ? extends U> reducer) {
+            super(m, p, b, i, f, t); this.nextRight = nextRight;
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+        public final U getRawResult() { return result; }
+        public final void compute() {
+            final BiFunction<? super K, ? super V, ? extends U> transformer;
+            final BiFunction<? super U, ? super U, ? extends U> reducer;
+            if ((transformer = this.transformer) != null &&
+                (reducer = this.reducer) != null) {
+                for (int i = baseIndex, f, h; batch > 0 &&
+                         (h = ((f = baseLimit) + i) >>> 1) > i;) {
+                    addToPendingCount(1);
+                    (rights = new MapReduceMappingsTask<K,V,U>
+                     (map, this, batch >>>= 1, baseLimit = h, f, tab,
+                      rights, transformer, reducer)).fork();
+                }
+                Serializer<K> ks = map.keySerializer;
+                Serializer<V> vs = map.valueSerializer;
+                U r = null;
+                for (Traverser it = traverser(); it.advance(); ) {
+                    U u;
+                    if ((u = transformer.apply(ks.deserialize(it.nextKey),
+                                               vs.deserialize(it.nextVal))) != null)
+                        r = (r == null) ? u : reducer.apply(r, u);
+                }
+                result = r;
+                CountedCompleter<?> c;
+                for (c = firstComplete(); c != null; c = c.nextComplete()) {
+                    @SuppressWarnings("unchecked")
+                    MapReduceMappingsTask<K,V,U>
+                        t = (MapReduceMappingsTask<K,V,U>)c,
+                        s = t.rights;
+                    while (s != null) {
+                        U tr, sr;
+                        if ((sr = s.result) != null)
+                            t.result = (((tr = t.result) == null) ? sr :
+                                        reducer.apply(tr, sr));
+                        s = t.rights = s.nextRight;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Number of CPUS, to place bounds on some sizings */
+    static final int NCPU = ConcurrentHashMap.NCPU;
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long SIZECTL;
+    private static final long TRANSFERINDEX;
+    private static final long BASECOUNT;
+    private static final long CELLSBUSY;
+    private static final long CELLVALUE;
+    private static final long TOP;
+    private static final long BUFFER_ADDRESS;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    private static final long BYTE_BASE;
+
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = OffHeapConcurrentHashMap.class;
+            SIZECTL = U.objectFieldOffset
+                (k.getDeclaredField("sizeCtl"));
+            TRANSFERINDEX = U.objectFieldOffset
+                (k.getDeclaredField("transferIndex"));
+            BASECOUNT = U.objectFieldOffset
+                (k.getDeclaredField("baseCount"));
+            CELLSBUSY = U.objectFieldOffset
+                (k.getDeclaredField("cellsBusy"));
+            Class<?> ck = CounterCell.class;
+            CELLVALUE = U.objectFieldOffset
+                (ck.getDeclaredField("value"));
+            TOP = U.objectFieldOffset
+                (Arena.class.getDeclaredField("top"));
+            BUFFER_ADDRESS = U.objectFieldOffset
+                (java.nio.Buffer.class.getDeclaredField("address"));
+            Class<?> ak = Bin[].class;
+            ABASE = U.arrayBaseOffset(ak);
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            BYTE_BASE = U.arrayBaseOffset(byte[].class);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,813 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import static concurrent.TimeUnit.NANOSECONDS;
+import concurrent.atomic.AtomicLong;
+import concurrent.locks.Condition;
+import concurrent.locks.ReentrantLock;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link ThreadPoolExecutor} that runs tasks of several weighted
+ * <em>task classes</em> in proportion to their weights, and tasks
+ * within each class in order of their deadlines.  This allows
+ * latency-critical tasks to share a pool with bulk work without being
+ * delayed behind it in a FIFO queue, while still guaranteeing bulk
+ * work a share of the pool.
+ *
+ * <p>Task classes are numbered from zero to one less than the length
+ * of the weights array given on construction.  When tasks of several
+ * classes are queued, each class receives a share of dequeued tasks
+ * proportional to its weight (that is, the queue performs weighted
+ * fair queuing across classes, treating all tasks as equally costly),
+ * and a class that had no queued tasks does not accumulate credit
+ * while idle.  Within a class, tasks with deadlines are run in
+ * earliest-deadline-first order, before tasks without deadlines, and
+ * ties are broken in order of submission.  Deadlines affect only
+ * ordering: a task is run even if its deadline has passed.  Tasks
+ * submitted using the methods inherited from {@link
+ * ThreadPoolExecutor} and {@link AbstractExecutorService} are
+ * assigned class zero, without a deadline.
+ *
+ * <p>As in {@link ScheduledThreadPoolExecutor}, the queue is
+ * unbounded, so the pool acts as a fixed-sized pool using {@code
+ * corePoolSize} threads, and all tasks are queued as {@link Future}s,
+ * so exceptions thrown by tasks submitted via {@code execute} are
+ * captured by their futures rather than propagating to the worker
+ * thread.  Successive tasks run by the same thread, and tasks of
+ * different classes, are not otherwise ordered.
+ */
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+
+    /*
+     * Overview:
+     *
+     * Ordering is performed entirely by the work queue, a
+     * ClassedWorkQueue, so that all of ThreadPoolExecutor's worker
+     * management (and its metrics and adaptive sizing) applies
+     * unchanged.  Tasks are wrapped in ClassedFutureTasks recording
+     * class, deadline, and sequence number.
+     *
+     * The queue holds one heap (a java.util.PriorityQueue) per class,
+     * ordered by deadline then sequence number, all guarded by a
+     * single lock, as in PriorityBlockingQueue.  Classes are chosen
+     * by stride scheduling: each class has a stride inversely
+     * proportional to its weight, and a pass value; a dequeue takes
+     * from the nonempty class with least pass, and advances its pass
+     * by its stride.  The queue's virtual time is the pass of the
+     * most recently chosen class.  When a class becomes nonempty, its
+     * pass is raised to at least the virtual time, so that it cannot
+     * use time spent idle to starve other classes (as in start-time
+     * fair queuing).  The number of classes is expected to be small,
+     * so the least pass is found by linear scan.
+     */
+
+    /**
+     * Sequence number to break ties within a class.
+     */
+    private static final AtomicLong sequencer = new AtomicLong();
+
+    /**
+     * Stride of a class with weight one.
+     */
+    private static final long STRIDE_ONE = 1L << 20;
+
+    /**
+     * Largest relative deadline in nanoseconds, to keep absolute
+     * deadlines comparable by subtraction.
+     */
+    private static final long MAX_DEADLINE = Long.MAX_VALUE >>> 1;
+
+    /** The number of task classes */
+    private final int taskClasses;
+
+    private static class ClassedFutureTask<V> extends FutureTask<V> {
+        /** The task class */
+        final int taskClass;
+
+        /** True if the task has a deadline */
+        final boolean hasDeadline;
+
+        /** The deadline in nanoTime units, if hasDeadline */
+        final long deadline;
+
+        /** Sequence number to break ties FIFO */
+        final long sequenceNumber;
+
+        ClassedFutureTask(Callable<V> callable, int taskClass,
+                          boolean hasDeadline, long deadline) {
+            super(callable);
+            this.taskClass = taskClass;
+            this.hasDeadline = hasDeadline;
+            this.deadline = deadline;
+            this.sequenceNumber = sequencer.getAndIncrement();
+        }
+
+        ClassedFutureTask(Runnable r, V result, int taskClass,
+                          boolean hasDeadline, long deadline) {
+            super(r, result);
+            this.taskClass = taskClass;
+            this.hasDeadline = hasDeadline;
+            this.deadline = deadline;
+            this.sequenceNumber = sequencer.getAndIncrement();
+        }
+    }
+
+    /**
+     * Returns r, which must be queued by this executor, as a
+     * ClassedFutureTask.
+     */
+    static ClassedFutureTask<?> classedTask(Runnable r) {
+        return (ClassedFutureTask<?>)r;
+    }
+
+    /**
+     * Orders tasks within a class: those with deadlines first, by
+     * deadline, then by sequence number.
+     */
+    static final Comparator<Runnable> TASK_ORDER = new Comparator<Runnable>() {
+        public int compare(Runnable a, Runnable b) {
+            ClassedFutureTask<?> x = classedTask(a), y = classedTask(b);
+            if (x == y)
+                return 0;
+            if (x.hasDeadline != y.hasDeadline)
+                return x.hasDeadline ? -1 : 1;
+            if (x.hasDeadline) {
+                long d = x.deadline - y.deadline;
+                if (d != 0L)
+                    return (d < 0L) ? -1 : 1;
+            }
+            return (x.sequenceNumber < y.sequenceNumber) ? -1 : 1;
+        }
+    };
+
+    /**
+     * Throws IllegalArgumentException if taskClass is not valid.
+     */
+    private void checkClass(int taskClass) {
+        if (taskClass < 0 || taskClass >= taskClasses)
+            throw new IllegalArgumentException();
+    }
+
+    /**
+     * Returns the absolute deadline for the given relative one.
+     */
+    private static long deadlineTime(long deadline, TimeUnit unit) {
+        long d = unit.toNanos(deadline);
+        if (d > MAX_DEADLINE)
+            d = MAX_DEADLINE;
+        else if (d < -MAX_DEADLINE)
+            d = -MAX_DEADLINE;
+        return System.nanoTime() + d;
+    }
+
+    /**
+     * Returns the weights array after checking that it is nonempty
+     * and its elements positive.
+     */
+    private static int[] checkWeights(int[] weights) {
+        if (weights.length == 0)
+            throw new IllegalArgumentException();
+        for (int w : weights)
+            if (w <= 0)
+                throw new IllegalArgumentException();
+        return weights;
+    }
+
+    /**
+     * Creates a new {@code PriorityThreadPoolExecutor} with the given
+     * core pool size and task class weights.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param classWeights the weight of each task class
+     * @throws IllegalArgumentException if {@code corePoolSize < 0},
+     *         or {@code classWeights} is empty or has a nonpositive
+     *         element
+     * @throws NullPointerException if {@code classWeights} is null
+     */
+    public PriorityThreadPoolExecutor(int corePoolSize, int[] classWeights) {
+        super(corePoolSize, Integer.MAX_VALUE, 0, NANOSECONDS,
+              new ClassedWorkQueue(checkWeights(classWeights)));
+        this.taskClasses = classWeights.length;
+    }
+
+    /**
+     * Creates a new {@code PriorityThreadPoolExecutor} with the given
+     * initial parameters.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param classWeights the weight of each task class
+     * @param threadFactory the factory to use when the executor
+     *        creates a new thread
+     * @throws IllegalArgumentException if {@code corePoolSize < 0},
+     *         or {@code classWeights} is empty or has a nonpositive
+     *         element
+     * @throws NullPointerException if {@code classWeights} or
+     *         {@code threadFactory} is null
+     */
+    public PriorityThreadPoolExecutor(int corePoolSize, int[] classWeights,
+                                      ThreadFactory threadFactory) {
+        super(corePoolSize, Integer.MAX_VALUE, 0, NANOSECONDS,
+              new ClassedWorkQueue(checkWeights(classWeights)),
+              threadFactory);
+        this.taskClasses = classWeights.length;
+    }
+
+    /**
+     * Creates a new {@code PriorityThreadPoolExecutor} with the given
+     * initial parameters.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param classWeights the weight of each task class
+     * @param threadFactory the factory to use when the executor
+     *        creates a new thread
+     * @param handler the handler to use when execution is blocked
+     *        because the thread bounds and queue capacities are reached
+     * @throws IllegalArgumentException if {@code corePoolSize < 0},
+     *         or {@code classWeights} is empty or has a nonpositive
+     *         element
+     * @throws NullPointerException if {@code classWeights},
+     *         {@code threadFactory} or {@code handler} is null
+     */
+    public PriorityThreadPoolExecutor(int corePoolSize, int[] classWeights,
+                                      ThreadFactory threadFactory,
+                                      RejectedExecutionHandler handler) {
+        super(corePoolSize, Integer.MAX_VALUE, 0, NANOSECONDS,
+              new ClassedWorkQueue(checkWeights(classWeights)),
+              threadFactory, handler);
+        this.taskClasses = classWeights.length;
+    }
+
+    /**
+     * Returns the number of task classes.
+     *
+     * @return the number of task classes
+     */
+    public int getTaskClassCount() {
+        return taskClasses;
+    }
+
+    /**
+     * Returns the number of tasks of the given class awaiting
+     * execution.
+     *
+     * @param taskClass the task class
+     * @return the number of queued tasks of the class
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     */
+    public int getQueuedTaskCount(int taskClass) {
+        checkClass(taskClass);
+        return ((ClassedWorkQueue)getQueue()).size(taskClass);
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new ClassedFutureTask<T>(runnable, value, 0, false, 0L);
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new ClassedFutureTask<T>(callable, 0, false, 0L);
+    }
+
+    /**
+     * Executes {@code command} as a task of class zero without a
+     * deadline.  Equivalent to {@code execute(command, 0)}.
+     *
+     * @param command the task to execute
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void execute(Runnable command) {
+        if (command == null)
+            throw new NullPointerException();
+        super.execute((command instanceof ClassedFutureTask) ? command :
+                      newTaskFor(command, null));
+    }
+
+    /**
+     * Executes the given tasks as tasks of class zero without
+     * deadlines.
+     *
+     * @throws RejectedExecutionException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void executeAll(Collection<? extends Runnable> tasks) {
+        List<Runnable> list = new ArrayList<Runnable>(tasks.size());
+        for (Runnable r : tasks) {
+            if (r == null)
+                throw new NullPointerException();
+            list.add((r instanceof ClassedFutureTask) ? r :
+                     newTaskFor(r, null));
+        }
+        super.executeAll(list);
+    }
+
+    /**
+     * Executes {@code command} as a task of the given class without a
+     * deadline.
+     *
+     * @param command the task to execute
+     * @param taskClass the task class
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     * @throws NullPointerException if {@code command} is null
+     */
+    public void execute(Runnable command, int taskClass) {
+        submit(command, taskClass);
+    }
+
+    /**
+     * Executes {@code command} as a task of the given class, with the
+     * given deadline relative to the current time.
+     *
+     * @param command the task to execute
+     * @param taskClass the task class
+     * @param deadline the time from now by which the task should run
+     * @param unit the time unit of the deadline argument
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     * @throws NullPointerException if {@code command} or unit is null
+     */
+    public void execute(Runnable command, int taskClass,
+                        long deadline, TimeUnit unit) {
+        submit(command, taskClass, deadline, unit);
+    }
+
+    /**
+     * Submits a Runnable task for execution as a task of the given
+     * class without a deadline, and returns a Future representing
+     * that task.  The Future's {@code get} method will return {@code
+     * null} upon successful completion.
+     *
+     * @param task the task to submit
+     * @param taskClass the task class
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     * @throws NullPointerException if {@code task} is null
+     */
+    public Future<?> submit(Runnable task, int taskClass) {
+        if (task == null)
+            throw new NullPointerException();
+        checkClass(taskClass);
+        ClassedFutureTask<Void> t =
+            new ClassedFutureTask<Void>(task, null, taskClass, false, 0L);
+        super.execute(t);
+        return t;
+    }
+
+    /**
+     * Submits a Runnable task for execution as a task of the given
+     * class, with the given deadline relative to the current time,
+     * and returns a Future representing that task.  The Future's
+     * {@code get} method will return {@code null} upon successful
+     * completion.
+     *
+     * @param task the task to submit
+     * @param taskClass the task class
+     * @param deadline the time from now by which the task should run
+     * @param unit the time unit of the deadline argument
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     * @throws NullPointerException if {@code task} or unit is null
+     */
+    public Future<?> submit(Runnable task, int taskClass,
+                            long deadline, TimeUnit unit) {
+        if (task == null || unit == null)
+            throw new NullPointerException();
+        checkClass(taskClass);
+        ClassedFutureTask<Void> t =
+            new ClassedFutureTask<Void>(task, null, taskClass, true,
+                                        deadlineTime(deadline, unit));
+        super.execute(t);
+        return t;
+    }
+
+    /**
+     * Submits a value-returning task for execution as a task of the
+     * given class without a deadline, and returns a Future
+     * representing the pending results of the task.
+     *
+     * @param task the task to submit
+     * @param taskClass the task class
+     * @param <T> the type of the task's result
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     * @throws NullPointerException if {@code task} is null
+     */
+    public <T> Future<T> submit(Callable<T> task, int taskClass) {
+        if (task == null)
+            throw new NullPointerException();
+        checkClass(taskClass);
+        ClassedFutureTask<T> t =
+            new ClassedFutureTask<T>(task, taskClass, false, 0L);
+        super.execute(t);
+        return t;
+    }
+
+    /**
+     * Submits a value-returning task for execution as a task of the
+     * given class, with the given deadline relative to the current
+     * time, and returns a Future representing the pending results of
+     * the task.
+     *
+     * @param task the task to submit
+     * @param taskClass the task class
+     * @param deadline the time from now by which the task should run
+     * @param unit the time unit of the deadline argument
+     * @param <T> the type of the task's result
+     * @return a Future representing pending completion of the task
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if the task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws IllegalArgumentException if {@code taskClass} is not a
+     *         valid task class
+     * @throws NullPointerException if {@code task} or unit is null
+     */
+    public <T> Future<T> submit(Callable<T> task, int taskClass,
+                                long deadline, TimeUnit unit) {
+        if (task == null || unit == null)
+            throw new NullPointerException();
+        checkClass(taskClass);
+        ClassedFutureTask<T> t =
+            new ClassedFutureTask<T>(task, taskClass, true,
+                                     deadlineTime(deadline, unit));
+        super.execute(t);
+        return t;
+    }
+
+    /**
+     * Specialized work queue holding one heap of tasks per class,
+     * from which classes are chosen by stride scheduling.  Elements
+     * must be ClassedFutureTasks.
+     */
+    static class ClassedWorkQueue extends AbstractQueue<Runnable>
+        implements BlockingQueue<Runnable> {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private final PriorityQueue<Runnable>[] queues;
+        private final long[] strides;
+        private final long[] passes;
+        private long virtualTime;
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        ClassedWorkQueue(int[] weights) {
+            int n = weights.length;
+            queues = (PriorityQueue<Runnable>[])new PriorityQueue<?>[n];
+            strides = new long[n];
+            passes = new long[n];
+            for (int i = 0; i < n; ++i) {
+                queues[i] = new PriorityQueue<Runnable>(11, TASK_ORDER);
+                strides[i] = Math.max(1L, STRIDE_ONE / weights[i]);
+            }
+        }
+
+        /**
+         * Returns the index of the nonempty class with least pass, or
+         * -1 if none.  Call only when holding lock.
+         */
+        private int nextClass() {
+            // assert lock.isHeldByCurrentThread();
+            int c = -1;
+            long p = 0L;
+            for (int i = 0; i < queues.length; ++i) {
+                if (!queues[i].isEmpty() && (c < 0 || passes[i] - p < 0L)) {
+                    c = i;
+                    p = passes[i];
+                }
+            }
+            return c;
+        }
+
+        /**
+         * Removes and returns the next task, or null if empty.  Call
+         * only when holding lock.
+         */
+        private Runnable dequeue() {
+            // assert lock.isHeldByCurrentThread();
+            int c;
+            if ((c = nextClass()) < 0)
+                return null;
+            Runnable x = queues[c].poll();
+            virtualTime = passes[c];
+            passes[c] += strides[c];
+            --size;
+            return x;
+        }
+
+        int size(int taskClass) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                return queues[taskClass].size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean offer(Runnable x) {
+            if (x == null)
+                throw new NullPointerException();
+            int c = classedTask(x).taskClass;
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                PriorityQueue<Runnable> q = queues[c];
+                if (q.isEmpty() && passes[c] - virtualTime < 0L)
+                    passes[c] = virtualTime;
+                q.offer(x);
+                ++size;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        }
+
+        public void put(Runnable e) {
+            offer(e);
+        }
+
+        public boolean add(Runnable e) {
+            return offer(e);
+        }
+
+        public boolean offer(Runnable e, long timeout, TimeUnit unit) {
+            return offer(e);
+        }
+
+        public Runnable poll() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public Runnable take() throws InterruptedException {
+            final ReentrantLock lock = this.lock;
+            lock.lockInterruptibly();
+            try {
+                while (size == 0)
+                    available.await();
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public Runnable poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            final ReentrantLock lock = this.lock;
+            lock.lockInterruptibly();
+            try {
+                while (size == 0) {
+                    if (nanos <= 0)
+                        return null;
+                    nanos = available.awaitNanos(nanos);
+                }
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public Runnable peek() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                int c;
+                return ((c = nextClass()) < 0) ? null : queues[c].peek();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int size() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+
+        public int remainingCapacity() {
+            return Integer.MAX_VALUE;
+        }
+
+        public boolean contains(Object x) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                for (PriorityQueue<Runnable> q : queues)
+                    if (q.contains(x))
+                        return true;
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean remove(Object x) {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                for (PriorityQueue<Runnable> q : queues) {
+                    if (q.remove(x)) {
+                        --size;
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void clear() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                for (PriorityQueue<Runnable> q : queues)
+                    q.clear();
+                size = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int drainTo(Collection<? super Runnable> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            if (c == null)
+                throw new NullPointerException();
+            if (c == this)
+                throw new IllegalArgumentException();
+            if (maxElements <= 0)
+                return 0;
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                int n = 0;
+                for (Runnable x; n < maxElements && (x = dequeue()) != null; ) {
+                    c.add(x);
+                    ++n;
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns an array of the queued tasks, grouped by class in
+         * increasing class order, and in no particular order within
+         * each class.
+         */
+        public Object[] toArray() {
+            final ReentrantLock lock = this.lock;
+            lock.lock();
+            try {
+                Object[] a = new Object[size];
+                int k = 0;
+                for (PriorityQueue<Runnable> q : queues)
+                    for (Runnable x : q)
+                        a[k++] = x;
+                return a;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T[] toArray(T[] a) {
+            Object[] es = toArray();
+            int n = es.length;
+            if (a.length < n)
+                a = (T[])java.lang.reflect.Array.newInstance
+                    (a.getClass().getComponentType(), n);
+            System.arraycopy(es, 0, a, 0, n);
+            if (a.length > n)
+                a[n] = null;
+            return a;
+        }
+
+        public Iterator<Runnable> iterator() {
+            return new Itr(toArray());
+        }
+
+        /**
+         * Snapshot iterator that works off a copy of the elements.
+         */
+        private class Itr implements Iterator<Runnable> {
+            final Object[] array;
+            int cursor = 0;     // index of next element to return
+            int lastRet = -1;   // index of last element, or -1 if no such
+
+            Itr(Object[] array) {
+                this.array = array;
+            }
+
+            public boolean hasNext() {
+                return cursor < array.length;
+            }
+
+            public Runnable next() {
+                if (cursor >= array.length)
+                    throw new NoSuchElementException();
+                lastRet = cursor;
+                return (Runnable)array[cursor++];
+            }
+
+            public void remove() {
+                if (lastRet < 0)
+                    throw new IllegalStateException();
+                ClassedWorkQueue.this.remove(array[lastRet]);
+                lastRet = -1;
+            }
+        }
+    }
+}
@@ -622,6 +622,25 @@ public class ScheduledThreadPoolExecutor
         schedule(command, 0, NANOSECONDS);
     }
 
+    /**
+     * Executes each of the given tasks as if by {@link #execute}, in
+     * iteration order.  Tasks are scheduled individually, because
+     * they must be wrapped and queued by delay.
+     *
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if a task
+     *         cannot be accepted for execution because the
+     *         executor has been shut down
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void executeAll(Collection<? extends Runnable> tasks) {
+        for (Runnable t : tasks)
+            if (t == null)
+                throw new NullPointerException();
+        for (Runnable t : tasks)
+            schedule(t, 0, NANOSECONDS);
+    }
+
     // Override AbstractExecutorService methods
 
     /**
@@ -0,0 +1,573 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import concurrent.locks.LockSupport;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * A bounded {@linkplain BlockingQueue blocking queue} backed by an
+ * array, for use by exactly one producer thread and one consumer
+ * thread.  This queue orders elements FIFO (first-in-first-out), and
+ * has a fixed capacity set on construction.
+ *
+ * <p>At any given time, at most one thread may invoke the insertion
+ * methods ({@code add}, {@code offer}, {@code put} and their bulk
+ * forms), and at most one thread may invoke the removal methods
+ * ({@code poll}, {@code take}, {@code remove()}, {@code peek}, {@code
+ * element}, {@code clear}, {@code drainTo} and {@link #drain}); the
+ * producer and consumer may change over time only if the hand-over
+ * is otherwise synchronized.  Under this restriction neither side
+ * uses locks or compare-and-set, so hand-offs are considerably
+ * cheaper than with {@link ArrayBlockingQueue} or {@link
+ * ConcurrentLinkedQueue}.  The effects of violating it are
+ * undefined.  Other methods may be invoked by any thread.
+ *
+ * <p>Removal of interior elements is not supported: {@link
+ * #remove(Object)} and the {@code remove} method of iterators throw
+ * {@link UnsupportedOperationException}.  Iterators are weakly
+ * consistent.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class SpscArrayBlockingQueue<E> extends AbstractQueue<E>
+        implements BlockingQueue<E> {
+
+    /*
+     * Overview:
+     *
+     * This is a Lamport ring buffer with cached indices.  The
+     * producer owns tail and the consumer owns head; each publishes
+     * its index with an ordered (lazySet) write after storing or
+     * clearing a slot, so the other side sees the slot contents
+     * once it sees the index.  Each side also keeps a private cache
+     * of the other's index, rereading the shared one only when the
+     * cache says the queue is full (producer) or empty (consumer),
+     * so in steady state each side touches the other's cache line
+     * only about once per lap.  The two groups of fields are padded
+     * apart.  The array length is a power of two at least the
+     * capacity, so that slots are found by masking.
+     *
+     * A thread that must block records itself in takeWaiter or
+     * putWaiter and then rechecks the queue before parking.  The
+     * other side must therefore see either the waiter or the
+     * recheck must see its change, which needs a full fence between
+     * publishing the index and reading the waiter field.  Batch
+     * operations (drain, drainTo) publish and fence once per batch.
+     */
+
+    /** The queued items; length is a power of two */
+    final Object[] items;
+
+    /** Maximum number of elements */
+    final int capacity;
+
+    /** Position of next removal; written only by the consumer */
+    @sun.misc.Contended("consumer")
+    volatile long head;
+
+    /** Consumer's cached value of tail */
+    @sun.misc.Contended("consumer")
+    long tailCache;
+
+    /** Position of next insertion; written only by the producer */
+    @sun.misc.Contended("producer")
+    volatile long tail;
+
+    /** Producer's cached value of head */
+    @sun.misc.Contended("producer")
+    long headCache;
+
+    /** Consumer blocked waiting for an element, or null */
+    volatile Thread takeWaiter;
+
+    /** Producer blocked waiting for space, or null */
+    volatile Thread putWaiter;
+
+    /**
+     * Creates a {@code SpscArrayBlockingQueue} with the given (fixed)
+     * capacity.
+     *
+     * @param capacity the capacity of this queue
+     * @throws IllegalArgumentException if {@code capacity} is less
+     *         than 1, or greater than {@code 1 << 30}
+     */
+    public SpscArrayBlockingQueue(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException();
+        int n = 1;
+        while (n < capacity)
+            n <<= 1;
+        this.capacity = capacity;
+        this.items = new Object[n];
+    }
+
+    private static long itemOffset(Object[] a, long pos) {
+        return ((long)((int)pos & (a.length - 1)) << ASHIFT) + ABASE;
+    }
+
+    /** Wakes up the consumer if blocked, after publishing tail. */
+    private void signalConsumer() {
+        Thread w;
+        U.fullFence();
+        if ((w = takeWaiter) != null)
+            LockSupport.unpark(w);
+    }
+
+    /** Wakes up the producer if blocked, after publishing head. */
+    private void signalProducer() {
+        Thread w;
+        U.fullFence();
+        if ((w = putWaiter) != null)
+            LockSupport.unpark(w);
+    }
+
+    /**
+     * Inserts e if there is space, without signalling.
+     */
+    private boolean insert(Object e) {
+        long t = tail;
+        if (t - headCache >= capacity && t - (headCache = head) >= capacity)
+            return false;
+        Object[] a = items;
+        U.putObject(a, itemOffset(a, t), e);
+        U.putOrderedLong(this, TAIL, t + 1);
+        return true;
+    }
+
+    /**
+     * Removes and returns the first element if present, without
+     * signalling.
+     */
+    private Object extract() {
+        long h = head;
+        if (h >= tailCache && h >= (tailCache = tail))
+            return null;
+        Object[] a = items;
+        long off = itemOffset(a, h);
+        Object x = U.getObject(a, off);
+        U.putObject(a, off, null);
+        U.putOrderedLong(this, HEAD, h + 1);
+        return x;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue if it is
+     * possible to do so immediately without exceeding the queue's
+     * capacity, returning {@code true} upon success and {@code false}
+     * if this queue is full.  Must be invoked only by the producer.
+     *
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        if (!insert(e))
+            return false;
+        signalConsumer();
+        return true;
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting
+     * for space to become available if the queue is full.  Must be
+     * invoked only by the producer.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Inserts the specified element at the tail of this queue, waiting
+     * up to the specified wait time for space to become available if
+     * the queue is full.  Must be invoked only by the producer.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        if (e == null)
+            throw new NullPointerException();
+        if (!insert(e)) {
+            long nanos = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+            Thread me = Thread.currentThread();
+            try {
+                for (;;) {
+                    putWaiter = me;
+                    if (insert(e))
+                        break;
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                    if (nanos <= 0L)
+                        return false;
+                    LockSupport.parkNanos(this, nanos);
+                    nanos = deadline - System.nanoTime();
+                }
+            } finally {
+                putWaiter = null;
+            }
+        }
+        signalConsumer();
+        return true;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns {@code
+     * null} if this queue is empty.  Must be invoked only by the
+     * consumer.
+     *
+     * @return the head of this queue, or {@code null} if this queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        Object x = extract();
+        if (x != null)
+            signalProducer();
+        return (E)x;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if
+     * necessary until an element becomes available.  Must be invoked
+     * only by the consumer.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        E x;
+        while ((x = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null)
+            ;
+        return x;
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting up to the
+     * specified wait time if necessary for an element to become
+     * available.  Must be invoked only by the consumer.
+     *
+     * @throws InterruptedException {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Object x;
+        if ((x = extract()) == null) {
+            long nanos = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+            Thread me = Thread.currentThread();
+            try {
+                for (;;) {
+                    takeWaiter = me;
+                    if ((x = extract()) != null)
+                        break;
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                    if (nanos <= 0L)
+                        return null;
+                    LockSupport.parkNanos(this, nanos);
+                    nanos = deadline - System.nanoTime();
+                }
+            } finally {
+                takeWaiter = null;
+            }
+        }
+        signalProducer();
+        return (E)x;
+    }
+
+    /**
+     * Removes up to {@code limit} available elements from this queue,
+     * in order, passing each to the given action.  Space is released
+     * to the producer once for the whole batch, after the action has
+     * been applied to the last element, or has thrown an exception
+     * (in which case the element it was given is removed).  Must be
+     * invoked only by the consumer.
+     *
+     * @param action the action to apply to each element
+     * @param limit the maximum number of elements to remove
+     * @return the number of elements removed
+     * @throws NullPointerException if the action is null
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(Consumer<? super E> action, int limit) {
+        if (action == null)
+            throw new NullPointerException();
+        long h = head;
+        long t = tailCache;
+        if (h >= t)
+            tailCache = t = tail;
+        int n = (int)Math.min(t - h, (long)Math.max(limit, 0));
+        Object[] a = items;
+        int i = 0;
+        try {
+            while (i < n) {
+                long off = itemOffset(a, h + i);
+                Object x = U.getObject(a, off);
+                U.putObject(a, off, null);
+                ++i;
+                action.accept((E)x);
+            }
+        } finally {
+            if (i > 0) {
+                U.putOrderedLong(this, HEAD, h + i);
+                signalProducer();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(final Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        return drain(new Consumer<E>() {
+                public void accept(E e) { c.add(e); }
+            }, maxElements);
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or
+     * returns {@code null} if this queue is empty.  Must be invoked
+     * only by the consumer.
+     *
+     * @return the head of this queue, or {@code null} if this queue is empty
+     */
+    public E peek() {
+        return itemAt(head);
+    }
+
+    /**
+     * Returns the element at position p, or null if it has been
+     * removed or not yet inserted.  An element read from a slot is
+     * known to be the one at p if head has not passed p, since the
+     * producer cannot reuse the slot until then.
+     */
+    @SuppressWarnings("unchecked")
+    private E itemAt(long p) {
+        if (p >= tail)
+            return null;
+        Object[] a = items;
+        Object x = U.getObjectVolatile(a, itemOffset(a, p));
+        return (head <= p) ? (E)x : null;
+    }
+
+    /**
+     * Returns the number of elements in this queue.
+     *
+     * @return the number of elements in this queue
+     */
+    public int size() {
+        for (;;) {
+            long h = head, t = tail;
+            if (h == head) {
+                long n = t - h;
+                return (n <= 0L) ? 0 : (n >= capacity) ? capacity : (int)n;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return head >= tail;
+    }
+
+    /**
+     * Returns the number of additional elements that this queue can
+     * ideally (in the absence of memory or resource constraints)
+     * accept without blocking.
+     *
+     * @return the remaining capacity
+     */
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * Returns {@code true} if this queue contains the specified element.
+     * More formally, returns {@code true} if and only if this queue
+     * contains at least one element {@code e} such that
+     * {@code o.equals(e)}.
+     *
+     * @param o object to be checked for containment in this queue
+     * @return {@code true} if this queue contains the specified element
+     */
+    public boolean contains(Object o) {
+        if (o != null) {
+            for (long p = head, t = tail; p < t; ++p) {
+                E x = itemAt(p);
+                if (x != null && o.equals(x))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue,
+     * in proper sequence.
+     *
+     * @return an array containing all of the elements in this queue
+     */
+    public Object[] toArray() {
+        ArrayList<E> list = new ArrayList<E>();
+        for (long p = head, t = tail; p < t; ++p) {
+            E x = itemAt(p);
+            if (x != null)
+                list.add(x);
+        }
+        return list.toArray();
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue, in
+     * proper sequence; the runtime type of the returned array is that of
+     * the specified array.
+     *
+     * @param a the array into which the elements of the queue are to
+     *          be stored, if it is big enough; otherwise, a new array of the
+     *          same runtime type is allocated for this purpose
+     * @return an array containing all of the elements in this queue
+     * @throws ArrayStoreException if the runtime type of the specified array
+     *         is not a supertype of the runtime type of every element in
+     *         this queue
+     * @throws NullPointerException if the specified array is null
+     */
+    public <T> T[] toArray(T[] a) {
+        ArrayList<E> list = new ArrayList<E>();
+        for (long p = head, t = tail; p < t; ++p) {
+            E x = itemAt(p);
+            if (x != null)
+                list.add(x);
+        }
+        return list.toArray(a);
+    }
+
+    /**
+     * Returns an iterator over the elements in this queue in proper
+     * sequence.  The iterator does not support the {@code remove}
+     * method.
+     *
+     * @return an iterator over the elements in this queue in proper sequence
+     */
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * Weakly consistent iterator.  It holds the next element to hand
+     * out, and skips past positions that the consumer has passed.
+     */
+    private class Itr implements Iterator<E> {
+        private long cursor;
+        private E nextItem;
+
+        Itr() {
+            cursor = head;
+            advance();
+        }
+
+        private void advance() {
+            E x = null;
+            for (long h; x == null && cursor < tail; ++cursor) {
+                if (cursor < (h = head))
+                    cursor = h;
+                x = itemAt(cursor);
+            }
+            nextItem = x;
+        }
+
+        public boolean hasNext() {
+            return nextItem != null;
+        }
+
+        public E next() {
+            E x = nextItem;
+            if (x == null)
+                throw new NoSuchElementException();
+            advance();
+            return x;
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long HEAD;
+    private static final long TAIL;
+    private static final int ABASE;
+    private static final int ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = SpscArrayBlockingQueue.class;
+            HEAD = U.objectFieldOffset
+                (k.getDeclaredField("head"));
+            TAIL = U.objectFieldOffset
+                (k.getDeclaredField("tail"));
+            ABASE = U.arrayBaseOffset(Object[].class);
+            int scale = U.arrayIndexScale(Object[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An {@link ExecutorService} that runs each task in a new thread
+ * created by a given {@link ThreadFactory}, optionally bounding the
+ * number of tasks running at once.  Instances are created by {@link
+ * Executors#newThreadPerTaskExecutor} and {@link
+ * Executors#newVirtualThreadPerTaskExecutor}.
+ */
+class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+    /*
+     * Overview:
+     *
+     * Each call to execute creates and starts a thread that runs the
+     * task and then exits, so there is no queue and no idle thread.
+     * Started threads are kept in a concurrent set, so that
+     * shutdownNow can interrupt them and termination can be detected
+     * when the set becomes empty after shutdown.  To avoid races with
+     * shutdown, execute adds the thread to the set before rechecking
+     * the run state (much as in ThreadPoolExecutor.execute), and
+     * shutdown sets the run state before checking the set, so either
+     * execute sees the shutdown and backs out, or tryTerminate sees
+     * the thread.
+     *
+     * If bounded, execute acquires a permit of a Semaphore before
+     * creating a thread, blocking the submitter while the bound is
+     * reached, and the thread releases it on exit.  Blocking the
+     * submitter rather than the new thread means that the bound also
+     * limits the number of threads, as is necessary when they are
+     * platform threads.
+     */
+
+    private static final int RUNNING    = 0;
+    private static final int SHUTDOWN   = 1;
+    private static final int TERMINATED = 2;
+
+    private final ThreadFactory factory;
+    private final Semaphore permits;   // null if unbounded
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch terminationSignal = new CountDownLatch(1);
+    private volatile int state;
+
+    /**
+     * Creates an executor using the given factory, running at most
+     * maxConcurrency tasks at once if positive, else unbounded.
+     */
+    ThreadPerTaskExecutor(ThreadFactory factory, int maxConcurrency) {
+        if (factory == null)
+            throw new NullPointerException();
+        this.factory = factory;
+        this.permits = (maxConcurrency > 0) ?
+            new Semaphore(maxConcurrency) : null;
+    }
+
+    /**
+     * Transitions to TERMINATED if shut down and no threads remain.
+     */
+    private void tryTerminate() {
+        if (state == SHUTDOWN && threads.isEmpty() &&
+            U.compareAndSwapInt(this, STATE, SHUTDOWN, TERMINATED))
+            terminationSignal.countDown();
+    }
+
+    /**
+     * Undoes the effects of execute for a thread that was not
+     * started or has finished.
+     */
+    private void threadExited(Thread t) {
+        threads.remove(t);
+        if (permits != null)
+            permits.release();
+        tryTerminate();
+    }
+
+    /**
+     * Runs a task and then removes the current thread.
+     */
+    final class TaskRunner implements Runnable {
+        final Runnable task;
+        TaskRunner(Runnable task) { this.task = task; }
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                threadExited(Thread.currentThread());
+            }
+        }
+    }
+
+    /**
+     * Executes the given task in a new thread.  If bounded, this
+     * method blocks until fewer than the maximum number of tasks are
+     * running.
+     *
+     * @throws RejectedExecutionException if this executor has been
+     *         shut down, the current thread is interrupted while
+     *         waiting to run the task, or the thread factory fails to
+     *         create or start a thread
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void execute(Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        if (state != RUNNING)
+            throw new RejectedExecutionException();
+        Semaphore p;
+        if ((p = permits) != null) {
+            try {
+                p.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ie);
+            }
+        }
+        Thread t;
+        try {
+            t = factory.newThread(new TaskRunner(task));
+        } catch (Throwable ex) {
+            if (p != null)
+                p.release();
+            throw new RejectedExecutionException(ex);
+        }
+        if (t == null) {
+            if (p != null)
+                p.release();
+            throw new RejectedExecutionException();
+        }
+        threads.add(t);
+        if (state != RUNNING) {
+            threadExited(t);
+            throw new RejectedExecutionException();
+        }
+        try {
+            t.start();
+        } catch (Throwable ex) {
+            threadExited(t);
+            throw new RejectedExecutionException(ex);
+        }
+    }
+
+    public void shutdown() {
+        if (state == RUNNING)
+            U.compareAndSwapInt(this, STATE, RUNNING, SHUTDOWN);
+        tryTerminate();
+    }
+
+    /**
+     * Shuts down this executor and interrupts the threads running
+     * tasks.  Because there is no queue, the returned list is always
+     * empty.
+     *
+     * @return an empty list
+     */
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        for (Thread t : threads)
+            t.interrupt();
+        return Collections.emptyList();
+    }
+
+    public boolean isShutdown() {
+        return state != RUNNING;
+    }
+
+    public boolean isTerminated() {
+        return state == TERMINATED;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+        return terminationSignal.await(timeout, unit);
+    }
+
+    /**
+     * Returns a string identifying this executor, as well as its
+     * state and the number of running tasks.
+     *
+     * @return a string identifying this executor, as well as its state
+     */
+    public String toString() {
+        int s = state;
+        String rs = (s == RUNNING) ? "Running" :
+            (s == SHUTDOWN) ? "Shutting down" : "Terminated";
+        return super.toString() + "[" + rs +
+            ", running tasks = " + threads.size() + "]";
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long STATE;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ThreadPerTaskExecutor.class;
+            STATE = U.objectFieldOffset
+                (k.getDeclaredField("state"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+}
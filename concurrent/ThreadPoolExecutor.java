@@ -40,8 +40,12 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import concurrent.locks.AbstractQueuedSynchronizer;
 import concurrent.locks.Condition;
+import concurrent.locks.LockSupport;
 import concurrent.locks.ReentrantLock;
 import concurrent.atomic.AtomicInteger;
+import concurrent.atomic.AtomicLongArray;
+import concurrent.atomic.LongAccumulator;
+import concurrent.atomic.LongAdder;
 import java.util.*;
 
 public class ThreadPoolExecutor extends AbstractExecutorService {
@@ -183,14 +187,31 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * also hold mainLock on shutdown and shutdownNow, for the sake of
      * ensuring workers set is stable while separately checking
      * permission to interrupt and actually interrupting.
+     *
+     * However, under heavy thread churn, or when statistics are
+     * polled frequently, the lock itself becomes a bottleneck. So
+     * pools constructed in mode CONCURRENT_WORKER_TRACKING instead keep
+     * workers in a concurrent set, and the statistics in striped
+     * counters, that addWorker, processWorkerExit and the statistics
+     * methods access without locking.  Interrupts and termination
+     * are still serialized by mainLock.  To preserve the guarantee
+     * that a worker added concurrently with shutdown is either seen
+     * by the shutdown's interrupts or itself sees the shutdown,
+     * addWorker adds the worker to the set before (rather than
+     * after) rechecking the run state, backing out if it changed.
      */
     private final ReentrantLock mainLock = new ReentrantLock();
 
     /**
-     * Set containing all worker threads in pool. Accessed only when
-     * holding mainLock.
+     * Set containing all worker threads in pool. Unless
+     * concurrentWorkers, accessed only when holding mainLock.
+     */
+    private final Set<Worker> workers;
+
+    /**
+     * True if workers and statistics are tracked without mainLock.
      */
-    private final HashSet<Worker> workers = new HashSet<Worker>();
+    private final boolean concurrentWorkers;
 
     /**
      * Wait condition to support awaitTermination
@@ -209,6 +230,88 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     private long completedTaskCount;
 
+    /**
+     * Counterparts of largestPoolSize and completedTaskCount used
+     * instead of them if concurrentWorkers, else null.  Because
+     * exiting workers are removed from the set before their counts
+     * are added, sums may transiently miss them, so
+     * completedTaskFloor holds the largest value returned by
+     * getCompletedTaskCount to keep it nondecreasing.
+     */
+    private final LongAccumulator largestPoolSizes;
+    private final LongAdder completedTaskCounter;
+    private final LongAccumulator completedTaskFloor;
+
+    /**
+     * Local task queues, or null unless work stealing.  In
+     * work-stealing mode, execute pushes tasks that are not run
+     * directly by new core threads onto one of these queues, chosen
+     * by the submitting thread's probe hash (so that each submitter
+     * tends to use the same queue, and different ones use different
+     * queues), falling back to workQueue only if the queue is full.
+     * Each worker has a home queue (its index in order of creation,
+     * modulo the number of queues) that it polls first, before
+     * workQueue, and then steals from the others, as in
+     * ForkJoinPool.  If threads are created by an
+     * AffinityThreadFactory placing them on several NUMA nodes, the
+     * queues are instead divided into aligned power-of-two groups,
+     * one per node, and each worker's home queue is in its node's
+     * group, which it scans before the others.  Queues are shared
+     * by workers rather than owned, so tasks are never stranded
+     * when workers exit.  They are bounded, FIFO arrays, to which
+     * pushes are serialized by a spinlock (failing, rather than
+     * spinning, if busy, in which case the submitter tries another
+     * queue), and from which all takes are by CAS of the slot at
+     * base.  Method remove (used by
+     * execute to back out of queuing a task that races with
+     * shutdown, which may already have drained the queues) instead
+     * CASes the task's slot to REMOVED, which polls discard.
+     *
+     * Because workers no longer block in workQueue, idle workers
+     * instead push nodes onto the Treiber stack idleWorkers and
+     * park; execute pops and unparks one after queuing a task.  To
+     * avoid lost signals, a worker rescans the queues after pushing
+     * its node, and submitters check idleWorkers after queuing.
+     * Nodes are never reused, avoiding ABA problems, and a worker
+     * that stops waiting for any reason other than being signalled
+     * cancels its node by CASing its thread field to null, so
+     * signallers skip it.  Interrupts for shutdown and
+     * reconfiguration reach parked workers as before, via
+     * interruptIdleWorkers.
+     */
+    private final TaskQueue[] taskQueues;
+
+    /**
+     * Top of the stack of waiting workers, if work stealing.
+     */
+    private volatile IdleNode idleWorkers;
+
+    /**
+     * Controller adjusting pool sizes, or null unless adaptive sizing
+     * is enabled.  See class SizeController.
+     */
+    private volatile SizeController sizeController;
+
+    /**
+     * Recorder of task and worker timings, or null unless metrics
+     * are enabled.  See class MetricsRecorder.
+     */
+    private volatile MetricsRecorder metrics;
+
+    /**
+     * Progress of the drain started by shutdownAndDrain, or null if
+     * none.  While its transferring field is true, workers of a
+     * shut-down pool move queued tasks to its sink (in transferBatch)
+     * rather than running them, as does a helper thread started by
+     * shutdownAndDrain (see startTransfers), so that transfers begin
+     * even while all workers are busy.  Its overflow queue holds
+     * tasks that could not be requeued after the sink failed, and is
+     * treated as part of the pool's queues, as are tasks held in
+     * batches being transferred, so that the pool cannot terminate
+     * while they might still be requeued.
+     */
+    private volatile DrainProgress drainProgress;
+
     /*
      * All user control parameters are declared as volatiles so that
      * ongoing actions are based on freshest values, but without need
@@ -255,6 +358,12 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     private volatile boolean allowCoreThreadTimeOut;
 
+    /**
+     * How idle workers wait for tasks before blocking in the queue,
+     * or null if they block immediately (as for IdleStrategy.park).
+     */
+    private volatile IdleStrategy idleStrategy;
+
     /**
      * Core pool size is the minimum number of workers to keep alive
      * (and not allow to time out etc) unless allowCoreThreadTimeOut
@@ -332,6 +441,12 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         Runnable firstTask;
         /** Per-thread task counter */
         volatile long completedTasks;
+        /** Index of home task queue, if work stealing */
+        int home;
+        /** Size of the aligned group of queues containing home */
+        int span = 1;
+        /** Active and idle times, if metrics were enabled */
+        WorkerClock clock;
 
         /**
          * Creates with given first task and thread from ThreadFactory.
@@ -422,7 +537,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             int c = ctl.get();
             if (isRunning(c) ||
                 runStateAtLeast(c, TIDYING) ||
-                (runStateOf(c) == SHUTDOWN && ! workQueue.isEmpty()))
+                (runStateOf(c) == SHUTDOWN && ! queuesEmpty()))
                 return;
             if (workerCountOf(c) != 0) { // Eligible to terminate
                 interruptIdleWorkers(ONLY_ONE);
@@ -551,6 +666,11 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * Package-protected for use by ScheduledThreadPoolExecutor.
      */
     final void reject(Runnable command) {
+        MetricsRecorder mr = metrics;
+        if (mr != null) {
+            mr.rejections.increment();
+            mr.submitTimes.take(command);
+        }
         handler.rejectedExecution(command, this);
     }
 
@@ -582,6 +702,18 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     private List<Runnable> drainQueue() {
         BlockingQueue<Runnable> q = workQueue;
         ArrayList<Runnable> taskList = new ArrayList<Runnable>();
+        TaskQueue[] qs;
+        if ((qs = taskQueues) != null) {
+            for (TaskQueue tq : qs) {
+                for (Runnable r; (r = tq.poll()) != null; )
+                    taskList.add(r);
+            }
+        }
+        DrainProgress d;
+        if ((d = drainProgress) != null) {
+            for (Runnable r; (r = d.overflow.poll()) != null; )
+                taskList.add(r);
+        }
         q.drainTo(taskList);
         if (!q.isEmpty()) {
             for (Runnable r : q.toArray(new Runnable[0])) {
@@ -589,6 +721,11 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                     taskList.add(r);
             }
         }
+        MetricsRecorder mr = metrics;
+        if (mr != null) {
+            for (Runnable r : taskList)
+                mr.submitTimes.take(r);
+        }
         return taskList;
     }
 
@@ -623,6 +760,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return true if successful
      */
     private boolean addWorker(Runnable firstTask, boolean core) {
+        int index;  // workerCount before adding
         retry:
         for (;;) {
             int c = ctl.get();
@@ -632,7 +770,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             if (rs >= SHUTDOWN &&
                 ! (rs == SHUTDOWN &&
                    firstTask == null &&
-                   ! workQueue.isEmpty()))
+                   ! queuesEmpty()))
                 return false;
 
             for (;;) {
@@ -640,8 +778,10 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                 if (wc >= CAPACITY ||
                     wc >= (core ? corePoolSize : maximumPoolSize))
                     return false;
-                if (compareAndIncrementWorkerCount(c))
+                if (compareAndIncrementWorkerCount(c)) {
+                    index = wc;
                     break retry;
+                }
                 c = ctl.get();  // Re-read ctl
                 if (runStateOf(c) != rs)
                     continue retry;
@@ -654,8 +794,25 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         Worker w = null;
         try {
             w = new Worker(firstTask);
+            w.home = index;
             final Thread t = w.thread;
-            if (t != null) {
+            if (t != null && taskQueues != null)
+                placeWorker(w, index);
+            if (t != null && concurrentWorkers) {
+                if (t.isAlive()) // precheck that t is startable
+                    throw new IllegalThreadStateException();
+                workers.add(w);
+                // Recheck after publishing; on failure w is removed
+                // by addWorkerFailed
+                int rs = runStateOf(ctl.get());
+                if (rs < SHUTDOWN ||
+                    (rs == SHUTDOWN && firstTask == null)) {
+                    largestPoolSizes.accumulate(workers.size());
+                    t.start();
+                    workerStarted = true;
+                }
+            }
+            else if (t != null) {
                 final ReentrantLock mainLock = this.mainLock;
                 mainLock.lock();
                 try {
@@ -697,18 +854,40 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      *   worker was holding up termination
      */
     private void addWorkerFailed(Worker w) {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
+        final boolean locked = lockWorkers();
         try {
             if (w != null)
                 workers.remove(w);
             decrementWorkerCount();
             tryTerminate();
         } finally {
-            mainLock.unlock();
+            if (locked)
+                mainLock.unlock();
         }
     }
 
+    /**
+     * Acquires mainLock for access to workers and statistics, unless
+     * they are tracked concurrently.
+     *
+     * @return true if mainLock was acquired, and must be released
+     */
+    private boolean lockWorkers() {
+        if (concurrentWorkers)
+            return false;
+        mainLock.lock();
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks completed by exited workers.
+     * Unless concurrentWorkers, called only under mainLock.
+     */
+    private long exitedWorkerTaskCount() {
+        return concurrentWorkers ? completedTaskCounter.sum() :
+            completedTaskCount;
+    }
+
     /**
      * Performs cleanup and bookkeeping for a dying worker. Called
      * only from worker threads. Unless completedAbruptly is set,
@@ -726,13 +905,23 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         if (completedAbruptly) // If abrupt, then workerCount wasn't adjusted
             decrementWorkerCount();
 
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
-        try {
-            completedTaskCount += w.completedTasks;
+        WorkerClock wc;
+        if ((wc = w.clock) != null)
+            wc.recorder.clocks.remove(wc);
+
+        if (concurrentWorkers) {
             workers.remove(w);
-        } finally {
-            mainLock.unlock();
+            completedTaskCounter.add(w.completedTasks);
+        }
+        else {
+            final ReentrantLock mainLock = this.mainLock;
+            mainLock.lock();
+            try {
+                completedTaskCount += w.completedTasks;
+                workers.remove(w);
+            } finally {
+                mainLock.unlock();
+            }
         }
 
         tryTerminate();
@@ -741,7 +930,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         if (runStateLessThan(c, STOP)) {
             if (!completedAbruptly) {
                 int min = allowCoreThreadTimeOut ? 0 : corePoolSize;
-                if (min == 0 && ! workQueue.isEmpty())
+                if (min == 0 && ! queuesEmpty())
                     min = 1;
                 if (workerCountOf(c) >= min)
                     return; // replacement not needed
@@ -764,10 +953,11 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      *    both before and after the timed wait, and if the queue is
      *    non-empty, this worker is not the last thread in the pool.
      *
+     * @param w the worker
      * @return task, or null if the worker must exit, in which case
      *         workerCount is decremented
      */
-    private Runnable getTask() {
+    private Runnable getTask(Worker w) {
         boolean timedOut = false; // Did the last poll() time out?
 
         for (;;) {
@@ -775,33 +965,1134 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             int rs = runStateOf(c);
 
             // Check if queue empty only if necessary.
-            if (rs >= SHUTDOWN && (rs >= STOP || workQueue.isEmpty())) {
+            if (rs >= SHUTDOWN && (rs >= STOP || queuesEmpty())) {
                 decrementWorkerCount();
                 return null;
             }
 
+            DrainProgress d;
+            if (rs >= SHUTDOWN && (d = drainProgress) != null) {
+                Runnable r;
+                if ((r = d.overflow.poll()) != null)
+                    return r;
+                if (d.transferring && transferBatch(d))
+                    continue;
+            }
+
             int wc = workerCountOf(c);
 
             // Are workers subject to culling?
             boolean timed = allowCoreThreadTimeOut || wc > corePoolSize;
 
-            if ((wc > maximumPoolSize || (timed && timedOut))
-                && (wc > 1 || workQueue.isEmpty())) {
-                if (compareAndDecrementWorkerCount(c))
-                    return null;
-                continue;
-            }
+            if ((wc > maximumPoolSize || (timed && timedOut))
+                && (wc > 1 || queuesEmpty())) {
+                if (compareAndDecrementWorkerCount(c))
+                    return null;
+                continue;
+            }
+
+            try {
+                IdleStrategy s = idleStrategy;
+                Runnable r = null;
+                long nanos = keepAliveTime;
+                if (s != null) {
+                    long deadline = timed ? System.nanoTime() + nanos : 0L;
+                    r = spinForTask(w, s, timed, deadline);
+                    if (timed)
+                        nanos = deadline - System.nanoTime();
+                }
+                if (r == null)
+                    r = (taskQueues != null) ? awaitTask(w, timed, nanos) :
+                        timed ?
+                        workQueue.poll(nanos, TimeUnit.NANOSECONDS) :
+                        workQueue.take();
+                if (r != null)
+                    return r;
+                timedOut = true;
+            } catch (InterruptedException retry) {
+                timedOut = false;
+            }
+        }
+    }
+
+    /**
+     * Moves up to a batch of queued tasks to the sink of the given
+     * drain.  If the sink throws an exception (normally
+     * RejectedExecutionException, but possibly any other from a
+     * user-supplied executor), transfers stop, and the task it
+     * threw for and the rest of the batch are requeued, to be run
+     * by this pool.  Tasks that cannot be requeued (possible only if
+     * the queue has been otherwise refilled) are held in the drain's
+     * overflow queue, from which getTask takes them first.  The
+     * rejection handler is not invoked, since this runs in a worker
+     * or helper thread.  While the batch is held, the drain's
+     * transfersInProgress count keeps queuesEmpty false.
+     *
+     * @return false if there were no tasks that could be taken
+     */
+    private boolean transferBatch(DrainProgress d) {
+        d.transfersInProgress.incrementAndGet();
+        try {
+            return transferBatch(d, d.batchSize);
+        } finally {
+            d.transfersInProgress.decrementAndGet();
+        }
+    }
+
+    private boolean transferBatch(DrainProgress d, int max) {
+        ArrayList<Runnable> batch = new ArrayList<Runnable>();
+        TaskQueue[] qs;
+        if ((qs = taskQueues) != null) {
+            for (TaskQueue q : qs) {
+                for (Runnable r;
+                     batch.size() < max && (r = q.poll()) != null; )
+                    batch.add(r);
+            }
+        }
+        if (batch.size() < max)
+            workQueue.drainTo(batch, max - batch.size());
+        int n = batch.size(), i = 0;
+        if (n == 0)
+            return false;
+        try {
+            for (; i < n; ++i) {
+                Runnable r = batch.get(i);
+                discardSubmitTime(r);
+                d.sink.execute(r);
+                d.transferred.increment();
+            }
+        } catch (RuntimeException | Error ex) {
+            if (d.failure == null)
+                d.failure = ex;
+            d.transferring = false;
+            for (; i < n; ++i) {
+                Runnable r = batch.get(i);
+                if (!workQueue.offer(r))
+                    d.overflow.offer(r);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Initial time parked by idle workers backing off in spinForTask.
+     */
+    private static final long MIN_BACKOFF_PARK = 1000L;
+
+    /**
+     * Polls for a task according to the given idle strategy: busy
+     * spinning, then yielding, then parking for exponentially
+     * increasing times up to the strategy's maximum, until a task is
+     * found, or until the strategy has no further phases, or the
+     * deadline (if timed) passes, in which cases the caller must
+     * block (which with a past deadline returns immediately).
+     * Because the worker is not recorded as waiting, submitters do
+     * not wake it; it sees new tasks when it next polls.
+     *
+     * @param w the worker
+     * @param s the idle strategy
+     * @param timed true if bounded by deadline
+     * @param deadline the nanoTime at which to give up, if timed
+     * @return task, or null if the caller should block
+     * @throws InterruptedException if interrupted while polling
+     */
+    private Runnable spinForTask(Worker w, IdleStrategy s,
+                                 boolean timed, long deadline)
+        throws InterruptedException {
+        final boolean stealing = (taskQueues != null);
+        final int spins = s.spins;
+        final long spinsAndYields = (long)spins + s.yields;
+        final long maxPark = s.maxParkNanos;
+        long park = Math.min(MIN_BACKOFF_PARK, maxPark);
+        for (long k = 0L;;) {
+            Runnable r = stealing ? scanTasks(w) : workQueue.poll();
+            if (r != null)
+                return r;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long nanos = timed ? deadline - System.nanoTime() : 0L;
+            if (timed && nanos <= 0L)
+                return null;
+            if (k < spins) {
+                if (spins != Integer.MAX_VALUE) // else spin indefinitely
+                    ++k;
+            }
+            else if (k < spinsAndYields) {
+                ++k;
+                Thread.yield();
+            }
+            else if (maxPark == 0L)
+                return null;
+            else {
+                LockSupport.parkNanos(this, timed ? Math.min(park, nanos) : park);
+                if (park < maxPark)
+                    park = Math.min(park << 1, maxPark);
+            }
+        }
+    }
+
+    /*
+     * Work-stealing support
+     */
+
+    /**
+     * Capacity of each local task queue.  Must be a power of two.
+     */
+    static final int TASK_QUEUE_CAPACITY = 1 << 12;
+
+    /**
+     * Maximum number of local task queues.  Must be a power of two.
+     */
+    static final int MAX_TASK_QUEUES = 1 << 8;
+
+    /**
+     * A bounded FIFO queue of tasks, supporting pushes by any thread
+     * (but failing if another push is in progress) and polls by any
+     * thread.  The array is allocated upon first push.
+     */
+    static final class TaskQueue {
+        /** Placeholder for a task removed from the middle of a queue */
+        static final Runnable REMOVED = () -> { };
+
+        Runnable[] array;
+        volatile int base;      // index of next slot to poll
+        volatile int top;       // index of next slot to push
+        volatile int qlock;     // 1: locked by a push
+
+        /**
+         * Pushes the given task unless the queue is full or
+         * another push is in progress.
+         *
+         * @return true if pushed
+         */
+        final boolean push(Runnable task) {
+            boolean pushed = false;
+            if (U.compareAndSwapInt(this, QLOCK, 0, 1)) {
+                Runnable[] a; int s;
+                if ((a = array) == null)
+                    array = a = new Runnable[TASK_QUEUE_CAPACITY];
+                if ((s = top) - base < TASK_QUEUE_CAPACITY) {
+                    int j = ((TASK_QUEUE_CAPACITY - 1) & s) << ASHIFT;
+                    U.putOrderedObject(a, (long)j + ABASE, task);
+                    top = s + 1;
+                    pushed = true;
+                }
+                qlock = 0;
+            }
+            return pushed;
+        }
+
+        /**
+         * Pushes as many of tasks a[from, to) as fit, unless another
+         * push is in progress.
+         *
+         * @return the number pushed
+         */
+        final int pushAll(Runnable[] tasks, int from, int to) {
+            int n = 0;
+            if (U.compareAndSwapInt(this, QLOCK, 0, 1)) {
+                Runnable[] a; int s;
+                if ((a = array) == null)
+                    array = a = new Runnable[TASK_QUEUE_CAPACITY];
+                int room = TASK_QUEUE_CAPACITY - ((s = top) - base);
+                if ((n = to - from) > room)
+                    n = room;
+                for (int i = 0; i < n; ++i) {
+                    int j = ((TASK_QUEUE_CAPACITY - 1) & (s + i)) << ASHIFT;
+                    U.putOrderedObject(a, (long)j + ABASE, tasks[from + i]);
+                }
+                top = s + n;
+                qlock = 0;
+            }
+            return n;
+        }
+
+        /**
+         * Takes the next task, if one is available.
+         */
+        final Runnable poll() {
+            Runnable[] a; int b;
+            while ((b = base) - top < 0 && (a = array) != null) {
+                long j = (((TASK_QUEUE_CAPACITY - 1) & b) << ASHIFT) + ABASE;
+                Runnable t = (Runnable)U.getObjectVolatile(a, j);
+                if (base == b) {
+                    if (t != null) {
+                        if (U.compareAndSwapObject(a, j, t, null)) {
+                            base = b + 1;
+                            if (t != REMOVED)
+                                return t;
+                        }
+                    }
+                    else if (b + 1 == top) // being taken by another
+                        break;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Removes the given task, if present, replacing it with
+         * REMOVED, which poll skips.
+         *
+         * @return true if removed
+         */
+        final boolean remove(Runnable task) {
+            Runnable[] a;
+            if ((a = array) != null) {
+                for (int b = base, s = top; b - s < 0; ++b) {
+                    long j = ((long)((TASK_QUEUE_CAPACITY - 1) & b) << ASHIFT) +
+                        ABASE;
+                    Object t = U.getObjectVolatile(a, j);
+                    if (t == task)
+                        return U.compareAndSwapObject(a, j, t, REMOVED);
+                }
+            }
+            return false;
+        }
+
+        final boolean isEmpty() {
+            return base - top >= 0;
+        }
+
+        final int size() {
+            int n = top - base;
+            return (n < 0) ? 0 : n;
+        }
+    }
+
+    /**
+     * A node in the stack of waiting workers.  The thread field is
+     * cleared by the worker if it cancels, or by the signaller that
+     * claims it.
+     */
+    static final class IdleNode {
+        volatile Thread thread;
+        IdleNode next;
+        IdleNode(Thread thread) { this.thread = thread; }
+    }
+
+    /**
+     * Returns true if workQueue, all task queues, and the overflow
+     * queue of any drain are empty.
+     */
+    private boolean queuesEmpty() {
+        if (!workQueue.isEmpty())
+            return false;
+        DrainProgress d;
+        if ((d = drainProgress) != null &&
+            (!d.overflow.isEmpty() || d.transfersInProgress.get() != 0))
+            return false;
+        TaskQueue[] qs;
+        if ((qs = taskQueues) != null) {
+            for (TaskQueue q : qs)
+                if (!q.isEmpty())
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the total number of tasks in workQueue, all task
+     * queues, and the overflow queue of any drain.
+     */
+    private int queuedTaskCount() {
+        int n = workQueue.size();
+        DrainProgress d;
+        if ((d = drainProgress) != null)
+            n += d.overflow.size();
+        TaskQueue[] qs;
+        if ((qs = taskQueues) != null) {
+            for (TaskQueue q : qs)
+                n += q.size();
+        }
+        return n;
+    }
+
+    /**
+     * Tries to push a task onto the task queue selected by the
+     * current thread's probe, moving to another queue if the push
+     * fails.
+     *
+     * @return true if pushed, false if not work stealing or the
+     * queues tried were full or busy
+     */
+    private boolean pushTask(Runnable task) {
+        TaskQueue[] qs; int h;
+        if ((qs = taskQueues) == null)
+            return false;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();
+            h = ThreadLocalRandom.getProbe();
+        }
+        for (int k = Math.min(qs.length, 4); k > 0; --k) {
+            if (qs[h & (qs.length - 1)].push(task))
+                return true;
+            h = ThreadLocalRandom.advanceProbe(h);
+        }
+        return false;
+    }
+
+    /**
+     * Batch version of pushTask.
+     *
+     * @return the number of tasks a[from, to) pushed, all onto the
+     * same queue
+     */
+    private int pushTasks(Runnable[] a, int from, int to) {
+        TaskQueue[] qs; int h, n;
+        if ((qs = taskQueues) == null)
+            return 0;
+        if ((h = ThreadLocalRandom.getProbe()) == 0) {
+            ThreadLocalRandom.localInit();
+            h = ThreadLocalRandom.getProbe();
+        }
+        for (int k = Math.min(qs.length, 4); k > 0; --k) {
+            if ((n = qs[h & (qs.length - 1)].pushAll(a, from, to)) > 0)
+                return n;
+            h = ThreadLocalRandom.advanceProbe(h);
+        }
+        return 0;
+    }
+
+    /**
+     * Wakes up a waiting worker, if there is one.
+     */
+    private void signalWork() {
+        IdleNode h; Thread t;
+        while ((h = idleWorkers) != null) {
+            if (U.compareAndSwapObject(this, IDLEWORKERS, h, h.next) &&
+                (t = h.thread) != null &&
+                U.compareAndSwapObject(h, NODETHREAD, t, null)) {
+                LockSupport.unpark(t);
+                break;
+            }
+        }
+    }
+
+    /**
+     * If threads are placed on more than one node by an
+     * AffinityThreadFactory, sets w's home queue to one in the group
+     * for its thread's node.
+     */
+    private void placeWorker(Worker w, int index) {
+        ThreadFactory f = threadFactory;
+        if (f instanceof AffinityThreadFactory) {
+            int nodes = AffinityThreadFactory.getNodeCount();
+            int node = ((AffinityThreadFactory)f).nodeOf(w.thread);
+            int n = taskQueues.length;
+            if (nodes > 1 && node >= 0 && n >= nodes) {
+                int span = Integer.highestOneBit(n / nodes);
+                w.span = span;
+                w.home = node * span + (index & (span - 1));
+            }
+        }
+    }
+
+    /**
+     * Polls w's home queue, then workQueue, then the other task
+     * queues in w's group, then the rest, except that to avoid
+     * starving workQueue, it is polled first every 64 tasks.
+     */
+    private Runnable scanTasks(Worker w) {
+        TaskQueue[] qs = taskQueues;
+        int m = qs.length - 1, h = w.home & m, s = w.span - 1;
+        Runnable r;
+        if (((int)w.completedTasks & 63) == 0 &&
+            (r = workQueue.poll()) != null)
+            return r;
+        if ((r = qs[h].poll()) != null ||
+            (r = workQueue.poll()) != null)
+            return r;
+        for (int i = 1; i <= s; ++i) {
+            if ((r = qs[(h & ~s) | ((h + i) & s)].poll()) != null)
+                return r;
+        }
+        for (int i = 1; i <= m; ++i) {
+            int j = (h + i) & m;
+            if (((j ^ h) & ~s) != 0 && (r = qs[j].poll()) != null)
+                return r;
+        }
+        return null;
+    }
+
+    /**
+     * Work-stealing version of the wait in getTask: scans for a task,
+     * and if none, waits to be signalled, rescanning when woken.
+     *
+     * @param w the worker
+     * @param timed true if the wait is bounded
+     * @param nanos the time to wait, if timed
+     * @return task, or null if timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Runnable awaitTask(Worker w, boolean timed, long nanos)
+        throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        final Thread wt = Thread.currentThread();
+        for (;;) {
+            Runnable r;
+            if ((r = scanTasks(w)) != null)
+                return r;
+            IdleNode node = new IdleNode(wt), h;
+            do {
+                node.next = h = idleWorkers;
+            } while (!U.compareAndSwapObject(this, IDLEWORKERS, h, node));
+            if ((r = scanTasks(w)) != null) {
+                if (!U.compareAndSwapObject(node, NODETHREAD, wt, null))
+                    signalWork(); // pass on a signal meant for another
+                return r;
+            }
+            while (node.thread != null) {
+                if (Thread.interrupted()) {
+                    if (!U.compareAndSwapObject(node, NODETHREAD, wt, null))
+                        signalWork();
+                    throw new InterruptedException();
+                }
+                if (!timed)
+                    LockSupport.park(this);
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        if (U.compareAndSwapObject(node, NODETHREAD, wt, null))
+                            return null;
+                        break; // signalled while timing out
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+        }
+    }
+
+    /*
+     * Adaptive sizing support
+     */
+
+    /*
+     * When enabled, a SizeController periodically re-estimates the
+     * core pool size needed to keep queueing delay near a target,
+     * rather than relying on the fixed policy of growing past core
+     * only when the queue refuses an offer (which never happens
+     * with unbounded queues).  Estimates use Little's law (L = λW):
+     * over each sample interval we count arrivals (in execute and
+     * executeAll) and completions, and sum the time from
+     * beforeExecute to the end of afterExecute of each task, giving
+     * the mean service time S.  The number of workers needed to keep
+     * up with the arrival rate λ is then λS, and the number needed
+     * to additionally drain the Q queued tasks within the target
+     * delay T is QS/T, so the desired size is ceil(λS + QS/T),
+     * bounded by the configured limits.
+     *
+     * To avoid oscillation, S is smoothed across intervals, growth
+     * is limited to doubling per interval, and shrinkage to a
+     * quarter per interval, and happens only when the observed
+     * queueing delay (Q/throughput, again by Little's law) is within
+     * target and worker utilization is below SHRINK_UTILIZATION, so
+     * that a burst of long tasks does not cause the pool to shed
+     * the workers running them.  If no task has yet completed, there
+     * is no estimate of S, so the pool grows by one per interval
+     * while tasks are queued.
+     *
+     * Sampling is piggybacked on execute and on task completion: the
+     * first thread to notice that an interval has elapsed, and to
+     * obtain the controller's lock (without blocking), takes the
+     * sample and resizes via setCorePoolSize and (if growing past
+     * it) setMaximumPoolSize.  Submissions that bypass execute, as
+     * in ScheduledThreadPoolExecutor, are not counted as arrivals,
+     * so adaptive sizing is of little use there.
+     */
+
+    /**
+     * Bounds on the interval between sizing samples, which is
+     * otherwise four times the target queueing delay.
+     */
+    private static final long MIN_SAMPLE_INTERVAL =  10L * 1000L * 1000L;
+    private static final long MAX_SAMPLE_INTERVAL = 1000L * 1000L * 1000L;
+
+    /**
+     * Worker utilization (busy time over available time) above which
+     * the pool is not shrunk.
+     */
+    private static final double SHRINK_UTILIZATION = 0.75;
+
+    /**
+     * Adaptive sizing state and estimator.
+     */
+    static final class SizeController {
+        final int minPoolSize;
+        final int maxPoolSize;
+        final int baseMaximumPoolSize; // maximumPoolSize when enabled
+        final long targetDelay;        // nanos
+        final long sampleInterval;     // nanos
+        final LongAdder arrivals = new LongAdder();
+        final LongAdder completions = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final ReentrantLock lock = new ReentrantLock();
+        volatile long lastSample;
+        long serviceTime;              // smoothed; accessed under lock
+
+        SizeController(int minPoolSize, int maxPoolSize,
+                       int baseMaximumPoolSize, long targetDelay) {
+            this.minPoolSize = minPoolSize;
+            this.maxPoolSize = maxPoolSize;
+            this.baseMaximumPoolSize = baseMaximumPoolSize;
+            this.targetDelay = targetDelay;
+            long t = (targetDelay >= MAX_SAMPLE_INTERVAL >>> 2) ?
+                MAX_SAMPLE_INTERVAL : targetDelay << 2;
+            this.sampleInterval = Math.max(MIN_SAMPLE_INTERVAL, t);
+            this.lastSample = System.nanoTime();
+        }
+
+        /**
+         * Records submission of n tasks, resizing if due.
+         */
+        void submitted(ThreadPoolExecutor e, int n) {
+            arrivals.add(n);
+            long now = System.nanoTime();
+            if (now - lastSample >= sampleInterval)
+                sample(e, now);
+        }
+
+        /**
+         * Records completion of a task run between the given times,
+         * resizing if due.
+         */
+        void completed(ThreadPoolExecutor e, long startTime, long now) {
+            completions.increment();
+            busyNanos.add(now - startTime);
+            if (now - lastSample >= sampleInterval)
+                sample(e, now);
+        }
+
+        /**
+         * Takes a sample and resizes the pool unless another thread
+         * is doing so.
+         */
+        void sample(ThreadPoolExecutor e, long now) {
+            final ReentrantLock lock = this.lock;
+            if (!lock.tryLock())
+                return;
+            try {
+                long elapsed = now - lastSample;
+                if (elapsed < sampleInterval || e.sizeController != this)
+                    return;
+                lastSample = now;
+                long arrived = arrivals.sumThenReset();
+                long done = completions.sumThenReset();
+                long busy = busyNanos.sumThenReset();
+                int queued = e.queuedTaskCount();
+                int wc = workerCountOf(e.ctl.get());
+                int core = e.corePoolSize;
+                long s = serviceTime;
+                if (done > 0L) {
+                    long m = busy / done;
+                    serviceTime = s = (s == 0L) ? m : (3L * s + m) >>> 2;
+                }
+                int n;
+                if (s == 0L)
+                    n = (queued > 0) ? core + 1 : core;
+                else {
+                    double need = ((double)arrived * s / elapsed +
+                                   (double)queued * s / targetDelay);
+                    n = (need >= maxPoolSize) ? maxPoolSize :
+                        (int)Math.ceil(need);
+                    if (n > core)
+                        n = Math.min(n, (core << 1) + 1);
+                    else if (n < core) {
+                        double util = (wc == 0) ? 0.0 :
+                            (double)busy / ((double)elapsed * wc);
+                        if (util > SHRINK_UTILIZATION ||
+                            (queued > 0 &&
+                             (done == 0L ||
+                              (double)queued * elapsed / done > targetDelay)))
+                            n = core;
+                        else
+                            n = Math.max(n, core - Math.max(1, core >>> 2));
+                    }
+                }
+                n = Math.max(minPoolSize, Math.min(maxPoolSize, n));
+                if (n != core)
+                    e.resize(n, baseMaximumPoolSize);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sets the core pool size to n, first raising the maximum pool
+     * size if necessary, or afterwards lowering it toward base.
+     * Races with user reconfiguration may cause the setters to throw
+     * IllegalArgumentException, in which case we give up until the
+     * next sample.
+     */
+    private void resize(int n, int base) {
+        try {
+            if (n > maximumPoolSize)
+                setMaximumPoolSize(n);
+            setCorePoolSize(n);
+            int m = Math.max(n, base);
+            if (maximumPoolSize > m)
+                setMaximumPoolSize(m);
+        } catch (IllegalArgumentException ignore) {
+        }
+    }
+
+    /*
+     * Metrics support
+     */
+
+    /*
+     * When enabled, a MetricsRecorder records, for each task, the
+     * time it waited for a worker (from submission in execute or
+     * executeAll until just before beforeExecute) and the time taken
+     * to run it (from just before beforeExecute until afterExecute
+     * returns), and, for each worker, the time spent idle in each
+     * call to getTask.  It also counts rejections, and accumulates
+     * each live worker's active and idle time in a WorkerClock,
+     * registered with the recorder by the worker itself on first
+     * use and deregistered on exit, so that snapshots need not
+     * traverse the workers set.
+     *
+     * Queue wait times require submission times.  Rather than
+     * wrapping tasks (which would cost an allocation per task, and
+     * expose the wrappers to the queue, as for example to a
+     * PriorityBlockingQueue comparing tasks, and to handlers), execute
+     * stores them in a fixed-size SubmitTimes table, indexed by the
+     * task's identity hash code, from which runWorker takes them.  A
+     * task whose slot is occupied by another is not timed, so under
+     * deep queues the wait times are a sample.  Entries are removed
+     * by reject, remove, purge, shutdownNow and drains, so stale ones
+     * remain only for tasks removed directly from getQueue() or
+     * queued when metrics were replaced, and are discarded with the
+     * recorder.
+     *
+     * Times are recorded in HistogramRecorders, which keep counts in
+     * log-linear buckets as in HdrHistogram: values below 2^SUB_BITS
+     * nanoseconds have their own buckets, and each higher power-of-two
+     * range is split into 2^(SUB_BITS-1) equal buckets, bounding
+     * relative error by 2^(1-SUB_BITS) across the full range of long
+     * values, in a fixed array of counts updated by atomic add.
+     * Snapshots copy the counts without locking, so may be
+     * inconsistent with one another (and with the totals) if updates
+     * are in progress, but never lose recorded values.
+     */
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_SUB_COUNT = SUB_COUNT >>> 1;
+    private static final int HISTOGRAM_BUCKETS =
+        (63 - SUB_BITS) * HALF_SUB_COUNT + SUB_COUNT;
+
+    /**
+     * Returns the histogram bucket index for the given nonnegative
+     * value.
+     */
+    static int bucketIndex(long v) {
+        if (v < SUB_COUNT)
+            return (int)v;
+        int shift = 64 - SUB_BITS - Long.numberOfLeadingZeros(v);
+        return (shift << (SUB_BITS - 1)) + (int)(v >>> shift);
+    }
+
+    /**
+     * Returns the least value with the given bucket index.
+     */
+    static long bucketValue(int i) {
+        if (i < SUB_COUNT)
+            return i;
+        int shift = (i >>> (SUB_BITS - 1)) - 1;
+        return (long)((i & (HALF_SUB_COUNT - 1)) + HALF_SUB_COUNT) << shift;
+    }
+
+    /**
+     * Value returned by SubmitTimes.take for untimed tasks.
+     */
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * Submission times of queued tasks, keyed by task identity.  Each
+     * slot is claimed by CAS from null to CLAIMED, after which its
+     * time is written and the task published, so a reader seeing the
+     * task sees its time, and cleared by CAS from the task to null,
+     * so each time is taken at most once.
+     */
+    static final class SubmitTimes {
+        static final int SIZE = 1 << 12; // must be a power of two
+        static final Object CLAIMED = new Object();
+        final Object[] tasks = new Object[SIZE];
+        final long[] times = new long[SIZE];
+
+        static int indexFor(Object task) {
+            int h = System.identityHashCode(task);
+            return (h ^ (h >>> 16)) & (SIZE - 1);
+        }
+
+        /**
+         * Records the submission time of the task, unless its slot
+         * is occupied.
+         */
+        void put(Object task, long time) {
+            int i = indexFor(task);
+            long j = ((long)i << ASHIFT) + ABASE;
+            if (U.getObjectVolatile(tasks, j) == null &&
+                U.compareAndSwapObject(tasks, j, null, CLAIMED)) {
+                times[i] = time;
+                U.putObjectVolatile(tasks, j, task);
+            }
+        }
+
+        /**
+         * Removes the task's submission time, returning it, or
+         * NO_TIME if not recorded.
+         */
+        long take(Object task) {
+            int i = indexFor(task);
+            long j = ((long)i << ASHIFT) + ABASE;
+            if (U.getObjectVolatile(tasks, j) == task) {
+                long t = times[i];
+                if (U.compareAndSwapObject(tasks, j, task, null))
+                    return t;
+            }
+            return NO_TIME;
+        }
+    }
+
+    /**
+     * Active and idle times of a worker, updated only by the worker.
+     */
+    static final class WorkerClock {
+        final MetricsRecorder recorder;
+        final String threadName;
+        volatile long activeNanos;
+        volatile long idleNanos;
+        WorkerClock(MetricsRecorder recorder, String threadName) {
+            this.recorder = recorder;
+            this.threadName = threadName;
+        }
+    }
+
+    /**
+     * Concurrently updatable histogram of nanosecond times.
+     */
+    static final class HistogramRecorder {
+        final AtomicLongArray counts = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        final LongAdder total = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+        void record(long nanos) {
+            if (nanos < 0L)
+                nanos = 0L; // nanoTime is not guaranteed monotonic
+            counts.getAndIncrement(bucketIndex(nanos));
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+    }
+
+    /**
+     * Recorders for the values reported by Metrics.
+     */
+    static final class MetricsRecorder {
+        final HistogramRecorder queueWaitTimes = new HistogramRecorder();
+        final HistogramRecorder executionTimes = new HistogramRecorder();
+        final HistogramRecorder idleTimes = new HistogramRecorder();
+        final LongAdder rejections = new LongAdder();
+        final SubmitTimes submitTimes = new SubmitTimes();
+        final Set<WorkerClock> clocks = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Returns w's clock for the given recorder, registering a new
+     * one if w's current clock is for a previous recorder.  Called
+     * only by w's thread.
+     */
+    private static WorkerClock clockFor(Worker w, MetricsRecorder mr) {
+        WorkerClock wc = w.clock;
+        if (wc == null || wc.recorder != mr) {
+            if (wc != null)
+                wc.recorder.clocks.remove(wc);
+            w.clock = wc = new WorkerClock(mr, w.thread.getName());
+            mr.clocks.add(wc);
+        }
+        return wc;
+    }
+
+    /**
+     * Removes the submission time of a task leaving the queue other
+     * than by being run, if metrics are enabled.
+     */
+    private void discardSubmitTime(Runnable task) {
+        MetricsRecorder mr = metrics;
+        if (mr != null)
+            mr.submitTimes.take(task);
+    }
+
+    /**
+     * A snapshot of a histogram of times, in nanoseconds, recorded
+     * with a relative precision of about 6%.
+     *
+     * @see Metrics
+     */
+    public static final class Histogram {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Histogram(HistogramRecorder r) {
+            AtomicLongArray cs = r.counts;
+            int n = cs.length();
+            long[] a = new long[n];
+            long c = 0L;
+            for (int i = 0; i < n; ++i)
+                c += (a[i] = cs.get(i));
+            this.counts = a;
+            this.count = c;
+            this.total = r.total.sum();
+            this.max = r.max.get();
+        }
+
+        /**
+         * Returns the number of recorded times.
+         *
+         * @return the number of recorded times
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of recorded times, in nanoseconds.
+         *
+         * @return the sum of recorded times
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns the largest recorded time, in nanoseconds, or zero
+         * if none.
+         *
+         * @return the largest recorded time
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Returns the mean recorded time, in nanoseconds, or zero if
+         * none.
+         *
+         * @return the mean recorded time
+         */
+        public double getMean() {
+            return (count == 0L) ? 0.0 : (double)total / count;
+        }
+
+        /**
+         * Returns an upper bound, accurate to the precision of this
+         * histogram, of the time, in nanoseconds, not exceeded by the
+         * given percentage of recorded times; or zero if none.
+         *
+         * @param percentile the percentage, from 0 to 100
+         * @return the time at the given percentile
+         * @throws IllegalArgumentException if {@code percentile} is
+         *         not between 0 and 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (!(percentile >= 0.0 && percentile <= 100.0))
+                throw new IllegalArgumentException();
+            long target = (long)Math.ceil(percentile / 100.0 * count);
+            if (target == 0L)
+                target = 1L;
+            long[] cs = counts;
+            long c = 0L;
+            for (int i = 0; i < cs.length; ++i) {
+                if ((c += cs[i]) >= target)
+                    return (i + 1 < cs.length) ?
+                        Math.min(bucketValue(i + 1) - 1L, max) : max;
+            }
+            return max;
+        }
+
+        /**
+         * Returns a string summarizing this histogram.
+         *
+         * @return a string summarizing this histogram
+         */
+        public String toString() {
+            return "[count = " + count +
+                ", mean = " + (long)getMean() +
+                ", p50 = " + getValueAtPercentile(50.0) +
+                ", p99 = " + getValueAtPercentile(99.0) +
+                ", p99.9 = " + getValueAtPercentile(99.9) +
+                ", max = " + max + "]";
+        }
+    }
+
+    /**
+     * A snapshot of the metrics recorded by a pool since they were
+     * last enabled.  All times are in nanoseconds.
+     *
+     * @see #metrics
+     */
+    public static final class Metrics {
+        private final Histogram queueWaitTimes;
+        private final Histogram executionTimes;
+        private final Histogram idleTimes;
+        private final long rejectedCount;
+        private final List<WorkerTimes> workerTimes;
+
+        Metrics(MetricsRecorder r) {
+            this.queueWaitTimes = new Histogram(r.queueWaitTimes);
+            this.executionTimes = new Histogram(r.executionTimes);
+            this.idleTimes = new Histogram(r.idleTimes);
+            this.rejectedCount = r.rejections.sum();
+            ArrayList<WorkerTimes> ws = new ArrayList<WorkerTimes>();
+            for (WorkerClock wc : r.clocks)
+                ws.add(new WorkerTimes(wc));
+            this.workerTimes = Collections.unmodifiableList(ws);
+        }
+
+        /**
+         * Returns the times that tasks submitted via {@code execute}
+         * waited until starting to run.  Tasks are timed only if
+         * they can be recorded without allocation, so when many are
+         * queued, these are a sample.
+         *
+         * @return the queue wait times
+         */
+        public Histogram getQueueWaitTimes() {
+            return queueWaitTimes;
+        }
+
+        /**
+         * Returns the times taken to run tasks, including {@code
+         * beforeExecute} and {@code afterExecute}.  The total is the
+         * time workers were active.
+         *
+         * @return the execution times
+         */
+        public Histogram getExecutionTimes() {
+            return executionTimes;
+        }
+
+        /**
+         * Returns the times that workers waited for each task (or
+         * until timing out).  The total is the time workers were
+         * idle.
+         *
+         * @return the idle times
+         */
+        public Histogram getIdleTimes() {
+            return idleTimes;
+        }
+
+        /**
+         * Returns the number of tasks passed to the rejected
+         * execution handler.
+         *
+         * @return the number of rejected tasks
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * Returns the active and idle times, since metrics were
+         * enabled, of each worker thread that was alive and had
+         * looked for or run a task when this snapshot was taken.
+         *
+         * @return the times of each worker
+         */
+        public List<WorkerTimes> getWorkerTimes() {
+            return workerTimes;
+        }
+
+        /**
+         * Returns a string summarizing these metrics.
+         *
+         * @return a string summarizing these metrics
+         */
+        public String toString() {
+            return "[queue wait = " + queueWaitTimes +
+                ", execution = " + executionTimes +
+                ", idle = " + idleTimes +
+                ", rejected = " + rejectedCount + "]";
+        }
+    }
+
+    /**
+     * A snapshot of the times, in nanoseconds, that a worker thread
+     * spent running tasks and waiting for them.
+     *
+     * @see Metrics#getWorkerTimes
+     */
+    public static final class WorkerTimes {
+        private final String threadName;
+        private final long activeTime;
+        private final long idleTime;
+
+        WorkerTimes(WorkerClock wc) {
+            this.threadName = wc.threadName;
+            this.activeTime = wc.activeNanos;
+            this.idleTime = wc.idleNanos;
+        }
+
+        /**
+         * Returns the name the worker thread had when first timed.
+         *
+         * @return the thread name
+         */
+        public String getThreadName() {
+            return threadName;
+        }
+
+        /**
+         * Returns the time the worker spent running tasks, including
+         * {@code beforeExecute} and {@code afterExecute}.
+         *
+         * @return the active time
+         */
+        public long getActiveTime() {
+            return activeTime;
+        }
+
+        /**
+         * Returns the time the worker spent waiting for tasks.
+         *
+         * @return the idle time
+         */
+        public long getIdleTime() {
+            return idleTime;
+        }
 
-            try {
-                Runnable r = timed ?
-                    workQueue.poll(keepAliveTime, TimeUnit.NANOSECONDS) :
-                    workQueue.take();
-                if (r != null)
-                    return r;
-                timedOut = true;
-            } catch (InterruptedException retry) {
-                timedOut = false;
-            }
+        /**
+         * Returns a string identifying the worker and its times.
+         *
+         * @return a string identifying the worker and its times
+         */
+        public String toString() {
+            return "[" + threadName + ": active = " + activeTime +
+                ", idle = " + idleTime + "]";
+        }
+    }
+
+    /**
+     * Calls getTask, recording the time taken if metrics are enabled.
+     */
+    private Runnable getTaskRecordingIdle(Worker w) {
+        MetricsRecorder mr = metrics;
+        if (mr == null)
+            return getTask(w);
+        WorkerClock wc = clockFor(w, mr);
+        long startTime = System.nanoTime();
+        try {
+            return getTask(w);
+        } finally {
+            long t = System.nanoTime() - startTime;
+            mr.idleTimes.record(t);
+            wc.idleNanos += t;
         }
     }
 
@@ -855,8 +2146,16 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         w.unlock(); // allow interrupts
         boolean completedAbruptly = true;
         try {
-            while (task != null || (task = getTask()) != null) {
+            while (task != null || (task = getTaskRecordingIdle(w)) != null) {
                 w.lock();
+                SizeController sc = sizeController;
+                MetricsRecorder mr = metrics;
+                boolean timed = (sc != null || mr != null);
+                long startTime = timed ? System.nanoTime() : 0L;
+                long submitTime;
+                if (mr != null &&
+                    (submitTime = mr.submitTimes.take(task)) != NO_TIME)
+                    mr.queueWaitTimes.record(startTime - submitTime);
                 // If pool is stopping, ensure thread is interrupted;
                 // if not, ensure thread is not interrupted.  This
                 // requires a recheck in second case to deal with
@@ -883,6 +2182,16 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                 } finally {
                     task = null;
                     w.completedTasks++;
+                    if (timed) {
+                        long endTime = System.nanoTime();
+                        if (mr != null) {
+                            long t = endTime - startTime;
+                            mr.executionTimes.record(t);
+                            clockFor(w, mr).activeNanos += t;
+                        }
+                        if (sc != null)
+                            sc.completed(this, startTime, endTime);
+                    }
                     w.unlock();
                 }
             }
@@ -894,6 +2203,22 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
 
     // Public constructors and methods
 
+    /**
+     * Mode flag specifying that the set of worker threads and the
+     * pool statistics are tracked without locking.  See {@link
+     * #ThreadPoolExecutor(int, int, long, TimeUnit, BlockingQueue,
+     * ThreadFactory, RejectedExecutionHandler, int)}.
+     */
+    public static final int CONCURRENT_WORKER_TRACKING = 0x00000001;
+
+    /**
+     * Mode flag specifying that tasks are held in local queues from
+     * which idle workers steal.  See {@link #ThreadPoolExecutor(int,
+     * int, long, TimeUnit, BlockingQueue, ThreadFactory,
+     * RejectedExecutionHandler, int)}.
+     */
+    public static final int WORK_STEALING = 0x00000002;
+
     /**
      * Creates a new {@code ThreadPoolExecutor} with the given initial
      * parameters and default thread factory and rejected execution handler.
@@ -1031,10 +2356,90 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                               BlockingQueue<Runnable> workQueue,
                               ThreadFactory threadFactory,
                               RejectedExecutionHandler handler) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit,
+             workQueue, threadFactory, handler, 0);
+    }
+
+    /**
+     * Creates a new {@code ThreadPoolExecutor} with the given initial
+     * parameters and modes.
+     *
+     * <p>By default, the set of worker threads and the statistics
+     * reported by methods such as {@link #getPoolSize} and {@link
+     * #getCompletedTaskCount} are guarded by a single internal lock,
+     * which is also acquired whenever a thread is created or exits.  If
+     * {@code modes} includes {@link #CONCURRENT_WORKER_TRACKING}, they
+     * are instead held in a concurrent set and striped counters, so
+     * that bursts of thread creation and termination, and frequent
+     * polling of statistics, do not contend.  Statistics are then
+     * computed without blocking updates, so are slightly less precise
+     * while threads are being created or terminated.
+     *
+     * <p>By default, all worker threads take tasks from the given
+     * {@code workQueue}, which may become a point of contention when
+     * many threads submit and execute short tasks.  If {@code modes}
+     * includes {@link #WORK_STEALING}, the pool additionally maintains
+     * a number of bounded local task queues (one per core thread, or
+     * per available processor if there are no core threads, up to a
+     * fixed maximum), in the manner of {@link ForkJoinPool}.  Tasks
+     * submitted when at least {@code corePoolSize} threads are running
+     * are placed in a local queue associated with the submitting
+     * thread, and workers take tasks from their own local queue, then
+     * from the {@code workQueue}, and otherwise steal them from the
+     * local queues of other workers.  Tasks are placed in the {@code
+     * workQueue} only when the selected local queue is full, so
+     * additional threads (up to {@code maximumPoolSize}) are created,
+     * and tasks rejected, only when both are full.  This mode is
+     * therefore best suited to pools with a fixed number of threads.
+     * Tasks held in local queues are not included in {@link
+     * #getQueue}, and are not removed by {@link #purge}, but may be
+     * removed using {@link #remove}, and are returned by {@link
+     * #shutdownNow}.  Also, in this mode idle threads wait to be
+     * signalled by {@code execute}, so tasks inserted directly into
+     * the {@code workQueue} (for example by a {@code
+     * RejectedExecutionHandler}) are noticed only once a thread next
+     * looks for a task.
+     *
+     * @param corePoolSize the number of threads to keep in the pool, even
+     *        if they are idle, unless {@code allowCoreThreadTimeOut} is set
+     * @param maximumPoolSize the maximum number of threads to allow in the
+     *        pool
+     * @param keepAliveTime when the number of threads is greater than
+     *        the core, this is the maximum time that excess idle threads
+     *        will wait for new tasks before terminating.
+     * @param unit the time unit for the {@code keepAliveTime} argument
+     * @param workQueue the queue to use for holding tasks before they are
+     *        executed.  This queue will hold only the {@code Runnable}
+     *        tasks submitted by the {@code execute} method.
+     * @param threadFactory the factory to use when the executor
+     *        creates a new thread
+     * @param handler the handler to use when execution is blocked
+     *        because the thread bounds and queue capacities are reached
+     * @param modes zero or more of the mode flags {@link
+     *        #CONCURRENT_WORKER_TRACKING} and {@link #WORK_STEALING},
+     *        combined with bitwise or
+     * @throws IllegalArgumentException if one of the following holds:<br>
+     *         {@code corePoolSize < 0}<br>
+     *         {@code keepAliveTime < 0}<br>
+     *         {@code maximumPoolSize <= 0}<br>
+     *         {@code maximumPoolSize < corePoolSize}<br>
+     *         {@code modes} includes an undefined flag
+     * @throws NullPointerException if {@code workQueue}
+     *         or {@code threadFactory} or {@code handler} is null
+     */
+    public ThreadPoolExecutor(int corePoolSize,
+                              int maximumPoolSize,
+                              long keepAliveTime,
+                              TimeUnit unit,
+                              BlockingQueue<Runnable> workQueue,
+                              ThreadFactory threadFactory,
+                              RejectedExecutionHandler handler,
+                              int modes) {
         if (corePoolSize < 0 ||
             maximumPoolSize <= 0 ||
             maximumPoolSize < corePoolSize ||
-            keepAliveTime < 0)
+            keepAliveTime < 0 ||
+            (modes & ~(CONCURRENT_WORKER_TRACKING | WORK_STEALING)) != 0)
             throw new IllegalArgumentException();
         if (workQueue == null || threadFactory == null || handler == null)
             throw new NullPointerException();
@@ -1047,6 +2452,31 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         this.keepAliveTime = unit.toNanos(keepAliveTime);
         this.threadFactory = threadFactory;
         this.handler = handler;
+        if (this.concurrentWorkers =
+            (modes & CONCURRENT_WORKER_TRACKING) != 0) {
+            this.workers = ConcurrentHashMap.<Worker>newKeySet();
+            this.largestPoolSizes = new LongAccumulator(Math::max, 0L);
+            this.completedTaskCounter = new LongAdder();
+            this.completedTaskFloor = new LongAccumulator(Math::max, 0L);
+        }
+        else {
+            this.workers = new HashSet<Worker>();
+            this.largestPoolSizes = null;
+            this.completedTaskCounter = null;
+            this.completedTaskFloor = null;
+        }
+        if ((modes & WORK_STEALING) != 0) {
+            int n = (corePoolSize > 0) ? corePoolSize :
+                Runtime.getRuntime().availableProcessors();
+            n = (n >= MAX_TASK_QUEUES) ? MAX_TASK_QUEUES :
+                Integer.highestOneBit((n << 1) - 1);
+            TaskQueue[] qs = new TaskQueue[n];
+            for (int i = 0; i < n; ++i)
+                qs[i] = new TaskQueue();
+            this.taskQueues = qs;
+        }
+        else
+            this.taskQueues = null;
     }
 
     /**
@@ -1085,24 +2515,119 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
          * 3. If we cannot queue task, then we try to add a new
          * thread.  If it fails, we know we are shut down or saturated
          * and so reject the task.
+         *
+         * If work stealing, tasks are queued in a local task queue
+         * if possible, else in workQueue, and then an idle worker
+         * (if any) is signalled.
+         *
+         * If adaptively sizing, the arrival is first recorded,
+         * possibly resizing the pool.  If recording metrics, the
+         * submission time is recorded (and discarded by reject).
          */
+        SizeController sc = sizeController;
+        if (sc != null)
+            sc.submitted(this, 1);
+        MetricsRecorder mr = metrics;
+        if (mr != null)
+            mr.submitTimes.put(command, System.nanoTime());
+        Runnable task = command;
         int c = ctl.get();
         if (workerCountOf(c) < corePoolSize) {
-            if (addWorker(command, true))
+            if (addWorker(task, true))
                 return;
             c = ctl.get();
         }
-        if (isRunning(c) && workQueue.offer(command)) {
+        if (isRunning(c) &&
+            (pushTask(task) || workQueue.offer(task))) {
             int recheck = ctl.get();
-            if (! isRunning(recheck) && remove(command))
+            if (! isRunning(recheck) && remove(task))
                 reject(command);
             else if (workerCountOf(recheck) == 0)
                 addWorker(null, false);
+            else if (taskQueues != null)
+                signalWork();
         }
-        else if (!addWorker(command, false))
+        else if (!addWorker(task, false))
             reject(command);
     }
 
+    /**
+     * Executes the given tasks sometime in the future, as if by
+     * {@link #execute} in iteration order, but more efficiently:
+     * tasks that are not run directly by new threads are queued in
+     * batches, using {@link BlockingQueue#offerAll} (or a single push
+     * onto a local task queue, if work stealing), so that queue locks
+     * are acquired and waiting threads are signalled only as often as
+     * needed.  If a task is rejected, and the {@code
+     * RejectedExecutionHandler} throws an exception, the tasks
+     * preceding it have been either accepted or passed to the
+     * handler, and the others will not be run, except any that were
+     * queued together with it and were taken by a worker thread (or
+     * returned by {@link #shutdownNow}) before the rejection.
+     *
+     * @param tasks the tasks to execute
+     * @throws RejectedExecutionException at discretion of
+     *         {@code RejectedExecutionHandler}, if a task
+     *         cannot be accepted for execution
+     * @throws NullPointerException if {@code tasks} or any of its
+     *         elements is null
+     */
+    public void executeAll(Collection<? extends Runnable> tasks) {
+        Runnable[] a = tasks.toArray(new Runnable[0]);
+        for (Runnable r : a)
+            if (r == null)
+                throw new NullPointerException();
+        SizeController sc = sizeController;
+        if (sc != null)
+            sc.submitted(this, a.length);
+        MetricsRecorder mr = metrics;
+        if (mr != null) {
+            long now = System.nanoTime();
+            for (Runnable r : a)
+                mr.submitTimes.put(r, now);
+        }
+        // Same steps as execute, applied to the remaining tasks
+        for (int i = 0, n = a.length, k; i < n; ) {
+            int c = ctl.get();
+            if (workerCountOf(c) < corePoolSize) {
+                if (addWorker(a[i], true)) {
+                    ++i;
+                    continue;
+                }
+                c = ctl.get();
+            }
+            if (isRunning(c) &&
+                ((k = pushTasks(a, i, n)) > 0 ||
+                 (k = workQueue.offerAll
+                  (Arrays.asList(a).subList(i, n))) > 0)) {
+                int recheck = ctl.get();
+                if (! isRunning(recheck)) {
+                    // Back out the whole chunk before rejecting any,
+                    // so none is left queued if the handler throws
+                    int m = i;
+                    for (int j = i; j < i + k; ++j) {
+                        if (remove(a[j]))
+                            a[m++] = a[j];
+                    }
+                    for (int j = i; j < m; ++j)
+                        reject(a[j]);
+                }
+                else if (workerCountOf(recheck) == 0)
+                    addWorker(null, false);
+                else if (taskQueues != null) {
+                    for (int j = 0; j < k && idleWorkers != null; ++j)
+                        signalWork();
+                }
+                i += k;
+            }
+            else {
+                Runnable task = a[i++];
+                if (!addWorker(task, false))
+                    reject(task);
+            }
+        }
+    }
+
     /**
      * Initiates an orderly shutdown in which previously submitted
      * tasks are executed, but no new tasks will be accepted.
@@ -1161,6 +2686,92 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         return tasks;
     }
 
+    /**
+     * Initiates an orderly shutdown in which no new tasks are
+     * accepted, previously submitted tasks that are executing run to
+     * completion, and tasks awaiting execution are transferred to the
+     * given sink executor (for example, that of another instance of a
+     * service that is being restarted) instead of being run by this
+     * pool.  Transfers begin immediately, in a thread created by this
+     * pool's {@link ThreadFactory} (or, if it does not create one,
+     * for the first batch, in the calling thread), and are also
+     * performed by this pool's threads as they become idle, taking up
+     * to {@code batchSize} tasks from the queue at a time.  If the
+     * sink rejects a task, or throws any other exception, transfers
+     * stop, and that task and those remaining are run by this pool as
+     * in {@link #shutdown}; the rejected execution handler is not
+     * invoked for them.  The returned {@link DrainProgress} reports
+     * how many tasks have been transferred and remain, and may be
+     * used to await termination.  Invocation when a drain is already in
+     * progress has no effect other than to return its progress.
+     * Tasks are transferred only if they can be taken from the queue
+     * immediately, so with queues that hold tasks until some delay
+     * has elapsed, such as that of {@link
+     * ScheduledThreadPoolExecutor}, delayed tasks are handled as in
+     * {@code shutdown}.
+     *
+     * @param sink the executor to which queued tasks are transferred
+     * @param batchSize the maximum number of tasks taken from the
+     *        queue at a time
+     * @return the progress of the drain
+     * @throws NullPointerException if sink is null
+     * @throws IllegalArgumentException if {@code batchSize <= 0}
+     * @throws SecurityException {@inheritDoc}
+     */
+    public DrainProgress shutdownAndDrain(Executor sink, int batchSize) {
+        if (sink == null)
+            throw new NullPointerException();
+        if (batchSize <= 0)
+            throw new IllegalArgumentException();
+        DrainProgress d;
+        boolean started = false;
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            checkShutdownAccess();
+            if ((d = drainProgress) == null) {
+                drainProgress = d = new DrainProgress
+                    (this, sink, batchSize,
+                     runStateLessThan(ctl.get(), STOP) ? queuedTaskCount() : 0);
+                advanceRunState(SHUTDOWN);
+                interruptIdleWorkers();
+                onShutdown(); // hook for ScheduledThreadPoolExecutor
+                started = true;
+            }
+        } finally {
+            mainLock.unlock();
+        }
+        if (started && !queuesEmpty())
+            startTransfers(d);
+        // Ensure that some thread runs tasks if transfers stop
+        if (workerCountOf(ctl.get()) == 0 && !queuesEmpty())
+            addWorker(null, false);
+        tryTerminate();
+        return d;
+    }
+
+    /**
+     * Starts a helper thread that transfers batches for the given
+     * drain until none remain or transfers stop, without waiting
+     * for workers, which may all be busy running tasks.  If the
+     * thread factory does not create a thread, the caller instead
+     * transfers the first batch.
+     */
+    private void startTransfers(DrainProgress d) {
+        Thread t = getThreadFactory().newThread(() -> {
+            while (d.transferring && runStateLessThan(ctl.get(), STOP) &&
+                   transferBatch(d))
+                ;
+            if (workerCountOf(ctl.get()) == 0 && !queuesEmpty())
+                addWorker(null, false);
+            tryTerminate();
+        });
+        if (t != null)
+            t.start();
+        else if (d.transferring)
+            transferBatch(d);
+    }
+
     public boolean isShutdown() {
         return ! isRunning(ctl.get());
     }
@@ -1360,6 +2971,37 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         return allowCoreThreadTimeOut;
     }
 
+    /**
+     * Sets the strategy used by idle threads while waiting for new
+     * tasks.  Strategies that spin or poll before blocking reduce the
+     * latency of handing tasks to idle threads, at the expense of
+     * processor time, and are appropriate only when the pool has
+     * fewer threads than available processors.  The new strategy
+     * applies to threads when they next become idle.
+     *
+     * @param strategy the idle strategy
+     * @throws NullPointerException if strategy is null
+     * @see #getIdleStrategy
+     */
+    public void setIdleStrategy(IdleStrategy strategy) {
+        if (strategy == null)
+            throw new NullPointerException();
+        this.idleStrategy = (strategy == IdleStrategy.PARK) ? null : strategy;
+        interruptIdleWorkers();
+    }
+
+    /**
+     * Returns the strategy used by idle threads while waiting for
+     * new tasks.
+     *
+     * @return the idle strategy
+     * @see #setIdleStrategy
+     */
+    public IdleStrategy getIdleStrategy() {
+        IdleStrategy s = idleStrategy;
+        return (s == null) ? IdleStrategy.PARK : s;
+    }
+
     /**
      * Sets the policy governing whether core threads may time out and
      * terminate if no tasks arrive within the keep-alive time, being
@@ -1456,6 +3098,110 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         return unit.convert(keepAliveTime, TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * Enables adaptive sizing, in which the core pool size is
+     * periodically adjusted within the given bounds so as to keep the
+     * time that tasks wait in the queue near the given target.  The
+     * needed size is estimated from the rate of task submissions,
+     * the mean time workers spend on each task (from {@link
+     * #beforeExecute} through {@link #afterExecute}), worker
+     * utilization, and the number of queued tasks.  Unlike the
+     * default policy, under which threads beyond the core pool size
+     * are created only when the queue rejects a task, this lets a
+     * pool using an unbounded queue grow under load.  The maximum
+     * pool size is raised as needed to accommodate the core pool
+     * size, and otherwise restored to its value when this method was
+     * first called.  Explicit calls to {@link #setCorePoolSize} and
+     * {@link #setMaximumPoolSize} while enabled may be overridden.
+     * Invoking this method when already enabled replaces the bounds
+     * and target.
+     *
+     * @param minPoolSize the least core pool size to set
+     * @param maxPoolSize the greatest core pool size to set
+     * @param targetDelay the target queueing delay
+     * @param unit the time unit of the {@code targetDelay} argument
+     * @throws IllegalArgumentException if {@code minPoolSize < 0},
+     *         {@code maxPoolSize <= 0}, {@code maxPoolSize < minPoolSize},
+     *         or {@code targetDelay <= 0}
+     * @throws NullPointerException if {@code unit} is null
+     * @see #disableAdaptiveSizing
+     */
+    public void enableAdaptiveSizing(int minPoolSize, int maxPoolSize,
+                                     long targetDelay, TimeUnit unit) {
+        long nanos = unit.toNanos(targetDelay);
+        if (minPoolSize < 0 || maxPoolSize <= 0 ||
+            maxPoolSize < minPoolSize || nanos <= 0L)
+            throw new IllegalArgumentException();
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            SizeController prev = sizeController;
+            int base = (prev != null) ? prev.baseMaximumPoolSize :
+                maximumPoolSize;
+            sizeController = new SizeController(minPoolSize, maxPoolSize,
+                                                base, nanos);
+            int core = corePoolSize;
+            if (core < minPoolSize)
+                resize(minPoolSize, base);
+            else if (core > maxPoolSize)
+                resize(maxPoolSize, base);
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Disables adaptive sizing, leaving the current core and maximum
+     * pool sizes in effect.
+     *
+     * @see #enableAdaptiveSizing
+     */
+    public void disableAdaptiveSizing() {
+        sizeController = null;
+    }
+
+    /**
+     * Returns true if adaptive sizing is enabled.
+     *
+     * @return {@code true} if adaptive sizing is enabled
+     * @see #enableAdaptiveSizing
+     */
+    public boolean isAdaptiveSizingEnabled() {
+        return sizeController != null;
+    }
+
+    /**
+     * Enables or disables recording of the metrics returned by {@link
+     * #metrics}.  Enabling metrics that are already enabled has no
+     * effect; disabling them discards those recorded so far.  While
+     * enabled, each task submitted via {@code execute} is timed from
+     * submission until it starts, and while it runs, and each worker
+     * is timed while waiting for tasks, adding a few calls to {@link
+     * System#nanoTime} and atomic updates, but no allocation, per
+     * task.
+     *
+     * @param enabled true to enable metrics, false to disable them
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled)
+            metrics = null;
+        else if (metrics == null)
+            U.compareAndSwapObject(this, METRICS, null, new MetricsRecorder());
+    }
+
+    /**
+     * Returns a snapshot of the metrics recorded since they were last
+     * enabled, or {@code null} if they are disabled.  Obtaining a
+     * snapshot does not block task execution; values are not
+     * necessarily consistent with each other if tasks are running.
+     *
+     * @return the metrics, or {@code null} if disabled
+     */
+    public Metrics metrics() {
+        MetricsRecorder mr;
+        return ((mr = metrics) == null) ? null : new Metrics(mr);
+    }
+
     /* User-level queue utilities */
 
     /**
@@ -1488,6 +3234,15 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     public boolean remove(Runnable task) {
         boolean removed = workQueue.remove(task);
+        TaskQueue[] qs;
+        if (!removed && task != null && (qs = taskQueues) != null) {
+            for (TaskQueue q : qs) {
+                if (removed = q.remove(task))
+                    break;
+            }
+        }
+        if (removed)
+            discardSubmitTime(task);
         tryTerminate(); // In case SHUTDOWN and now empty
         return removed;
     }
@@ -1508,16 +3263,20 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             Iterator<Runnable> it = q.iterator();
             while (it.hasNext()) {
                 Runnable r = it.next();
-                if (r instanceof Future<?> && ((Future<?>)r).isCancelled())
+                if (r instanceof Future<?> && ((Future<?>)r).isCancelled()) {
                     it.remove();
+                    discardSubmitTime(r);
+                }
             }
         } catch (ConcurrentModificationException fallThrough) {
             // Take slow path if we encounter interference during traversal.
             // Make copy for traversal and call remove for cancelled entries.
             // The slow path is more likely to be O(N*N).
-            for (Object r : q.toArray())
-                if (r instanceof Future<?> && ((Future<?>)r).isCancelled())
-                    q.remove(r);
+            for (Runnable r : q.toArray(new Runnable[0])) {
+                if (r instanceof Future<?> && ((Future<?>)r).isCancelled() &&
+                    q.remove(r))
+                    discardSubmitTime(r);
+            }
         }
 
         tryTerminate(); // In case SHUTDOWN and now empty
@@ -1531,15 +3290,15 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return the number of threads
      */
     public int getPoolSize() {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
+        final boolean locked = lockWorkers();
         try {
             // Remove rare and surprising possibility of
             // isTerminated() && getPoolSize() > 0
             return runStateAtLeast(ctl.get(), TIDYING) ? 0
                 : workers.size();
         } finally {
-            mainLock.unlock();
+            if (locked)
+                mainLock.unlock();
         }
     }
 
@@ -1550,8 +3309,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return the number of threads
      */
     public int getActiveCount() {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
+        final boolean locked = lockWorkers();
         try {
             int n = 0;
             for (Worker w : workers)
@@ -1559,7 +3317,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                     ++n;
             return n;
         } finally {
-            mainLock.unlock();
+            if (locked)
+                mainLock.unlock();
         }
     }
 
@@ -1570,6 +3329,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return the number of threads
      */
     public int getLargestPoolSize() {
+        if (concurrentWorkers)
+            return (int)largestPoolSizes.get();
         final ReentrantLock mainLock = this.mainLock;
         mainLock.lock();
         try {
@@ -1588,18 +3349,18 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return the number of tasks
      */
     public long getTaskCount() {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
+        final boolean locked = lockWorkers();
         try {
-            long n = completedTaskCount;
+            long n = exitedWorkerTaskCount();
             for (Worker w : workers) {
                 n += w.completedTasks;
                 if (w.isLocked())
                     ++n;
             }
-            return n + workQueue.size();
+            return n + queuedTaskCount();
         } finally {
-            mainLock.unlock();
+            if (locked)
+                mainLock.unlock();
         }
     }
 
@@ -1613,15 +3374,19 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return the number of tasks
      */
     public long getCompletedTaskCount() {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
+        final boolean locked = lockWorkers();
         try {
-            long n = completedTaskCount;
+            long n = exitedWorkerTaskCount();
             for (Worker w : workers)
                 n += w.completedTasks;
+            if (!locked) {
+                completedTaskFloor.accumulate(n);
+                n = completedTaskFloor.get();
+            }
             return n;
         } finally {
-            mainLock.unlock();
+            if (locked)
+                mainLock.unlock();
         }
     }
 
@@ -1635,10 +3400,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     public String toString() {
         long ncompleted;
         int nworkers, nactive;
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
+        final boolean locked = lockWorkers();
         try {
-            ncompleted = completedTaskCount;
+            ncompleted = exitedWorkerTaskCount();
             nactive = 0;
             nworkers = workers.size();
             for (Worker w : workers) {
@@ -1647,7 +3411,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                     ++nactive;
             }
         } finally {
-            mainLock.unlock();
+            if (locked)
+                mainLock.unlock();
         }
         int c = ctl.get();
         String rs = (runStateLessThan(c, SHUTDOWN) ? "Running" :
@@ -1657,7 +3422,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             "[" + rs +
             ", pool size = " + nworkers +
             ", active threads = " + nactive +
-            ", queued tasks = " + workQueue.size() +
+            ", queued tasks = " + queuedTaskCount() +
             ", completed tasks = " + ncompleted +
             "]";
     }
@@ -1835,4 +3600,254 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             }
         }
     }
+
+    /**
+     * A strategy for how idle threads wait for new tasks, in up to
+     * three phases: busy-spinning, in which the thread repeatedly
+     * polls the queue; then yielding, in which it calls {@link
+     * Thread#yield} between polls; then parking, in which it parks
+     * between polls for times that start at one microsecond and
+     * double up to a maximum.  After the phases of a strategy (if
+     * any) are exhausted, the thread blocks until signalled that a
+     * task is available, which is the only phase of the default
+     * strategy, {@link #park}.  Threads subject to keep-alive
+     * timeouts stop waiting in any phase when the timeout elapses.
+     */
+    public static final class IdleStrategy {
+        final int spins;
+        final int yields;
+        final long maxParkNanos;
+
+        private IdleStrategy(int spins, int yields, long maxParkNanos) {
+            this.spins = spins;
+            this.yields = yields;
+            this.maxParkNanos = maxParkNanos;
+        }
+
+        static final IdleStrategy PARK = new IdleStrategy(0, 0, 0L);
+        static final IdleStrategy BUSY_SPIN =
+            new IdleStrategy(Integer.MAX_VALUE, 0, 0L);
+
+        /**
+         * Returns the default strategy, in which idle threads block
+         * immediately until signalled.
+         *
+         * @return the strategy
+         */
+        public static IdleStrategy park() {
+            return PARK;
+        }
+
+        /**
+         * Returns a strategy in which idle threads busy-spin until
+         * a task is available, occupying a processor each.
+         *
+         * @return the strategy
+         */
+        public static IdleStrategy busySpin() {
+            return BUSY_SPIN;
+        }
+
+        /**
+         * Returns a strategy in which idle threads busy-spin for the
+         * given number of polls, then yield for the given number of
+         * polls, and then park between polls for exponentially
+         * increasing times up to {@code maxParkTime}, continuing to
+         * park for that long until a task is available.  If {@code
+         * maxParkTime} is zero, threads instead block after
+         * yielding.
+         *
+         * @param spins the number of polls while busy-spinning
+         * @param yields the number of polls while yielding
+         * @param maxParkTime the maximum time to park between polls
+         * @param unit the time unit of the {@code maxParkTime} argument
+         * @return the strategy
+         * @throws IllegalArgumentException if any argument is negative
+         * @throws NullPointerException if unit is null
+         */
+        public static IdleStrategy spinYieldPark(int spins, int yields,
+                                                 long maxParkTime,
+                                                 TimeUnit unit) {
+            long maxPark = unit.toNanos(maxParkTime);
+            if (spins < 0 || yields < 0 || maxPark < 0L)
+                throw new IllegalArgumentException();
+            if (spins == Integer.MAX_VALUE)
+                return BUSY_SPIN;
+            return (spins == 0 && yields == 0 && maxPark == 0L) ? PARK :
+                new IdleStrategy(spins, yields, maxPark);
+        }
+
+        /**
+         * Returns a string identifying this strategy and its
+         * parameters.
+         *
+         * @return a string identifying this strategy
+         */
+        public String toString() {
+            return (this == PARK) ? "IdleStrategy[park]" :
+                (this == BUSY_SPIN) ? "IdleStrategy[busySpin]" :
+                "IdleStrategy[spins = " + spins +
+                ", yields = " + yields +
+                ", maxParkNanos = " + maxParkNanos + "]";
+        }
+    }
+
+    /**
+     * Progress of a drain started by {@link #shutdownAndDrain}.  The
+     * values reported are current, but not necessarily consistent
+     * with one another while transfers are in progress.
+     */
+    public static final class DrainProgress {
+        final ThreadPoolExecutor pool;
+        final Executor sink;
+        final int batchSize;
+        final long initialQueuedCount;
+        final LongAdder transferred = new LongAdder();
+        final ConcurrentLinkedQueue<Runnable> overflow =
+            new ConcurrentLinkedQueue<Runnable>();
+        final AtomicInteger transfersInProgress = new AtomicInteger();
+        volatile boolean transferring = true;
+        volatile Throwable failure;
+
+        DrainProgress(ThreadPoolExecutor pool, Executor sink,
+                      int batchSize, long initialQueuedCount) {
+            this.pool = pool;
+            this.sink = sink;
+            this.batchSize = batchSize;
+            this.initialQueuedCount = initialQueuedCount;
+        }
+
+        /**
+         * Returns the number of tasks that were queued when the drain
+         * started.
+         *
+         * @return the initial number of queued tasks
+         */
+        public long getInitialQueuedCount() {
+            return initialQueuedCount;
+        }
+
+        /**
+         * Returns the number of tasks accepted by the sink.
+         *
+         * @return the number of transferred tasks
+         */
+        public long getTransferredCount() {
+            return transferred.sum();
+        }
+
+        /**
+         * Returns the number of tasks that remain queued.
+         *
+         * @return the number of queued tasks
+         */
+        public int getQueuedCount() {
+            return pool.queuedTaskCount();
+        }
+
+        /**
+         * Returns the approximate number of tasks still being
+         * executed by the pool.
+         *
+         * @return the number of executing tasks
+         */
+        public int getActiveCount() {
+            return pool.getActiveCount();
+        }
+
+        /**
+         * Returns true if transfers stopped because the sink rejected
+         * a task or otherwise threw an exception, in which case
+         * remaining tasks are run by the pool.
+         *
+         * @return {@code true} if transfers stopped
+         */
+        public boolean isTransferAborted() {
+            return !transferring;
+        }
+
+        /**
+         * Returns the exception thrown by the sink that stopped
+         * transfers, or {@code null} if none.
+         *
+         * @return the exception thrown by the sink, or {@code null}
+         */
+        public Throwable getTransferFailure() {
+            return failure;
+        }
+
+        /**
+         * Returns true if the pool has terminated, so that all tasks
+         * have either been transferred or completed.
+         *
+         * @return {@code true} if the pool has terminated
+         */
+        public boolean isDone() {
+            return pool.isTerminated();
+        }
+
+        /**
+         * Blocks until the pool has terminated, or the timeout
+         * occurs, or the current thread is interrupted, whichever
+         * happens first.
+         *
+         * @param timeout the maximum time to wait
+         * @param unit the time unit of the timeout argument
+         * @return {@code true} if the pool terminated and
+         *         {@code false} if the timeout elapsed before termination
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+
+        /**
+         * Returns a string identifying this drain and its progress.
+         *
+         * @return a string identifying this drain and its progress
+         */
+        public String toString() {
+            return super.toString() +
+                "[" + (isDone() ? "Done" :
+                       transferring ? "Transferring" : "Aborted") +
+                ", initial queued = " + initialQueuedCount +
+                ", transferred = " + getTransferredCount() +
+                ", queued = " + getQueuedCount() +
+                ", active = " + getActiveCount() + "]";
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe U;
+    private static final long IDLEWORKERS;
+    private static final long METRICS;
+    private static final long NODETHREAD;
+    private static final long QLOCK;
+    private static final int  ABASE;
+    private static final int  ASHIFT;
+    static {
+        try {
+            U = sun.misc.Unsafe.getUnsafe();
+            Class<?> k = ThreadPoolExecutor.class;
+            IDLEWORKERS = U.objectFieldOffset
+                (k.getDeclaredField("idleWorkers"));
+            METRICS = U.objectFieldOffset
+                (k.getDeclaredField("metrics"));
+            Class<?> nk = IdleNode.class;
+            NODETHREAD = U.objectFieldOffset
+                (nk.getDeclaredField("thread"));
+            Class<?> qk = TaskQueue.class;
+            QLOCK = U.objectFieldOffset
+                (qk.getDeclaredField("qlock"));
+            Class<?> ak = Runnable[].class;
+            ABASE = U.arrayBaseOffset(ak);
+            int scale = U.arrayIndexScale(ak);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
 }
@@ -0,0 +1,896 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package concurrent;
+import static concurrent.TimeUnit.NANOSECONDS;
+import concurrent.locks.Condition;
+import concurrent.locks.ReentrantLock;
+import java.util.*;
+
+/**
+ * An unbounded {@linkplain BlockingQueue blocking queue} of {@code
+ * Delayed} elements, in which an element can only be taken when its
+ * delay has expired, backed by a hierarchical timing wheel rather
+ * than a priority queue.  Insertion, and removal of an element
+ * using the handle returned by {@link #insert}, take constant time
+ * however many elements are pending, so this class is an alternative
+ * to {@link DelayQueue} for very large numbers of delayed elements
+ * that are often cancelled before they expire.  Insertion alone is
+ * nonetheless usually slower than in {@code DelayQueue}, since each
+ * element needs a node and a reading of the clock.
+ *
+ * <p>In exchange, time is measured in <em>ticks</em> of a duration
+ * given on construction.  An element becomes available at the first
+ * tick boundary at which its delay (as reported when it was inserted)
+ * has expired, so it may be taken up to one tick after it expires,
+ * and elements expiring within the same tick are not ordered among
+ * themselves.  An element is never taken before its {@code
+ * getDelay(TimeUnit.NANOSECONDS)} method returns a value less than
+ * or equal to zero; if an element reports a positive delay when it
+ * becomes available, it is rescheduled.  Other than this, the
+ * contract is that of {@code DelayQueue}: unexpired elements cannot
+ * be removed using {@code take} or {@code poll}, but are otherwise
+ * treated as normal elements, and this queue does not permit null
+ * elements.
+ *
+ * <p>This class and its iterator implement all of the
+ * <em>optional</em> methods of the {@link Collection} and {@link
+ * Iterator} interfaces.  The Iterator provided in method {@link
+ * #iterator()} is <em>not</em> guaranteed to traverse the elements of
+ * the queue in any particular order.
+ *
+ * @param <E> the type of elements held in this collection
+ */
+public class TimingWheelDelayQueue<E extends Delayed> extends AbstractQueue<E>
+    implements BlockingQueue<E> {
+
+    /*
+     * Overview:
+     *
+     * This is a hierarchical hashed timing wheel in the style of the
+     * classic Linux kernel timer wheel (Varghese and Lauck's scheme
+     * 7).  Times are tick numbers since construction.  Each element
+     * is held in a node with its deadline tick, in a doubly-linked
+     * list of one of WHEEL_SIZE buckets of one of LEVELS levels.
+     * An element whose deadline d lies i > 0 ticks after the current
+     * tick c goes in level L = floor(log2(i) / WHEEL_BITS), in bucket
+     * (d >>> L * WHEEL_BITS) & WHEEL_MASK, so level 0 buckets hold
+     * single ticks, level 1 buckets runs of WHEEL_SIZE ticks, and so
+     * on.  Elements with d <= c go on the ready list.
+     *
+     * Advancing to tick t first cascades: for each level L >= 1 such
+     * that t is a multiple of the span of a level L bucket, the
+     * bucket for t at level L is emptied and its elements are placed
+     * again relative to t, which puts them in lower levels.  Then the
+     * level 0 bucket for t, all of whose elements have deadline t,
+     * is moved to the ready list.  Because every element of a level
+     * L bucket is within WHEEL_SIZE spans of c when placed, it is
+     * cascaded exactly when its span begins.  Counts of elements per
+     * level let advancing skip runs of ticks at which nothing can
+     * happen, so catching up after an idle period costs at most
+     * WHEEL_SIZE steps per level rather than one per tick.
+     *
+     * Time advances lazily, when a taker looks for expired elements.
+     * Insertion places elements relative to the possibly stale
+     * current tick, which is still correct.  Blocking uses a single
+     * lock and the leader-follower scheme of DelayQueue: the leader
+     * waits until the next tick at which an element may become ready
+     * or be cascaded, and an insertion signals if there is no leader
+     * or if the new element is due before the leader wakes.
+     *
+     * Constant-time removal of a given element is supported only
+     * through the node returned by insert, which serves as its
+     * handle, and by iterators, which hold nodes; remove(Object)
+     * scans.  (An index by element identity would make every
+     * insertion pay for a hash table update under the lock.)  A node
+     * is linked exactly while its element is in the queue, and holds
+     * its queue so that cancel can reject nodes of others.
+     */
+
+    /** Number of bits of tick number per level */
+    static final int WHEEL_BITS = 6;
+
+    /** Number of buckets per level */
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /** Number of levels, enough to span all positive longs */
+    static final int LEVELS = (63 + WHEEL_BITS - 1) / WHEEL_BITS;
+
+    /** Level of nodes on the ready list */
+    static final int READY = -1;
+
+    /**
+     * A handle to an element inserted by {@link #insert}, which can
+     * be used to {@link #cancel} it in constant time.
+     *
+     * @param <E> the type of the element
+     */
+    public static final class Node<E> {
+        final E item;
+        final TimingWheelDelayQueue<?> queue;
+        long deadline;      // tick
+        int level;
+        Node<E> prev, next; // bucket list, circular through sentinel
+
+        Node(E item, TimingWheelDelayQueue<?> queue) {
+            this.item = item;
+            this.queue = queue;
+            prev = next = this;
+        }
+
+        /**
+         * Returns the element.
+         *
+         * @return the element
+         */
+        public E getElement() {
+            return item;
+        }
+    }
+
+    private final transient ReentrantLock lock = new ReentrantLock();
+
+    /** System.nanoTime() at tick 0 */
+    private final long origin;
+
+    /** Tick duration in nanoseconds */
+    private final long tickNanos;
+
+    /** Last tick advanced to */
+    private long currentTick;
+
+    /** Bucket sentinels per level, created when first needed */
+    @SuppressWarnings("unchecked")
+    private final Node<E>[][] wheels = (Node<E>[][]) new Node<?>[LEVELS][];
+
+    /** Number of elements in each level */
+    private final int[] levelCounts = new int[LEVELS];
+
+    /** Sentinel of the list of elements whose deadline has passed */
+    private final Node<E> ready = new Node<E>(null, this);
+
+    /** Number of elements */
+    private int count;
+
+    /**
+     * Thread designated to wait for the next tick at which elements
+     * may become ready, as in DelayQueue.
+     */
+    private Thread leader = null;
+
+    /** Tick at which the leader will wake */
+    private long leaderTick;
+
+    /**
+     * Condition signalled when an element may have become available
+     * at the head of the queue or a new thread may need to become
+     * leader.
+     */
+    private final Condition available = lock.newCondition();
+
+    /**
+     * Creates a new {@code TimingWheelDelayQueue} with a tick
+     * duration of one millisecond.
+     */
+    public TimingWheelDelayQueue() {
+        this(1L, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a new {@code TimingWheelDelayQueue} with the given tick
+     * duration.
+     *
+     * @param tickDuration the tick duration
+     * @param unit the time unit of the tickDuration argument
+     * @throws IllegalArgumentException if {@code tickDuration} is not
+     *         positive
+     * @throws NullPointerException if {@code unit} is null
+     */
+    public TimingWheelDelayQueue(long tickDuration, TimeUnit unit) {
+        long nanos = unit.toNanos(tickDuration);
+        if (tickDuration <= 0L || nanos <= 0L)
+            throw new IllegalArgumentException();
+        this.tickNanos = nanos;
+        this.origin = System.nanoTime();
+    }
+
+    /**
+     * Returns the tick duration of this queue in the given time unit.
+     *
+     * @param unit the unit of the result
+     * @return the tick duration
+     */
+    public long getTickDuration(TimeUnit unit) {
+        return unit.convert(tickNanos, NANOSECONDS);
+    }
+
+    /* ---------------- Wheel operations -------------- */
+
+    // All of the following are called only when holding lock.
+
+    /** Returns the tick containing the given System.nanoTime(). */
+    private long tickOf(long now) {
+        return (now - origin) / tickNanos;
+    }
+
+    /**
+     * Returns the first tick at which the delay of e will have
+     * expired.  The clock is read after the delay so that the result
+     * is never early.
+     */
+    private long deadlineOf(E e) {
+        long delay = e.getDelay(NANOSECONDS);
+        long r = System.nanoTime() - origin;
+        if (delay > 0L && (r += delay) < 0L)
+            r = Long.MAX_VALUE; // overflow
+        return r / tickNanos + ((delay > 0L && r % tickNanos != 0L) ? 1L : 0L);
+    }
+
+    private Node<E>[] wheel(int level) {
+        Node<E>[] w = wheels[level];
+        if (w == null) {
+            @SuppressWarnings("unchecked")
+            Node<E>[] nw = (Node<E>[]) new Node<?>[WHEEL_SIZE];
+            for (int i = 0; i < WHEEL_SIZE; ++i)
+                nw[i] = new Node<E>(null, this);
+            wheels[level] = w = nw;
+        }
+        return w;
+    }
+
+    /** Appends n to the list with sentinel s, at the given level. */
+    private void link(Node<E> s, Node<E> n, int level) {
+        Node<E> p = s.prev;
+        n.prev = p;
+        n.next = s;
+        p.next = n;
+        s.prev = n;
+        if ((n.level = level) != READY)
+            ++levelCounts[level];
+    }
+
+    /** Removes n from its list. */
+    private void unlink(Node<E> n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = n.next = n;
+        if (n.level != READY)
+            --levelCounts[n.level];
+    }
+
+    /** Places n according to its deadline and the current tick. */
+    private void schedule(Node<E> n) {
+        long d = n.deadline, i = d - currentTick;
+        if (i <= 0L)
+            link(ready, n, READY);
+        else {
+            int level = (63 - Long.numberOfLeadingZeros(i)) / WHEEL_BITS;
+            int b = (int)(d >>> (level * WHEEL_BITS)) & WHEEL_MASK;
+            link(wheel(level)[b], n, level);
+        }
+    }
+
+    /**
+     * Advances the current tick to that of the current time,
+     * cascading elements and moving those that are due to the ready
+     * list.
+     */
+    private void advance() {
+        final long now = tickOf(System.nanoTime());
+        final int[] levelCounts = this.levelCounts;
+        while (currentTick < now) {
+            int low = 0;
+            while (low < LEVELS && levelCounts[low] == 0)
+                ++low;
+            long t = currentTick + 1L;
+            if (low > 0) {
+                // nothing happens before the next span of level low begins
+                int shift = low * WHEEL_BITS;
+                t = (low == LEVELS) ? now : ((currentTick >>> shift) + 1L) << shift;
+                if (t < 0L || t > now) {
+                    currentTick = now;
+                    break;
+                }
+            }
+            currentTick = t;
+            for (int level = 1; level < LEVELS; ++level) {
+                int shift = level * WHEEL_BITS;
+                if ((t & ((1L << shift) - 1L)) != 0L)
+                    break;
+                if (levelCounts[level] != 0)
+                    cascade(wheels[level][(int)(t >>> shift) & WHEEL_MASK]);
+            }
+            if (levelCounts[0] != 0) {
+                Node<E> s = wheels[0][(int)t & WHEEL_MASK];
+                for (Node<E> n; (n = s.next) != s; ) {
+                    unlink(n);
+                    link(ready, n, READY);
+                }
+            }
+        }
+    }
+
+    /** Empties the bucket with sentinel s, placing its elements anew. */
+    private void cascade(Node<E> s) {
+        for (Node<E> n; (n = s.next) != s; ) {
+            unlink(n);
+            schedule(n);
+        }
+    }
+
+    /**
+     * Returns the first tick after the current one at which an
+     * element may become ready or be cascaded, or Long.MAX_VALUE if
+     * there are no scheduled elements.
+     */
+    private long nextEventTick() {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; ++level) {
+            if (levelCounts[level] == 0)
+                continue;
+            Node<E>[] w = wheels[level];
+            int shift = level * WHEEL_BITS;
+            long span = currentTick >>> shift;
+            for (int k = 1; k <= WHEEL_SIZE; ++k) {
+                Node<E> s = w[(int)(span + k) & WHEEL_MASK];
+                if (s.next != s) {
+                    long t = (span + k) << shift;
+                    if (t > 0L && t < next)
+                        next = t;
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+
+    /** Returns the nanoseconds from now until the given tick begins. */
+    private long nanosUntil(long tick) {
+        if (tick >= Long.MAX_VALUE / tickNanos)
+            return Long.MAX_VALUE;
+        long d = origin + tick * tickNanos - System.nanoTime();
+        return (d < 0L) ? 0L : d;
+    }
+
+    /**
+     * Returns the first ready node whose element has expired, after
+     * advancing time and rescheduling any that report positive
+     * delays, or null if none.
+     */
+    private Node<E> firstExpired() {
+        advance();
+        for (Node<E> n; (n = ready.next) != ready; ) {
+            if (n.item.getDelay(NANOSECONDS) <= 0L)
+                return n;
+            unlink(n);
+            n.deadline = Math.max(deadlineOf(n.item), currentTick + 1L);
+            schedule(n);
+        }
+        return null;
+    }
+
+    /** Removes n from this queue. */
+    private void remove(Node<E> n) {
+        unlink(n);
+        --count;
+    }
+
+    /** Returns the sentinels of the ready list and all buckets. */
+    private List<Node<E>> sentinels() {
+        List<Node<E>> list = new ArrayList<Node<E>>();
+        list.add(ready);
+        for (Node<E>[] w : wheels) {
+            if (w != null)
+                Collections.addAll(list, w);
+        }
+        return list;
+    }
+
+    /* ---------------- Queue operations -------------- */
+
+    /**
+     * Inserts the specified element into this delay queue.
+     *
+     * @param e the element to add
+     * @return {@code true} (as specified by {@link Collection#add})
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    /**
+     * Inserts the specified element into this delay queue.
+     *
+     * @param e the element to add
+     * @return {@code true}
+     * @throws NullPointerException if the specified element is null
+     */
+    public boolean offer(E e) {
+        insert(e);
+        return true;
+    }
+
+    /**
+     * Inserts the specified element into this delay queue, returning
+     * a handle by which it can be removed in constant time using
+     * {@link #cancel}.
+     *
+     * @param e the element to add
+     * @return a handle to the inserted element
+     * @throws NullPointerException if the specified element is null
+     */
+    public Node<E> insert(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        Node<E> n = new Node<E>(e, this);
+        long d = n.deadline = deadlineOf(e); // outside lock
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            schedule(n);
+            ++count;
+            if (leader == null || d < leaderTick) {
+                leader = null;
+                available.signal();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the element inserted with the given handle, if it is
+     * still present, whether or not it has expired.
+     *
+     * @param node a handle returned by {@link #insert} on this queue
+     * @return {@code true} if the element was removed
+     * @throws NullPointerException if node is null
+     * @throws IllegalArgumentException if node was returned by
+     *         another queue
+     */
+    public boolean cancel(Node<E> node) {
+        if (node.queue != this)
+            throw new IllegalArgumentException();
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            if (node.next == node)
+                return false;
+            remove(node);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified element into this delay queue. As the queue is
+     * unbounded this method will never block.
+     *
+     * @param e the element to add
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public void put(E e) {
+        offer(e);
+    }
+
+    /**
+     * Inserts the specified element into this delay queue. As the queue is
+     * unbounded this method will never block.
+     *
+     * @param e the element to add
+     * @param timeout This parameter is ignored as the method never blocks
+     * @param unit This parameter is ignored as the method never blocks
+     * @return {@code true}
+     * @throws NullPointerException {@inheritDoc}
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, or returns {@code null}
+     * if this queue has no elements with an expired delay.
+     *
+     * @return the head of this queue, or {@code null} if this
+     *         queue has no elements with an expired delay
+     */
+    public E poll() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Node<E> n = firstExpired();
+            if (n == null)
+                return null;
+            remove(n);
+            return n.item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary
+     * until an element with an expired delay is available on this queue.
+     *
+     * @return the head of this queue
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E take() throws InterruptedException {
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                Node<E> n = firstExpired();
+                if (n != null) {
+                    remove(n);
+                    return n.item;
+                }
+                if (count == 0 || leader != null)
+                    available.await();
+                else {
+                    Thread thisThread = Thread.currentThread();
+                    long tick = nextEventTick();
+                    leader = thisThread;
+                    leaderTick = tick;
+                    try {
+                        available.awaitNanos(nanosUntil(tick));
+                    } finally {
+                        if (leader == thisThread)
+                            leader = null;
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && count != 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the head of this queue, waiting if necessary
+     * until an element with an expired delay is available on this queue,
+     * or the specified wait time expires.
+     *
+     * @return the head of this queue, or {@code null} if the
+     *         specified waiting time elapses before an element with
+     *         an expired delay becomes available
+     * @throws InterruptedException {@inheritDoc}
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = this.lock;
+        lock.lockInterruptibly();
+        try {
+            for (;;) {
+                Node<E> n = firstExpired();
+                if (n != null) {
+                    remove(n);
+                    return n.item;
+                }
+                if (nanos <= 0)
+                    return null;
+                if (count == 0)
+                    nanos = available.awaitNanos(nanos);
+                else {
+                    long tick = nextEventTick();
+                    long delay = nanosUntil(tick);
+                    if (nanos < delay || leader != null)
+                        nanos = available.awaitNanos(nanos);
+                    else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        leaderTick = tick;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread)
+                                leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && count != 0)
+                available.signal();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves, but does not remove, the head of this queue, or
+     * returns {@code null} if this queue is empty.  Unlike
+     * {@code poll}, if no expired elements are available in the queue,
+     * this method returns an element with the earliest deadline tick,
+     * if one exists.
+     *
+     * @return the head of this queue, or {@code null} if this
+     *         queue is empty
+     */
+    public E peek() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Node<E> n = firstExpired();
+            if (n == null && ready.next != ready)
+                n = ready.next;
+            if (n == null && count != 0) {
+                for (int level = 0; level < LEVELS; ++level) {
+                    if (levelCounts[level] == 0)
+                        continue;
+                    Node<E>[] w = wheels[level];
+                    int b = (int)(currentTick >>> (level * WHEEL_BITS));
+                    for (int k = 1; k <= WHEEL_SIZE; ++k) {
+                        Node<E> s = w[(b + k) & WHEEL_MASK];
+                        if (s.next != s) {
+                            for (Node<E> p = s.next; p != s; p = p.next) {
+                                if (n == null || p.deadline < n.deadline)
+                                    n = p;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            return (n == null) ? null : n.item;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws UnsupportedOperationException {@inheritDoc}
+     * @throws ClassCastException            {@inheritDoc}
+     * @throws NullPointerException          {@inheritDoc}
+     * @throws IllegalArgumentException      {@inheritDoc}
+     */
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null)
+            throw new NullPointerException();
+        if (c == this)
+            throw new IllegalArgumentException();
+        if (maxElements <= 0)
+            return 0;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            int n = 0;
+            for (Node<E> p; n < maxElements && (p = firstExpired()) != null;) {
+                c.add(p.item);  // In this order, in case add() throws.
+                remove(p);
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically removes all of the elements from this delay queue.
+     * The queue will be empty after this call returns.
+     * Elements with an unexpired delay are not waited for; they are
+     * simply discarded from the queue.
+     */
+    public void clear() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (Node<E> s : sentinels()) {
+                for (Node<E> n; (n = s.next) != s; )
+                    unlink(n);
+            }
+            count = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Always returns {@code Integer.MAX_VALUE} because
+     * a {@code TimingWheelDelayQueue} is not capacity constrained.
+     *
+     * @return {@code Integer.MAX_VALUE}
+     */
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue.
+     * The returned array elements are in no particular order.
+     *
+     * <p>The returned array will be "safe" in that no references to it are
+     * maintained by this queue.  (In other words, this method must allocate
+     * a new array).  The caller is thus free to modify the returned array.
+     *
+     * @return an array containing all of the elements in this queue
+     */
+    public Object[] toArray() {
+        Object[] a = nodes();
+        for (int i = 0; i < a.length; ++i)
+            a[i] = ((Node<?>)a[i]).item;
+        return a;
+    }
+
+    /** Returns an array of the nodes of all elements. */
+    private Object[] nodes() {
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            Object[] a = new Object[count];
+            int k = 0;
+            for (Node<E> s : sentinels()) {
+                for (Node<E> p = s.next; p != s; p = p.next)
+                    a[k++] = p;
+            }
+            return a;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an array containing all of the elements in this queue; the
+     * runtime type of the returned array is that of the specified array.
+     * The returned array elements are in no particular order.
+     *
+     * @param a the array into which the elements of the queue are to
+     *          be stored, if it is big enough; otherwise, a new array of the
+     *          same runtime type is allocated for this purpose
+     * @return an array containing all of the elements in this queue
+     * @throws ArrayStoreException if the runtime type of the specified array
+     *         is not a supertype of the runtime type of every element in
+     *         this queue
+     * @throws NullPointerException if the specified array is null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T[] toArray(T[] a) {
+        Object[] es = toArray();
+        int n = es.length;
+        if (a.length < n)
+            return (T[])Arrays.copyOf(es, n, a.getClass());
+        System.arraycopy(es, 0, a, 0, n);
+        if (a.length > n)
+            a[n] = null;
+        return a;
+    }
+
+    /**
+     * Removes a single instance of the specified element from this
+     * queue, if it is present, whether or not it has expired.  This
+     * takes time linear in the size of the queue; elements inserted
+     * with {@link #insert} can instead be removed in constant time
+     * using {@link #cancel}.
+     *
+     * @param o element to be removed from this queue, if present
+     * @return {@code true} if this queue changed as a result of the call
+     */
+    public boolean remove(Object o) {
+        if (o == null)
+            return false;
+        final ReentrantLock lock = this.lock;
+        lock.lock();
+        try {
+            for (Node<E> s : sentinels()) {
+                for (Node<E> p = s.next; p != s; p = p.next) {
+                    if (o.equals(p.item)) {
+                        remove(p);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over all the elements (both expired and
+     * unexpired) in this queue. The iterator does not return the
+     * elements in any particular order.
+     *
+     * <p>The returned iterator is
+     * <a href="package-summary.html#Weakly"><i>weakly consistent</i></a>.
+     *
+     * @return an iterator over the elements in this queue
+     */
+    public Iterator<E> iterator() {
+        return new Itr(nodes());
+    }
+
+    /**
+     * Snapshot iterator that works off an array of the nodes of all
+     * elements, so that it can remove them in constant time.
+     */
+    private class Itr implements Iterator<E> {
+        final Object[] array; // Array of all nodes
+        int cursor;           // index of next element to return
+        int lastRet;          // index of last element, or -1 if no such
+
+        Itr(Object[] array) {
+            lastRet = -1;
+            this.array = array;
+        }
+
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E next() {
+            if (cursor >= array.length)
+                throw new NoSuchElementException();
+            lastRet = cursor;
+            return ((Node<E>)array[cursor++]).item;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void remove() {
+            if (lastRet < 0)
+                throw new IllegalStateException();
+            cancel((Node<E>)array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import concurrent.atomic.AtomicLong;
+import concurrent.atomic.LongAccumulator;
+import concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contended updates of a single counter held in an {@link
+ * AtomicLong}, a {@link LongAdder}, and a {@link LongAccumulator}
+ * (maximum), plus mixed groups in which one reader repeatedly sums
+ * the striped forms while the other threads update them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AtomicBenchmark {
+
+    final AtomicLong atomicLong = new AtomicLong();
+    final LongAdder adder = new LongAdder();
+    final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    @State(Scope.Thread)
+    public static class Local {
+        long x;
+    }
+
+    @Benchmark
+    public long atomicLongIncrement() {
+        return atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    public long atomicLongCas() {
+        long v;
+        do {} while (!atomicLong.compareAndSet(v = atomicLong.get(), v + 1L));
+        return v;
+    }
+
+    @Benchmark
+    public void longAdderIncrement() {
+        adder.increment();
+    }
+
+    @Benchmark
+    public void longAccumulatorMax(Local l) {
+        max.accumulate(++l.x);
+    }
+
+    @Benchmark
+    @Group("adderReadWrite")
+    @GroupThreads(3)
+    public void adderWriter() {
+        adder.increment();
+    }
+
+    @Benchmark
+    @Group("adderReadWrite")
+    @GroupThreads(1)
+    public long adderReader() {
+        return adder.sum();
+    }
+
+    @Benchmark
+    @Group("atomicReadWrite")
+    @GroupThreads(3)
+    public long atomicWriter() {
+        return atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    @Group("atomicReadWrite")
+    @GroupThreads(1)
+    public long atomicReader() {
+        return atomicLong.get();
+    }
+}
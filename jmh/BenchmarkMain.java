@@ -0,0 +1,112 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import java.io.File;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of this package once for each of a list of
+ * thread counts, in forked JVMs that load the {@code concurrent}
+ * classes from the boot class path.
+ *
+ * <p>Usage: {@code BenchmarkMain [-t n1,n2,...] [jmh options] [regexp...]}.
+ * The thread counts default to 1, 2, 4, ..., up to the number of
+ * available processors.  All other arguments are interpreted as by
+ * the standard JMH command line.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-t") && i + 1 < args.length) {
+                for (String s : args[++i].split(","))
+                    threadCounts.add(Integer.valueOf(s.trim()));
+            }
+            else
+                rest.add(args[i]);
+        }
+        if (threadCounts.isEmpty()) {
+            int ncpu = Runtime.getRuntime().availableProcessors();
+            for (int t = 1; t < ncpu; t <<= 1)
+                threadCounts.add(t);
+            threadCounts.add(ncpu);
+        }
+        CommandLineOptions cmd =
+            new CommandLineOptions(rest.toArray(new String[0]));
+        List<String> prepend = new ArrayList<String>();
+        prepend.add("-Xbootclasspath/a:" + libraryLocation());
+        prepend.addAll(cmd.getJvmArgsPrepend()
+                       .orElse(Collections.<String>emptyList()));
+        String[] jvmArgs = prepend.toArray(new String[0]);
+        for (int t : threadCounts) {
+            Options opts = new OptionsBuilder()
+                .parent(cmd)
+                .threads(t)
+                .jvmArgsPrepend(jvmArgs)
+                .build();
+            new Runner(opts).run();
+        }
+    }
+
+    /**
+     * Returns the class path entry (directory or jar) holding the
+     * {@code concurrent} classes, located without loading them.
+     */
+    static String libraryLocation() throws Exception {
+        String name = "concurrent/ConcurrentHashMap.class";
+        URL u = BenchmarkMain.class.getClassLoader().getResource(name);
+        if (u == null)
+            throw new IllegalStateException(name + " not on class path");
+        if (u.getProtocol().equals("jar")) {
+            JarURLConnection c = (JarURLConnection)u.openConnection();
+            return new File(c.getJarFileURL().toURI()).getPath();
+        }
+        String path = new File(u.toURI()).getPath();
+        return path.substring(0, path.length() - name.length());
+    }
+}
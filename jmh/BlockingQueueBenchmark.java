@@ -0,0 +1,237 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import concurrent.ArrayBlockingQueue;
+import concurrent.BlockingQueue;
+import concurrent.ChunkedLinkedBlockingQueue;
+import concurrent.DelayQueue;
+import concurrent.Delayed;
+import concurrent.LinkedBlockingDeque;
+import concurrent.LinkedBlockingQueue;
+import concurrent.LinkedTransferQueue;
+import concurrent.LockFreeArrayBlockingQueue;
+import concurrent.MpscLinkedBlockingQueue;
+import concurrent.PriorityBlockingQueue;
+import concurrent.SpscArrayBlockingQueue;
+import concurrent.SynchronousQueue;
+import concurrent.TimeUnit;
+import concurrent.TimingWheelDelayQueue;
+import java.util.ArrayList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Producer/consumer throughput of the {@link BlockingQueue}
+ * implementations.  Each benchmark group pairs producers with
+ * consumers on one shared queue; the group shape can be changed from
+ * the command line with {@code -tg}.  Producers and consumers use the
+ * timed forms of {@code offer} and {@code poll} so that they exercise
+ * the blocking paths when the queue is full or empty, yet still
+ * return when the other side stops at the end of an iteration.
+ * SpscArrayBlockingQueue and MpscLinkedBlockingQueue are only valid
+ * with the default single consumer (and, for the former, single
+ * producer) per group.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class BlockingQueueBenchmark {
+
+    @Param({"ArrayBlockingQueue", "LockFreeArrayBlockingQueue",
+            "LinkedBlockingQueue", "ChunkedLinkedBlockingQueue",
+            "LinkedBlockingDeque", "LinkedTransferQueue",
+            "PriorityBlockingQueue", "DelayQueue", "TimingWheelDelayQueue",
+            "SynchronousQueue", "SpscArrayBlockingQueue",
+            "MpscLinkedBlockingQueue"})
+    public String impl;
+
+    /** Capacity for bounded queues; ignored by the others. */
+    @Param({"1024"})
+    public int capacity;
+
+    /** Number of elements moved per batch operation. */
+    @Param({"64"})
+    public int batch;
+
+    BlockingQueue<Item> queue;
+
+    /**
+     * Queue element usable by all implementations: it is {@link
+     * Comparable} (for PriorityBlockingQueue) and already expired
+     * (for DelayQueue and TimingWheelDelayQueue).
+     */
+    static final class Item implements Delayed {
+        final long seq;
+        Item(long seq) { this.seq = seq; }
+        public long getDelay(TimeUnit unit) { return 0L; }
+        public int compareTo(Delayed o) {
+            return Long.compare(seq, ((Item)o).seq);
+        }
+    }
+
+    static final Item[] ITEMS = new Item[256];
+    static {
+        for (int i = 0; i < ITEMS.length; ++i)
+            ITEMS[i] = new Item(i);
+    }
+
+    static final long TIMEOUT_MILLIS = 10L;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        switch (impl) {
+        case "ArrayBlockingQueue":
+            queue = new ArrayBlockingQueue<Item>(capacity); break;
+        case "LockFreeArrayBlockingQueue":
+            queue = new LockFreeArrayBlockingQueue<Item>(capacity); break;
+        case "LinkedBlockingQueue":
+            queue = new LinkedBlockingQueue<Item>(capacity); break;
+        case "ChunkedLinkedBlockingQueue":
+            queue = new ChunkedLinkedBlockingQueue<Item>(capacity); break;
+        case "LinkedBlockingDeque":
+            queue = new LinkedBlockingDeque<Item>(capacity); break;
+        case "LinkedTransferQueue":
+            queue = new LinkedTransferQueue<Item>(); break;
+        case "PriorityBlockingQueue":
+            queue = new PriorityBlockingQueue<Item>(capacity); break;
+        case "DelayQueue":
+            queue = new DelayQueue<Item>(); break;
+        case "TimingWheelDelayQueue":
+            queue = new TimingWheelDelayQueue<Item>(); break;
+        case "SynchronousQueue":
+            queue = new SynchronousQueue<Item>(); break;
+        case "SpscArrayBlockingQueue":
+            queue = new SpscArrayBlockingQueue<Item>(capacity); break;
+        case "MpscLinkedBlockingQueue":
+            queue = new MpscLinkedBlockingQueue<Item>(); break;
+        default:
+            throw new IllegalArgumentException(impl);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        queue.clear();
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        int seq;
+        final ArrayList<Item> sink = new ArrayList<Item>();
+        ArrayList<Item> source;
+
+        @Setup(Level.Trial)
+        public void setUp(BlockingQueueBenchmark b) {
+            source = new ArrayList<Item>(b.batch);
+            for (int i = 0; i < b.batch; ++i)
+                source.add(ITEMS[i & 255]);
+        }
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer(Local l) throws InterruptedException {
+        return queue.offer(ITEMS[l.seq++ & 255], TIMEOUT_MILLIS,
+                           TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Item poll() throws InterruptedException {
+        return queue.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Producers insert one element at a time while consumers remove
+     * up to {@link #batch} elements at once with {@code drainTo}.
+     */
+    @Benchmark
+    @Group("drain")
+    @GroupThreads(1)
+    public boolean offerForDrain(Local l) throws InterruptedException {
+        return queue.offer(ITEMS[l.seq++ & 255], TIMEOUT_MILLIS,
+                           TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    @Group("drain")
+    @GroupThreads(1)
+    public int drainTo(Local l) {
+        ArrayList<Item> sink = l.sink;
+        sink.clear();
+        return queue.drainTo(sink, batch);
+    }
+
+    /**
+     * Producers insert {@link #batch} elements at once with {@code
+     * offerAll} while consumers remove up to as many with the timed
+     * batch {@code poll}.
+     */
+    @Benchmark
+    @Group("batch")
+    @GroupThreads(1)
+    public int offerAll(Local l) {
+        return queue.offerAll(l.source);
+    }
+
+    @Benchmark
+    @Group("batch")
+    @GroupThreads(1)
+    public int pollBatch(Local l) throws InterruptedException {
+        ArrayList<Item> sink = l.sink;
+        sink.clear();
+        return queue.poll(sink, batch, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
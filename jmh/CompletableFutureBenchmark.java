@@ -0,0 +1,134 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import concurrent.CompletableFuture;
+import concurrent.ExecutorService;
+import concurrent.ForkJoinPool;
+import concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Costs of building and completing {@link CompletableFuture}
+ * dependency graphs: linear chains of {@code thenApply} stages
+ * attached before or after completion, asynchronous chains that hop
+ * through an executor at each stage, and fan-in with {@code allOf}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompletableFutureBenchmark {
+
+    @Param({"1", "16"})
+    public int depth;
+
+    @Param({"4"})
+    public int parallelism;
+
+    ExecutorService executor;
+
+    static final Function<Integer,Integer> INC = x -> x + 1;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10L, TimeUnit.SECONDS);
+    }
+
+    /** Stages attached to an incomplete future, then triggered. */
+    @Benchmark
+    public Integer chainThenComplete() {
+        CompletableFuture<Integer> src = new CompletableFuture<Integer>();
+        CompletableFuture<Integer> f = src;
+        for (int i = 0; i < depth; ++i)
+            f = f.thenApply(INC);
+        src.complete(0);
+        return f.join();
+    }
+
+    /** Stages attached to an already completed future. */
+    @Benchmark
+    public Integer chainOnCompleted() {
+        CompletableFuture<Integer> f = CompletableFuture.completedFuture(0);
+        for (int i = 0; i < depth; ++i)
+            f = f.thenApply(INC);
+        return f.join();
+    }
+
+    /** Each stage runs as a separate task in the executor. */
+    @Benchmark
+    public Integer chainAsync() {
+        CompletableFuture<Integer> f =
+            CompletableFuture.supplyAsync(() -> 0, executor);
+        for (int i = 0; i < depth; ++i)
+            f = f.thenApplyAsync(INC, executor);
+        return f.join();
+    }
+
+    /** {@code depth} independent async sources joined by allOf. */
+    @Benchmark
+    public Object fanIn() {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Integer>[] fs =
+            (CompletableFuture<Integer>[])new CompletableFuture<?>[depth];
+        for (int i = 0; i < depth; ++i) {
+            final int x = i;
+            fs[i] = CompletableFuture.supplyAsync(() -> x, executor);
+        }
+        return CompletableFuture.allOf(fs).join();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import concurrent.ConcurrentHashMap;
+import concurrent.ConcurrentHashTrieMap;
+import concurrent.ConcurrentMap;
+import concurrent.ConcurrentSkipListMap;
+import concurrent.LockFreeConcurrentHashMap;
+import concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the main access and update paths of {@link
+ * ConcurrentHashMap} ({@code get}, {@code putVal}, {@code
+ * computeIfAbsent}, {@code merge}, {@code replaceNode}) and the
+ * corresponding {@link ConcurrentSkipListMap}, {@link
+ * LockFreeConcurrentHashMap} and {@link ConcurrentHashTrieMap}
+ * operations.  The map is filled with the
+ * whole key space before measurement, so that updates mostly replace
+ * existing mappings and the table size stays steady; {@link
+ * #removeThenPut} exercises deletion while keeping the population
+ * constant.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentMapBenchmark {
+
+    /** Number of pre-generated key indices; a power of two. */
+    static final int SAMPLES = 1 << 16;
+
+    @Param({"ConcurrentHashMap", "ConcurrentSkipListMap",
+            "LockFreeConcurrentHashMap", "ConcurrentHashTrieMap"})
+    public String impl;
+
+    @Param({"1024", "1048576"})
+    public int keyCount;
+
+    @Param({"UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    @Param({"8", "256"})
+    public int payloadSize;
+
+    ConcurrentMap<Long,byte[]> map;
+    Long[] keys;
+    byte[][] payloads;
+    int[] indices;
+    final AtomicInteger threadSeq = new AtomicInteger();
+
+    static final BiFunction<byte[],byte[],byte[]> LAST =
+        (a, b) -> b;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (impl.equals("ConcurrentHashMap"))
+            map = new ConcurrentHashMap<Long,byte[]>();
+        else if (impl.equals("ConcurrentSkipListMap"))
+            map = new ConcurrentSkipListMap<Long,byte[]>();
+        else if (impl.equals("LockFreeConcurrentHashMap"))
+            map = new LockFreeConcurrentHashMap<Long,byte[]>();
+        else if (impl.equals("ConcurrentHashTrieMap"))
+            map = new ConcurrentHashTrieMap<Long,byte[]>();
+        else
+            throw new IllegalArgumentException(impl);
+        keys = new Long[keyCount];
+        for (int i = 0; i < keyCount; ++i)
+            keys[i] = Long.valueOf(((long)i * 0x9e3779b97f4a7c15L) >>> 16);
+        payloads = new byte[16][];
+        for (int i = 0; i < payloads.length; ++i)
+            payloads[i] = new byte[payloadSize];
+        for (int i = 0; i < keyCount; ++i)
+            map.put(keys[i], payloads[i & 15]);
+        indices = distribution.indices(keyCount, SAMPLES, 42L);
+    }
+
+    /**
+     * Per-thread cursor into the shared sample of key indices.  Each
+     * thread starts at a different offset so that threads do not move
+     * over the same keys in lock step.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int pos;
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentMapBenchmark b) {
+            pos = b.threadSeq.getAndIncrement() * (SAMPLES / 7 + 1);
+        }
+
+        int next(int[] indices) {
+            return indices[pos++ & (SAMPLES - 1)];
+        }
+    }
+
+    final Function<Long,byte[]> newPayload = k -> new byte[payloadSize];
+
+    @Benchmark
+    public byte[] get(Cursor c) {
+        return map.get(keys[c.next(indices)]);
+    }
+
+    @Benchmark
+    public byte[] put(Cursor c) {
+        int i = c.next(indices);
+        return map.put(keys[i], payloads[i & 15]);
+    }
+
+    @Benchmark
+    public byte[] putIfAbsent(Cursor c) {
+        int i = c.next(indices);
+        return map.putIfAbsent(keys[i], payloads[i & 15]);
+    }
+
+    @Benchmark
+    public byte[] computeIfAbsent(Cursor c) {
+        return map.computeIfAbsent(keys[c.next(indices)], newPayload);
+    }
+
+    @Benchmark
+    public byte[] merge(Cursor c) {
+        int i = c.next(indices);
+        return map.merge(keys[i], payloads[i & 15], LAST);
+    }
+
+    @Benchmark
+    public byte[] removeThenPut(Cursor c) {
+        int i = c.next(indices);
+        Long k = keys[i];
+        byte[] v = map.remove(k);
+        map.putIfAbsent(k, payloads[i & 15]);
+        return v;
+    }
+
+    /**
+     * Nine reads for every write.
+     */
+    @Benchmark
+    public byte[] readMostly(Cursor c) {
+        int i = c.next(indices);
+        if (c.pos % 10 != 0)
+            return map.get(keys[i]);
+        return map.put(keys[i], payloads[i & 15]);
+    }
+}
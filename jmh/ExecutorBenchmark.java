@@ -0,0 +1,185 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import concurrent.ArrayBlockingQueue;
+import concurrent.CountDownLatch;
+import concurrent.ExecutorService;
+import concurrent.Executors;
+import concurrent.ForkJoinPool;
+import concurrent.LinkedBlockingQueue;
+import concurrent.PriorityThreadPoolExecutor;
+import concurrent.SynchronousQueue;
+import concurrent.ThreadPoolExecutor;
+import concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Submission and completion throughput of executors.  Each
+ * invocation submits {@link #BATCH} small tasks with {@code execute}
+ * and waits for all of them, so results measure the full hand-off
+ * path ({@code ThreadPoolExecutor.execute}, work queue {@code offer},
+ * {@code getTask}, and worker wakeup) rather than submission alone.
+ * Several benchmark threads may submit concurrently.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+
+    static final int BATCH = 1000;
+
+    /**
+     * Executor configuration: fixed-size ThreadPoolExecutors over an
+     * unbounded linked queue or a bounded array queue, the former
+     * with work stealing, a fixed-size PriorityThreadPoolExecutor
+     * (running all tasks in one class), a cached (SynchronousQueue)
+     * pool, the same with concurrent worker tracking, and a
+     * ForkJoinPool.
+     */
+    @Param({"fixed-linked", "fixed-array", "fixed-stealing",
+            "fixed-priority", "cached", "cached-concurrent", "forkjoin"})
+    public String impl;
+
+    @Param({"1", "4", "16"})
+    public int poolSize;
+
+    /** Amount of simulated work per task, in Blackhole tokens. */
+    @Param({"0", "100"})
+    public int work;
+
+    ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (impl) {
+        case "fixed-linked":
+            executor = new ThreadPoolExecutor
+                (poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                 new LinkedBlockingQueue<Runnable>());
+            break;
+        case "fixed-array":
+            executor = new ThreadPoolExecutor
+                (poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                 new ArrayBlockingQueue<Runnable>(BATCH * 64),
+                 new ThreadPoolExecutor.CallerRunsPolicy());
+            break;
+        case "fixed-stealing":
+            executor = new ThreadPoolExecutor
+                (poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                 new LinkedBlockingQueue<Runnable>(),
+                 Executors.defaultThreadFactory(),
+                 new ThreadPoolExecutor.AbortPolicy(),
+                 ThreadPoolExecutor.WORK_STEALING);
+            break;
+        case "fixed-priority":
+            executor = new PriorityThreadPoolExecutor
+                (poolSize, new int[] { 4, 1 });
+            break;
+        case "cached":
+            executor = new ThreadPoolExecutor
+                (0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                 new SynchronousQueue<Runnable>());
+            break;
+        case "cached-concurrent":
+            executor = new ThreadPoolExecutor
+                (0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                 new SynchronousQueue<Runnable>(),
+                 Executors.defaultThreadFactory(),
+                 new ThreadPoolExecutor.AbortPolicy(),
+                 ThreadPoolExecutor.CONCURRENT_WORKER_TRACKING);
+            break;
+        case "forkjoin":
+            executor = new ForkJoinPool(poolSize);
+            break;
+        default:
+            throw new IllegalArgumentException(impl);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10L, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void execute() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        final int w = work;
+        Runnable task = () -> {
+            if (w > 0)
+                Blackhole.consumeCPU(w);
+            done.countDown();
+        };
+        for (int i = 0; i < BATCH; ++i)
+            executor.execute(task);
+        done.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object submitAndGet() throws Exception {
+        final int w = work;
+        Object r = null;
+        for (int i = 0; i < BATCH; ++i) {
+            r = executor.submit(() -> {
+                    if (w > 0)
+                        Blackhole.consumeCPU(w);
+                    return w;
+                }).get();
+        }
+        return r;
+    }
+}
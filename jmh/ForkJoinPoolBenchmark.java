@@ -0,0 +1,161 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import concurrent.CountedCompleter;
+import concurrent.ForkJoinPool;
+import concurrent.RecursiveTask;
+import concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Divide-and-conquer sums over an array in a {@link ForkJoinPool},
+ * using both {@link RecursiveTask} (fork/join) and {@link
+ * CountedCompleter} (completion-based) decompositions.  Small
+ * thresholds stress task creation, work-stealing and {@code join};
+ * large thresholds approximate the best case.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForkJoinPoolBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int parallelism;
+
+    @Param({"1048576"})
+    public int size;
+
+    /** Leaf size below which tasks are computed sequentially. */
+    @Param({"64", "4096"})
+    public int threshold;
+
+    ForkJoinPool pool;
+    long[] array;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ForkJoinPool(parallelism);
+        array = new long[size];
+        for (int i = 0; i < size; ++i)
+            array[i] = i;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(10L, TimeUnit.SECONDS);
+    }
+
+    static long sum(long[] a, int lo, int hi) {
+        long s = 0L;
+        for (int i = lo; i < hi; ++i)
+            s += a[i];
+        return s;
+    }
+
+    static final class SumTask extends RecursiveTask<Long> {
+        final long[] a; final int lo, hi, threshold;
+        SumTask(long[] a, int lo, int hi, int threshold) {
+            this.a = a; this.lo = lo; this.hi = hi;
+            this.threshold = threshold;
+        }
+        protected Long compute() {
+            if (hi - lo <= threshold)
+                return sum(a, lo, hi);
+            int mid = (lo + hi) >>> 1;
+            SumTask left = new SumTask(a, lo, mid, threshold);
+            left.fork();
+            long r = new SumTask(a, mid, hi, threshold).compute();
+            return r + left.join();
+        }
+    }
+
+    static final class SumCompleter extends CountedCompleter<Long> {
+        final long[] a; final int lo, hi, threshold;
+        SumCompleter forks, next; // record subtask forks in list
+        long result;
+        SumCompleter(SumCompleter parent, long[] a, int lo, int hi,
+                     int threshold, SumCompleter next) {
+            super(parent);
+            this.a = a; this.lo = lo; this.hi = hi;
+            this.threshold = threshold; this.next = next;
+        }
+        public void compute() {
+            int l = lo, h = hi;
+            while (h - l > threshold) {
+                int mid = (l + h) >>> 1;
+                addToPendingCount(1);
+                (forks = new SumCompleter(this, a, mid, h, threshold,
+                                          forks)).fork();
+                h = mid;
+            }
+            result = sum(a, l, h);
+            tryComplete();
+        }
+        public void onCompletion(CountedCompleter<?> caller) {
+            for (SumCompleter t = forks; t != null; t = t.next)
+                result += t.result;
+        }
+        public Long getRawResult() { return result; }
+    }
+
+    @Benchmark
+    public long recursiveTask() {
+        return pool.invoke(new SumTask(array, 0, array.length, threshold));
+    }
+
+    @Benchmark
+    public long countedCompleter() {
+        return pool.invoke(new SumCompleter(null, array, 0, array.length,
+                                            threshold, null));
+    }
+}
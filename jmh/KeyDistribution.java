@@ -0,0 +1,122 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package jmh;
+
+import java.util.SplittableRandom;
+
+/**
+ * Distributions of key indices used by benchmarks that access a
+ * fixed key space.  Indices are generated ahead of time (see {@link
+ * #indices}) so that random number generation is not part of the
+ * measured operations.
+ */
+public enum KeyDistribution {
+
+    /**
+     * Every key in the key space is equally likely.
+     */
+    UNIFORM {
+        int[] indices(int keyCount, int samples, long seed) {
+            SplittableRandom rnd = new SplittableRandom(seed);
+            int[] a = new int[samples];
+            for (int i = 0; i < samples; ++i)
+                a[i] = rnd.nextInt(keyCount);
+            return a;
+        }
+    },
+
+    /**
+     * Key popularity follows a Zipf law with exponent {@link
+     * #ZIPF_THETA}, so that a small set of hot keys receives most
+     * accesses.  Ranks are scattered over the key space so that hot
+     * keys are not adjacent in either hash or comparison order.
+     */
+    ZIPFIAN {
+        int[] indices(int keyCount, int samples, long seed) {
+            // Gray et al, "Quickly Generating Billion-Record Synthetic
+            // Databases", SIGMOD 1994, as used by YCSB
+            double theta = ZIPF_THETA;
+            double zetan = zeta(keyCount, theta);
+            double zeta2 = zeta(2, theta);
+            double alpha = 1.0 / (1.0 - theta);
+            double eta = (1.0 - Math.pow(2.0 / keyCount, 1.0 - theta)) /
+                (1.0 - zeta2 / zetan);
+            double half = 1.0 + Math.pow(0.5, theta);
+            SplittableRandom rnd = new SplittableRandom(seed);
+            int[] a = new int[samples];
+            for (int i = 0; i < samples; ++i) {
+                double u = rnd.nextDouble(), uz = u * zetan;
+                long rank = (uz < 1.0) ? 0L : (uz < half) ? 1L :
+                    (long)(keyCount * Math.pow(eta * u - eta + 1.0, alpha));
+                a[i] = scatter(rank, keyCount);
+            }
+            return a;
+        }
+    };
+
+    /** Skew used for ZIPFIAN; the YCSB default. */
+    public static final double ZIPF_THETA = 0.99;
+
+    /**
+     * Returns {@code samples} key indices in the range [0, keyCount).
+     *
+     * @param keyCount the number of distinct keys
+     * @param samples the number of indices to return
+     * @param seed the random seed
+     * @return the indices
+     */
+    abstract int[] indices(int keyCount, int samples, long seed);
+
+    static double zeta(long n, double theta) {
+        double sum = 0.0;
+        for (long i = 1; i <= n; ++i)
+            sum += 1.0 / Math.pow((double)i, theta);
+        return sum;
+    }
+
+    /**
+     * Maps a popularity rank to a key index using a 64-bit mix
+     * (Stafford variant 13) so that neighbouring ranks land on
+     * unrelated keys.  Collisions merely fold a few ranks together.
+     */
+    static int scatter(long rank, int keyCount) {
+        long z = rank + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return (int)((z >>> 1) % keyCount);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+
+package jmh;
+
+import concurrent.ConcurrentHashMap;
+import concurrent.ConcurrentLongLongHashMap;
+import concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Long-to-long mappings held in a {@code ConcurrentHashMap<Long,Long>}
+ * versus a {@link ConcurrentLongLongHashMap}.  Run with {@code -prof
+ * gc} to compare allocation rates as well as throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrimitiveMapBenchmark {
+
+    /** Number of pre-generated key indices; a power of two. */
+    static final int SAMPLES = 1 << 16;
+
+    @Param({"ConcurrentHashMap", "ConcurrentLongLongHashMap"})
+    public String impl;
+
+    @Param({"1024", "1048576"})
+    public int keyCount;
+
+    @Param({"UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+
+    /** Common operations of the two representations. */
+    abstract static class LongMap {
+        abstract long get(long k);
+        abstract long put(long k, long v);
+        abstract long increment(long k);
+    }
+
+    static final class Boxed extends LongMap {
+        final ConcurrentHashMap<Long,Long> m = new ConcurrentHashMap<Long,Long>();
+        long get(long k) { Long v = m.get(k); return (v == null) ? 0L : v; }
+        long put(long k, long v) { Long p = m.put(k, v); return (p == null) ? 0L : p; }
+        long increment(long k) { return m.merge(k, 1L, Long::sum); }
+    }
+
+    static final class Primitive extends LongMap {
+        final ConcurrentLongLongHashMap m = new ConcurrentLongLongHashMap();
+        long get(long k) { return m.get(k); }
+        long put(long k, long v) { return m.put(k, v); }
+        long increment(long k) { return m.merge(k, 1L, Long::sum); }
+    }
+
+    LongMap map;
+    long[] keys;
+    int[] indices;
+    final AtomicInteger threadSeq = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (impl.equals("ConcurrentHashMap"))
+            map = new Boxed();
+        else if (impl.equals("ConcurrentLongLongHashMap"))
+            map = new Primitive();
+        else
+            throw new IllegalArgumentException(impl);
+        keys = new long[keyCount];
+        for (int i = 0; i < keyCount; ++i)
+            keys[i] = ((long)i * 0x9e3779b97f4a7c15L) >>> 16;
+        for (int i = 0; i < keyCount; ++i)
+            map.put(keys[i], i + 1L);
+        indices = distribution.indices(keyCount, SAMPLES, 42L);
+    }
+
+    /**
+     * Per-thread cursor into the shared sample of key indices.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int pos;
+
+        @Setup(Level.Trial)
+        public void setUp(PrimitiveMapBenchmark b) {
+            pos = b.threadSeq.getAndIncrement() * (SAMPLES / 7 + 1);
+        }
+
+        int next(int[] indices) {
+            return indices[pos++ & (SAMPLES - 1)];
+        }
+    }
+
+    @Benchmark
+    public long get(Cursor c) {
+        return map.get(keys[c.next(indices)]);
+    }
+
+    @Benchmark
+    public long put(Cursor c) {
+        int i = c.next(indices);
+        return map.put(keys[i], c.pos | 1L);
+    }
+
+    @Benchmark
+    public long increment(Cursor c) {
+        return map.increment(keys[c.next(indices)]);
+    }
+}
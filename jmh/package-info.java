@@ -0,0 +1,93 @@
+/*
+ * ORACLE PROPRIETARY/CONFIDENTIAL. Use is subject to license terms.
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ */
+
+/*
+ *
+ *
+ *
+ *
+ *
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+ * <a href="http://openjdk.java.net/projects/code-tools/jmh/">JMH</a>
+ * microbenchmarks for the collections, executors and atomics of
+ * package {@code concurrent}.  These are not part of the library
+ * itself; they are compiled separately against {@code jmh-core} (with
+ * {@code jmh-generator-annprocess} as annotation processor) and the
+ * library classes.
+ *
+ * <p>Each benchmark class covers one family:
+ *
+ * <ul>
+ *
+ * <li>{@link jmh.ConcurrentMapBenchmark}: {@code get}, {@code put},
+ * {@code computeIfAbsent}, {@code merge} and {@code remove} on {@link
+ * concurrent.ConcurrentHashMap} and {@link
+ * concurrent.ConcurrentSkipListMap}, with parameterized key-space size,
+ * key distribution (see {@link jmh.KeyDistribution}) and value payload
+ * size.</li>
+ *
+ * <li>{@link jmh.PrimitiveMapBenchmark}: boxed {@code
+ * ConcurrentHashMap<Long,Long>} versus {@link
+ * concurrent.ConcurrentLongLongHashMap}.</li>
+ *
+ * <li>{@link jmh.BlockingQueueBenchmark}: producer/consumer hand-off
+ * through each {@link concurrent.BlockingQueue} implementation.</li>
+ *
+ * <li>{@link jmh.ExecutorBenchmark}: task submission and completion
+ * through {@link concurrent.ThreadPoolExecutor} configurations and
+ * {@link concurrent.ForkJoinPool}.</li>
+ *
+ * <li>{@link jmh.ForkJoinPoolBenchmark}: divide-and-conquer
+ * computations using {@link concurrent.RecursiveTask}.</li>
+ *
+ * <li>{@link jmh.CompletableFutureBenchmark}: dependent chains and
+ * fan-in of {@link concurrent.CompletableFuture} stages.</li>
+ *
+ * <li>{@link jmh.AtomicBenchmark}: contended updates and reads of
+ * {@link concurrent.atomic.AtomicLong}, {@link
+ * concurrent.atomic.LongAdder} and {@link
+ * concurrent.atomic.LongAccumulator}.</li>
+ *
+ * </ul>
+ *
+ * <p>Because the library classes obtain {@code sun.misc.Unsafe}
+ * directly, they must be loaded by the bootstrap class loader in the
+ * forked benchmark JVMs.  {@link jmh.BenchmarkMain} arranges this
+ * (using {@code -Xbootclasspath/a}), and also runs the selected
+ * benchmarks once per requested thread count, for example:
+ *
+ *  <pre> {@code
+ * java -cp jmh-deps:classes jmh.BenchmarkMain -t 1,4,16 ConcurrentMap}</pre>
+ *
+ * <p>Any further arguments not understood by {@code BenchmarkMain}
+ * are passed through to the JMH command line parser, so the usual
+ * {@code -p name=v1,v2}, {@code -f}, {@code -wi} and {@code -i}
+ * options may be used to narrow parameter sweeps.
+ */
+package jmh;